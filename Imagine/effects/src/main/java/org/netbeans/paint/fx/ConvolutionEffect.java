@@ -13,8 +13,6 @@ import java.awt.Composite;
 import java.awt.CompositeContext;
 import java.awt.RenderingHints;
 import java.awt.image.ColorModel;
-import java.awt.image.ConvolveOp;
-import java.awt.image.ImagingOpException;
 import java.awt.image.Kernel;
 import java.awt.image.Raster;
 import java.awt.image.WritableRaster;
@@ -25,6 +23,7 @@ import javax.swing.Icon;
 import javax.swing.event.ChangeEvent;
 import javax.swing.event.ChangeListener;
 import net.dev.java.imagine.spi.effects.Effect;
+import net.java.dev.imagine.effects.spi.ConvolutionOp;
 
 /**
  *
@@ -86,11 +85,8 @@ abstract class ConvolutionEffect implements Effect, Effect.Applicator, Composite
     }
 
     public final void compose(Raster src, Raster dstIn, WritableRaster dstOut) {
-        try {
-            ConvolveOp op = new ConvolveOp (createKernel(src.getWidth(), src.getHeight()));
-            op.filter(src, dstOut);
-        } catch (ImagingOpException e) {
-            e.printStackTrace();
-        }
+        //Separable kernels are applied as two one-dimensional passes
+        ConvolutionOp op = ConvolutionOp.create (createKernel(src.getWidth(), src.getHeight()));
+        op.filter(src, dstOut);
     }
 }
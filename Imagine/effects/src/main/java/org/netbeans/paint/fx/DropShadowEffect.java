@@ -89,18 +89,16 @@ public class DropShadowEffect implements Effect, Effect.Applicator {
     private static final class Ctx implements CompositeContext {
 	private final ColorModel srcMdl;
 	private final ColorModel dstMdl;
-	private final MonochromeEffect.Ctx mono;
+	private final CompositeContext mono;
 	private final BlurEffect.Ctx blur;
 	private final CompositeContext alpha;
 
 	Ctx (ColorModel src, ColorModel dst) {
 	    srcMdl = src;
 	    dstMdl = dst;
-	    mono = new MonochromeEffect.Ctx (srcMdl, dstMdl);
+	    mono = PointFilter.monochrome(64).createContext();
 	    blur = new BlurEffect.Ctx (srcMdl, dstMdl);
-	    blur.alphaFactor = 2;
-	    blur.skipCenter = true;
-	    mono.inc = 64;
+	    blur.radius = 4;
 
 	    HashMap <RenderingHints.Key, Object> hints =
                     new HashMap<RenderingHints.Key, Object>();
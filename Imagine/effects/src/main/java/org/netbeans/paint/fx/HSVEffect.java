@@ -16,11 +16,8 @@ package org.netbeans.paint.fx;
 import java.awt.Color;
 import java.awt.Composite;
 import java.awt.CompositeContext;
-import java.awt.Rectangle;
 import java.awt.RenderingHints;
 import java.awt.image.ColorModel;
-import java.awt.image.Raster;
-import java.awt.image.WritableRaster;
 import java.util.Collections;
 import java.util.LinkedList;
 import java.util.List;
@@ -98,7 +95,7 @@ public class HSVEffect implements Effect {
 	}
 
 	public CompositeContext createContext(ColorModel srcColorModel, ColorModel dstColorModel, RenderingHints hints) {
-	    return new Ctx(srcColorModel, dstColorModel, hue, sat, bri);
+	    return new HSVFilter(hue, sat, bri).createContext();
 	}
 
         @Override
@@ -108,28 +105,19 @@ public class HSVEffect implements Effect {
     }
 
 
-    private static final class Ctx implements CompositeContext {
-	private ColorModel src;
-	private ColorModel dst;
+    private static final class HSVFilter extends PointFilter {
 	private final float hue, sat, bri;
-	Ctx (ColorModel src, ColorModel dst, float hue, float sat, float bri) {
-	    this.src = src;
-	    this.dst = dst;
+	HSVFilter (float hue, float sat, float bri) {
 	    this.hue = hue;
 	    this.sat = sat;
 	    this.bri = bri;
 	}
 
-	public void dispose() {
-	    src = null;
-	    dst = null;
-	}
-
-	private float constrain (float val) {
+	private static float constrain (float val) {
 	    return Math.max (-1f, Math.min (1f, val));
 	}
 
-	private float rotate (float val) {
+	private static float rotate (float val) {
 	    if (val > 1.0f) {
 		val = -1.0f + (val - 1.0f);
 	    } else if (val < -1.0f) {
@@ -138,31 +126,24 @@ public class HSVEffect implements Effect {
 	    return val;
 	}
 
-	public void compose(Raster src, Raster dstIn, WritableRaster dstOut) {
-	    Rectangle r = dstOut.getBounds();
-	    int[] arr = new int[4];
+	@Override
+	void filter(int[] argb, int offset, int length) {
 	    float[] hsb = new float[3];
-	    for (int x=r.x; x < r.x + r.width; x++) {
-		for (int y=r.y; y < r.y + r.height; y++) {
-		    src.getPixel(x, y, arr);
-
-		    Color.RGBtoHSB(arr[0], arr[1], arr[2], hsb);
-		    hsb[0] += hue;
-		    hsb[1] += sat;
-		    hsb[2] += bri;
-
-		    int outColor = Color.HSBtoRGB(
-			    rotate(hsb[0]),
-			    constrain(hsb[1]),
-			    constrain(hsb[2]));
-
-		    Color c = new Color (outColor);
-		    arr[0] = c.getRed();
-		    arr[1] = c.getGreen();
-		    arr[2] = c.getBlue();
-
-		    dstOut.setPixel(x, y, arr);
+	    // Runs of identical colors are common, so remember the last one
+	    int lastIn = -1;
+	    int lastOut = 0;
+	    for (int i = offset; i < offset + length; i++) {
+		int rgb = argb[i] & 0xFFFFFF;
+		if (rgb != lastIn) {
+		    Color.RGBtoHSB((rgb >> 16) & 0xFF, (rgb >> 8) & 0xFF,
+			    rgb & 0xFF, hsb);
+		    lastOut = Color.HSBtoRGB(
+			    rotate(hsb[0] + hue),
+			    constrain(hsb[1] + sat),
+			    constrain(hsb[2] + bri)) & 0xFFFFFF;
+		    lastIn = rgb;
 		}
+		argb[i] = (argb[i] & 0xFF000000) | lastOut;
 	    }
 	}
     }
@@ -15,11 +15,8 @@ package org.netbeans.paint.fx;
 
 import java.awt.Composite;
 import java.awt.CompositeContext;
-import java.awt.Rectangle;
 import java.awt.RenderingHints;
 import java.awt.image.ColorModel;
-import java.awt.image.Raster;
-import java.awt.image.WritableRaster;
 import javax.swing.JPanel;
 import javax.swing.event.ChangeListener;
 import net.dev.java.imagine.spi.effects.Effect;
@@ -69,7 +66,7 @@ public class InvertEffect implements Effect, Effect.Applicator, Composite {
     }
 
     public CompositeContext createContext(ColorModel srcColorModel, ColorModel dstColorModel, RenderingHints hints) {
-	return new Ctx (srcColorModel, dstColorModel);
+	return PointFilter.invert().createContext();
     }
 
     public String toString() {
@@ -80,32 +77,4 @@ public class InvertEffect implements Effect, Effect.Applicator, Composite {
     public Type type() {
         return Type.COMPOSITE;
     }
-
-    static final class Ctx implements CompositeContext {
-	private ColorModel src;
-	private ColorModel dst;
-	Ctx (ColorModel src, ColorModel dst) {
-	    this.src = src;
-	    this.dst = dst;
-	}
-
-	public void dispose() {
-	    src = null;
-	    dst = null;
-	}
-
-	public void compose(Raster src, Raster dstIn, WritableRaster dstOut) {
-	    Rectangle r = dstOut.getBounds();
-	    int[] arr = new int[4];
-	    for (int x=r.x; x < r.x + r.width; x++) {
-		for (int y=r.y; y < r.y + r.height; y++) {
-		    src.getPixel(x, y, arr);
-		    arr[0] = 255-arr[0];
-		    arr[1] = 255-arr[1];
-		    arr[2] = 255-arr[2];
-		    dstOut.setPixel(x, y, arr);
-		}
-	    }
-	}
-    }
 }
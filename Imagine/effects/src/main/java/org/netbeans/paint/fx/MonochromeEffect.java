@@ -15,11 +15,8 @@ package org.netbeans.paint.fx;
 
 import java.awt.Composite;
 import java.awt.CompositeContext;
-import java.awt.Rectangle;
 import java.awt.RenderingHints;
 import java.awt.image.ColorModel;
-import java.awt.image.Raster;
-import java.awt.image.WritableRaster;
 import javax.swing.JPanel;
 import javax.swing.event.ChangeListener;
 import net.dev.java.imagine.spi.effects.Effect;
@@ -67,7 +64,7 @@ public class MonochromeEffect implements Effect, Effect.Applicator, Composite {
     }
 
     public CompositeContext createContext(ColorModel srcColorModel, ColorModel dstColorModel, RenderingHints hints) {
-	return new Ctx (srcColorModel, dstColorModel);
+	return PointFilter.monochrome(0).createContext();
     }
 
     public String toString() {
@@ -78,37 +75,4 @@ public class MonochromeEffect implements Effect, Effect.Applicator, Composite {
     public Type type() {
         return Type.COMPOSITE;
     }
-
-    static final class Ctx implements CompositeContext {
-	private ColorModel src;
-	private ColorModel dst;
-	Ctx (ColorModel src, ColorModel dst) {
-	    this.src = src;
-	    this.dst = dst;
-	}
-
-	public void dispose() {
-	    src = null;
-	    dst = null;
-	}
-
-	int inc = 0;
-	public void compose(Raster src, Raster dstIn, WritableRaster dstOut) {
-	    Rectangle r = src.getBounds();
-	    int[] arr = new int[4];
-	    for (int x=r.x; x < r.x + r.width; x++) {
-		for (int y=r.y; y < r.y + r.height; y++) {
-		    src.getPixel(x, y, arr);
-		    int val = (arr[0] + arr[1] + arr[2]) / 3;
-		    if (inc != 0) {
-			val = Math.min (255, val + inc);
-		    }
-		    arr[0] = val;
-		    arr[1] = val;
-		    arr[2] = val;
-		    dstOut.setPixel(x, y, arr);
-		}
-	    }
-	}
-    }
 }
@@ -0,0 +1,200 @@
+package org.netbeans.paint.fx;
+
+import java.awt.CompositeContext;
+import java.util.Arrays;
+import java.util.function.IntUnaryOperator;
+
+/**
+ * A transform of each pixel's color which depends on nothing but that
+ * pixel, applied to runs of packed ARGB ints.  Filters run by a
+ * PointFilterContext, which hands them the image a row at a time and
+ * splits large images into bands of rows processed in parallel, so
+ * implementations must be stateless and must not allocate per pixel.
+ * <p>
+ * Filters which transform each channel independently should be created
+ * with <code>channels()</code>, which precomputes a lookup table per
+ * channel; consecutive filters can be fused with <code>andThen()</code>,
+ * which combines lookup tables into one, and otherwise applies each filter
+ * to a row while it is still in cache.
+ *
+ * @author Tim Boudreau
+ */
+abstract class PointFilter {
+
+    private static final int[] IDENTITY = new int[256];
+
+    static {
+        for (int i = 0; i < 256; i++) {
+            IDENTITY[i] = i;
+        }
+    }
+
+    /**
+     * Filter a run of pixels in place.  Called concurrently for different
+     * runs.
+     *
+     * @param argb Packed, non-premultiplied ARGB pixels
+     * @param offset The first pixel
+     * @param length The number of pixels
+     */
+    abstract void filter(int[] argb, int offset, int length);
+
+    /**
+     * Create a filter which runs this one and then another, in one pass.
+     *
+     * @param next Another filter
+     * @return A filter
+     */
+    PointFilter andThen(PointFilter next) {
+        return new Fused(this, next);
+    }
+
+    /**
+     * Create a composite context which replaces each destination pixel with
+     * the filtered source pixel.
+     *
+     * @return A context
+     */
+    final CompositeContext createContext() {
+        return new PointFilterContext(this);
+    }
+
+    /**
+     * Create a filter which transforms red, green and blue independently,
+     * preserving alpha.
+     *
+     * @param red Maps 0-255 to 0-255, or null to leave red alone
+     * @param green Maps 0-255 to 0-255, or null to leave green alone
+     * @param blue Maps 0-255 to 0-255, or null to leave blue alone
+     * @return A filter backed by lookup tables
+     */
+    static PointFilter channels(IntUnaryOperator red, IntUnaryOperator green,
+            IntUnaryOperator blue) {
+        return new Lookup(IDENTITY, table(red), table(green), table(blue));
+    }
+
+    /**
+     * Create a filter which inverts red, green and blue.
+     *
+     * @return A filter
+     */
+    static PointFilter invert() {
+        IntUnaryOperator inv = v -> 255 - v;
+        return channels(inv, inv, inv);
+    }
+
+    /**
+     * Create a filter which replaces red, green and blue with their mean,
+     * brightened by some amount.
+     *
+     * @param brighten An amount from 0 to 255 to add to the mean
+     * @return A filter
+     */
+    static PointFilter monochrome(int brighten) {
+        int[] gray = new int[(255 * 3) + 1];
+        for (int i = 0; i < gray.length; i++) {
+            gray[i] = Math.min(255, (i / 3) + brighten);
+        }
+        return new PointFilter() {
+            @Override
+            void filter(int[] argb, int offset, int length) {
+                for (int i = offset; i < offset + length; i++) {
+                    int p = argb[i];
+                    int v = gray[((p >> 16) & 0xFF) + ((p >> 8) & 0xFF) + (p & 0xFF)];
+                    argb[i] = (p & 0xFF000000) | (v << 16) | (v << 8) | v;
+                }
+            }
+        };
+    }
+
+    private static int[] table(IntUnaryOperator op) {
+        if (op == null) {
+            return IDENTITY;
+        }
+        int[] result = new int[256];
+        for (int i = 0; i < 256; i++) {
+            result[i] = Math.max(0, Math.min(255, op.applyAsInt(i)));
+        }
+        return result;
+    }
+
+    private static final class Lookup extends PointFilter {
+
+        private final int[] alpha;
+        private final int[] red;
+        private final int[] green;
+        private final int[] blue;
+
+        Lookup(int[] alpha, int[] red, int[] green, int[] blue) {
+            this.alpha = alpha;
+            this.red = red;
+            this.green = green;
+            this.blue = blue;
+        }
+
+        @Override
+        void filter(int[] argb, int offset, int length) {
+            for (int i = offset; i < offset + length; i++) {
+                int p = argb[i];
+                argb[i] = (alpha[p >>> 24] << 24)
+                        | (red[(p >> 16) & 0xFF] << 16)
+                        | (green[(p >> 8) & 0xFF] << 8)
+                        | blue[p & 0xFF];
+            }
+        }
+
+        @Override
+        PointFilter andThen(PointFilter next) {
+            if (next instanceof Lookup) {
+                Lookup other = (Lookup) next;
+                return new Lookup(compose(alpha, other.alpha), compose(red, other.red),
+                        compose(green, other.green), compose(blue, other.blue));
+            }
+            return super.andThen(next);
+        }
+
+        private static int[] compose(int[] first, int[] then) {
+            if (first == IDENTITY) {
+                return then;
+            } else if (then == IDENTITY) {
+                return first;
+            }
+            int[] result = new int[256];
+            for (int i = 0; i < 256; i++) {
+                result[i] = then[first[i]];
+            }
+            return result;
+        }
+    }
+
+    private static final class Fused extends PointFilter {
+
+        private final PointFilter[] filters;
+
+        Fused(PointFilter first, PointFilter next) {
+            this(first instanceof Fused ? ((Fused) first).filters
+                    : new PointFilter[]{first}, next);
+        }
+
+        private Fused(PointFilter[] filters, PointFilter next) {
+            PointFilter last = filters[filters.length - 1];
+            if (last instanceof Lookup && next instanceof Lookup) {
+                // Keep consecutive lookups in one table
+                this.filters = filters.clone();
+                this.filters[filters.length - 1] = last.andThen(next);
+            } else {
+                PointFilter[] more = next instanceof Fused ? ((Fused) next).filters
+                        : new PointFilter[]{next};
+                this.filters = Arrays.copyOf(filters, filters.length + more.length);
+                System.arraycopy(more, 0, this.filters, filters.length, more.length);
+            }
+        }
+
+        @Override
+        void filter(int[] argb, int offset, int length) {
+            for (PointFilter f : filters) {
+                f.filter(argb, offset, length);
+            }
+        }
+    }
+}
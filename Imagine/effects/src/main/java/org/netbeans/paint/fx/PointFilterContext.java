@@ -0,0 +1,146 @@
+package org.netbeans.paint.fx;
+
+import java.awt.CompositeContext;
+import java.awt.image.DataBuffer;
+import java.awt.image.Raster;
+import java.awt.image.SampleModel;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.awt.image.WritableRaster;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Composite context which replaces destination pixels with source pixels
+ * run through a PointFilter.  Rasters are read and written a row at a time
+ * - directly as packed ints for the usual ARGB int rasters, via
+ * <code>getPixels()</code> for anything else - and areas larger than a few
+ * rows are split into bands run in parallel on the fork/join pool.  Rows
+ * are copied in and out rather than filtered in the raster's own array,
+ * since taking a BufferedImage's array stops Java2D accelerating it.
+ *
+ * @author Tim Boudreau
+ */
+final class PointFilterContext implements CompositeContext {
+
+    // Bands smaller than this many pixels are not worth forking
+    private static final int MIN_BAND_PIXELS = 64 * 1024;
+    private final PointFilter filter;
+
+    PointFilterContext(PointFilter filter) {
+        this.filter = filter;
+    }
+
+    @Override
+    public void dispose() {
+        // do nothing
+    }
+
+    @Override
+    public void compose(Raster src, Raster dstIn, WritableRaster dstOut) {
+        int width = Math.min(src.getWidth(), dstOut.getWidth());
+        int height = Math.min(src.getHeight(), dstOut.getHeight());
+        if (width <= 0 || height <= 0) {
+            return;
+        }
+        int bandRows = Math.max(1, MIN_BAND_PIXELS / width);
+        Band band = new Band(src, dstOut, width, 0, height, bandRows);
+        if (height <= bandRows) {
+            band.compute();
+        } else {
+            ForkJoinPool.commonPool().invoke(band);
+        }
+    }
+
+    static boolean isPackedArgb(Raster raster) {
+        SampleModel sm = raster.getSampleModel();
+        if (!(sm instanceof SinglePixelPackedSampleModel)
+                || sm.getTransferType() != DataBuffer.TYPE_INT) {
+            return false;
+        }
+        int[] masks = ((SinglePixelPackedSampleModel) sm).getBitMasks();
+        return masks.length == 4 && masks[0] == 0xFF0000 && masks[1] == 0xFF00
+                && masks[2] == 0xFF && masks[3] == 0xFF000000;
+    }
+
+    /**
+     * Pack the samples of a pixel as ARGB; gray rasters have one band, or
+     * two with alpha.
+     */
+    private static int pack(int[] samples, int ix, int bands) {
+        if (bands < 3) {
+            int v = samples[ix];
+            int a = bands == 2 ? samples[ix + 1] : 255;
+            return (a << 24) | (v << 16) | (v << 8) | v;
+        }
+        int a = bands > 3 ? samples[ix + 3] : 255;
+        return (a << 24) | (samples[ix] << 16) | (samples[ix + 1] << 8) | samples[ix + 2];
+    }
+
+    private static void unpack(int argb, int[] samples, int ix, int bands) {
+        samples[ix] = (argb >> 16) & 0xFF;
+        if (bands < 3) {
+            if (bands == 2) {
+                samples[ix + 1] = argb >>> 24;
+            }
+            return;
+        }
+        samples[ix + 1] = (argb >> 8) & 0xFF;
+        samples[ix + 2] = argb & 0xFF;
+        if (bands > 3) {
+            samples[ix + 3] = argb >>> 24;
+        }
+    }
+
+    private final class Band extends RecursiveAction {
+
+        private final Raster src;
+        private final WritableRaster dst;
+        private final int width;
+        private final int start;
+        private final int end;
+        private final int bandRows;
+
+        Band(Raster src, WritableRaster dst, int width, int start, int end, int bandRows) {
+            this.src = src;
+            this.dst = dst;
+            this.width = width;
+            this.start = start;
+            this.end = end;
+            this.bandRows = bandRows;
+        }
+
+        @Override
+        protected void compute() {
+            if (end - start > bandRows) {
+                int mid = start + ((end - start) / 2);
+                invokeAll(new Band(src, dst, width, start, mid, bandRows),
+                        new Band(src, dst, width, mid, end, bandRows));
+                return;
+            }
+            int[] row = new int[width];
+            if (isPackedArgb(src) && isPackedArgb(dst)) {
+                for (int y = start; y < end; y++) {
+                    src.getDataElements(src.getMinX(), src.getMinY() + y, width, 1, row);
+                    filter.filter(row, 0, width);
+                    dst.setDataElements(dst.getMinX(), dst.getMinY() + y, width, 1, row);
+                }
+                return;
+            }
+            int srcBands = src.getNumBands();
+            int dstBands = dst.getNumBands();
+            int[] srcSamples = new int[width * srcBands];
+            int[] dstSamples = new int[width * dstBands];
+            for (int y = start; y < end; y++) {
+                src.getPixels(src.getMinX(), src.getMinY() + y, width, 1, srcSamples);
+                for (int x = 0; x < width; x++) {
+                    row[x] = pack(srcSamples, x * srcBands, srcBands);
+                }
+                filter.filter(row, 0, width);
+                for (int x = 0; x < width; x++) {
+                    unpack(row[x], dstSamples, x * dstBands, dstBands);
+                }
+                dst.setPixels(dst.getMinX(), dst.getMinY() + y, width, 1, dstSamples);
+            }
+        }
+    }
+}
@@ -15,23 +15,29 @@ import java.awt.geom.Rectangle2D;
 import java.awt.image.BufferedImage;
 import java.awt.image.BufferedImageOp;
 import java.awt.image.ColorModel;
-import java.awt.image.ConvolveOp;
 import java.awt.image.Kernel;
+import net.java.dev.imagine.effects.spi.ConvolutionOp;
 
 /**
+ * Convolves with a kernel whose weights are multiplied by a factor.
  *
  * @author Tim Boudreau
  */
 public class ScalingConvolveOp implements BufferedImageOp {
     private float factor;
-    private ConvolveOp convolve;
+    private ConvolutionOp convolve;
     public ScalingConvolveOp(Kernel kernel, float factor) {
         this.factor = factor;
-        this.convolve = new ConvolveOp (kernel);
+        float[] data = kernel.getKernelData(null);
+        for (int i = 0; i < data.length; i++) {
+            data[i] *= factor;
+        }
+        this.convolve = ConvolutionOp.create (new Kernel (kernel.getWidth(),
+                kernel.getHeight(), data));
     }
 
     public BufferedImage filter(BufferedImage src, BufferedImage dest) {
-        return null;
+        return convolve.filter (src, dest);
     }
 
     public Rectangle2D getBounds2D(BufferedImage src) {
@@ -39,7 +45,7 @@ public class ScalingConvolveOp implements BufferedImageOp {
     }
 
     public BufferedImage createCompatibleDestImage(BufferedImage src, ColorModel destCM) {
-        return null;
+        return convolve.createCompatibleDestImage (src, destCM);
     }
 
     public Point2D getPoint2D(Point2D srcPt, Point2D dstPt) {
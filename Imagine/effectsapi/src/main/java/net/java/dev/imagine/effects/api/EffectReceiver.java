@@ -42,6 +42,19 @@ public abstract class EffectReceiver<EffectType> {
         return onApply(result);
     }
 
+    /**
+     * Determine whether an effect can be applied to the receiver a tile at
+     * a time.  By default, effects which implement TileSafe are; receivers
+     * may override this to recognize other effects they know to be safe.
+     *
+     * @param effect An effect
+     * @return The number of pixels around each tile the effect reads, or -1
+     * if it must be applied to the whole image at once
+     */
+    public int tileHalo(EffectType effect) {
+        return effect instanceof TileSafe ? Math.max(0, ((TileSafe) effect).tileHalo()) : -1;
+    }
+
     protected abstract <ParamType> boolean onApply(EffectType effect);
 
     public abstract Dimension getSize();
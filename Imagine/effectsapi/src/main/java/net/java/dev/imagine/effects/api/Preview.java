@@ -1,21 +1,60 @@
 package net.java.dev.imagine.effects.api;
 
 import java.awt.Dimension;
+import java.awt.EventQueue;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
 import java.awt.image.BufferedImage;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.Consumer;
+import net.java.dev.imagine.effects.spi.ImageSource;
+import org.openide.util.RequestProcessor;
 
 /**
+ * Renders previews of an effect applied to an image source, at small
+ * sizes, for effect customizers.  Scaled copies of an ImageSource are
+ * cached per size for the life of the preview, so changing parameters only
+ * costs applying the effect.
+ * <p>
+ * Previews requested with <code>requestPreview()</code> are rendered in
+ * the background:  requests arriving in quick succession, as when dragging
+ * a slider, are coalesced, and a request which is superseded while being
+ * rendered is dropped.  Each request is rendered first at a fraction of
+ * its size, so something appears at once, then at full size; and the
+ * images rendered into are reused from request to request.
  *
  * @author Tim Boudreau
  */
 public final class Preview<ImageSourceType, ParamType, OutputType> {
 
+    private static final RequestProcessor PREVIEWS
+            = new RequestProcessor("Effect previews", 1, true);
+    // Requests arriving within this many milliseconds are coalesced
+    private static final int COALESCE_DELAY = 20;
+    private static final int COARSE_DIVISOR = 4;
+    // Previews smaller than this many pixels are not worth a coarse pass
+    private static final int MIN_COARSE_PIXELS = 128 * 128;
     private final PreviewFactory<ImageSourceType> factory;
     private final ImageSourceType src;
     private final Effect<ParamType, OutputType> effect;
+    private final RequestProcessor.Task task = PREVIEWS.create(this::render);
+    // Pairs of images rendered into alternately, by size;  only used from
+    // the preview thread
+    private final Map<Dimension, BufferedImage[]> buffers = new HashMap<>();
+    // The image most recently passed to a consumer, which is never
+    // rendered into
+    private volatile BufferedImage onScreen;
+    private Request<ParamType> pending;
+    private int generation;
 
+    @SuppressWarnings("unchecked")
     private Preview(PreviewFactory<ImageSourceType> factory, ImageSourceType src, Effect<ParamType, OutputType> effect) {
         this.factory = factory;
-        this.src = src;
+        this.src = src instanceof ImageSource && !(src instanceof CachingImageSource)
+                ? (ImageSourceType) new CachingImageSource((ImageSource) src) : src;
         this.effect = effect;
     }
 
@@ -23,7 +62,164 @@ public final class Preview<ImageSourceType, ParamType, OutputType> {
         return new Preview(factory, src, effect);
     }
 
+    /**
+     * Render a preview synchronously.
+     *
+     * @param size The size
+     * @param param The effect's parameters
+     * @return A new image
+     */
     public BufferedImage createPreview(Dimension size, ParamType param) {
         return factory.createPreview(src, effect, param, size);
     }
+
+    /**
+     * Render a preview in the background, replacing any earlier request
+     * which has not yet been delivered.  The consumer is called on the event
+     * thread, first with a coarse image smaller than the requested size,
+     * which should be scaled up to it, then with the full-size image.  An
+     * image passed to the consumer may be rendered into again once another
+     * has been passed, so it should only be painted until the next one
+     * arrives.
+     *
+     * @param size The size
+     * @param param The effect's parameters
+     * @param onRendered Called with each image as it is rendered
+     */
+    public void requestPreview(Dimension size, ParamType param, Consumer<? super BufferedImage> onRendered) {
+        synchronized (this) {
+            pending = new Request<>(new Dimension(size), param, onRendered, ++generation);
+        }
+        task.schedule(COALESCE_DELAY);
+    }
+
+    /**
+     * Drop any requested preview which has not yet been delivered.
+     */
+    public void cancel() {
+        synchronized (this) {
+            pending = null;
+            generation++;
+        }
+        task.cancel();
+    }
+
+    private synchronized boolean isCurrent(Request<ParamType> req) {
+        return req.generation == generation;
+    }
+
+    private void render() {
+        Request<ParamType> req;
+        synchronized (this) {
+            req = pending;
+            pending = null;
+        }
+        if (req == null || req.size.width <= 0 || req.size.height <= 0) {
+            return;
+        }
+        Dimension coarse = req.size.width * req.size.height >= MIN_COARSE_PIXELS
+                ? new Dimension(Math.max(1, req.size.width / COARSE_DIVISOR),
+                        Math.max(1, req.size.height / COARSE_DIVISOR))
+                : null;
+        // Don't hold onto images for sizes from before a resize
+        buffers.keySet().retainAll(Arrays.asList(coarse, req.size));
+        if (coarse != null && !renderAndDeliver(req, coarse)) {
+            return;
+        }
+        renderAndDeliver(req, req.size);
+    }
+
+    private boolean renderAndDeliver(Request<ParamType> req, Dimension size) {
+        if (!isCurrent(req) || Thread.interrupted()) {
+            return false;
+        }
+        BufferedImage[] pair = buffers.computeIfAbsent(size, sz -> new BufferedImage[2]);
+        int ix = pair[0] != null && pair[0] == onScreen ? 1 : 0;
+        BufferedImage result = factory.createPreview(src, effect, req.param, size, pair[ix]);
+        if (result == null || !isCurrent(req)) {
+            return false;
+        }
+        pair[ix] = result;
+        EventQueue.invokeLater(() -> {
+            if (isCurrent(req)) {
+                onScreen = result;
+                req.onRendered.accept(result);
+            }
+        });
+        return true;
+    }
+
+    private static final class Request<ParamType> {
+
+        private final Dimension size;
+        private final ParamType param;
+        private final Consumer<? super BufferedImage> onRendered;
+        private final int generation;
+
+        Request(Dimension size, ParamType param, Consumer<? super BufferedImage> onRendered, int generation) {
+            this.size = size;
+            this.param = param;
+            this.onRendered = onRendered;
+            this.generation = generation;
+        }
+    }
+
+    /**
+     * Caches scaled copies of an image source by size.  Copies smaller than
+     * one already cached are scaled from it rather than from the original.
+     * Callers must not modify the copies.
+     */
+    private static final class CachingImageSource implements ImageSource {
+
+        private static final int MAX_SIZES = 4;
+        private final ImageSource delegate;
+        private final Map<Dimension, BufferedImage> copies
+                = new LinkedHashMap<Dimension, BufferedImage>(MAX_SIZES, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Dimension, BufferedImage> eldest) {
+                return size() > MAX_SIZES;
+            }
+        };
+
+        CachingImageSource(ImageSource delegate) {
+            this.delegate = delegate;
+        }
+
+        @Override
+        public BufferedImage getRawImage() {
+            return delegate.getRawImage();
+        }
+
+        @Override
+        public synchronized BufferedImage createImageCopy(Dimension size) {
+            BufferedImage result = copies.get(size);
+            if (result != null) {
+                return result;
+            }
+            BufferedImage larger = null;
+            for (BufferedImage img : copies.values()) {
+                if (img.getWidth() >= size.width && img.getHeight() >= size.height
+                        && (larger == null || img.getWidth() < larger.getWidth())) {
+                    larger = img;
+                }
+            }
+            if (larger == null) {
+                result = delegate.createImageCopy(size);
+            } else {
+                result = new BufferedImage(size.width, size.height,
+                        larger.getType() == BufferedImage.TYPE_CUSTOM
+                        ? BufferedImage.TYPE_INT_ARGB : larger.getType());
+                Graphics2D g = result.createGraphics();
+                try {
+                    g.setRenderingHint(RenderingHints.KEY_INTERPOLATION,
+                            RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+                    g.drawImage(larger, 0, 0, size.width, size.height, null);
+                } finally {
+                    g.dispose();
+                }
+            }
+            copies.put(new Dimension(size), result);
+            return result;
+        }
+    }
 }
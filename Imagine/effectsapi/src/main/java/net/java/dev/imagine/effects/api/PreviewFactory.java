@@ -1,6 +1,8 @@
 package net.java.dev.imagine.effects.api;
 
+import java.awt.AlphaComposite;
 import java.awt.Dimension;
+import java.awt.Graphics2D;
 import java.awt.image.BufferedImage;
 
 /**
@@ -22,4 +24,48 @@ public abstract class PreviewFactory<ImageSourceType> {
     public abstract <T, R> boolean canCreatePreview(Effect<T, R> effect);
 
     public abstract <T, R> BufferedImage createPreview(ImageSourceType imageSource, Effect<T, R> effect, T param, Dimension size);
+
+    /**
+     * Create a preview, rendering into an image from an earlier preview if
+     * possible rather than allocating a new one.  The default implementation
+     * ignores the image.
+     *
+     * @param imageSource The image source
+     * @param effect The effect
+     * @param param The effect's parameters
+     * @param size The size of the preview
+     * @param reuse An image previously returned by this method for the same
+     * source and size, which may be overwritten, or null
+     * @return An image, which may be the passed one
+     */
+    public <T, R> BufferedImage createPreview(ImageSourceType imageSource, Effect<T, R> effect, T param, Dimension size, BufferedImage reuse) {
+        return createPreview(imageSource, effect, param, size);
+    }
+
+    /**
+     * Get a cleared image to render a preview into:  the passed one if it is
+     * of the right size and type, otherwise a new one.
+     *
+     * @param reuse An image, or null
+     * @param size The size needed
+     * @param type The image type needed
+     * @return An image, entirely transparent
+     */
+    protected static BufferedImage destination(BufferedImage reuse, Dimension size, int type) {
+        if (type == BufferedImage.TYPE_CUSTOM) {
+            type = BufferedImage.TYPE_INT_ARGB;
+        }
+        if (reuse == null || reuse.getWidth() != size.width
+                || reuse.getHeight() != size.height || reuse.getType() != type) {
+            return new BufferedImage(size.width, size.height, type);
+        }
+        Graphics2D g = reuse.createGraphics();
+        try {
+            g.setComposite(AlphaComposite.Clear);
+            g.fillRect(0, 0, size.width, size.height);
+        } finally {
+            g.dispose();
+        }
+        return reuse;
+    }
 }
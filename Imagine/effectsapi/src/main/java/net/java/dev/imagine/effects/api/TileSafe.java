@@ -0,0 +1,24 @@
+package net.java.dev.imagine.effects.api;
+
+/**
+ * Implemented by effects - typically BufferedImageOps - whose output for a
+ * pixel depends only on the pixels within a fixed distance of it, so that
+ * a large image can be processed as independent tiles, in parallel, each
+ * read with a margin of that many pixels around it.  Effects which depend
+ * on the whole image, such as histogram equalization, or which change the
+ * image's size, must not implement this.
+ *
+ * @author Tim Boudreau
+ */
+public interface TileSafe {
+
+    /**
+     * Get the number of pixels beyond the edges of a tile which must be
+     * read to compute every pixel in the tile, e.g. the radius of a
+     * convolution kernel.
+     *
+     * @return A distance in pixels, 0 for effects which transform each
+     * pixel independently
+     */
+    int tileHalo();
+}
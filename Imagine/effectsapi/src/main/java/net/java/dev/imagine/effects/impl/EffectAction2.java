@@ -9,6 +9,7 @@ import java.awt.BorderLayout;
 import java.awt.Dimension;
 import java.awt.Graphics;
 import java.awt.Graphics2D;
+import java.awt.RenderingHints;
 import java.awt.event.ActionEvent;
 import java.awt.image.BufferedImage;
 import java.util.Objects;
@@ -113,17 +114,24 @@ final class EffectAction2<In, Out> extends AbstractAction implements Lookup.Prov
             return new Dimension(400, 300);
         }
 
+        @SuppressWarnings("unchecked")
         private void updateCached(T value, Dimension size) {
             if (!Objects.equals(value, lastValue) || !Objects.equals(lastSize, size)) {
                 lastValue = value;
                 lastSize = size;
-                if (lastImg != null) {
-                    lastImg.flush();
-                }
-                lastImg = preview.createPreview(size, value);
+                preview.requestPreview(size, value, img -> {
+                    lastImg = (BufferedImage) img;
+                    repaint();
+                });
             }
         }
 
+        @Override
+        public void removeNotify() {
+            super.removeNotify();
+            preview.cancel();
+        }
+
         @Override
         public void paint(Graphics gr) {
             Dimension sz = getSize();
@@ -134,7 +142,10 @@ final class EffectAction2<In, Out> extends AbstractAction implements Lookup.Prov
             T val = supp.get();
             updateCached(val, sz);
             if (lastImg != null) {
-                g.drawRenderedImage(lastImg, null);
+                // Coarse previews arrive first, smaller than the component
+                g.setRenderingHint(RenderingHints.KEY_INTERPOLATION,
+                        RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+                g.drawImage(lastImg, 0, 0, lastSize.width, lastSize.height, null);
             }
         }
     }
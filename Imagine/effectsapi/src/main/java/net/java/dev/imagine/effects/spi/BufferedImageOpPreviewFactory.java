@@ -25,10 +25,15 @@ public class BufferedImageOpPreviewFactory extends PreviewFactory<ImageSource> {
 
     @Override
     public <T, R> BufferedImage createPreview(ImageSource imageSource, Effect<T, R> effect, T param, Dimension size) {
+        return createPreview(imageSource, effect, param, size, null);
+    }
+
+    @Override
+    public <T, R> BufferedImage createPreview(ImageSource imageSource, Effect<T, R> effect, T param, Dimension size, BufferedImage reuse) {
         R output = effect.create(param);
         BufferedImageOp op = (BufferedImageOp) output;
         BufferedImage bi = imageSource.createImageCopy(size);
-        BufferedImage nue = new BufferedImage(size.width, size.height, bi.getType());
+        BufferedImage nue = destination(reuse, size, bi.getType());
         return op.filter(bi, nue);
     }
     
@@ -31,10 +31,15 @@ public class CompositePreviewFactory extends PreviewFactory<ImageSource> {
 
     @Override
     public <T, R> BufferedImage createPreview(ImageSource imageSource, Effect<T, R> effect, T param, Dimension size) {
+        return createPreview(imageSource, effect, param, size, null);
+    }
+
+    @Override
+    public <T, R> BufferedImage createPreview(ImageSource imageSource, Effect<T, R> effect, T param, Dimension size, BufferedImage reuse) {
         R output = effect.create(param);
         Composite composite = (Composite) output;
         BufferedImage bi = imageSource.createImageCopy(size);
-        BufferedImage nue = new BufferedImage(size.width, size.height, bi.getType());
+        BufferedImage nue = destination(reuse, size, bi.getType());
         Graphics2D g = nue.createGraphics();
         g.setComposite(composite);
         g.drawRenderedImage(bi, AffineTransform.getTranslateInstance(0, 0));
@@ -0,0 +1,695 @@
+package net.java.dev.imagine.effects.spi;
+
+import java.awt.AlphaComposite;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.geom.Point2D;
+import java.awt.geom.Rectangle2D;
+import java.awt.image.BufferedImage;
+import java.awt.image.BufferedImageOp;
+import java.awt.image.ColorModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.IndexColorModel;
+import java.awt.image.Kernel;
+import java.awt.image.Raster;
+import java.awt.image.RasterOp;
+import java.awt.image.SampleModel;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.awt.image.WritableRaster;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import net.java.dev.imagine.effects.api.TileSafe;
+
+/**
+ * Convolves images with a kernel, as a faster replacement for
+ * <code>ConvolveOp</code>.  Kernels which are the product of a row and a
+ * column - blurs, most edge detectors - are detected and applied as a
+ * horizontal pass and a vertical pass, so cost grows linearly with the
+ * kernel's size rather than quadratically; rows or columns of equal weights
+ * are applied as running sums, whose cost does not grow with the size at
+ * all, and large gaussian blurs are approximated by three such box blurs.
+ * <p>
+ * Images are processed in horizontal strips, in parallel on the fork/join
+ * pool, each read with enough rows above and below to compute it
+ * independently.  Pixels within the kernel's reach of the image's edges
+ * are computed as if the edge pixels were repeated, rather than being
+ * zeroed as <code>ConvolveOp</code> does by default.  As with
+ * <code>ConvolveOp</code>, colors are premultiplied by alpha while
+ * convolving images with non-premultiplied alpha, but not when filtering
+ * rasters, which have no color model.
+ *
+ * @author Tim Boudreau
+ */
+public final class ConvolutionOp implements BufferedImageOp, RasterOp, TileSafe {
+
+    // Gaussian blurs of this radius or more are approximated by box blurs
+    private static final float BOX_BLUR_RADIUS = 12;
+    private static final int BOX_PASSES = 3;
+    // Strips smaller than this many pixels are not worth forking
+    private static final int MIN_STRIP_PIXELS = 64 * 1024;
+    private final Pass[] passes;
+    private final int reachX;
+    private final int reachY;
+
+    private ConvolutionOp(Pass... passes) {
+        this.passes = passes;
+        int rx = 0;
+        int ry = 0;
+        for (Pass p : passes) {
+            rx += p.reachX();
+            ry += p.reachY();
+        }
+        this.reachX = rx;
+        this.reachY = ry;
+    }
+
+    /**
+     * Create an op which convolves with a kernel, with the same orientation
+     * as <code>ConvolveOp</code>.
+     *
+     * @param kernel A kernel
+     * @return An op
+     */
+    public static ConvolutionOp create(Kernel kernel) {
+        int w = kernel.getWidth();
+        int h = kernel.getHeight();
+        float[] data = kernel.getKernelData(null);
+        // ConvolveOp rotates the kernel by 180 degrees;  passes correlate,
+        // so do the rotation here
+        float[] rotated = new float[data.length];
+        for (int i = 0; i < data.length; i++) {
+            rotated[i] = data[data.length - 1 - i];
+        }
+        int ox = w - 1 - kernel.getXOrigin();
+        int oy = h - 1 - kernel.getYOrigin();
+        float[][] factors = separate(rotated, w, h);
+        if (factors == null) {
+            return new ConvolutionOp(new KernelPass2D(rotated, w, h, ox, oy));
+        }
+        List<Pass> result = new ArrayList<>(2);
+        if (w > 1 || h == 1) {
+            result.add(pass(factors[0], ox, true));
+        }
+        if (h > 1) {
+            result.add(pass(factors[1], oy, false));
+        }
+        return new ConvolutionOp(result.toArray(new Pass[result.size()]));
+    }
+
+    /**
+     * Create an op which applies a gaussian blur, with the same relationship
+     * between radius and standard deviation as the JH Labs GaussianFilter.
+     * Blurs with large radii are approximated by repeated box blurs.
+     *
+     * @param radius The radius in pixels
+     * @return An op
+     */
+    public static ConvolutionOp gaussian(float radius) {
+        if (radius <= 0) {
+            return new ConvolutionOp(new KernelPass(new float[]{1}, 0, true));
+        }
+        double sigma = radius / 3D;
+        if (radius >= BOX_BLUR_RADIUS) {
+            int[] sizes = boxSizes(sigma, BOX_PASSES);
+            Pass[] result = new Pass[BOX_PASSES * 2];
+            for (int i = 0; i < BOX_PASSES; i++) {
+                result[i] = new BoxPass(sizes[i] / 2, 1F / sizes[i], true);
+                result[i + BOX_PASSES] = new BoxPass(sizes[i] / 2, 1F / sizes[i], false);
+            }
+            return new ConvolutionOp(result);
+        }
+        int r = (int) Math.ceil(radius);
+        float[] weights = new float[(r * 2) + 1];
+        double sigma22 = 2 * sigma * sigma;
+        double total = 0;
+        for (int i = -r; i <= r; i++) {
+            if (i * i <= radius * radius) {
+                weights[i + r] = (float) Math.exp(-(i * i) / sigma22);
+                total += weights[i + r];
+            }
+        }
+        for (int i = 0; i < weights.length; i++) {
+            weights[i] /= total;
+        }
+        return new ConvolutionOp(new KernelPass(weights, r, true),
+                new KernelPass(weights, r, false));
+    }
+
+    /**
+     * Create an op which replaces each pixel with the mean of the square of
+     * pixels around it.
+     *
+     * @param radius The distance from the center to the edge of the square
+     * @return An op
+     */
+    public static ConvolutionOp box(int radius) {
+        float weight = 1F / ((radius * 2) + 1);
+        return new ConvolutionOp(new BoxPass(radius, weight, true),
+                new BoxPass(radius, weight, false));
+    }
+
+    /**
+     * Determine whether this op is applied as separate horizontal and
+     * vertical passes.
+     *
+     * @return true if the kernel was separable
+     */
+    public boolean isSeparable() {
+        return !(passes[0] instanceof KernelPass2D);
+    }
+
+    @Override
+    public int tileHalo() {
+        return Math.max(reachX, reachY);
+    }
+
+    /**
+     * Split a kernel into a row and a column whose product it is, if it is
+     * one, choosing the column so that its element in the row of the
+     * kernel's largest element is 1.
+     */
+    private static float[][] separate(float[] data, int w, int h) {
+        int pivot = 0;
+        for (int i = 1; i < data.length; i++) {
+            if (Math.abs(data[i]) > Math.abs(data[pivot])) {
+                pivot = i;
+            }
+        }
+        float max = Math.abs(data[pivot]);
+        if (max == 0) {
+            return null;
+        }
+        int px = pivot % w;
+        int py = pivot / w;
+        float[] row = new float[w];
+        System.arraycopy(data, py * w, row, 0, w);
+        float[] col = new float[h];
+        for (int y = 0; y < h; y++) {
+            col[y] = data[(y * w) + px] / data[pivot];
+        }
+        float tolerance = max * 1E-5F;
+        for (int y = 0; y < h; y++) {
+            for (int x = 0; x < w; x++) {
+                if (Math.abs(data[(y * w) + x] - (col[y] * row[x])) > tolerance) {
+                    return null;
+                }
+            }
+        }
+        return new float[][]{row, col};
+    }
+
+    private static Pass pass(float[] weights, int origin, boolean horizontal) {
+        // Centered runs of equal weights are cheaper as running sums once
+        // there are more than a few of them
+        boolean box = weights.length >= 5 && weights.length % 2 == 1
+                && origin == weights.length / 2;
+        for (int i = 1; box && i < weights.length; i++) {
+            box = weights[i] == weights[0];
+        }
+        return box ? new BoxPass(origin, weights[0], horizontal)
+                : new KernelPass(weights, origin, horizontal);
+    }
+
+    /**
+     * Compute the widths of a number of box blurs which, applied in
+     * succession, approximate a gaussian blur.
+     */
+    private static int[] boxSizes(double sigma, int n) {
+        double ideal = Math.sqrt((12 * sigma * sigma / n) + 1);
+        int lower = (int) Math.floor(ideal);
+        if (lower % 2 == 0) {
+            lower--;
+        }
+        int upper = lower + 2;
+        double mIdeal = ((12 * sigma * sigma) - (n * lower * lower) - (4 * n * lower) - (3 * n))
+                / ((-4D * lower) - 4);
+        long m = Math.round(mIdeal);
+        int[] result = new int[n];
+        for (int i = 0; i < n; i++) {
+            result[i] = i < m ? lower : upper;
+        }
+        return result;
+    }
+
+    @Override
+    public BufferedImage filter(BufferedImage src, BufferedImage dest) {
+        if (src == dest) {
+            throw new IllegalArgumentException("Source and destination must differ");
+        }
+        if (src.getColorModel() instanceof IndexColorModel) {
+            // Convolving palette indices is meaningless
+            BufferedImage argb = new BufferedImage(src.getWidth(), src.getHeight(),
+                    BufferedImage.TYPE_INT_ARGB);
+            draw(src, argb);
+            src = argb;
+        }
+        ColorModel model = src.getColorModel();
+        if (dest != null && !dest.getColorModel().equals(model)) {
+            draw(filter(src, null), dest);
+            return dest;
+        }
+        if (dest == null) {
+            dest = createCompatibleDestImage(src, null);
+        }
+        convolve(src.getRaster(), dest.getRaster(),
+                model.hasAlpha() && !model.isAlphaPremultiplied());
+        return dest;
+    }
+
+    @Override
+    public WritableRaster filter(Raster src, WritableRaster dest) {
+        if (src == dest) {
+            throw new IllegalArgumentException("Source and destination must differ");
+        }
+        if (dest == null) {
+            dest = createCompatibleDestRaster(src);
+        } else if (dest.getNumBands() != src.getNumBands()) {
+            throw new IllegalArgumentException("Source has " + src.getNumBands()
+                    + " bands but destination has " + dest.getNumBands());
+        }
+        convolve(src, dest, false);
+        return dest;
+    }
+
+    private static void draw(BufferedImage from, BufferedImage to) {
+        Graphics2D g = to.createGraphics();
+        try {
+            g.setComposite(AlphaComposite.Src);
+            g.drawImage(from, 0, 0, null);
+        } finally {
+            g.dispose();
+        }
+    }
+
+    @Override
+    public Rectangle2D getBounds2D(BufferedImage src) {
+        return getBounds2D(src.getRaster());
+    }
+
+    @Override
+    public Rectangle2D getBounds2D(Raster src) {
+        return new Rectangle2D.Float(0, 0, src.getWidth(), src.getHeight());
+    }
+
+    @Override
+    public BufferedImage createCompatibleDestImage(BufferedImage src, ColorModel destCM) {
+        if (destCM == null) {
+            destCM = src.getColorModel();
+            if (destCM instanceof IndexColorModel) {
+                return new BufferedImage(src.getWidth(), src.getHeight(),
+                        BufferedImage.TYPE_INT_ARGB);
+            }
+        }
+        return new BufferedImage(destCM, destCM.createCompatibleWritableRaster(
+                src.getWidth(), src.getHeight()), destCM.isAlphaPremultiplied(), null);
+    }
+
+    @Override
+    public WritableRaster createCompatibleDestRaster(Raster src) {
+        return src.createCompatibleWritableRaster();
+    }
+
+    @Override
+    public Point2D getPoint2D(Point2D srcPt, Point2D dstPt) {
+        if (dstPt == null) {
+            dstPt = new Point2D.Float();
+        }
+        dstPt.setLocation(srcPt);
+        return dstPt;
+    }
+
+    @Override
+    public RenderingHints getRenderingHints() {
+        return null;
+    }
+
+    private void convolve(Raster src, WritableRaster dest, boolean premultiply) {
+        int width = Math.min(src.getWidth(), dest.getWidth());
+        int height = Math.min(src.getHeight(), dest.getHeight());
+        if (width <= 0 || height <= 0) {
+            return;
+        }
+        int stripRows = Math.max(Math.max(1, MIN_STRIP_PIXELS / width), reachY * 2);
+        Strip strip = new Strip(src, dest, width, height, premultiply, 0, height, stripRows);
+        if (height <= stripRows) {
+            strip.compute();
+        } else {
+            ForkJoinPool.commonPool().invoke(strip);
+        }
+    }
+
+    private static boolean isPackedArgb(Raster raster) {
+        SampleModel sm = raster.getSampleModel();
+        if (!(sm instanceof SinglePixelPackedSampleModel)
+                || sm.getTransferType() != DataBuffer.TYPE_INT) {
+            return false;
+        }
+        int[] masks = ((SinglePixelPackedSampleModel) sm).getBitMasks();
+        return masks.length == 4 && masks[0] == 0xFF0000 && masks[1] == 0xFF00
+                && masks[2] == 0xFF && masks[3] == 0xFF000000;
+    }
+
+    private static int clamp(int value, int count) {
+        return value < 0 ? 0 : value >= count ? count - 1 : value;
+    }
+
+    private final class Strip extends RecursiveAction {
+
+        private final Raster src;
+        private final WritableRaster dest;
+        private final int width;
+        private final int height;
+        private final boolean premultiply;
+        private final int start;
+        private final int end;
+        private final int stripRows;
+
+        Strip(Raster src, WritableRaster dest, int width, int height, boolean premultiply,
+                int start, int end, int stripRows) {
+            this.src = src;
+            this.dest = dest;
+            this.width = width;
+            this.height = height;
+            this.premultiply = premultiply;
+            this.start = start;
+            this.end = end;
+            this.stripRows = stripRows;
+        }
+
+        @Override
+        protected void compute() {
+            if (end - start > stripRows) {
+                int mid = start + ((end - start) / 2);
+                invokeAll(new Strip(src, dest, width, height, premultiply, start, mid, stripRows),
+                        new Strip(src, dest, width, height, premultiply, mid, end, stripRows));
+                return;
+            }
+            // Read enough rows beyond the strip that the rows in it are
+            // unaffected by the edges of what was read
+            int first = Math.max(0, start - reachY);
+            int last = Math.min(height, end + reachY);
+            int bands = src.getNumBands();
+            int stride = width * bands;
+            int rows = last - first;
+            float[] current = new float[rows * stride];
+            float[] next = new float[rows * stride];
+            int[] samples = new int[stride];
+            for (int y = first; y < last; y++) {
+                read(y, samples, current, (y - first) * stride, bands);
+            }
+            for (Pass pass : passes) {
+                pass.apply(current, next, width, rows, bands);
+                float[] swap = current;
+                current = next;
+                next = swap;
+            }
+            for (int y = start; y < end; y++) {
+                write(y, samples, current, (y - first) * stride, bands);
+            }
+        }
+
+        private void read(int y, int[] samples, float[] into, int offset, int bands) {
+            int x = src.getMinX();
+            int sy = src.getMinY() + y;
+            if (bands == 4 && isPackedArgb(src)) {
+                src.getDataElements(x, sy, width, 1, samples);
+                for (int i = width - 1; i >= 0; i--) {
+                    int argb = samples[i];
+                    int ix = i * 4;
+                    samples[ix] = (argb >> 16) & 0xFF;
+                    samples[ix + 1] = (argb >> 8) & 0xFF;
+                    samples[ix + 2] = argb & 0xFF;
+                    samples[ix + 3] = argb >>> 24;
+                }
+            } else {
+                src.getPixels(x, sy, width, 1, samples);
+            }
+            int stride = width * bands;
+            for (int i = 0; i < stride; i++) {
+                into[offset + i] = samples[i];
+            }
+            if (premultiply) {
+                float maxAlpha = (1 << src.getSampleModel().getSampleSize(bands - 1)) - 1;
+                for (int i = 0; i < stride; i += bands) {
+                    float a = into[offset + i + bands - 1] / maxAlpha;
+                    for (int b = 0; b < bands - 1; b++) {
+                        into[offset + i + b] *= a;
+                    }
+                }
+            }
+        }
+
+        private void write(int y, int[] samples, float[] from, int offset, int bands) {
+            SampleModel sm = dest.getSampleModel();
+            int stride = width * bands;
+            for (int b = 0; b < bands; b++) {
+                int max = sm.getSampleSize(b) >= 32 ? Integer.MAX_VALUE
+                        : (1 << sm.getSampleSize(b)) - 1;
+                for (int i = b; i < stride; i += bands) {
+                    samples[i] = Math.max(0, Math.min(max, Math.round(from[offset + i])));
+                }
+            }
+            if (premultiply) {
+                float maxAlpha = (1 << sm.getSampleSize(bands - 1)) - 1;
+                for (int i = 0; i < stride; i += bands) {
+                    int a = samples[i + bands - 1];
+                    for (int b = 0; b < bands - 1; b++) {
+                        samples[i + b] = a == 0 ? 0 : Math.max(0, Math.min((int) maxAlpha,
+                                Math.round(from[offset + i + b] * maxAlpha / a)));
+                    }
+                }
+            }
+            int x = dest.getMinX();
+            int dy = dest.getMinY() + y;
+            if (bands == 4 && isPackedArgb(dest)) {
+                for (int i = 0; i < width; i++) {
+                    int ix = i * 4;
+                    samples[i] = (samples[ix + 3] << 24) | (samples[ix] << 16)
+                            | (samples[ix + 1] << 8) | samples[ix + 2];
+                }
+                dest.setDataElements(x, dy, width, 1, samples);
+            } else {
+                dest.setPixels(x, dy, width, 1, samples);
+            }
+        }
+    }
+
+    /**
+     * One step of a convolution, reading rows of interleaved samples from
+     * one buffer and writing the same rows to another, treating rows and
+     * columns past the buffer's edges as repeating its edge.
+     */
+    private abstract static class Pass {
+
+        abstract int reachX();
+
+        abstract int reachY();
+
+        abstract void apply(float[] in, float[] out, int width, int rows, int bands);
+
+        /**
+         * Add a row, shifted horizontally and multiplied by a weight, to
+         * another.
+         */
+        static void accumulate(float[] in, int inRow, float[] out, int outRow,
+                int width, int bands, int shift, float weight) {
+            // The run of pixels whose source is within the row is one
+            // contiguous loop the JIT can vectorize
+            int from = Math.max(0, -shift);
+            int to = Math.min(width, width - shift);
+            if (from < to) {
+                int offset = inRow + (shift * bands);
+                for (int i = from * bands; i < to * bands; i++) {
+                    out[outRow + i] += in[offset + i] * weight;
+                }
+            } else {
+                from = to = Math.max(0, Math.min(width, from));
+            }
+            for (int x = 0; x < from; x++) {
+                addPixel(in, inRow, out, outRow, x, clamp(x + shift, width), bands, weight);
+            }
+            for (int x = to; x < width; x++) {
+                addPixel(in, inRow, out, outRow, x, clamp(x + shift, width), bands, weight);
+            }
+        }
+
+        private static void addPixel(float[] in, int inRow, float[] out, int outRow,
+                int x, int sx, int bands, float weight) {
+            for (int b = 0; b < bands; b++) {
+                out[outRow + (x * bands) + b] += in[inRow + (sx * bands) + b] * weight;
+            }
+        }
+    }
+
+    /**
+     * A one-dimensional kernel, applied along rows or columns.
+     */
+    private static final class KernelPass extends Pass {
+
+        private final float[] weights;
+        private final int origin;
+        private final boolean horizontal;
+
+        KernelPass(float[] weights, int origin, boolean horizontal) {
+            this.weights = weights;
+            this.origin = origin;
+            this.horizontal = horizontal;
+        }
+
+        private int reach() {
+            return Math.max(origin, weights.length - 1 - origin);
+        }
+
+        @Override
+        int reachX() {
+            return horizontal ? reach() : 0;
+        }
+
+        @Override
+        int reachY() {
+            return horizontal ? 0 : reach();
+        }
+
+        @Override
+        void apply(float[] in, float[] out, int width, int rows, int bands) {
+            int stride = width * bands;
+            Arrays.fill(out, 0, rows * stride, 0F);
+            for (int y = 0; y < rows; y++) {
+                for (int k = 0; k < weights.length; k++) {
+                    if (weights[k] == 0) {
+                        continue;
+                    }
+                    if (horizontal) {
+                        accumulate(in, y * stride, out, y * stride, width, bands,
+                                k - origin, weights[k]);
+                    } else {
+                        accumulate(in, clamp(y + k - origin, rows) * stride, out,
+                                y * stride, width, bands, 0, weights[k]);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * A kernel which is not separable, applied directly.
+     */
+    private static final class KernelPass2D extends Pass {
+
+        private final float[] data;
+        private final int width;
+        private final int height;
+        private final int originX;
+        private final int originY;
+
+        KernelPass2D(float[] data, int width, int height, int originX, int originY) {
+            this.data = data;
+            this.width = width;
+            this.height = height;
+            this.originX = originX;
+            this.originY = originY;
+        }
+
+        @Override
+        int reachX() {
+            return Math.max(originX, width - 1 - originX);
+        }
+
+        @Override
+        int reachY() {
+            return Math.max(originY, height - 1 - originY);
+        }
+
+        @Override
+        void apply(float[] in, float[] out, int imageWidth, int rows, int bands) {
+            int stride = imageWidth * bands;
+            Arrays.fill(out, 0, rows * stride, 0F);
+            for (int y = 0; y < rows; y++) {
+                for (int ky = 0; ky < height; ky++) {
+                    int inRow = clamp(y + ky - originY, rows) * stride;
+                    for (int kx = 0; kx < width; kx++) {
+                        float weight = data[(ky * width) + kx];
+                        if (weight != 0) {
+                            accumulate(in, inRow, out, y * stride, imageWidth, bands,
+                                    kx - originX, weight);
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * A centered run of equal weights, applied as a running sum along rows
+     * or columns, in constant time per sample whatever its length.
+     */
+    private static final class BoxPass extends Pass {
+
+        private final int radius;
+        private final float weight;
+        private final boolean horizontal;
+
+        BoxPass(int radius, float weight, boolean horizontal) {
+            this.radius = radius;
+            this.weight = weight;
+            this.horizontal = horizontal;
+        }
+
+        @Override
+        int reachX() {
+            return horizontal ? radius : 0;
+        }
+
+        @Override
+        int reachY() {
+            return horizontal ? 0 : radius;
+        }
+
+        @Override
+        void apply(float[] in, float[] out, int width, int rows, int bands) {
+            if (horizontal) {
+                for (int y = 0; y < rows; y++) {
+                    applyToRow(in, out, y * width * bands, width, bands);
+                }
+            } else {
+                applyToColumns(in, out, width * bands, rows);
+            }
+        }
+
+        private void applyToRow(float[] in, float[] out, int row, int width, int bands) {
+            for (int b = 0; b < bands; b++) {
+                double sum = 0;
+                for (int x = -radius; x <= radius; x++) {
+                    sum += in[row + (clamp(x, width) * bands) + b];
+                }
+                for (int x = 0; x < width; x++) {
+                    out[row + (x * bands) + b] = (float) (sum * weight);
+                    sum += in[row + (clamp(x + radius + 1, width) * bands) + b]
+                            - in[row + (clamp(x - radius, width) * bands) + b];
+                }
+            }
+        }
+
+        private void applyToColumns(float[] in, float[] out, int stride, int rows) {
+            double[] sums = new double[stride];
+            for (int y = -radius; y <= radius; y++) {
+                int row = clamp(y, rows) * stride;
+                for (int i = 0; i < stride; i++) {
+                    sums[i] += in[row + i];
+                }
+            }
+            for (int y = 0; y < rows; y++) {
+                int row = y * stride;
+                int add = clamp(y + radius + 1, rows) * stride;
+                int remove = clamp(y - radius, rows) * stride;
+                for (int i = 0; i < stride; i++) {
+                    out[row + i] = (float) (sums[i] * weight);
+                    sums[i] += in[add + i] - in[remove + i];
+                }
+            }
+        }
+    }
+}
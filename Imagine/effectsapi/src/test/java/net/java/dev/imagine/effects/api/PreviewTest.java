@@ -0,0 +1,90 @@
+package net.java.dev.imagine.effects.api;
+
+import java.awt.Dimension;
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.Test;
+
+/**
+ *
+ * @author Tim Boudreau
+ */
+public class PreviewTest {
+
+    @Test
+    public void testRequestsAreCoalescedAndRenderedCoarseThenFine() throws Exception {
+        FakeFactory factory = new FakeFactory();
+        Preview<String, Integer, Object> preview = Preview.create(factory, "source", null);
+        Dimension size = new Dimension(256, 256);
+        List<BufferedImage> delivered = Collections.synchronizedList(new ArrayList<>());
+        CountDownLatch latch = new CountDownLatch(2);
+        for (int i = 0; i < 10; i++) {
+            preview.requestPreview(size, i, img -> {
+                delivered.add(img);
+                latch.countDown();
+            });
+        }
+        assertTrue(latch.await(10, TimeUnit.SECONDS), "Nothing delivered");
+        Thread.sleep(100);
+        assertEquals(2, delivered.size(), "Superseded requests delivered: " + delivered);
+        assertEquals(64, delivered.get(0).getWidth(), "Coarse pass should come first");
+        assertEquals(256, delivered.get(1).getWidth());
+        synchronized (factory.params) {
+            assertEquals(Collections.nCopies(2, 9), factory.params,
+                    "Only the last request should be rendered");
+        }
+    }
+
+    @Test
+    public void testImagesAreReusedButNotWhileOnScreen() throws Exception {
+        FakeFactory factory = new FakeFactory();
+        Preview<String, Integer, Object> preview = Preview.create(factory, "source", null);
+        Dimension size = new Dimension(100, 100);
+        List<BufferedImage> delivered = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            CountDownLatch latch = new CountDownLatch(1);
+            preview.requestPreview(size, i, img -> {
+                delivered.add(img);
+                latch.countDown();
+            });
+            assertTrue(latch.await(10, TimeUnit.SECONDS), "Nothing delivered");
+        }
+        assertNotSame(delivered.get(0), delivered.get(1));
+        assertSame(delivered.get(0), delivered.get(2));
+    }
+
+    static final class FakeFactory extends PreviewFactory<String> {
+
+        final List<Integer> params = new ArrayList<>();
+
+        FakeFactory() {
+            super(String.class);
+        }
+
+        @Override
+        public <T, R> boolean canCreatePreview(Effect<T, R> effect) {
+            return true;
+        }
+
+        @Override
+        public <T, R> BufferedImage createPreview(String imageSource, Effect<T, R> effect, T param, Dimension size) {
+            return createPreview(imageSource, effect, param, size, null);
+        }
+
+        @Override
+        public <T, R> BufferedImage createPreview(String imageSource, Effect<T, R> effect, T param, Dimension size, BufferedImage reuse) {
+            synchronized (params) {
+                params.add((Integer) param);
+            }
+            return destination(reuse, size, BufferedImage.TYPE_INT_ARGB);
+        }
+    }
+}
@@ -0,0 +1,93 @@
+package net.java.dev.imagine.effects.spi;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.ConvolveOp;
+import java.awt.image.Kernel;
+import java.util.Arrays;
+import java.util.Random;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.Test;
+
+/**
+ *
+ * @author Tim Boudreau
+ */
+public class ConvolutionOpTest {
+
+    @Test
+    public void testSeparableKernelMatchesConvolveOp() {
+        Kernel kernel = new Kernel(3, 2, new float[]{0.1F, 0.2F, 0.05F, 0.3F, 0.6F, 0.15F});
+        ConvolutionOp op = ConvolutionOp.create(kernel);
+        assertTrue(op.isSeparable());
+        assertMatchesConvolveOp(op, kernel);
+    }
+
+    @Test
+    public void testNonSeparableKernelMatchesConvolveOp() {
+        Kernel kernel = new Kernel(4, 3, new float[]{1, 0, 0, 0, 0, 2, 0, 0, 0, 0, 0, -1});
+        ConvolutionOp op = ConvolutionOp.create(kernel);
+        assertFalse(op.isSeparable());
+        assertMatchesConvolveOp(op, kernel);
+    }
+
+    @Test
+    public void testBoxKernelMatchesConvolveOp() {
+        float[] data = new float[49];
+        Arrays.fill(data, 1F / 49);
+        Kernel kernel = new Kernel(7, 7, data);
+        assertMatchesConvolveOp(ConvolutionOp.create(kernel), kernel);
+    }
+
+    @Test
+    public void testTilesMatchWholeImage() {
+        for (float radius : new float[]{5, 20}) {
+            ConvolutionOp op = ConvolutionOp.gaussian(radius);
+            BufferedImage img = image(400, 1200, false);
+            BufferedImage whole = op.filter(img, null);
+            int halo = op.tileHalo();
+            BufferedImage tile = op.filter(img.getSubimage(150 - halo, 700 - halo,
+                    100 + (halo * 2), 100 + (halo * 2)), null);
+            for (int y = 0; y < 100; y++) {
+                for (int x = 0; x < 100; x++) {
+                    assertEquals(whole.getRGB(150 + x, 700 + y), tile.getRGB(halo + x, halo + y),
+                            "Mismatch at " + x + "," + y + " for radius " + radius);
+                }
+            }
+        }
+    }
+
+    private static void assertMatchesConvolveOp(ConvolutionOp op, Kernel kernel) {
+        BufferedImage img = image(120, 90, true);
+        BufferedImage expected = new ConvolveOp(kernel, ConvolveOp.EDGE_NO_OP, null).filter(img, null);
+        BufferedImage got = op.filter(img, null);
+        int margin = Math.max(kernel.getWidth(), kernel.getHeight());
+        for (int y = margin; y < img.getHeight() - margin; y++) {
+            for (int x = margin; x < img.getWidth() - margin; x++) {
+                int a = expected.getRGB(x, y);
+                int b = got.getRGB(x, y);
+                for (int shift = 0; shift < 32; shift += 8) {
+                    // ConvolveOp truncates where we round
+                    int diff = Math.abs(((a >> shift) & 0xFF) - ((b >> shift) & 0xFF));
+                    assertTrue(diff <= 1, "Pixel " + x + "," + y + " differs: "
+                            + Integer.toHexString(a) + " vs " + Integer.toHexString(b));
+                }
+            }
+        }
+    }
+
+    private static BufferedImage image(int w, int h, boolean opaque) {
+        Random rnd = new Random(w * h);
+        BufferedImage img = new BufferedImage(w, h, BufferedImage.TYPE_INT_ARGB);
+        for (int y = 0; y < h; y++) {
+            for (int x = 0; x < w; x++) {
+                int alpha = opaque ? 255 : rnd.nextInt(256);
+                int gray = (int) (127 + (100 * Math.sin(x / 7D) * Math.cos(y / 11D)));
+                img.setRGB(x, y, (alpha << 24) | (gray << 16) | (rnd.nextInt(256) << 8)
+                        | ((x * 3 + y) & 0xFF));
+            }
+        }
+        return img;
+    }
+}
@@ -13,6 +13,7 @@
 
 package org.netbeans.paint.effectsui;
 
+import java.awt.AlphaComposite;
 import java.awt.BorderLayout;
 import java.awt.Color;
 import java.awt.Composite;
@@ -300,22 +301,41 @@ public class EffectsMenu extends JMenu {
 		    AffineTransform.getTranslateInstance(ins.left, ins.top));
 	}
 	
+	// The layer's thumbnail and the buffers the effect is drawn into
+	// alternately, which are only touched by the preview task, so that
+	// changing parameters only costs applying the effect
+	private BufferedImage thumbnail;
+	private final BufferedImage[] backBuffers = new BufferedImage[2];
+
 	private void buildBackingImage() {
+	    if (thumbnail == null) {
+		thumbnail = new BufferedImage (320, 200,
+			GraphicsUtils.DEFAULT_BUFFERED_IMAGE_TYPE);
+		Graphics2D thumbGr = thumbnail.createGraphics();
+		layer.paint (RenderingGoal.THUMBNAIL, thumbGr, new Rectangle (0, 0, 320, 200), false, true, Zoom.ONE_TO_ONE,
+			AspectRatio.create(new Dimension(thumbnail.getWidth(), thumbnail.getHeight())));
+		thumbGr.dispose();
+	    }
 	    //Cannot simultaneously scale and apply a composite, it will
-	    //throw an InternalError.  So do it in two steps:
-	    //Make a temporary image
-	    BufferedImage temp = new BufferedImage (320, 200, 
-		    GraphicsUtils.DEFAULT_BUFFERED_IMAGE_TYPE);
-
-	    Graphics2D imageGr = (Graphics2D) temp.createGraphics();
-	    //Paint a thumbnail into that
-	    layer.paint (RenderingGoal.THUMBNAIL, imageGr, new Rectangle (0, 0, 320, 200), false, true, Zoom.ONE_TO_ONE,
-                        AspectRatio.create(new Dimension(temp.getWidth(), temp.getHeight())));
-	    //Now recreate our back buffer
-	    BufferedImage back = new BufferedImage (320, 200, 
-		    GraphicsUtils.DEFAULT_BUFFERED_IMAGE_TYPE);
+	    //throw an InternalError, so the effect is applied to the
+	    //thumbnail, unscaled
+	    BufferedImage temp = thumbnail;
+	    BufferedImage onScreen;
+	    synchronized (this) {
+		onScreen = backingImage;
+	    }
+	    //Never draw into the image being painted
+	    int ix = backBuffers[0] != null && backBuffers[0] == onScreen ? 1 : 0;
+	    if (backBuffers[ix] == null) {
+		backBuffers[ix] = new BufferedImage (320, 200,
+			GraphicsUtils.DEFAULT_BUFFERED_IMAGE_TYPE);
+	    }
+	    BufferedImage back = backBuffers[ix];
 
-	    imageGr = (Graphics2D) back.createGraphics();
+	    Graphics2D imageGr = back.createGraphics();
+	    imageGr.setComposite (AlphaComposite.Clear);
+	    imageGr.fillRect (0, 0, back.getWidth(), back.getHeight());
+	    imageGr.setComposite (AlphaComposite.SrcOver);
             if (applicator instanceof Effect.BufferedImageOpApplicator) {
                 BufferedImageOp op = ((Effect.BufferedImageOpApplicator) applicator).getOp(new Dimension(temp.getWidth(), temp.getHeight()));
                 temp = op.filter(temp, null);
@@ -323,13 +343,12 @@ public class EffectsMenu extends JMenu {
                         AffineTransform.getTranslateInstance(0,0));
             } else {
                 //Set the composite
-                Composite comp = imageGr.getComposite();
                 imageGr.setComposite (applicator.getComposite());
-                //And copy the temp image into it, applying our effect
+                //And copy the thumbnail into it, applying our effect
                 imageGr.drawRenderedImage(temp, 
                         AffineTransform.getTranslateInstance(0,0));
-                imageGr.setComposite(comp);
             }
+	    imageGr.dispose();
 	    synchronized (this) {
 		this.backingImage = back;
 	    }
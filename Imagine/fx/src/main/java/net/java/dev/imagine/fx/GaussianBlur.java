@@ -1,6 +1,5 @@
 package net.java.dev.imagine.fx;
 
-import com.jhlabs.image.GaussianFilter;
 import java.awt.Composite;
 import java.awt.Dimension;
 import java.awt.FlowLayout;
@@ -12,6 +11,7 @@ import javax.swing.JSlider;
 import javax.swing.event.ChangeEvent;
 import javax.swing.event.ChangeListener;
 import net.dev.java.imagine.spi.effects.Effect;
+import net.java.dev.imagine.effects.spi.ConvolutionOp;
 import org.openide.util.ChangeSupport;
 import org.openide.util.NbBundle;
 import org.openide.util.Utilities;
@@ -45,7 +45,7 @@ public final class GaussianBlur implements Effect {
 
         @Override
         public BufferedImageOp getOp(Dimension ignored) {
-            return new GaussianFilter(amt);
+            return ConvolutionOp.gaussian(amt);
         }
 
         @Override
@@ -102,5 +102,4 @@ public final class GaussianBlur implements Effect {
         }
         
     }
-    
 }
@@ -19,6 +19,7 @@ import java.util.concurrent.Executors;
 import java.util.function.Function;
 import java.util.function.Supplier;
 import org.imagine.awt.cache.CacheManager;
+import org.imagine.awt.cache.RasterTileCache;
 import org.imagine.awt.cache.ReferenceTrackingPaintWrapperSupplierFactory;
 import org.imagine.awt.counters.UsageCounter;
 import org.imagine.awt.impl.Accessor;
@@ -62,20 +63,25 @@ final class PaintCache<P extends Paint, K extends PaintKey<P>> extends CacheMana
     }
 
     private Paint createRasterCachingPaint(K paint) {
-        return new RasterCachingPaint(Accessor.rawPaintForPaintKey(paint));
+        return new RasterCachingPaint(Accessor.rawPaintForPaintKey(paint), paint);
     }
 
     static class RasterCachingPaint<P extends Paint> implements Paint, Wrapper<P> {
 
         private final P original;
+        private final Object key;
 
-        public RasterCachingPaint(P paint) {
+        public RasterCachingPaint(P paint, Object key) {
             this.original = paint;
+            this.key = key;
         }
 
         @Override
         public PaintContext createContext(ColorModel cm, Rectangle deviceBounds, Rectangle2D userBounds, AffineTransform xform, RenderingHints hints) {
-            return new WrapperPaintContext(original.createContext(cm, deviceBounds, userBounds, xform, hints));
+            PaintContext ctx = original.createContext(cm, deviceBounds, userBounds, xform, hints);
+            RasterTileCache tiles = RasterTileCache.getDefault();
+            return new WrapperPaintContext(ctx, tiles,
+                    tiles.contextKey(key, ctx, xform, hints));
         }
 
         @Override
@@ -91,9 +97,13 @@ final class PaintCache<P extends Paint, K extends PaintKey<P>> extends CacheMana
         static class WrapperPaintContext implements PaintContext {
 
             private final PaintContext orig;
+            private final RasterTileCache tiles;
+            private final RasterTileCache.ContextKey key;
 
-            public WrapperPaintContext(PaintContext orig) {
+            public WrapperPaintContext(PaintContext orig, RasterTileCache tiles, RasterTileCache.ContextKey key) {
                 this.orig = orig;
+                this.tiles = tiles;
+                this.key = key;
             }
 
             @Override
@@ -108,7 +118,7 @@ final class PaintCache<P extends Paint, K extends PaintKey<P>> extends CacheMana
 
             @Override
             public Raster getRaster(int x, int y, int w, int h) {
-                return orig.getRaster(x, y, w, h);
+                return tiles.get(key, orig, x, y, w, h);
             }
         }
     }
@@ -61,7 +61,7 @@ final class CacheEntry<K, P> implements Delayed, Supplier<P> {
     @Override
     public int compareTo(Delayed o) {
         long myDelay = getDelay(TimeUnit.MILLISECONDS);
-        long otherDelay = getDelay(TimeUnit.MILLISECONDS);
+        long otherDelay = o.getDelay(TimeUnit.MILLISECONDS);
         return Long.compare(myDelay, otherDelay);
     }
 }
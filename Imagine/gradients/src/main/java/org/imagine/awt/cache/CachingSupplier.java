@@ -14,7 +14,7 @@ import java.util.function.Supplier;
  */
 class CachingSupplier<T> implements Supplier<T> {
 
-    private final Supplier<T> delegate;
+    private Supplier<T> delegate;
     T object;
 
     public CachingSupplier(Supplier<T> delegate) {
@@ -22,9 +22,12 @@ class CachingSupplier<T> implements Supplier<T> {
     }
 
     @Override
-    public T get() {
-        if (object == null) {
+    public synchronized T get() {
+        if (object == null && delegate != null) {
             object = delegate.get();
+            // Don't hold whatever the delegate references for the
+            // lifetime of the cache entry
+            delegate = null;
         }
         return object;
     }
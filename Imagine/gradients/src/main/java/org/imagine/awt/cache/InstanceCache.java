@@ -32,7 +32,7 @@ import org.imagine.awt.counters.UsageCounter;
  *
  * @author Tim Boudreau
  */
-final class InstanceCache<B, P extends B, K> {
+final class InstanceCache<B, P, K> {
 
     private static final Logger LOG = Logger.getLogger(InstanceCache.class.getName());
     private static long DEFAULT_PAINT_EXPIRE_DELAY = 60000;
@@ -66,6 +66,24 @@ final class InstanceCache<B, P extends B, K> {
                 referenceCheckingEnabled, onExpire);
     }
 
+    /**
+     * Create a cache whose values cannot be recreated from their keys alone;
+     * {@link #forKey} returns null for keys not in the cache.
+     */
+    public InstanceCache(
+            Function<? super P, Function<? super K, B>> factory,
+            LongSupplier delay,
+            Function<? super P, K> keyFactory,
+            ExecutorService expiryThreadPool,
+            Function<? super K, UsageCounter> usageCounterFactory,
+            BiFunction<Supplier<B>, UsageCounter, Supplier<B>> referenceCheckingWrapperFactory,
+            Predicate<K> referenceCheckingEnabled,
+            BiConsumer<K, UsageCounter> onExpire) {
+        this(factory, null, delay, keyFactory, expiryThreadPool,
+                usageCounterFactory, referenceCheckingWrapperFactory,
+                referenceCheckingEnabled, onExpire);
+    }
+
     public InstanceCache(
             Function<? super P, Function<? super K, B>> factory,
             Function<? super K, P> converter,
@@ -99,8 +117,13 @@ final class InstanceCache<B, P extends B, K> {
         entries = entries.subList(0, Math.min(entries.size(), count));
         for (CacheEntry<K, B> e : entries) {
             K key = e.key();
-            counterCache.remove(key);
-            cache.remove(key);
+            if (!cacheExpirer.remove(e)) {
+                // Already taken by the expiry thread
+                continue;
+            }
+            if (cache.remove(key, e)) {
+                counterCache.remove(key);
+            }
             onExpire(e, e.counter());
         }
         return entries.size();
@@ -125,7 +148,7 @@ final class InstanceCache<B, P extends B, K> {
     public B forKey(K key) {
         CacheEntry<K, B> entry = cache.get(key);
         if (entry == null) {
-            return get(converter.apply(key));
+            return converter == null ? null : get(converter.apply(key));
         }
         periodicCheck(tick++);
         return entry.get();
@@ -176,11 +199,12 @@ final class InstanceCache<B, P extends B, K> {
                         if (entry.getDelay(TimeUnit.MILLISECONDS) <= 0) {
                             UsageCounter counter = entry.counter();
                             K key = entry.key();
-                            cache.remove(key);
-                            counterCache.remove(key);
+                            if (cache.remove(key, entry)) {
+                                counterCache.remove(key);
+                            }
                             onExpire(entry, counter);
                         } else {
-                            System.out.println("Used since take, reenqueue");
+                            // Used since it was taken
                             cacheExpirer.offer(entry);
                         }
                     }
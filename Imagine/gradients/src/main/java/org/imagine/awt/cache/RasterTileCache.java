@@ -0,0 +1,330 @@
+package org.imagine.awt.cache;
+
+import java.awt.PaintContext;
+import java.awt.RenderingHints;
+import java.awt.geom.AffineTransform;
+import java.awt.image.ColorModel;
+import java.awt.image.Raster;
+import java.awt.image.WritableRaster;
+import java.util.Objects;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.imagine.awt.counters.UsageCounter;
+
+/**
+ * A global least-recently-used cache of the rasters generated by paint
+ * contexts, so that repainting a gradient-filled shape - on scrolling, or
+ * repainting the same area again - does not regenerate every pixel.
+ * <p>
+ * Tiles are keyed by the paint, the transform and the tile's coordinates
+ * relative to the transform's integer translation, so a tile generated
+ * before a scroll by a whole number of pixels is reused after it.  Entries
+ * expire when unused for a while through the usual InstanceCache expiry
+ * mechanism, and the least recently used are evicted early if the total size
+ * of cached rasters exceeds a budget, which may be set in megabytes with the
+ * system property <code>imagine.paint.tile.cache.mb</code>.
+ *
+ * @author Tim Boudreau
+ */
+public final class RasterTileCache {
+
+    private static final Logger LOG = Logger.getLogger(RasterTileCache.class.getName());
+    private static final long DEFAULT_BUDGET
+            = Long.getLong("imagine.paint.tile.cache.mb", 24) * 1024 * 1024;
+    private static final long EXPIRE_DELAY = 15000;
+    /**
+     * Requests for rasters larger than this are passed through uncached.
+     */
+    static final int MAX_TILE_PIXELS = 256 * 256;
+    private static RasterTileCache INSTANCE;
+    private final InstanceCache<Raster, TileRequest, TileKey> cache;
+    private final UsageCounter cumulativeUsage = new UsageCounter();
+    private final AtomicLong bytes = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicBoolean evicting = new AtomicBoolean();
+    private final long budget;
+
+    RasterTileCache(long budget, long expireDelay) {
+        this.budget = budget;
+        ExecutorService svc = Executors.newSingleThreadExecutor(r -> {
+            Thread t = new Thread(r, "Paint tile cache expirer");
+            t.setDaemon(true);
+            return t;
+        });
+        cache = new InstanceCache<>(
+                req -> req::generate,
+                () -> expireDelay,
+                TileRequest::key,
+                svc,
+                key -> new UsageCounter(),
+                (supp, counter) -> supp,
+                key -> false,
+                this::expired);
+    }
+
+    public static synchronized RasterTileCache getDefault() {
+        if (INSTANCE == null) {
+            INSTANCE = new RasterTileCache(DEFAULT_BUDGET, EXPIRE_DELAY);
+        }
+        return INSTANCE;
+    }
+
+    /**
+     * Create the key shared by all tiles generated by one paint context.
+     *
+     * @param paintKey An object which is equal for equal paints, such as a
+     * PaintKey
+     * @param ctx The context
+     * @param xform The transform the context was created with
+     * @param hints The rendering hints the context was created with
+     * @return A key
+     */
+    public ContextKey contextKey(Object paintKey, PaintContext ctx, AffineTransform xform, RenderingHints hints) {
+        return new ContextKey(paintKey, ctx.getColorModel(), xform, hints);
+    }
+
+    /**
+     * Get a raster for the passed region, from the cache if possible, or
+     * generated by the passed context and cached if not.  The returned raster
+     * must not be modified.
+     *
+     * @param key The key for the context
+     * @param ctx The context
+     * @param x The device x coordinate
+     * @param y The device y coordinate
+     * @param w The width
+     * @param h The height
+     * @return A raster
+     */
+    public Raster get(ContextKey key, PaintContext ctx, int x, int y, int w, int h) {
+        if ((long) w * h > MAX_TILE_PIXELS) {
+            return ctx.getRaster(x, y, w, h);
+        }
+        requests.incrementAndGet();
+        Raster result = cache.get(new TileRequest(new TileKey(key, x - key.originX,
+                y - key.originY, w, h), ctx, x, y));
+        if (bytes.get() > budget) {
+            evict();
+        }
+        return result;
+    }
+
+    private void evict() {
+        if (!evicting.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            long current = bytes.get();
+            // Evict enough of the least recently used tiles to get back to
+            // three quarters of the budget
+            double fraction = 1D - ((budget * 0.75D) / current);
+            int count = cache.expireNow(fraction);
+            if (LOG.isLoggable(Level.FINE)) {
+                LOG.log(Level.FINE, "Evicted {0} tiles over budget: {1}",
+                        new Object[]{count, this});
+            }
+        } finally {
+            evicting.set(false);
+        }
+    }
+
+    private void expired(TileKey key, UsageCounter counter) {
+        bytes.addAndGet(-key.bytes());
+        counter.coalesceInto(cumulativeUsage);
+    }
+
+    /**
+     * Get usage statistics for tiles which have been evicted from the
+     * cache.
+     *
+     * @return A counter
+     */
+    public UsageCounter cumulativeUsage() {
+        return cumulativeUsage;
+    }
+
+    public int size() {
+        return cache.size();
+    }
+
+    public long bytesInUse() {
+        return bytes.get();
+    }
+
+    public long budget() {
+        return budget;
+    }
+
+    /**
+     * Get the proportion of requests for cacheable tiles which were satisfied
+     * from the cache.
+     *
+     * @return The hit rate, from 0 to 1
+     */
+    public double hitRate() {
+        long total = requests.get();
+        return total == 0 ? 0 : (double) (total - misses.get()) / total;
+    }
+
+    @Override
+    public String toString() {
+        return "RasterTileCache(" + size() + " tiles, " + bytes.get() + "/"
+                + budget + " bytes, " + requests.get() + " requests, "
+                + misses.get() + " misses, hit rate " + hitRate()
+                + ", evicted " + cumulativeUsage + ")";
+    }
+
+    /**
+     * The invariant parts of the key for every tile generated by a
+     * particular paint context.
+     */
+    public static final class ContextKey {
+
+        private final Object paintKey;
+        private final ColorModel colorModel;
+        private final double scaleX;
+        private final double shearY;
+        private final double shearX;
+        private final double scaleY;
+        private final double fractionX;
+        private final double fractionY;
+        private final Object interpolation;
+        private final Object colorRendering;
+        private final Object rendering;
+        final int originX;
+        final int originY;
+        private final int hashCode;
+
+        ContextKey(Object paintKey, ColorModel colorModel, AffineTransform xform, RenderingHints hints) {
+            this.paintKey = paintKey;
+            this.colorModel = colorModel;
+            scaleX = xform.getScaleX();
+            shearY = xform.getShearY();
+            shearX = xform.getShearX();
+            scaleY = xform.getScaleY();
+            double tx = Math.floor(xform.getTranslateX());
+            double ty = Math.floor(xform.getTranslateY());
+            originX = (int) tx;
+            originY = (int) ty;
+            fractionX = xform.getTranslateX() - tx;
+            fractionY = xform.getTranslateY() - ty;
+            interpolation = hints == null ? null : hints.get(RenderingHints.KEY_INTERPOLATION);
+            colorRendering = hints == null ? null : hints.get(RenderingHints.KEY_COLOR_RENDERING);
+            rendering = hints == null ? null : hints.get(RenderingHints.KEY_RENDERING);
+            hashCode = Objects.hash(paintKey, scaleX, shearY, shearX, scaleY,
+                    fractionX, fractionY, interpolation, colorRendering, rendering);
+        }
+
+        @Override
+        public int hashCode() {
+            return hashCode;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (o == this) {
+                return true;
+            } else if (!(o instanceof ContextKey)) {
+                return false;
+            }
+            ContextKey k = (ContextKey) o;
+            return hashCode == k.hashCode
+                    && scaleX == k.scaleX && shearY == k.shearY
+                    && shearX == k.shearX && scaleY == k.scaleY
+                    && fractionX == k.fractionX && fractionY == k.fractionY
+                    && interpolation == k.interpolation
+                    && colorRendering == k.colorRendering
+                    && rendering == k.rendering
+                    && paintKey.equals(k.paintKey)
+                    && colorModel.equals(k.colorModel);
+        }
+
+        @Override
+        public String toString() {
+            return paintKey + " [" + scaleX + "," + shearY + "," + shearX + ","
+                    + scaleY + "," + fractionX + "," + fractionY + "]";
+        }
+    }
+
+    static final class TileKey {
+
+        private final ContextKey context;
+        private final int x;
+        private final int y;
+        private final int w;
+        private final int h;
+
+        TileKey(ContextKey context, int x, int y, int w, int h) {
+            this.context = context;
+            this.x = x;
+            this.y = y;
+            this.w = w;
+            this.h = h;
+        }
+
+        long bytes() {
+            return (long) w * h * 4;
+        }
+
+        @Override
+        public int hashCode() {
+            return context.hashCode + (71 * (x + (7 * y) + (3607 * w) + (70001 * h)));
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (o == this) {
+                return true;
+            } else if (!(o instanceof TileKey)) {
+                return false;
+            }
+            TileKey k = (TileKey) o;
+            return x == k.x && y == k.y && w == k.w && h == k.h
+                    && context.equals(k.context);
+        }
+
+        @Override
+        public String toString() {
+            return x + "," + y + "," + w + "," + h + " " + context;
+        }
+    }
+
+    final class TileRequest {
+
+        private final TileKey key;
+        private final PaintContext ctx;
+        private final int x;
+        private final int y;
+
+        TileRequest(TileKey key, PaintContext ctx, int x, int y) {
+            this.key = key;
+            this.ctx = ctx;
+            this.x = x;
+            this.y = y;
+        }
+
+        TileKey key() {
+            return key;
+        }
+
+        Raster generate(TileKey ignored) {
+            misses.incrementAndGet();
+            bytes.addAndGet(key.bytes());
+            // Paint contexts reuse the raster they return, and may return
+            // one larger than was asked for, so cache a copy of just the
+            // requested area
+            Raster r = ctx.getRaster(x, y, key.w, key.h);
+            int w = Math.min(key.w, r.getWidth());
+            int h = Math.min(key.h, r.getHeight());
+            WritableRaster copy = r.createCompatibleWritableRaster(w, h);
+            copy.setDataElements(0, 0, r.createChild(r.getMinX(), r.getMinY(),
+                    w, h, 0, 0, null));
+            return copy;
+        }
+    }
+}
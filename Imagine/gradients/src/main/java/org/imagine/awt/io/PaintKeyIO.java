@@ -65,7 +65,11 @@ public final class PaintKeyIO {
         sw.writeInt(key.hashCode());
         key.writeTo(sw);
         sw.finishRecord();
-        return sw.toByteArray();
+        try {
+            return sw.toByteArray();
+        } finally {
+            sw.release();
+        }
     }
 
     public static void write(PaintKey<?> key, StringBuilder into) throws IOException {
@@ -105,10 +109,7 @@ public final class PaintKeyIO {
         sw.writeInt(key.hashCode());
         key.writeTo(sw);
         sw.finishRecord();
-        for (ByteBuffer buf : sw.get()) {
-            buf.flip();
-            channel.write(buf);
-        }
+        sw.writeTo(channel);
     }
 
     public static void write(KeyWriter<?> sw, PaintKey<?> key) throws IOException {
@@ -0,0 +1,93 @@
+package org.imagine.awt.cache;
+
+import java.awt.Color;
+import java.awt.GradientPaint;
+import java.awt.PaintContext;
+import java.awt.Rectangle;
+import java.awt.RenderingHints;
+import java.awt.geom.AffineTransform;
+import java.awt.image.ColorModel;
+import java.awt.image.Raster;
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.Test;
+
+/**
+ *
+ * @author Tim Boudreau
+ */
+public class RasterTileCacheTest {
+
+    private final GradientPaint paint = new GradientPaint(0, 0, Color.RED,
+            100, 73, Color.BLUE, true);
+    private final RenderingHints hints = new RenderingHints(null);
+
+    private PaintContext context(AffineTransform xform) {
+        return paint.createContext(ColorModel.getRGBdefault(),
+                new Rectangle(0, 0, 400, 400), new Rectangle(0, 0, 400, 400),
+                xform, hints);
+    }
+
+    private static int[] pixels(Raster r, int w, int h) {
+        return (int[]) r.getDataElements(r.getMinX(), r.getMinY(), w, h, null);
+    }
+
+    @Test
+    public void testTilesAreCachedAndCorrect() {
+        RasterTileCache cache = new RasterTileCache(1024 * 1024, 60000);
+        AffineTransform xform = new AffineTransform();
+        PaintContext ctx = context(xform);
+        RasterTileCache.ContextKey key = cache.contextKey("a", ctx, xform, hints);
+        Raster first = cache.get(key, ctx, 32, 64, 32, 32);
+        int[] expected = pixels(context(xform).getRaster(32, 64, 32, 32), 32, 32);
+        assertArrayEquals(expected, pixels(first, 32, 32));
+        Raster second = cache.get(key, ctx, 32, 64, 32, 32);
+        assertSame(first, second);
+        assertEquals(1, cache.size());
+        assertEquals(0.5D, cache.hitRate(), 0.0001D);
+        Raster other = cache.get(key, ctx, 64, 64, 32, 32);
+        assertNotSame(first, other);
+        assertArrayEquals(pixels(context(xform).getRaster(64, 64, 32, 32), 32, 32),
+                pixels(other, 32, 32));
+    }
+
+    @Test
+    public void testTilesAreReusedAcrossIntegerTranslation() {
+        RasterTileCache cache = new RasterTileCache(1024 * 1024, 60000);
+        AffineTransform xform = new AffineTransform();
+        PaintContext ctx = context(xform);
+        Raster first = cache.get(cache.contextKey("a", ctx, xform, hints),
+                ctx, 32, 64, 32, 32);
+        AffineTransform scrolled = AffineTransform.getTranslateInstance(10, 20);
+        PaintContext ctx2 = context(scrolled);
+        Raster second = cache.get(cache.contextKey("a", ctx2, scrolled, hints),
+                ctx2, 42, 84, 32, 32);
+        assertSame(first, second);
+        assertArrayEquals(pixels(ctx2.getRaster(42, 84, 32, 32), 32, 32),
+                pixels(second, 32, 32));
+        AffineTransform fractional = AffineTransform.getTranslateInstance(10.5, 20);
+        PaintContext ctx3 = context(fractional);
+        Raster third = cache.get(cache.contextKey("a", ctx3, fractional, hints),
+                ctx3, 42, 84, 32, 32);
+        assertNotSame(first, third);
+    }
+
+    @Test
+    public void testBudgetIsEnforced() {
+        long tileBytes = 32 * 32 * 4;
+        RasterTileCache cache = new RasterTileCache(tileBytes * 10, 60000);
+        AffineTransform xform = new AffineTransform();
+        PaintContext ctx = context(xform);
+        RasterTileCache.ContextKey key = cache.contextKey("a", ctx, xform, hints);
+        for (int i = 0; i < 40; i++) {
+            cache.get(key, ctx, i * 32, 0, 32, 32);
+            assertTrue(cache.bytesInUse() <= tileBytes * 10, "Over budget "
+                    + cache);
+        }
+        assertTrue(cache.size() <= 10, cache::toString);
+        assertTrue(cache.cumulativeUsage().usages() > 0, cache::toString);
+    }
+}
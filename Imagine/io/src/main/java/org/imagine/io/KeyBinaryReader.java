@@ -7,7 +7,11 @@ import java.nio.channels.ReadableByteChannel;
 import java.nio.channels.SeekableByteChannel;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import static org.imagine.io.KeyBinaryWriter.COORDINATES_RAW;
+import static org.imagine.io.KeyBinaryWriter.MAX_COORDINATE_SHIFT;
+import static org.imagine.io.KeyBinaryWriter.MAX_VARLONG_BYTES;
 import static org.imagine.io.KeyStringWriter.BYTE_ARRAY_PREFIX;
+import static org.imagine.io.KeyStringWriter.COORDINATE_ARRAY_PREFIX;
 import static org.imagine.io.KeyStringWriter.INT_ARRAY_PREFIX;
 import static org.imagine.io.KeyStringWriter.LONG_ARRAY_PREFIX;
 import static org.imagine.io.KeyStringWriter.MAGIC_1;
@@ -107,73 +111,151 @@ public final class KeyBinaryReader<C extends ReadableByteChannel & SeekableByteC
         return buf.getLong();
     }
 
-    @Override
-    public int[] readIntArray() throws IOException {
-        int marker = readByte();
-        if (marker != INT_ARRAY_PREFIX) {
-            throw new IOException("Expected int array marker "
-                    + Integer.toHexString(INT_ARRAY_PREFIX & 0xFF)
-                    + " but got " + Integer.toHexString(marker & 0xFF));
+    private ByteBuffer readFully(int size) throws IOException {
+        ByteBuffer buf = buffer(size);
+        while (buf.hasRemaining()) {
+            if (channel.read(buf) < 0) {
+                throw new IOException("Underflow at " + channel.position()
+                        + " reading " + size + " bytes - got "
+                        + buf.position());
+            }
         }
+        buf.flip();
+        return buf;
+    }
+
+    private int readArraySize() throws IOException {
         int arraySize = readInt();
-        if (arraySize == 0) {
-            return new int[0];
-        } else if (arraySize < 0) {
+        if (arraySize < 0) {
             throw new IOException("Invalid array size " + arraySize);
         }
-        ByteBuffer buf = buffer(Integer.BYTES * arraySize);
-        channel.read(buf);
-        buf.flip();
-        int[] result = new int[arraySize];
-        for (int i = 0; i < result.length; i++) {
-            result[i] = buf.getInt();
+        return arraySize;
+    }
+
+    private void readMarker(byte expected, String what) throws IOException {
+        int marker = readByte();
+        if (marker != expected) {
+            throw new IOException("Expected " + what + " array marker "
+                    + Integer.toHexString(expected & 0xFF)
+                    + " but got " + Integer.toHexString(marker & 0xFF));
+        }
+    }
+
+    @Override
+    public int readVarInt() throws IOException {
+        long result = readVarLong();
+        if (result < Integer.MIN_VALUE || result > Integer.MAX_VALUE) {
+            throw new IOException("Varint out of range for an int: " + result);
+        }
+        return (int) result;
+    }
+
+    @Override
+    public long readVarLong() throws IOException {
+        long v = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            byte b = readByte();
+            v |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return (v >>> 1) ^ -(v & 1);
+            }
+        }
+        throw new IOException("Malformed varint at " + channel.position());
+    }
+
+    @Override
+    public int[] readIntArray() throws IOException {
+        readMarker(INT_ARRAY_PREFIX, "int");
+        int[] result = new int[readArraySize()];
+        if (result.length > 0) {
+            readFully(Integer.BYTES * result.length).asIntBuffer().get(result);
+        }
+        return result;
+    }
+
+    @Override
+    public float[] readFloatArray() throws IOException {
+        readMarker(INT_ARRAY_PREFIX, "int");
+        float[] result = new float[readArraySize()];
+        if (result.length > 0) {
+            readFully(Float.BYTES * result.length).asFloatBuffer().get(result);
         }
         return result;
     }
 
     @Override
     public long[] readLongArray() throws IOException {
+        readMarker(LONG_ARRAY_PREFIX, "long");
+        long[] result = new long[readArraySize()];
+        if (result.length > 0) {
+            readFully(Long.BYTES * result.length).asLongBuffer().get(result);
+        }
+        return result;
+    }
+
+    /**
+     * Reads either a double array, or a coordinate array as written by
+     * KeyBinaryWriter.writeCoordinates().
+     */
+    @Override
+    public double[] readDoubleArray() throws IOException {
         int marker = readByte();
-        if (marker != LONG_ARRAY_PREFIX) {
-            throw new IOException("Expected long array marker "
+        if (marker != LONG_ARRAY_PREFIX && marker != COORDINATE_ARRAY_PREFIX) {
+            throw new IOException("Expected long or coordinate array marker "
                     + Integer.toHexString(LONG_ARRAY_PREFIX & 0xFF)
+                    + " or " + Integer.toHexString(COORDINATE_ARRAY_PREFIX & 0xFF)
                     + " but got " + Integer.toHexString(marker & 0xFF));
         }
-        int arraySize = readInt();
-        if (arraySize == 0) {
-            return new long[0];
-        } else if (arraySize < 0) {
-            throw new IOException("Invalid array size " + arraySize);
+        double[] result = new double[readArraySize()];
+        int shift = marker == COORDINATE_ARRAY_PREFIX
+                ? readByte()
+                : COORDINATES_RAW;
+        if (shift == COORDINATES_RAW) {
+            if (result.length > 0) {
+                readFully(Double.BYTES * result.length).asDoubleBuffer().get(result);
+            }
+            return result;
+        } else if (shift < 0 || shift > MAX_COORDINATE_SHIFT) {
+            throw new IOException("Invalid coordinate encoding " + shift);
         }
-        ByteBuffer buf = buffer(Long.BYTES * arraySize);
-        channel.read(buf);
-        buf.flip();
-        long[] result = new long[arraySize];
+        int length = readArraySize();
+        if (length < result.length || length > result.length * MAX_VARLONG_BYTES) {
+            throw new IOException("Invalid encoded length " + length + " for "
+                    + result.length + " coordinates");
+        }
+        ByteBuffer buf = readFully(length);
+        long prev = 0;
         for (int i = 0; i < result.length; i++) {
-            result[i] = buf.getLong();
+            long v = 0;
+            int bits = 0;
+            byte b;
+            do {
+                if (!buf.hasRemaining() || bits >= 64) {
+                    throw new IOException("Malformed coordinate " + i
+                            + " of " + result.length);
+                }
+                b = buf.get();
+                v |= (long) (b & 0x7F) << bits;
+                bits += 7;
+            } while ((b & 0x80) != 0);
+            prev += (v >>> 1) ^ -(v & 1);
+            result[i] = Math.scalb((double) prev, -shift);
         }
         return result;
     }
 
+    @Override
+    public double[] readCoordinates() throws IOException {
+        return readDoubleArray();
+    }
+
     @Override
     public byte[] readByteArray() throws IOException {
-        int marker = readByte();
-        if (marker != BYTE_ARRAY_PREFIX) {
-            throw new IOException("Expected byte array marker "
-                    + Integer.toHexString(BYTE_ARRAY_PREFIX & 0xFF)
-                    + " but got " + Integer.toHexString(marker & 0xFF));
-        }
-        int arraySize = readInt();
-        if (arraySize == 0) {
-            return new byte[0];
-        } else if (arraySize < 0) {
-            throw new IOException("Invalid array size " + arraySize);
+        readMarker(BYTE_ARRAY_PREFIX, "byte");
+        byte[] result = new byte[readArraySize()];
+        if (result.length > 0) {
+            readFully(result.length).get(result);
         }
-        ByteBuffer buf = buffer(arraySize);
-        channel.read(buf);
-        buf.flip();
-        byte[] result = new byte[arraySize];
-        buf.get(result);
         return result;
     }
 }
@@ -5,22 +5,54 @@
  */
 package org.imagine.io;
 
+import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Deque;
 import java.util.List;
 import static org.imagine.io.KeyStringWriter.BYTE_ARRAY_PREFIX;
+import static org.imagine.io.KeyStringWriter.COORDINATE_ARRAY_PREFIX;
 import static org.imagine.io.KeyStringWriter.INT_ARRAY_PREFIX;
 import static org.imagine.io.KeyStringWriter.LONG_ARRAY_PREFIX;
 import static org.imagine.io.KeyStringWriter.MAGIC_1;
 import static org.imagine.io.KeyStringWriter.MAGIC_2;
 
 /**
+ * Writes keys into a list of fixed-size direct buffers, which are taken from
+ * and, when the writer is written to a channel with <code>writeTo()</code> or
+ * explicitly released, returned to a shared pool.  Arrays are copied in bulk
+ * through typed buffer views, spanning as many buffers as needed.
+ * <p>
+ * Coordinate arrays written with <code>writeCoordinates()</code> are stored
+ * as zig-zag variable-length deltas between successive values when every
+ * value is exactly representable as a fixed-point number with a few
+ * fractional bits (as most coordinates in vector documents are), and as raw
+ * doubles otherwise; either form is flagged in the data, and KeyBinaryReader
+ * reads both, as well as double arrays written by older versions.
  *
  * @author Tim Boudreau
  */
 public final class KeyBinaryWriter implements KeyWriter<List<ByteBuffer>> {
 
-    private static final int MIN_BUFFER = 96;
+    private static final int CHUNK_SIZE = 16384;
+    // Most records - a paint key, a single shape - fit in a first chunk
+    // this size, which is on the heap, so they never take from the pool
+    private static final int FIRST_CHUNK_SIZE = 512;
+    private static final int MAX_POOLED = 64;
+    private static final Deque<ByteBuffer> POOL = new ArrayDeque<>();
+    static final int MAX_VARLONG_BYTES = 10;
+    /**
+     * Coordinate encoding flag for arrays stored as raw doubles.
+     */
+    static final byte COORDINATES_RAW = -1;
+    /**
+     * The largest number of fractional bits used for fixed-point coordinate
+     * encoding.
+     */
+    static final int MAX_COORDINATE_SHIFT = 10;
+    private static final double MAX_EXACT = 1L << 52;
     private final List<ByteBuffer> buffers = new ArrayList<>();
     private ByteBuffer currBuffer;
 
@@ -53,18 +85,7 @@ public final class KeyBinaryWriter implements KeyWriter<List<ByteBuffer>> {
 
     void finish() {
         if (buffers.size() > 0) {
-            int sz = size();
-            System.out.println("Finish - write size of " + sz);
-            ByteBuffer first = buffers.get(0);
-            int pos = first.position();
-            first.position(2);
-            try {
-                first.putInt(sz);
-            } finally {
-                first.position(pos);
-            }
-        } else {
-            System.out.println("no buffers, not writing size");
+            buffers.get(0).putInt(2, size());
         }
     }
 
@@ -76,23 +97,75 @@ public final class KeyBinaryWriter implements KeyWriter<List<ByteBuffer>> {
         return result;
     }
 
+    /**
+     * Get the buffers written so far; each must be flipped before its
+     * contents are read.  Buffers obtained this way are not returned to the
+     * pool.
+     *
+     * @return The buffers
+     */
+    @Override
     public List<ByteBuffer> get() {
-        List<ByteBuffer> result = new ArrayList<>(buffers.size());
-        for (ByteBuffer b : buffers) {
-            ByteBuffer copy = b.duplicate();
-            copy.flip();
-            result.add(b);
+        return new ArrayList<>(buffers);
+    }
+
+    /**
+     * Write everything written so far to a channel, and return the buffers
+     * to the pool; the writer is empty afterwards.
+     *
+     * @param channel A channel
+     * @return The number of bytes written
+     * @throws IOException If something goes wrong
+     */
+    public long writeTo(WritableByteChannel channel) throws IOException {
+        long result = 0;
+        try {
+            for (ByteBuffer buf : buffers) {
+                ByteBuffer b = buf.duplicate();
+                b.flip();
+                while (b.hasRemaining()) {
+                    result += channel.write(b);
+                }
+            }
+        } finally {
+            release();
         }
         return result;
     }
 
+    /**
+     * Return this writer's buffers to the pool, discarding anything written;
+     * buffers previously returned by <code>get()</code> must not be used
+     * afterwards.
+     */
+    public void release() {
+        synchronized (POOL) {
+            for (ByteBuffer buf : buffers) {
+                if (POOL.size() >= MAX_POOLED) {
+                    break;
+                }
+                if (!buf.isDirect()) {
+                    continue;
+                }
+                buf.clear();
+                POOL.push(buf);
+            }
+        }
+        buffers.clear();
+        currBuffer = null;
+    }
+
+    /**
+     * Copy everything written so far into a byte array.  The writer is left
+     * as it was, so callers which are done with it should call
+     * <code>release()</code> afterwards, to return any pooled buffers a
+     * large record needed.
+     *
+     * @return The bytes
+     */
     @Override
     public byte[] toByteArray() {
-        int size = 0;
-        for (ByteBuffer buf : buffers) {
-            size += buf.position();
-        }
-        byte[] result = new byte[size];
+        byte[] result = new byte[size()];
         int cursor = 0;
         for (ByteBuffer buf : buffers) {
             buf = buf.duplicate();
@@ -104,12 +177,20 @@ public final class KeyBinaryWriter implements KeyWriter<List<ByteBuffer>> {
         return result;
     }
 
+    private static ByteBuffer allocate() {
+        synchronized (POOL) {
+            ByteBuffer result = POOL.poll();
+            if (result != null) {
+                return result;
+            }
+        }
+        return ByteBuffer.allocateDirect(CHUNK_SIZE);
+    }
+
     private ByteBuffer buffer(int projectedBytes) {
-        if (currBuffer == null) {
-            currBuffer = ByteBuffer.allocate(Math.max(MIN_BUFFER, projectedBytes));
-            buffers.add(currBuffer);
-        } else if (currBuffer.remaining() < projectedBytes) {
-            currBuffer = ByteBuffer.allocate(Math.max(MIN_BUFFER, projectedBytes));
+        if (currBuffer == null || currBuffer.remaining() < projectedBytes) {
+            currBuffer = buffers.isEmpty() ? ByteBuffer.allocate(FIRST_CHUNK_SIZE)
+                    : allocate();
             buffers.add(currBuffer);
         }
         return currBuffer;
@@ -127,41 +208,166 @@ public final class KeyBinaryWriter implements KeyWriter<List<ByteBuffer>> {
         return this;
     }
 
+    @Override
+    public KeyBinaryWriter writeVarInt(int value) {
+        return writeVarLong(value);
+    }
+
+    @Override
+    public KeyBinaryWriter writeVarLong(long value) {
+        putVarLong(buffer(MAX_VARLONG_BYTES), value);
+        return this;
+    }
+
+    static void putVarLong(ByteBuffer buf, long value) {
+        long v = (value << 1) ^ (value >> 63);
+        while ((v & ~0x7FL) != 0) {
+            buf.put((byte) ((v & 0x7F) | 0x80));
+            v >>>= 7;
+        }
+        buf.put((byte) v);
+    }
+
     @Override
     public KeyBinaryWriter writeIntArray(int[] ints) {
         writeByte(INT_ARRAY_PREFIX);
         writeInt(ints.length);
-        ByteBuffer buf = buffer(ints.length * Integer.BYTES);
-        for (int i = 0; i < ints.length; i++) {
-            buf.putInt(ints[i]);
+        for (int offset = 0; offset < ints.length;) {
+            ByteBuffer buf = buffer(Integer.BYTES);
+            int count = Math.min(ints.length - offset, buf.remaining() / Integer.BYTES);
+            buf.asIntBuffer().put(ints, offset, count);
+            buf.position(buf.position() + (count * Integer.BYTES));
+            offset += count;
         }
         return this;
     }
 
     @Override
-    public KeyBinaryWriter writeLongArray(long[] ints) {
+    public KeyBinaryWriter writeFloatArray(float[] floats) {
+        writeByte(INT_ARRAY_PREFIX);
+        writeInt(floats.length);
+        for (int offset = 0; offset < floats.length;) {
+            ByteBuffer buf = buffer(Float.BYTES);
+            int count = Math.min(floats.length - offset, buf.remaining() / Float.BYTES);
+            buf.asFloatBuffer().put(floats, offset, count);
+            buf.position(buf.position() + (count * Float.BYTES));
+            offset += count;
+        }
+        return this;
+    }
+
+    @Override
+    public KeyBinaryWriter writeLongArray(long[] longs) {
         writeByte(LONG_ARRAY_PREFIX);
-        writeInt(ints.length);
-        ByteBuffer buf = buffer((ints.length * Long.BYTES) + 5);
-        for (int i = 0; i < ints.length; i++) {
-            buf.putLong(ints[i]);
+        writeInt(longs.length);
+        for (int offset = 0; offset < longs.length;) {
+            ByteBuffer buf = buffer(Long.BYTES);
+            int count = Math.min(longs.length - offset, buf.remaining() / Long.BYTES);
+            buf.asLongBuffer().put(longs, offset, count);
+            buf.position(buf.position() + (count * Long.BYTES));
+            offset += count;
         }
         return this;
     }
 
+    @Override
+    public KeyBinaryWriter writeDoubleArray(double[] dbls) {
+        writeByte(LONG_ARRAY_PREFIX);
+        writeInt(dbls.length);
+        putDoubles(dbls);
+        return this;
+    }
+
+    private void putDoubles(double[] dbls) {
+        for (int offset = 0; offset < dbls.length;) {
+            ByteBuffer buf = buffer(Double.BYTES);
+            int count = Math.min(dbls.length - offset, buf.remaining() / Double.BYTES);
+            buf.asDoubleBuffer().put(dbls, offset, count);
+            buf.position(buf.position() + (count * Double.BYTES));
+            offset += count;
+        }
+    }
+
+    /**
+     * Writes the coordinate array prefix, the value count, and an encoding
+     * byte which is either COORDINATES_RAW, followed by the raw values, or
+     * the number of fractional bits of fixed-point values, followed by the
+     * byte count of the encoded values and then each value's delta from its
+     * predecessor as a zig-zag varint.
+     */
+    @Override
+    public KeyBinaryWriter writeCoordinates(double[] coords) {
+        int shift = fixedPointShift(coords);
+        writeByte(COORDINATE_ARRAY_PREFIX);
+        writeInt(coords.length);
+        writeByte((byte) shift);
+        if (shift == COORDINATES_RAW) {
+            putDoubles(coords);
+            return this;
+        }
+        ByteBuffer lengthBuffer = buffer(Integer.BYTES);
+        int lengthPosition = lengthBuffer.position();
+        lengthBuffer.putInt(0);
+        int length = 0;
+        long prev = 0;
+        for (int i = 0; i < coords.length; i++) {
+            long val = (long) Math.scalb(coords[i], shift);
+            ByteBuffer buf = buffer(MAX_VARLONG_BYTES);
+            int pos = buf.position();
+            putVarLong(buf, val - prev);
+            length += buf.position() - pos;
+            prev = val;
+        }
+        lengthBuffer.putInt(lengthPosition, length);
+        return this;
+    }
+
+    /**
+     * Find the smallest number of fractional bits with which every value can
+     * be represented exactly as a fixed-point long, or COORDINATES_RAW if
+     * there is none.
+     */
+    static int fixedPointShift(double[] coords) {
+        if (coords.length == 0) {
+            return 0;
+        }
+        int shift = 0;
+        double maxAbs = 0;
+        for (int i = 0; i < coords.length; i++) {
+            double c = coords[i];
+            if (c == 0 && Double.doubleToRawLongBits(c) != 0) {
+                // negative zero
+                return COORDINATES_RAW;
+            }
+            double scaled = Math.scalb(c, shift);
+            while (scaled != Math.rint(scaled)) {
+                if (++shift > MAX_COORDINATE_SHIFT) {
+                    return COORDINATES_RAW;
+                }
+                scaled = Math.scalb(c, shift);
+            }
+            maxAbs = Math.max(maxAbs, Math.abs(c));
+        }
+        // Also rejects infinities and NaN, which fail the comparison
+        return Math.scalb(maxAbs, shift) <= MAX_EXACT ? shift : COORDINATES_RAW;
+    }
+
     @Override
     public KeyBinaryWriter writeByte(byte b) {
-        ByteBuffer buf = buffer(1);
-        buf.put(b);
+        buffer(1).put(b);
         return this;
     }
 
     @Override
     public KeyBinaryWriter writeByteArray(byte[] bytes) {
-        ByteBuffer buf = buffer(bytes.length + 5);
         writeByte(BYTE_ARRAY_PREFIX);
         writeInt(bytes.length);
-        buf.put(bytes);
+        for (int offset = 0; offset < bytes.length;) {
+            ByteBuffer buf = buffer(1);
+            int count = Math.min(bytes.length - offset, buf.remaining());
+            buf.put(bytes, offset, count);
+            offset += count;
+        }
         return this;
     }
 }
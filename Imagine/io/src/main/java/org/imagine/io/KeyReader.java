@@ -47,6 +47,18 @@ public interface KeyReader {
         return dbls;
     }
 
+    default int readVarInt() throws IOException {
+        return readInt();
+    }
+
+    default long readVarLong() throws IOException {
+        return readLong();
+    }
+
+    default double[] readCoordinates() throws IOException {
+        return readDoubleArray();
+    }
+
     default String readString() throws IOException {
         byte[] bytes = readByteArray();
         return new String(bytes, UTF_8);
@@ -19,6 +19,7 @@ public final class KeyStringWriter implements KeyWriter<String> {
     public static final byte INT_ARRAY_PREFIX = (byte) 'i';
     public static final byte BYTE_ARRAY_PREFIX = (byte) 'b';
     public static final byte LONG_ARRAY_PREFIX = (byte) 'l';
+    public static final byte COORDINATE_ARRAY_PREFIX = (byte) 'c';
 
     public static final byte MAGIC_1 = (byte) 'k';
     public static final byte MAGIC_2 = (byte) '!';
@@ -53,6 +53,34 @@ public interface KeyWriter<T> extends Supplier<T> {
         return writeIntArray(ints);
     }
 
+    /**
+     * Write a signed int which is usually small; writers which support it
+     * encode it as a zig-zag variable-length integer, others as a plain int.
+     * Must be read back with <code>KeyReader.readVarInt()</code>.
+     */
+    default KeyWriter writeVarInt(int value) {
+        return writeInt(value);
+    }
+
+    /**
+     * Write a signed long which is usually small; writers which support it
+     * encode it as a zig-zag variable-length integer, others as a plain long.
+     * Must be read back with <code>KeyReader.readVarLong()</code>.
+     */
+    default KeyWriter writeVarLong(long value) {
+        return writeLong(value);
+    }
+
+    /**
+     * Write an array of coordinates, which writers may encode more compactly
+     * than an arbitrary double array, for example as deltas between
+     * successive values.  Must be read back with
+     * <code>KeyReader.readCoordinates()</code>.
+     */
+    default KeyWriter writeCoordinates(double[] coords) {
+        return writeDoubleArray(coords);
+    }
+
     default <T extends Enum<T>> KeyWriter writeEnum(T enumValue) {
         return writeInt(enumValue.ordinal());
     }
@@ -0,0 +1,184 @@
+package net.java.dev.imagine.layers.raster;
+
+import java.awt.AlphaComposite;
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.RenderingHints;
+import java.awt.geom.AffineTransform;
+import java.awt.image.BufferedImage;
+import java.util.Arrays;
+import java.util.BitSet;
+import static net.java.dev.imagine.layers.raster.RasterTiles.TILE_SIZE;
+import org.imagine.utils.java2d.GraphicsUtils;
+
+/**
+ * A power-of-two pyramid of progressively halved copies of a raster layer's
+ * image, so that thumbnails and zoomed-out views can be painted from a
+ * level close to the size they are painted at, rather than resampling the
+ * full-resolution image every time.  Levels are built lazily, the first
+ * time something is painted small enough to need them.  Changes to the
+ * image are recorded against the same tile grid RasterTiles uses, and only
+ * the parts of each level under changed tiles are recomputed when the
+ * pyramid is next used; replacing the image or changing its size discards
+ * the pyramid.
+ *
+ * @author Tim Boudreau
+ */
+final class MipMaps {
+
+    private static final BufferedImage[] NO_LEVELS = new BufferedImage[0];
+    // Below this size, resampling the full image costs too little to be
+    // worth keeping a copy
+    private static final int MIN_LEVEL_SIZE = 16;
+    private BufferedImage source;
+    private BufferedImage[] levels = NO_LEVELS;
+    private final BitSet dirty = new BitSet();
+    private int cols;
+
+    /**
+     * Note that an area of the image has changed.
+     *
+     * @param x The x coordinate, in image coordinates
+     * @param y The y coordinate, in image coordinates
+     * @param w The width, or a negative number for the whole image
+     * @param h The height, or a negative number for the whole image
+     */
+    synchronized void changed(int x, int y, int w, int h) {
+        if (levels.length == 0) {
+            return;
+        }
+        int rows = (source.getHeight() + TILE_SIZE - 1) / TILE_SIZE;
+        if (w < 0 || h < 0) {
+            dirty.set(0, cols * rows);
+            return;
+        }
+        Rectangle r = new Rectangle(x, y, w, h).intersection(
+                new Rectangle(0, 0, source.getWidth(), source.getHeight()));
+        if (r.isEmpty()) {
+            return;
+        }
+        int lastCol = (r.x + r.width - 1) / TILE_SIZE;
+        int lastRow = (r.y + r.height - 1) / TILE_SIZE;
+        for (int row = r.y / TILE_SIZE; row <= lastRow; row++) {
+            dirty.set((row * cols) + (r.x / TILE_SIZE), (row * cols) + lastCol + 1);
+        }
+    }
+
+    /**
+     * Discard all levels, for example when the layer is hibernated.
+     */
+    synchronized void clear() {
+        source = null;
+        levels = NO_LEVELS;
+        dirty.clear();
+    }
+
+    /**
+     * Get the number of halvings to apply to an image painted at a scale
+     * to reach the smallest level which is no smaller than it will be drawn.
+     *
+     * @param scale The scale, where 1 is full size
+     * @return A level, where 0 is the image itself
+     */
+    static int levelFor(double scale) {
+        if (scale <= 0 || scale > 0.5 || Double.isNaN(scale)) {
+            return 0;
+        }
+        return (int) Math.floor(Math.log(1 / scale) / Math.log(2));
+    }
+
+    /**
+     * Get a level of the pyramid for an image, building or updating it and
+     * the levels above it as needed.
+     *
+     * @param img The current image
+     * @param level The level, where 1 is half size
+     * @return An image, or the passed image if the level would be too small
+     * to be worth keeping
+     */
+    synchronized BufferedImage level(BufferedImage img, int level) {
+        if (level <= 0) {
+            return img;
+        }
+        if (img != source) {
+            source = img;
+            levels = NO_LEVELS;
+            dirty.clear();
+            cols = (img.getWidth() + TILE_SIZE - 1) / TILE_SIZE;
+        }
+        if (!dirty.isEmpty()) {
+            update();
+        }
+        int w = img.getWidth();
+        int h = img.getHeight();
+        int available = 0;
+        for (int i = 0; i < level; i++) {
+            w = halve(w);
+            h = halve(h);
+            if (w < MIN_LEVEL_SIZE && h < MIN_LEVEL_SIZE) {
+                break;
+            }
+            available++;
+        }
+        if (available == 0) {
+            return img;
+        }
+        if (available > levels.length) {
+            BufferedImage[] nue = Arrays.copyOf(levels, available);
+            for (int i = levels.length; i < available; i++) {
+                BufferedImage above = i == 0 ? img : nue[i - 1];
+                nue[i] = GraphicsUtils.newBufferedImage(halve(above.getWidth()),
+                        halve(above.getHeight()));
+                downsample(above, nue[i], new Rectangle(0, 0,
+                        nue[i].getWidth(), nue[i].getHeight()));
+            }
+            levels = nue;
+        }
+        return levels[available - 1];
+    }
+
+    private void update() {
+        int rows = (source.getHeight() + TILE_SIZE - 1) / TILE_SIZE;
+        for (int i = 0; i < levels.length; i++) {
+            BufferedImage above = i == 0 ? source : levels[i - 1];
+            int shift = i + 1;
+            for (int t = dirty.nextSetBit(0); t >= 0 && t < cols * rows; t = dirty.nextSetBit(t + 1)) {
+                int x = (t % cols) * TILE_SIZE;
+                int y = (t / cols) * TILE_SIZE;
+                // Round outward, and by a pixel more, since odd sizes make
+                // the scale slightly less than a half
+                int x1 = (x >> shift) - 1;
+                int y1 = (y >> shift) - 1;
+                int x2 = ((x + TILE_SIZE + (1 << shift) - 1) >> shift) + 1;
+                int y2 = ((y + TILE_SIZE + (1 << shift) - 1) >> shift) + 1;
+                downsample(above, levels[i], new Rectangle(x1, y1, x2 - x1, y2 - y1));
+            }
+        }
+        dirty.clear();
+    }
+
+    private static int halve(int size) {
+        return Math.max(1, size / 2);
+    }
+
+    /**
+     * Recompute an area of a level from the level above it; drawing at half
+     * size with bilinear interpolation averages each 2x2 block.  Odd sizes
+     * are rounded down and the scale adjusted, so the level is covered to
+     * its edges.
+     */
+    private static void downsample(BufferedImage above, BufferedImage target, Rectangle area) {
+        Graphics2D g = target.createGraphics();
+        try {
+            g.clip(area);
+            g.setComposite(AlphaComposite.Src);
+            g.setRenderingHint(RenderingHints.KEY_INTERPOLATION,
+                    RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+            g.drawRenderedImage(above, AffineTransform.getScaleInstance(
+                    (double) target.getWidth() / above.getWidth(),
+                    (double) target.getHeight() / above.getHeight()));
+        } finally {
+            g.dispose();
+        }
+    }
+}
@@ -0,0 +1,549 @@
+package net.java.dev.imagine.layers.raster;
+
+import java.awt.BasicStroke;
+import java.awt.Color;
+import java.awt.Composite;
+import java.awt.Font;
+import java.awt.FontMetrics;
+import java.awt.Graphics;
+import java.awt.Graphics2D;
+import java.awt.GraphicsConfiguration;
+import java.awt.Image;
+import java.awt.Paint;
+import java.awt.Polygon;
+import java.awt.Rectangle;
+import java.awt.RenderingHints;
+import java.awt.RenderingHints.Key;
+import java.awt.Shape;
+import java.awt.Stroke;
+import java.awt.font.FontRenderContext;
+import java.awt.font.GlyphVector;
+import java.awt.font.TextLayout;
+import java.awt.geom.AffineTransform;
+import java.awt.geom.Line2D;
+import java.awt.geom.Rectangle2D;
+import java.awt.image.BufferedImage;
+import java.awt.image.BufferedImageOp;
+import java.awt.image.ImageObserver;
+import java.awt.image.RenderedImage;
+import java.awt.image.renderable.RenderableImage;
+import java.text.AttributedCharacterIterator;
+import java.util.Map;
+import java.util.function.Consumer;
+
+/**
+ * Wraps the graphics context of a raster layer's image, and reports the area,
+ * in image coordinates, that each drawing operation may touch <i>before</i>
+ * performing it, so that tiles shared with undo snapshots can be copied
+ * before they are painted over.
+ * <p>
+ * The reported area must never be smaller than what is actually painted;
+ * it includes the stroke width and antialiasing, and is limited by the clip.
+ * Where the area cannot be computed, the whole clip is reported.
+ *
+ * @author Tim Boudreau
+ */
+final class PreservingGraphics extends Graphics2D {
+
+    private static final int ANTIALIAS_MARGIN = 2;
+    private final Graphics2D other;
+    private final Consumer<Rectangle> beforeWrite;
+
+    PreservingGraphics(Graphics2D other, Consumer<Rectangle> beforeWrite) {
+        this.other = other;
+        this.beforeWrite = beforeWrite;
+    }
+
+    private void willFill(Rectangle2D userBounds) {
+        willPaint(userBounds, 0);
+    }
+
+    private void willStroke(Rectangle2D userBounds, boolean acuteJoins) {
+        Stroke stroke = other.getStroke();
+        if (!(stroke instanceof BasicStroke)) {
+            willPaint(stroke.createStrokedShape(userBounds).getBounds2D(), 0);
+            return;
+        }
+        BasicStroke bs = (BasicStroke) stroke;
+        double half = bs.getLineWidth() / 2D;
+        // Square caps and right-angled joins reach out by half the diagonal;
+        // miters at sharper angles by up to the miter limit
+        double reach = acuteJoins && bs.getLineJoin() == BasicStroke.JOIN_MITER
+                ? Math.max(bs.getMiterLimit(), Math.sqrt(2)) : Math.sqrt(2);
+        willPaint(userBounds, half * reach);
+    }
+
+    private void willStroke(Rectangle2D userBounds) {
+        willStroke(userBounds, false);
+    }
+
+    private void willStroke(Shape shape) {
+        Stroke stroke = other.getStroke();
+        if (stroke instanceof BasicStroke) {
+            willStroke(shape.getBounds2D(), true);
+        } else {
+            willPaint(stroke.createStrokedShape(shape).getBounds2D(), 0);
+        }
+    }
+
+    private void willPaint(Rectangle2D userBounds, double userMargin) {
+        if (userBounds.isEmpty() && userMargin == 0) {
+            // Lines have empty bounds but still paint
+            userMargin = 1;
+        }
+        Rectangle2D.Double grown = new Rectangle2D.Double(
+                userBounds.getX() - userMargin, userBounds.getY() - userMargin,
+                userBounds.getWidth() + (userMargin * 2),
+                userBounds.getHeight() + (userMargin * 2));
+        Rectangle device = other.getTransform().createTransformedShape(grown).getBounds();
+        device.grow(ANTIALIAS_MARGIN, ANTIALIAS_MARGIN);
+        Rectangle clip = deviceClip();
+        beforeWrite.accept(clip == null ? device : device.intersection(clip));
+    }
+
+    private void willPaintImage(double x, double y, double w, double h, AffineTransform xform) {
+        if (w < 0 || h < 0) {
+            // Image size not known yet
+            willPaintClip();
+            return;
+        }
+        Shape bounds = new Rectangle2D.Double(x, y, w, h);
+        if (xform != null) {
+            bounds = xform.createTransformedShape(bounds);
+        }
+        willFill(bounds.getBounds2D());
+    }
+
+    private void willPaintClip() {
+        Rectangle clip = deviceClip();
+        beforeWrite.accept(clip == null
+                ? new Rectangle(0, 0, Integer.MAX_VALUE, Integer.MAX_VALUE)
+                : clip);
+    }
+
+    private Rectangle deviceClip() {
+        Shape clip = other.getClip();
+        if (clip == null) {
+            return null;
+        }
+        Rectangle result = other.getTransform().createTransformedShape(clip).getBounds();
+        result.grow(ANTIALIAS_MARGIN, ANTIALIAS_MARGIN);
+        return result;
+    }
+
+    private static Rectangle2D polygonBounds(int[] xPoints, int[] yPoints, int nPoints) {
+        return new Polygon(xPoints, yPoints, nPoints).getBounds2D();
+    }
+
+    @Override
+    public void draw(Shape s) {
+        willStroke(s);
+        other.draw(s);
+    }
+
+    @Override
+    public boolean drawImage(Image img, AffineTransform xform, ImageObserver obs) {
+        willPaintImage(0, 0, img.getWidth(null), img.getHeight(null), xform);
+        return other.drawImage(img, xform, obs);
+    }
+
+    @Override
+    public void drawImage(BufferedImage img, BufferedImageOp op, int x, int y) {
+        Rectangle2D r = op == null
+                ? new Rectangle2D.Double(0, 0, img.getWidth(), img.getHeight())
+                : op.getBounds2D(img);
+        willPaintImage(x + r.getX(), y + r.getY(), r.getWidth(), r.getHeight(), null);
+        other.drawImage(img, op, x, y);
+    }
+
+    @Override
+    public void drawRenderedImage(RenderedImage img, AffineTransform xform) {
+        willPaintImage(img.getMinX(), img.getMinY(), img.getWidth(), img.getHeight(), xform);
+        other.drawRenderedImage(img, xform);
+    }
+
+    @Override
+    public void drawRenderableImage(RenderableImage img, AffineTransform xform) {
+        willPaintImage(img.getMinX(), img.getMinY(), img.getWidth(), img.getHeight(), xform);
+        other.drawRenderableImage(img, xform);
+    }
+
+    @Override
+    public void drawString(String str, int x, int y) {
+        drawString(str, (float) x, (float) y);
+    }
+
+    @Override
+    public void drawString(String str, float x, float y) {
+        if (!str.isEmpty()) {
+            Rectangle2D r = other.getFont().createGlyphVector(
+                    other.getFontRenderContext(), str).getVisualBounds();
+            r.setRect(r.getX() + x, r.getY() + y, r.getWidth(), r.getHeight());
+            willFill(r);
+        }
+        other.drawString(str, x, y);
+    }
+
+    @Override
+    public void drawString(AttributedCharacterIterator iterator, int x, int y) {
+        drawString(iterator, (float) x, (float) y);
+    }
+
+    @Override
+    public void drawString(AttributedCharacterIterator iterator, float x, float y) {
+        if (iterator.getEndIndex() > iterator.getBeginIndex()) {
+            Rectangle2D r = new TextLayout(iterator, other.getFontRenderContext()).getBounds();
+            r.setRect(r.getX() + x, r.getY() + y, r.getWidth(), r.getHeight());
+            willFill(r);
+            iterator.first();
+        }
+        other.drawString(iterator, x, y);
+    }
+
+    @Override
+    public void drawGlyphVector(GlyphVector g, float x, float y) {
+        Rectangle2D r = g.getVisualBounds();
+        r.setRect(r.getX() + x, r.getY() + y, r.getWidth(), r.getHeight());
+        willFill(r);
+        other.drawGlyphVector(g, x, y);
+    }
+
+    @Override
+    public void fill(Shape s) {
+        willFill(s.getBounds2D());
+        other.fill(s);
+    }
+
+    @Override
+    public boolean hit(Rectangle rect, Shape s, boolean onStroke) {
+        return other.hit(rect, s, onStroke);
+    }
+
+    @Override
+    public GraphicsConfiguration getDeviceConfiguration() {
+        return other.getDeviceConfiguration();
+    }
+
+    @Override
+    public void setComposite(Composite comp) {
+        other.setComposite(comp);
+    }
+
+    @Override
+    public void setPaint(Paint paint) {
+        other.setPaint(paint);
+    }
+
+    @Override
+    public void setStroke(Stroke s) {
+        other.setStroke(s);
+    }
+
+    @Override
+    public void setRenderingHint(Key hintKey, Object hintValue) {
+        other.setRenderingHint(hintKey, hintValue);
+    }
+
+    @Override
+    public Object getRenderingHint(Key hintKey) {
+        return other.getRenderingHint(hintKey);
+    }
+
+    @Override
+    public void setRenderingHints(Map<?, ?> hints) {
+        other.setRenderingHints(hints);
+    }
+
+    @Override
+    public void addRenderingHints(Map<?, ?> hints) {
+        other.addRenderingHints(hints);
+    }
+
+    @Override
+    public RenderingHints getRenderingHints() {
+        return other.getRenderingHints();
+    }
+
+    @Override
+    public void translate(int x, int y) {
+        other.translate(x, y);
+    }
+
+    @Override
+    public void translate(double tx, double ty) {
+        other.translate(tx, ty);
+    }
+
+    @Override
+    public void rotate(double theta) {
+        other.rotate(theta);
+    }
+
+    @Override
+    public void rotate(double theta, double x, double y) {
+        other.rotate(theta, x, y);
+    }
+
+    @Override
+    public void scale(double sx, double sy) {
+        other.scale(sx, sy);
+    }
+
+    @Override
+    public void shear(double shx, double shy) {
+        other.shear(shx, shy);
+    }
+
+    @Override
+    public void transform(AffineTransform tx) {
+        other.transform(tx);
+    }
+
+    @Override
+    public void setTransform(AffineTransform tx) {
+        other.setTransform(tx);
+    }
+
+    @Override
+    public AffineTransform getTransform() {
+        return other.getTransform();
+    }
+
+    @Override
+    public Paint getPaint() {
+        return other.getPaint();
+    }
+
+    @Override
+    public Composite getComposite() {
+        return other.getComposite();
+    }
+
+    @Override
+    public void setBackground(Color color) {
+        other.setBackground(color);
+    }
+
+    @Override
+    public Color getBackground() {
+        return other.getBackground();
+    }
+
+    @Override
+    public Stroke getStroke() {
+        return other.getStroke();
+    }
+
+    @Override
+    public void clip(Shape s) {
+        other.clip(s);
+    }
+
+    @Override
+    public FontRenderContext getFontRenderContext() {
+        return other.getFontRenderContext();
+    }
+
+    @Override
+    public Graphics create() {
+        return new PreservingGraphics((Graphics2D) other.create(), beforeWrite);
+    }
+
+    @Override
+    public Color getColor() {
+        return other.getColor();
+    }
+
+    @Override
+    public void setColor(Color c) {
+        other.setColor(c);
+    }
+
+    @Override
+    public void setPaintMode() {
+        other.setPaintMode();
+    }
+
+    @Override
+    public void setXORMode(Color c1) {
+        other.setXORMode(c1);
+    }
+
+    @Override
+    public Font getFont() {
+        return other.getFont();
+    }
+
+    @Override
+    public void setFont(Font font) {
+        other.setFont(font);
+    }
+
+    @Override
+    public FontMetrics getFontMetrics(Font f) {
+        return other.getFontMetrics(f);
+    }
+
+    @Override
+    public Rectangle getClipBounds() {
+        return other.getClipBounds();
+    }
+
+    @Override
+    public void clipRect(int x, int y, int width, int height) {
+        other.clipRect(x, y, width, height);
+    }
+
+    @Override
+    public void setClip(int x, int y, int width, int height) {
+        other.setClip(x, y, width, height);
+    }
+
+    @Override
+    public Shape getClip() {
+        return other.getClip();
+    }
+
+    @Override
+    public void setClip(Shape clip) {
+        other.setClip(clip);
+    }
+
+    @Override
+    public void copyArea(int x, int y, int width, int height, int dx, int dy) {
+        willFill(new Rectangle(x + dx, y + dy, width, height));
+        other.copyArea(x, y, width, height, dx, dy);
+    }
+
+    @Override
+    public void drawLine(int x1, int y1, int x2, int y2) {
+        willStroke(new Line2D.Double(x1, y1, x2, y2).getBounds2D());
+        other.drawLine(x1, y1, x2, y2);
+    }
+
+    @Override
+    public void fillRect(int x, int y, int width, int height) {
+        willFill(new Rectangle(x, y, width, height));
+        other.fillRect(x, y, width, height);
+    }
+
+    @Override
+    public void drawRect(int x, int y, int width, int height) {
+        willStroke(new Rectangle(x, y, width, height));
+        other.drawRect(x, y, width, height);
+    }
+
+    @Override
+    public void clearRect(int x, int y, int width, int height) {
+        willFill(new Rectangle(x, y, width, height));
+        other.clearRect(x, y, width, height);
+    }
+
+    @Override
+    public void drawRoundRect(int x, int y, int width, int height, int arcWidth, int arcHeight) {
+        willStroke(new Rectangle(x, y, width, height));
+        other.drawRoundRect(x, y, width, height, arcWidth, arcHeight);
+    }
+
+    @Override
+    public void fillRoundRect(int x, int y, int width, int height, int arcWidth, int arcHeight) {
+        willFill(new Rectangle(x, y, width, height));
+        other.fillRoundRect(x, y, width, height, arcWidth, arcHeight);
+    }
+
+    @Override
+    public void drawOval(int x, int y, int width, int height) {
+        willStroke(new Rectangle(x, y, width, height));
+        other.drawOval(x, y, width, height);
+    }
+
+    @Override
+    public void fillOval(int x, int y, int width, int height) {
+        willFill(new Rectangle(x, y, width, height));
+        other.fillOval(x, y, width, height);
+    }
+
+    @Override
+    public void drawArc(int x, int y, int width, int height, int startAngle, int arcAngle) {
+        willStroke(new Rectangle(x, y, width, height));
+        other.drawArc(x, y, width, height, startAngle, arcAngle);
+    }
+
+    @Override
+    public void fillArc(int x, int y, int width, int height, int startAngle, int arcAngle) {
+        willFill(new Rectangle(x, y, width, height));
+        other.fillArc(x, y, width, height, startAngle, arcAngle);
+    }
+
+    @Override
+    public void drawPolyline(int[] xPoints, int[] yPoints, int nPoints) {
+        if (nPoints > 0) {
+            willStroke(polygonBounds(xPoints, yPoints, nPoints), true);
+        }
+        other.drawPolyline(xPoints, yPoints, nPoints);
+    }
+
+    @Override
+    public void drawPolygon(int[] xPoints, int[] yPoints, int nPoints) {
+        if (nPoints > 0) {
+            willStroke(polygonBounds(xPoints, yPoints, nPoints), true);
+        }
+        other.drawPolygon(xPoints, yPoints, nPoints);
+    }
+
+    @Override
+    public void fillPolygon(int[] xPoints, int[] yPoints, int nPoints) {
+        if (nPoints > 0) {
+            willFill(polygonBounds(xPoints, yPoints, nPoints));
+        }
+        other.fillPolygon(xPoints, yPoints, nPoints);
+    }
+
+    @Override
+    public boolean drawImage(Image img, int x, int y, ImageObserver observer) {
+        willPaintImage(x, y, img.getWidth(null), img.getHeight(null), null);
+        return other.drawImage(img, x, y, observer);
+    }
+
+    @Override
+    public boolean drawImage(Image img, int x, int y, int width, int height, ImageObserver observer) {
+        willPaintImage(x, y, width, height, null);
+        return other.drawImage(img, x, y, width, height, observer);
+    }
+
+    @Override
+    public boolean drawImage(Image img, int x, int y, Color bgcolor, ImageObserver observer) {
+        willPaintImage(x, y, img.getWidth(null), img.getHeight(null), null);
+        return other.drawImage(img, x, y, bgcolor, observer);
+    }
+
+    @Override
+    public boolean drawImage(Image img, int x, int y, int width, int height, Color bgcolor, ImageObserver observer) {
+        willPaintImage(x, y, width, height, null);
+        return other.drawImage(img, x, y, width, height, bgcolor, observer);
+    }
+
+    @Override
+    public boolean drawImage(Image img, int dx1, int dy1, int dx2, int dy2, int sx1, int sy1, int sx2, int sy2, ImageObserver observer) {
+        willFill(new Rectangle(Math.min(dx1, dx2), Math.min(dy1, dy2),
+                Math.abs(dx2 - dx1), Math.abs(dy2 - dy1)));
+        return other.drawImage(img, dx1, dy1, dx2, dy2, sx1, sy1, sx2, sy2, observer);
+    }
+
+    @Override
+    public boolean drawImage(Image img, int dx1, int dy1, int dx2, int dy2, int sx1, int sy1, int sx2, int sy2, Color bgcolor, ImageObserver observer) {
+        willFill(new Rectangle(Math.min(dx1, dx2), Math.min(dy1, dy2),
+                Math.abs(dx2 - dx1), Math.abs(dy2 - dy1)));
+        return other.drawImage(img, dx1, dy1, dx2, dy2, sx1, sy1, sx2, sy2, bgcolor, observer);
+    }
+
+    @Override
+    public void dispose() {
+        other.dispose();
+    }
+
+    @Override
+    public String toString() {
+        return "PreservingGraphics(" + other + ")";
+    }
+}
@@ -36,19 +36,24 @@ import net.dev.java.imagine.api.selection.ShapeSelection;
 import net.dev.java.imagine.api.selection.Universe;
 import net.java.dev.imagine.api.image.Hibernator;
 import net.java.dev.imagine.api.image.RenderingGoal;
+import net.java.dev.imagine.api.image.Surface;
 import net.java.dev.imagine.effects.spi.ImageSource;
+import net.java.dev.imagine.effects.api.EffectReceiver;
 import net.java.dev.imagine.spi.image.LayerImplementation;
 import org.imagine.editor.api.AspectRatio;
 import org.imagine.editor.api.Zoom;
+import com.mastfrog.function.throwing.io.IOSupplier;
 import com.mastfrog.geometry.util.PooledTransform;
 import org.imagine.utils.painting.RepaintHandle;
 import org.netbeans.paint.api.editing.LayerFactory;
 import org.imagine.utils.java2d.GraphicsUtils;
 import org.imagine.utils.java2d.LazyGraphics;
 import org.imagine.utils.java2d.GraphicsProvider;
+import org.openide.util.Exceptions;
 import org.openide.util.Lookup;
 import org.openide.util.NbBundle;
 import org.openide.util.Utilities;
+import org.openide.util.RequestProcessor;
 import org.openide.util.lookup.AbstractLookup;
 import org.openide.util.lookup.InstanceContent;
 import org.openide.util.lookup.Lookups;
@@ -57,9 +62,13 @@ import org.openide.util.lookup.ProxyLookup;
 public class RasterLayerImpl extends LayerImplementation implements Hibernator {
     //XXX class public only temporarily
 
+    private static final RequestProcessor DEFERRED_LOADS
+            = new RequestProcessor("Deferred raster layer loads", 2);
     private final Rectangle bounds = new Rectangle();
     private String name;
-    private final RasterSurfaceImpl surface;
+    private volatile RasterSurfaceImpl surface;
+    private IOSupplier<BufferedImage> deferredContent;
+    private final Point deferredLocation = new Point();
     private final ShapeSelection selection = new ShapeSelection(new UV());
     private final PCL pcl = new PCL();
 
@@ -100,6 +109,22 @@ public class RasterLayerImpl extends LayerImplementation implements Hibernator {
         surface.addPropertyChangeListener(pcl);
     }
 
+    /**
+     * Create a layer whose content is loaded the first time it is needed -
+     * until then it is known only by its size and location.
+     */
+    RasterLayerImpl(LayerFactory factory, RepaintHandle handle, Dimension size, Point location, IOSupplier<BufferedImage> content) {
+        super(factory, false);
+        if (handle != null) {
+            addRepaintHandle(handle);
+        }
+        bounds.setSize(size);
+        deferredLocation.setLocation(location);
+        name = NbBundle.getMessage(RasterLayerImpl.class,
+                "LBL_Layer", new Object[]{new Integer(0)}); //NOI18N
+        deferredContent = content;
+    }
+
     @Override
     public String toString() {
         return "RasterLayer(" + Long.toString(identityHashCode(this), 36)
@@ -140,13 +165,13 @@ public class RasterLayerImpl extends LayerImplementation implements Hibernator {
         if (!visible && !ignoreVisibility) {
             return false;
         }
-        if (!surface.isModified()) {
+        if (!surface().isModified()) {
             // XXX we should paint the background color provided at layer construction here,
             // if any
             return false;
         }
         if (bounds != null) {
-            return surface.paint(goal, g, bounds, zoom);
+            return surface().paint(goal, g, bounds, zoom);
         }
         Composite comp = null;
         if (opacity != 1.0f) {
@@ -155,7 +180,7 @@ public class RasterLayerImpl extends LayerImplementation implements Hibernator {
                     opacity));
         }
         boolean result;
-        result = surface.paint(goal, g, null, zoom);
+        result = surface().paint(goal, g, null, zoom);
         if (opacity != 1.0f) {
             g.setComposite(comp);
         }
@@ -173,7 +198,8 @@ public class RasterLayerImpl extends LayerImplementation implements Hibernator {
 
     public Rectangle getBounds() {
         Rectangle result = new Rectangle(bounds);
-        result.setLocation(surface.getLocation());
+        RasterSurfaceImpl s = surface;
+        result.setLocation(s == null ? deferredLocation : s.getLocation());
         return result;
     }
 
@@ -223,7 +249,35 @@ public class RasterLayerImpl extends LayerImplementation implements Hibernator {
     }
 
     RasterSurfaceImpl surface() {
-        return surface;
+        RasterSurfaceImpl result = surface;
+        if (result == null) {
+            synchronized (this) {
+                result = surface;
+                if (result == null) {
+                    BufferedImage img;
+                    try {
+                        img = deferredContent.get();
+                    } catch (Exception | Error ex) {
+                        // The file may have been altered since it was opened;
+                        // better to show an empty layer than none
+                        Exceptions.printStackTrace(ex);
+                        img = GraphicsUtils.newBufferedImage(Math.max(1, bounds.width),
+                                Math.max(1, bounds.height));
+                    }
+                    result = new RasterSurfaceImpl(getMasterRepaintHandle(), img,
+                            selection, this::isVisible);
+                    result.setLocation(deferredLocation);
+                    result.addPropertyChangeListener(pcl);
+                    deferredContent = null;
+                    surface = result;
+                }
+            }
+        }
+        return result;
+    }
+
+    private boolean isDeferred() {
+        return surface == null;
     }
 
     public void repaintArea(int x, int y, int w, int h) {
@@ -299,7 +353,7 @@ public class RasterLayerImpl extends LayerImplementation implements Hibernator {
 
             @Override
             public Graphics2D getGraphics() {
-                return surface.getGraphics();
+                return surface().getGraphics();
             }
 
             @Override
@@ -308,25 +362,68 @@ public class RasterLayerImpl extends LayerImplementation implements Hibernator {
             }
         }, true);
 
-        Lookup a = Lookups.fixed(this, surface.getSurface(), layer, selection, lazyGraphics,
-                surface.bufferedImageOpReceiver, surface.compositeReceiver,
-                new ImgSrc(), RasterLayerSave.INSTANCE);
         InstanceContent c = new InstanceContent();
         ImgConverter conv = new ImgConverter();
         c.add(conv, conv);
+        if (isDeferred()) {
+            Lookup a = Lookups.fixed(this, layer, selection, lazyGraphics,
+                    new ImgSrc(), RasterLayerSave.INSTANCE,
+                    RasterLayerJournal.INSTANCE);
+            return new DeferredSurfaceLookup(a, new AbstractLookup(c));
+        }
+        Lookup a = Lookups.fixed(this, surface().getSurface(), layer, selection, lazyGraphics,
+                surface().bufferedImageOpReceiver, surface().compositeReceiver,
+                new ImgSrc(), RasterLayerSave.INSTANCE, RasterLayerJournal.INSTANCE);
         return new ProxyLookup(a, new AbstractLookup(c));
     }
 
+    /**
+     * Lookup for a layer whose content has not been loaded yet, which adds
+     * the objects backed by the surface, loading it, only when something
+     * asks for them.
+     */
+    private final class DeferredSurfaceLookup extends ProxyLookup {
+
+        private final Lookup[] base;
+        private volatile boolean surfaceAdded;
+
+        DeferredSurfaceLookup(Lookup... base) {
+            super(base);
+            this.base = base;
+        }
+
+        @Override
+        protected void beforeLookup(Template<?> template) {
+            if (!surfaceAdded && needsSurface(template.getType())) {
+                synchronized (this) {
+                    if (!surfaceAdded) {
+                        surfaceAdded = true;
+                        RasterSurfaceImpl s = surface();
+                        Lookup[] all = Arrays.copyOf(base, base.length + 1);
+                        all[base.length] = Lookups.fixed(s.getSurface(),
+                                s.bufferedImageOpReceiver, s.compositeReceiver);
+                        setLookups(all);
+                    }
+                }
+            }
+        }
+
+        private boolean needsSurface(Class<?> type) {
+            return type.isAssignableFrom(Surface.class)
+                    || type.isAssignableFrom(EffectReceiver.class);
+        }
+    }
+
     class ImgSrc implements ImageSource {
 
         @Override
         public BufferedImage getRawImage() {
-            return surface.image();
+            return surface().image();
         }
 
         @Override
         public BufferedImage createImageCopy(Dimension size) {
-            BufferedImage img = surface.getImage();
+            BufferedImage img = surface().image();
 
             return GraphicsUtils.newBufferedImage(size.width, size.height, g -> {
                 double w = size.width;
@@ -345,7 +442,7 @@ public class RasterLayerImpl extends LayerImplementation implements Hibernator {
 
         @Override
         public BufferedImage convert(ImgConverter t) {
-            return surface.image();
+            return surface().image();
         }
 
         @Override
@@ -370,17 +467,26 @@ public class RasterLayerImpl extends LayerImplementation implements Hibernator {
     }
 
     public void hibernate() {
-        surface.hibernate();
+        if (!isDeferred()) {
+            surface().hibernate();
+        }
     }
 
     public void wakeup(boolean immediately, Runnable notify) {
         if (immediately) {
-            surface.unhibernateImmediately();
+            surface().unhibernateImmediately();
             if (notify != null) {
                 notify.run();
             }
+        } else if (isDeferred()) {
+            DEFERRED_LOADS.post(() -> {
+                surface();
+                if (notify != null) {
+                    notify.run();
+                }
+            });
         } else {
-            surface.unhibernate(notify);
+            surface().unhibernate(notify);
         }
     }
 
@@ -475,8 +581,8 @@ public class RasterLayerImpl extends LayerImplementation implements Hibernator {
 
     public void resize(int width, int height, boolean resizeCanvasOnly) {
         if (resizeCanvasOnly) {
-            surface.resizeCanvas(width, height);
+            surface().resizeCanvas(width, height);
         }
-        surface.resize(width, height);
+        surface().resize(width, height);
     }
 }
@@ -0,0 +1,207 @@
+package net.java.dev.imagine.layers.raster;
+
+import java.awt.Point;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.awt.image.WritableRaster;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import static net.java.dev.imagine.layers.raster.RasterLayerSave.PIXELS_ARGB;
+import static net.java.dev.imagine.layers.raster.RasterLayerSave.PIXELS_NATIVE;
+import static net.java.dev.imagine.layers.raster.RasterLayerSave.TILE_CODEC;
+import static net.java.dev.imagine.layers.raster.RasterLayerSave.TILE_SIZE;
+import static net.java.dev.imagine.layers.raster.RasterLayerSave.fromTransferType;
+import static net.java.dev.imagine.layers.raster.RasterLayerSave.isNativeEncodable;
+import static net.java.dev.imagine.layers.raster.RasterLayerSave.readFully;
+import static net.java.dev.imagine.layers.raster.RasterLayerSave.toTransferType;
+import static net.java.dev.imagine.layers.raster.RasterLayerSave.writeFully;
+import net.java.dev.imagine.spi.io.LayerJournalHandler;
+
+/**
+ * Journals changes to raster layers as the tiles, on the same grid and with
+ * the same compression as RasterLayerSave uses, which the repainted regions
+ * touch.  Pixels are copied when the change is captured and compressed when
+ * it is written.  Changes record the size, type and location of the image,
+ * and are rejected if applied to an image which differs in any of them.
+ *
+ * @author Tim Boudreau
+ */
+final class RasterLayerJournal implements LayerJournalHandler<RasterLayerImpl> {
+
+    static final RasterLayerJournal INSTANCE = new RasterLayerJournal();
+    private static final int CHANGE_HEADER_LENGTH = 1 + (Integer.BYTES * 7);
+
+    private RasterLayerJournal() {
+    }
+
+    @Override
+    public Change capture(RasterLayerImpl layer, List<Rectangle> regions) {
+        RasterSurfaceImpl surface = layer.surface();
+        BufferedImage img = surface.image();
+        Point location = surface.getLocation();
+        int width = img.getWidth();
+        int height = img.getHeight();
+        int tilesAcross = (width + TILE_SIZE - 1) / TILE_SIZE;
+        int tilesDown = (height + TILE_SIZE - 1) / TILE_SIZE;
+        BitSet tiles = new BitSet(tilesAcross * tilesDown);
+        Rectangle imageBounds = new Rectangle(0, 0, width, height);
+        for (Rectangle r : regions) {
+            if (r.width < 0 || r.height < 0) {
+                tiles.set(0, tilesAcross * tilesDown);
+                break;
+            }
+            // The surface reports repaints in picture coordinates
+            Rectangle dirty = new Rectangle(r.x - location.x, r.y - location.y,
+                    r.width, r.height).intersection(imageBounds);
+            if (dirty.isEmpty()) {
+                continue;
+            }
+            int maxTy = (dirty.y + dirty.height - 1) / TILE_SIZE;
+            int maxTx = (dirty.x + dirty.width - 1) / TILE_SIZE;
+            for (int ty = dirty.y / TILE_SIZE; ty <= maxTy; ty++) {
+                tiles.set((ty * tilesAcross) + (dirty.x / TILE_SIZE),
+                        (ty * tilesAcross) + maxTx + 1);
+            }
+        }
+        if (tiles.isEmpty()) {
+            return null;
+        }
+        WritableRaster raster = img.getRaster();
+        byte encoding = isNativeEncodable(raster) ? PIXELS_NATIVE : PIXELS_ARGB;
+        List<int[]> pixels = new ArrayList<>(tiles.cardinality());
+        for (int i = tiles.nextSetBit(0); i >= 0; i = tiles.nextSetBit(i + 1)) {
+            int x = (i % tilesAcross) * TILE_SIZE;
+            int y = (i / tilesAcross) * TILE_SIZE;
+            int w = Math.min(TILE_SIZE, width - x);
+            int h = Math.min(TILE_SIZE, height - y);
+            int[] tile = new int[w * h];
+            if (encoding == PIXELS_NATIVE) {
+                fromTransferType(raster.getDataElements(x, y, w, h, null), tile);
+            } else {
+                img.getRGB(x, y, w, h, tile, 0, w);
+            }
+            pixels.add(tile);
+        }
+        return new TileChange(img.getType(), width, height, location, encoding, tiles, pixels);
+    }
+
+    @Override
+    public <C extends ReadableByteChannel & SeekableByteChannel> void apply(RasterLayerImpl layer, C channel, int length) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(CHANGE_HEADER_LENGTH);
+        readFully(channel, header);
+        int type = header.getInt();
+        int width = header.getInt();
+        int height = header.getInt();
+        Point location = new Point(header.getInt(), header.getInt());
+        int tileSize = header.getInt();
+        byte encoding = header.get();
+        int tileCount = header.getInt();
+        RasterSurfaceImpl surface = layer.surface();
+        BufferedImage img = surface.image();
+        if (img.getType() != type || img.getWidth() != width || img.getHeight() != height
+                || !surface.getLocation().equals(location) || tileSize != TILE_SIZE) {
+            throw new IOException("Change to " + width + "x" + height + " image of type "
+                    + type + " at " + location + " does not apply to " + img
+                    + " at " + surface.getLocation());
+        }
+        if (encoding != PIXELS_NATIVE && encoding != PIXELS_ARGB) {
+            throw new IOException("Unknown pixel encoding " + encoding);
+        }
+        int tilesAcross = (width + TILE_SIZE - 1) / TILE_SIZE;
+        int tilesDown = (height + TILE_SIZE - 1) / TILE_SIZE;
+        WritableRaster raster = img.getRaster();
+        int[] pixels = new int[TILE_SIZE * TILE_SIZE];
+        ByteBuffer tileHeader = ByteBuffer.allocate(Integer.BYTES * 2);
+        for (int t = 0; t < tileCount; t++) {
+            tileHeader.clear();
+            readFully(channel, tileHeader);
+            int index = tileHeader.getInt();
+            int tileLength = tileHeader.getInt();
+            if (index < 0 || index >= tilesAcross * tilesDown || tileLength < 0) {
+                throw new IOException("Invalid tile " + index + " of length " + tileLength);
+            }
+            ByteBuffer encoded = ByteBuffer.allocate(tileLength);
+            readFully(channel, encoded);
+            int x = (index % tilesAcross) * TILE_SIZE;
+            int y = (index / tilesAcross) * TILE_SIZE;
+            int w = Math.min(TILE_SIZE, width - x);
+            int h = Math.min(TILE_SIZE, height - y);
+            try {
+                TILE_CODEC.decode(encoded, pixels);
+            } catch (RuntimeException ex) {
+                throw new IOException("Corrupted tile " + index + " at " + x + "," + y, ex);
+            }
+            surface.preserve(new Rectangle(x, y, w, h));
+            if (encoding == PIXELS_NATIVE) {
+                raster.setDataElements(x, y, w, h, toTransferType(raster, pixels, w * h));
+            } else {
+                img.setRGB(x, y, w, h, pixels, 0, w);
+            }
+        }
+        surface.repaintArea(location.x, location.y, width, height);
+    }
+
+    @Override
+    public Class<RasterLayerImpl> layerType() {
+        return RasterLayerImpl.class;
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName();
+    }
+
+    private static final class TileChange implements Change {
+
+        private final int type;
+        private final int width;
+        private final int height;
+        private final Point location;
+        private final byte encoding;
+        private final BitSet tiles;
+        private final List<int[]> pixels;
+
+        TileChange(int type, int width, int height, Point location, byte encoding,
+                BitSet tiles, List<int[]> pixels) {
+            this.type = type;
+            this.width = width;
+            this.height = height;
+            this.location = location;
+            this.encoding = encoding;
+            this.tiles = tiles;
+            this.pixels = pixels;
+        }
+
+        @Override
+        public <C extends WritableByteChannel & SeekableByteChannel> void writeTo(C channel) throws IOException {
+            ByteBuffer header = ByteBuffer.allocate(CHANGE_HEADER_LENGTH);
+            header.putInt(type);
+            header.putInt(width);
+            header.putInt(height);
+            header.putInt(location.x);
+            header.putInt(location.y);
+            header.putInt(TILE_SIZE);
+            header.put(encoding);
+            header.putInt(pixels.size());
+            header.flip();
+            writeFully(channel, header);
+            ByteBuffer tileHeader = ByteBuffer.allocate(Integer.BYTES * 2);
+            int ix = 0;
+            for (int i = tiles.nextSetBit(0); i >= 0; i = tiles.nextSetBit(i + 1)) {
+                ByteBuffer encoded = TILE_CODEC.encode(pixels.get(ix++));
+                tileHeader.clear();
+                tileHeader.putInt(i);
+                tileHeader.putInt(encoded.remaining());
+                tileHeader.flip();
+                writeFully(channel, tileHeader);
+                writeFully(channel, encoded);
+            }
+        }
+    }
+}
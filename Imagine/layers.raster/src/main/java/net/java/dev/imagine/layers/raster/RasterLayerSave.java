@@ -1,28 +1,53 @@
 package net.java.dev.imagine.layers.raster;
 
+import java.awt.Dimension;
 import java.awt.Point;
+import java.awt.Rectangle;
 import java.awt.image.BufferedImage;
+import java.awt.image.ComponentSampleModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.SampleModel;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.awt.image.WritableRaster;
 import java.io.IOException;
 import static java.lang.System.identityHashCode;
 import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
 import java.nio.channels.SeekableByteChannel;
 import java.nio.channels.WritableByteChannel;
+import java.util.Arrays;
 import java.util.Map;
 import java.util.function.Supplier;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import net.java.dev.imagine.spi.io.InMemoryChannel;
+import net.java.dev.imagine.spi.io.LayerLoadHandler;
 import net.java.dev.imagine.spi.io.LayerSaveHandler;
+import org.netbeans.paint.misc.image.ImageCodec;
+import org.netbeans.paint.misc.image.ImageCodecs;
 import org.imagine.utils.painting.RepaintHandle;
 import org.openide.util.Lookup;
 
 /**
+ * Saves and loads raster layers.  Revision 2 of the format stores the image
+ * as independently compressed tiles of packed pixels, with a directory of
+ * tile lengths; revision 1 files, which store one uncompressed int per
+ * sample, can still be read.
  *
  * @author Tim Boudreau
  */
 public class RasterLayerSave implements LayerSaveHandler<RasterLayerImpl> {
 
     static final int RASTER_LAYER_ID = -5605;
-    static final byte IO_REV = 1;
+    static final byte IO_REV = 2;
+    static final byte IO_REV_UNTILED = 1;
+    static final int TILE_SIZE = 256;
+    static final byte PIXELS_NATIVE = 0;
+    static final byte PIXELS_ARGB = 1;
+    static final ImageCodec TILE_CODEC = ImageCodecs.ADAPTIVE;
+    private static final long MAP_THRESHOLD = 1024 * 1024;
     static final RasterLayerSave INSTANCE = new RasterLayerSave();
     private static final Logger LOG = Logger.getLogger(LayerSaveHandler.class.getName());
 
@@ -54,16 +79,37 @@ public class RasterLayerSave implements LayerSaveHandler<RasterLayerImpl> {
 
     public <C extends java.nio.channels.ReadableByteChannel & java.nio.channels.SeekableByteChannel> RasterLayerImpl load(RepaintHandle handle, C channel, Map<String, String> hints) throws IOException {
         long layerStart = channel.position();
-        int layerHeaderLength = 1 + (Integer.BYTES * 6);
-        info(() -> "Beging reading raster layer @ " + layerStart + " with header of " + layerHeaderLength);
-        ByteBuffer buf = ByteBuffer.allocate(layerHeaderLength);
-        channel.read(buf);
-        buf.flip();
-        byte rev = buf.get();
-        if (rev != 1) {
-            throw new IOException("Unexpected format revision " + rev + " expected " + IO_REV);
+        info(() -> "Beging reading raster layer @ " + layerStart);
+        Header header = Header.read(channel);
+        RasterLayerFactory rlf = Lookup.getDefault().lookup(RasterLayerFactory.class);
+        if (rlf == null) {
+            throw new IOException("No RasterLayerFactory in default lookup");
+        }
+        if ("true".equals(hints.get(LayerLoadHandler.DEFERRED_LOAD_HINT))) {
+            // The channel is ours to keep - skip the pixel data and decode it
+            // the first time the layer's content is needed
+            long dataStart = channel.position();
+            channel.position(header.dataEnd);
+            finest(() -> "Defer decoding " + header + " at " + dataStart);
+            return new RasterLayerImpl(rlf, handle, header.size(), header.location, () -> {
+                synchronized (channel) {
+                    long pos = channel.position();
+                    try {
+                        channel.position(dataStart);
+                        return header.decode(channel);
+                    } finally {
+                        channel.position(pos);
+                    }
+                }
+            });
         }
-        int type = buf.getInt();
+        BufferedImage img = header.decode(channel);
+        RasterLayerImpl impl = new RasterLayerImpl(rlf, handle, img);
+        impl.surface().setLocation(header.location);
+        return impl;
+    }
+
+    private static void checkImageType(int type) throws IOException {
         switch (type) {
             case BufferedImage.TYPE_3BYTE_BGR:
             case BufferedImage.TYPE_4BYTE_ABGR:
@@ -82,84 +128,493 @@ public class RasterLayerSave implements LayerSaveHandler<RasterLayerImpl> {
             default:
                 throw new IOException("Unknown buffered image type " + type);
         }
-        int width = buf.getInt();
-        if (width < 0) {
-            throw new IOException("Invalid image width " + width);
-        }
-        int height = buf.getInt();
-        if (height < 0) {
-            throw new IOException("Invalid image height " + height);
-        }
-        int x = buf.getInt();
-        int y = buf.getInt();
-        int pixelArraySize = buf.getInt();
-        if (pixelArraySize < 0) {
-            throw new IOException("Invalid pixel array size " + pixelArraySize);
-        }
-        finest(() -> "Loaded raster layer properties size " + width + "x" + height
-                + " type " + type + " pos " + x + "," + y + " pixel array size "
-                + pixelArraySize);
-        int[] pixels = new int[pixelArraySize];
-        buf = ByteBuffer.allocate(pixels.length * Integer.BYTES);
-        channel.read(buf);
+    }
+
+    static void readFully(ReadableByteChannel channel, ByteBuffer buf) throws IOException {
+        while (buf.hasRemaining()) {
+            if (channel.read(buf) < 0) {
+                throw new IOException("Unexpected end of data with " + buf.remaining()
+                        + " bytes remaining");
+            }
+        }
         buf.flip();
-        long pxPos = channel.position();
-        finest(() -> "After load of " + pixels.length + " channel position " + pxPos);
-        for (int i = 0; i < pixels.length; i++) {
-            pixels[i] = buf.getInt();
+    }
+
+    /**
+     * Get the bytes from the current position to the end of the pixel data
+     * without reading them through the channel - a view if the channel is
+     * already in memory, or a read-only mapping if it is a file channel and
+     * the region is large enough for mapping it to be worthwhile.
+     *
+     * @return A buffer, or null if the data must be read from the channel
+     */
+    private static ByteBuffer region(SeekableByteChannel channel, long start, long length) throws IOException {
+        if (length <= 0 || length > Integer.MAX_VALUE) {
+            return null;
         }
-        BufferedImage img = new BufferedImage(width, height, type);
-        img.getRaster().setPixels(0, 0, width, height, pixels);
-        RasterLayerFactory rlf = Lookup.getDefault().lookup(RasterLayerFactory.class);
-        if (rlf == null) {
-            throw new IOException("No RasterLayerFactory in default lookup");
+        if (channel instanceof InMemoryChannel) {
+            return ((InMemoryChannel) channel).view(start, (int) length);
+        }
+        if (channel instanceof FileChannel && length >= MAP_THRESHOLD) {
+            return ((FileChannel) channel).map(FileChannel.MapMode.READ_ONLY, start, length);
+        }
+        return null;
+    }
+
+    /**
+     * Read an image written by writeTiled(), or in the original format.
+     */
+    static <C extends ReadableByteChannel & SeekableByteChannel> BufferedImage readImage(C channel, Point location) throws IOException {
+        Header header = Header.read(channel);
+        location.setLocation(header.location);
+        return header.decode(channel);
+    }
+
+    /**
+     * The header of a saved raster layer, which is all that is needed to
+     * know its size and position and where its pixel data ends.
+     */
+    private static final class Header {
+
+        private final byte rev;
+        private final int type;
+        private final int width;
+        private final int height;
+        private final Point location;
+        private final int tileSize;
+        private final byte encoding;
+        private final int[] tileLengths;
+        private final long dataEnd;
+
+        private Header(byte rev, int type, int width, int height, Point location,
+                int tileSize, byte encoding, int[] tileLengths, long dataEnd) {
+            this.rev = rev;
+            this.type = type;
+            this.width = width;
+            this.height = height;
+            this.location = location;
+            this.tileSize = tileSize;
+            this.encoding = encoding;
+            this.tileLengths = tileLengths;
+            this.dataEnd = dataEnd;
+        }
+
+        static <C extends ReadableByteChannel & SeekableByteChannel> Header read(C channel) throws IOException {
+            ByteBuffer revBuf = ByteBuffer.allocate(1);
+            readFully(channel, revBuf);
+            byte rev = revBuf.get();
+            switch (rev) {
+                case IO_REV_UNTILED:
+                    return readUntiled(channel);
+                case IO_REV:
+                    return readTiled(channel);
+                default:
+                    throw new IOException("Unexpected format revision " + rev + " expected " + IO_REV);
+            }
+        }
+
+        /**
+         * The original format stores one int per sample, without
+         * compression.
+         */
+        private static <C extends ReadableByteChannel & SeekableByteChannel> Header readUntiled(C channel) throws IOException {
+            ByteBuffer buf = ByteBuffer.allocate(Integer.BYTES * 6);
+            readFully(channel, buf);
+            int type = buf.getInt();
+            checkImageType(type);
+            int width = buf.getInt();
+            if (width < 0) {
+                throw new IOException("Invalid image width " + width);
+            }
+            int height = buf.getInt();
+            if (height < 0) {
+                throw new IOException("Invalid image height " + height);
+            }
+            Point location = new Point(buf.getInt(), buf.getInt());
+            int pixelArraySize = buf.getInt();
+            if (pixelArraySize < 0) {
+                throw new IOException("Invalid pixel array size " + pixelArraySize);
+            }
+            finest(() -> "Loaded raster layer properties size " + width + "x" + height
+                    + " type " + type + " pos " + location.x + "," + location.y
+                    + " pixel array size " + pixelArraySize);
+            long dataEnd = channel.position() + ((long) pixelArraySize * Integer.BYTES);
+            return new Header(IO_REV_UNTILED, type, width, height, location, 0,
+                    PIXELS_NATIVE, new int[]{pixelArraySize}, dataEnd);
+        }
+
+        private static <C extends ReadableByteChannel & SeekableByteChannel> Header readTiled(C channel) throws IOException {
+            ByteBuffer buf = ByteBuffer.allocate(1 + (Integer.BYTES * 6));
+            readFully(channel, buf);
+            int type = buf.getInt();
+            checkImageType(type);
+            int width = buf.getInt();
+            int height = buf.getInt();
+            if (width <= 0 || height <= 0) {
+                throw new IOException("Invalid image size " + width + "x" + height);
+            }
+            Point location = new Point(buf.getInt(), buf.getInt());
+            int tileSize = buf.getInt();
+            if (tileSize <= 0) {
+                throw new IOException("Invalid tile size " + tileSize);
+            }
+            byte encoding = buf.get();
+            if (encoding != PIXELS_NATIVE && encoding != PIXELS_ARGB) {
+                throw new IOException("Unknown pixel encoding " + encoding);
+            }
+            int tilesAcross = (width + tileSize - 1) / tileSize;
+            int tilesDown = (height + tileSize - 1) / tileSize;
+            ByteBuffer dir = ByteBuffer.allocate(Integer.BYTES * tilesAcross * tilesDown);
+            readFully(channel, dir);
+            int[] tileLengths = new int[tilesAcross * tilesDown];
+            long total = 0;
+            for (int i = 0; i < tileLengths.length; i++) {
+                tileLengths[i] = dir.getInt();
+                if (tileLengths[i] < 0) {
+                    throw new IOException("Invalid tile length " + tileLengths[i]
+                            + " for tile " + i);
+                }
+                total += tileLengths[i];
+            }
+            finest(() -> "Read tiled raster layer " + width + "x" + height
+                    + " type " + type + " in " + tilesAcross + "x" + tilesDown
+                    + " tiles of " + tileSize);
+            return new Header(IO_REV, type, width, height, location, tileSize,
+                    encoding, tileLengths, channel.position() + total);
+        }
+
+        Dimension size() {
+            return new Dimension(width, height);
+        }
+
+        /**
+         * Decode the pixel data, which must start at the channel's current
+         * position, leaving the channel positioned after it.  Where the data
+         * is already in memory, or is large and in a file, it is decoded in
+         * place from a view or mapping of the channel's content rather than
+         * being copied out of the channel first.
+         */
+        <C extends ReadableByteChannel & SeekableByteChannel> BufferedImage decode(C channel) throws IOException {
+            long start = channel.position();
+            ByteBuffer region = region(channel, start, dataEnd - start);
+            BufferedImage result = rev == IO_REV_UNTILED
+                    ? decodeUntiled(channel, region)
+                    : decodeTiled(channel, region);
+            if (region != null) {
+                channel.position(dataEnd);
+            }
+            return result;
+        }
+
+        private BufferedImage decodeUntiled(ReadableByteChannel channel, ByteBuffer region) throws IOException {
+            BufferedImage img = new BufferedImage(width, height, type);
+            WritableRaster raster = img.getRaster();
+            int rowSamples = width * raster.getNumBands();
+            if ((long) rowSamples * height != tileLengths[0]) {
+                throw new IOException("Pixel array size " + tileLengths[0]
+                        + " does not match " + width + "x" + height + " with "
+                        + raster.getNumBands() + " bands");
+            }
+            if (rowSamples == 0) {
+                return img;
+            }
+            // Transfer a band of rows at a time, rather than materializing
+            // the whole pixel array on the heap, twice
+            int rowsPerBand = Math.max(1, Math.min(height, (1 << 16) / rowSamples));
+            int[] samples = new int[rowsPerBand * rowSamples];
+            IntBuffer ints = region == null ? null : region.asIntBuffer();
+            ByteBuffer bytes = region == null
+                    ? ByteBuffer.allocate(samples.length * Integer.BYTES) : null;
+            for (int y = 0; y < height; y += rowsPerBand) {
+                int rows = Math.min(rowsPerBand, height - y);
+                int count = rows * rowSamples;
+                if (ints != null) {
+                    ints.get(samples, 0, count);
+                } else {
+                    bytes.clear().limit(count * Integer.BYTES);
+                    readFully(channel, bytes);
+                    bytes.asIntBuffer().get(samples, 0, count);
+                }
+                raster.setPixels(0, y, width, rows, samples);
+            }
+            return img;
+        }
+
+        private BufferedImage decodeTiled(ReadableByteChannel channel, ByteBuffer region) throws IOException {
+            int tilesAcross = (width + tileSize - 1) / tileSize;
+            BufferedImage img = new BufferedImage(width, height, type);
+            WritableRaster raster = img.getRaster();
+            int[] pixels = new int[tileSize * tileSize];
+            ByteBuffer encoded = ByteBuffer.allocate(0);
+            int offset = 0;
+            for (int i = 0; i < tileLengths.length; i++) {
+                int length = tileLengths[i];
+                if (length == 0) {
+                    // Empty tile - the new image is already zeroed
+                    continue;
+                }
+                ByteBuffer tile;
+                if (region != null) {
+                    tile = region.duplicate();
+                    tile.limit(offset + length).position(offset);
+                    offset += length;
+                } else {
+                    if (encoded.capacity() < length) {
+                        encoded = ByteBuffer.allocate(length);
+                    }
+                    encoded.clear().limit(length);
+                    readFully(channel, encoded);
+                    tile = encoded;
+                }
+                int x = (i % tilesAcross) * tileSize;
+                int y = (i / tilesAcross) * tileSize;
+                int w = Math.min(tileSize, width - x);
+                int h = Math.min(tileSize, height - y);
+                try {
+                    TILE_CODEC.decode(tile, pixels);
+                } catch (RuntimeException ex) {
+                    throw new IOException("Corrupted tile " + i + " at " + x + "," + y, ex);
+                }
+                if (encoding == PIXELS_NATIVE) {
+                    raster.setDataElements(x, y, w, h, toTransferType(raster, pixels, w * h));
+                } else {
+                    img.setRGB(x, y, w, h, pixels, 0, w);
+                }
+            }
+            return img;
+        }
+
+        @Override
+        public String toString() {
+            return "Header(rev " + rev + " type " + type + " " + width + "x"
+                    + height + " @ " + location.x + "," + location.y
+                    + " data ending at " + dataEnd + ")";
         }
-        RasterLayerImpl impl = new RasterLayerImpl(rlf, handle, img);
-        impl.surface().setLocation(new Point(x, y));
-        return impl;
     }
 
     @Override
     public <C extends WritableByteChannel & SeekableByteChannel> int saveTo(RasterLayerImpl layer, C channel, Map<String, String> saveHints) throws IOException {
         long start = channel.position();
-        int headerSize = 1 + (Integer.BYTES * 5);
         RasterLayerImpl raster = layer.getLookup().lookup(RasterLayerImpl.class);
         if (raster == null) {
             throw new IOException("No raster layer in " + layer);
         }
         RasterSurfaceImpl surface = raster.surface();
-        BufferedImage img = surface.getImage();
+        BufferedImage img = surface.image();
         Point p = surface.getLocation();
+        info(() -> "Begin save raster layer @ " + start);
+        writeTiled(img, p, channel);
+        return layerTypeId();
+    }
 
-        info(() -> "Begin save raster layer @ " + start + " with " + headerSize + " byte header");
+    /**
+     * Snapshots share the tiles of the surface copy-on-write, as undo
+     * snapshots do, so taking one copies nothing.
+     */
+    @Override
+    public Snapshot snapshot(RasterLayerImpl layer) {
+        return snapshot(layer.surface());
+    }
 
-        ByteBuffer buf = ByteBuffer.allocate(headerSize);
-        buf.put(IO_REV);
-        buf.putInt(img.getType());
-        buf.putInt(img.getWidth());
-        buf.putInt(img.getHeight());
-        buf.putInt(p.x);
-        buf.putInt(p.y);
-        buf.flip();
-        channel.write(buf);
-
-        long pixelsStart = channel.position();
-        int[] pixels = img.getRaster().getPixels(0, 0, img.getWidth(), img.getHeight(), (int[]) null);
-
-        // XXX RLE encoding would probably be good enough
-        // to substantially reduce size in the application.
-        // Or use ImageIO + png
-        int pixelArrayWithSizeLength = Integer.BYTES * (pixels.length + 1);
-        finest(() -> "Write " + pixels.length + " pixels + length to buffer of "
-                + pixelArrayWithSizeLength + " @ " + pixelsStart);
-        buf = ByteBuffer.allocateDirect(pixelArrayWithSizeLength);
-        buf.putInt(pixels.length);
-        for (int i = 0; i < pixels.length; i++) {
-            buf.putInt(pixels[i]);
+    static Snapshot snapshot(RasterSurfaceImpl surface) {
+        BufferedImage img = surface.image();
+        int type = img.getType() == BufferedImage.TYPE_CUSTOM
+                ? BufferedImage.TYPE_INT_ARGB : img.getType();
+        return new TilesSnapshot(surface.snapshotTiles(), type, surface.getLocation());
+    }
+
+    /**
+     * Write an image as a header, a directory of the encoded length of each
+     * tile, and the tiles themselves, each compressed independently.  Tiles
+     * whose pixels are all zero are recorded with a length of zero and not
+     * written at all.  Pixels are read and encoded a tile at a time, so
+     * memory use is bounded by the tile size, not the image size; the
+     * directory is written as a placeholder and filled in once the lengths
+     * of all tiles are known.
+     */
+    static <C extends WritableByteChannel & SeekableByteChannel> void writeTiled(BufferedImage img, Point location, C channel) throws IOException {
+        byte encoding = isNativeEncodable(img.getRaster()) ? PIXELS_NATIVE : PIXELS_ARGB;
+        writeTiled(img.getType(), encoding, img.getWidth(), img.getHeight(), location,
+                channel, (x, y, w, h, into) -> readTile(img, encoding, x, y, w, h, into));
+    }
+
+    /**
+     * Write an image whose pixels are supplied a tile at a time.
+     */
+    private static <C extends WritableByteChannel & SeekableByteChannel> void writeTiled(int type,
+            byte encoding, int width, int height, Point location, C channel,
+            TileSource tiles) throws IOException {
+        int tileSize = TILE_SIZE;
+        ByteBuffer header = ByteBuffer.allocate(1 + 1 + (Integer.BYTES * 6));
+        header.put(IO_REV);
+        header.putInt(type);
+        header.putInt(width);
+        header.putInt(height);
+        header.putInt(location.x);
+        header.putInt(location.y);
+        header.putInt(tileSize);
+        header.put(encoding);
+        header.flip();
+        writeFully(channel, header);
+
+        int tilesAcross = (width + tileSize - 1) / tileSize;
+        int tilesDown = (height + tileSize - 1) / tileSize;
+        long dirStart = channel.position();
+        ByteBuffer dir = ByteBuffer.allocate(Integer.BYTES * tilesAcross * tilesDown);
+        writeFully(channel, dir);
+        dir.clear();
+
+        int[] pixels = new int[tileSize * tileSize];
+        int empty = 0;
+        for (int ty = 0; ty < tilesDown; ty++) {
+            for (int tx = 0; tx < tilesAcross; tx++) {
+                int x = tx * tileSize;
+                int y = ty * tileSize;
+                int w = Math.min(tileSize, width - x);
+                int h = Math.min(tileSize, height - y);
+                int count = w * h;
+                tiles.read(x, y, w, h, pixels);
+                if (isEmpty(pixels, count)) {
+                    dir.putInt(0);
+                    empty++;
+                    continue;
+                }
+                int[] tile = count == pixels.length ? pixels : Arrays.copyOf(pixels, count);
+                ByteBuffer encoded = TILE_CODEC.encode(tile);
+                dir.putInt(encoded.remaining());
+                writeFully(channel, encoded);
+            }
         }
-        buf.flip();
-        channel.write(buf);
-        return layerTypeId();
+        long end = channel.position();
+        dir.flip();
+        channel.position(dirStart);
+        writeFully(channel, dir);
+        channel.position(end);
+        int emptyTiles = empty;
+        finest(() -> "Wrote " + width + "x" + height + " raster layer as "
+                + (tilesAcross * tilesDown) + " tiles, " + emptyTiles
+                + " empty, in " + (end - dirStart) + " bytes");
+    }
+
+    private static void readTile(BufferedImage img, byte encoding, int x, int y, int w, int h, int[] into) {
+        if (encoding == PIXELS_NATIVE) {
+            fromTransferType(img.getRaster().getDataElements(x, y, w, h, null), into);
+        } else {
+            img.getRGB(x, y, w, h, into, 0, w);
+        }
+    }
+
+    /**
+     * Supplies the pixels of each tile of an image being written, in the
+     * encoding being written.
+     */
+    private interface TileSource {
+
+        void read(int x, int y, int w, int h, int[] into);
+    }
+
+    /**
+     * An immutable snapshot of a raster layer, written from its tiles.
+     */
+    private static final class TilesSnapshot implements Snapshot {
+
+        private final RasterTiles tiles;
+        private final int type;
+        private final Point location;
+
+        TilesSnapshot(RasterTiles tiles, int type, Point location) {
+            this.tiles = tiles;
+            this.type = type;
+            this.location = location;
+        }
+
+        @Override
+        public <C extends WritableByteChannel & SeekableByteChannel> void saveTo(C channel, Map<String, String> saveHints) throws IOException {
+            BufferedImage scratch = new BufferedImage(TILE_SIZE, TILE_SIZE, type);
+            byte encoding = isNativeEncodable(scratch.getRaster()) ? PIXELS_NATIVE : PIXELS_ARGB;
+            writeTiled(type, encoding, tiles.width(), tiles.height(), location, channel, (x, y, w, h, into) -> {
+                tiles.capture(new Rectangle(x, y, w, h)).writeTo(scratch, 0, 0);
+                readTile(scratch, encoding, 0, 0, w, h, into);
+            });
+        }
+    }
+
+    static void writeFully(WritableByteChannel channel, ByteBuffer buf) throws IOException {
+        while (buf.hasRemaining()) {
+            channel.write(buf);
+        }
+    }
+
+    private static boolean isEmpty(int[] pixels, int count) {
+        for (int i = 0; i < count; i++) {
+            if (pixels[i] != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Images with one data element per pixel can be stored exactly by
+     * widening each data element to an int;  others are stored as ARGB.
+     */
+    static boolean isNativeEncodable(WritableRaster raster) {
+        SampleModel sm = raster.getSampleModel();
+        if (sm.getNumDataElements() != 1) {
+            return false;
+        }
+        if (!(sm instanceof SinglePixelPackedSampleModel) && !(sm instanceof ComponentSampleModel)) {
+            return false;
+        }
+        switch (raster.getTransferType()) {
+            case DataBuffer.TYPE_INT:
+            case DataBuffer.TYPE_USHORT:
+            case DataBuffer.TYPE_BYTE:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    static void fromTransferType(Object data, int[] into) {
+        if (data instanceof int[]) {
+            int[] ints = (int[]) data;
+            System.arraycopy(ints, 0, into, 0, ints.length);
+        } else if (data instanceof short[]) {
+            short[] shorts = (short[]) data;
+            for (int i = 0; i < shorts.length; i++) {
+                into[i] = shorts[i] & 0xFFFF;
+            }
+        } else {
+            byte[] bytes = (byte[]) data;
+            for (int i = 0; i < bytes.length; i++) {
+                into[i] = bytes[i] & 0xFF;
+            }
+        }
+    }
+
+    static Object toTransferType(WritableRaster raster, int[] pixels, int count) {
+        switch (raster.getTransferType()) {
+            case DataBuffer.TYPE_INT:
+                return count == pixels.length ? pixels : Arrays.copyOf(pixels, count);
+            case DataBuffer.TYPE_USHORT:
+                short[] shorts = new short[count];
+                for (int i = 0; i < count; i++) {
+                    shorts[i] = (short) pixels[i];
+                }
+                return shorts;
+            default:
+                byte[] bytes = new byte[count];
+                for (int i = 0; i < count; i++) {
+                    bytes[i] = (byte) pixels[i];
+                }
+                return bytes;
+        }
+    }
+
+    @Override
+    public boolean isThreadSafe() {
+        return true;
     }
 
     @Override
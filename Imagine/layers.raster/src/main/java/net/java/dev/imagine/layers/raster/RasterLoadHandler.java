@@ -30,6 +30,16 @@ public class RasterLoadHandler implements LayerLoadHandler<RasterLayerImpl> {
         return RasterLayerSave.INSTANCE.load(handle, channel, loaderHints);
     }
 
+    @Override
+    public boolean isThreadSafe() {
+        return true;
+    }
+
+    @Override
+    public boolean supportsDeferredLoading() {
+        return true;
+    }
+
     @Override
     public String toString() {
         return getClass().getSimpleName() + "(rev=" + RasterLayerSave.IO_REV
@@ -2,6 +2,7 @@ package net.java.dev.imagine.layers.raster;
 
 import net.java.dev.imagine.api.image.Picture;
 import org.netbeans.paint.api.editing.UndoManager;
+import java.awt.AlphaComposite;
 import java.awt.BorderLayout;
 import java.awt.Color;
 import java.awt.Composite;
@@ -14,7 +15,7 @@ import java.awt.Point;
 import java.awt.Rectangle;
 import java.awt.RenderingHints;
 import java.awt.Shape;
-import java.awt.geom.Area;
+import java.awt.geom.AffineTransform;
 import java.awt.image.BufferedImage;
 import java.awt.image.BufferedImageOp;
 import java.awt.image.RasterFormatException;
@@ -27,6 +28,7 @@ import java.util.Collections;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.function.BooleanSupplier;
 import javax.swing.ImageIcon;
 import javax.swing.JComponent;
@@ -38,6 +40,7 @@ import javax.swing.undo.CannotRedoException;
 import javax.swing.undo.CannotUndoException;
 import javax.swing.undo.UndoableEdit;
 import net.dev.java.imagine.api.selection.Selection;
+import net.dev.java.imagine.api.selection.SelectionMask;
 import net.dev.java.imagine.api.tool.Tool;
 import org.imagine.utils.painting.RepaintHandle;
 import net.java.dev.imagine.spi.image.SurfaceImplementation;
@@ -48,9 +51,12 @@ import org.imagine.editor.api.Zoom;
 import com.mastfrog.geometry.util.PooledTransform;
 import org.imagine.utils.java2d.GraphicsUtils;
 import org.imagine.utils.java2d.TrackingGraphics;
+import org.netbeans.api.progress.ProgressHandle;
 import org.netbeans.paint.misc.image.ByteNIOBufferedImage;
-import org.netbeans.paint.misc.image.ImageHolder;
 import org.openide.ErrorManager;
+import org.openide.awt.StatusDisplayer;
+import org.openide.util.Exceptions;
+import org.openide.util.NbBundle;
 import org.openide.util.RequestProcessor;
 import org.openide.util.Utilities;
 
@@ -63,6 +69,7 @@ class RasterSurfaceImpl extends SurfaceImplementation implements RepaintHandle {
     private Selection<Shape> selection;
     private final PropertyChangeSupport supp = new PropertyChangeSupport(this);
     private final BooleanSupplier isVisible;
+    private final MipMaps mipMaps = new MipMaps();
 
     RasterSurfaceImpl(RepaintHandle handle, Dimension d, Selection<Shape> selection, BooleanSupplier isVisible) {
         this(handle, d, null, selection, isVisible);
@@ -110,6 +117,9 @@ class RasterSurfaceImpl extends SurfaceImplementation implements RepaintHandle {
 
     @Override
     public BufferedImage getImage() {
+        // Callers such as flood fill write to the image directly, so no tile
+        // an undo snapshot shares may stay live
+        preserve(new Rectangle(0, 0, img.getWidth(), img.getHeight()));
         return img;
     }
 
@@ -127,7 +137,8 @@ class RasterSurfaceImpl extends SurfaceImplementation implements RepaintHandle {
     }
 
     BufferedImage image() {
-        //for unit tests
+        // For code which only reads the image, or calls preserve() before
+        // writing to it, and unit tests
         return img;
     }
 
@@ -149,6 +160,11 @@ class RasterSurfaceImpl extends SurfaceImplementation implements RepaintHandle {
             return isVisible.getAsBoolean();
         }
 
+        @Override
+        public int tileHalo(BufferedImageOp effect) {
+            return TiledOp.haloFor(effect);
+        }
+
         @Override
         protected <ParamType> boolean onApply(BufferedImageOp effect) {
             Shape sel = selection.get();
@@ -191,12 +207,14 @@ class RasterSurfaceImpl extends SurfaceImplementation implements RepaintHandle {
     }
 
     private Snapshot snapshot = null;
+    // The tiles of img, which snapshots share until they are painted on
+    private RasterTiles tiles;
 
     void resizeCanvas(int width, int height) {
-        img = GraphicsUtils.newBufferedImage(width, height, g -> {
+        replaceImage(GraphicsUtils.newBufferedImage(width, height, g -> {
             GraphicsUtils.setHighQualityRenderingHints(g);
             g.drawRenderedImage(img, null);
-        });
+        }));
     }
 
     void resize(int width, int height) {
@@ -208,13 +226,25 @@ class RasterSurfaceImpl extends SurfaceImplementation implements RepaintHandle {
         double factorY = h / oh;
         PooledTransform.withScaleInstance(factorX, factorY, xform -> {
 //        AffineTransform xform = AffineTransform.getScaleInstance(factorX, factorY);
-            img = GraphicsUtils.newBufferedImage(width, height, g -> {
+            replaceImage(GraphicsUtils.newBufferedImage(width, height, g -> {
                 GraphicsUtils.setHighQualityRenderingHints(g);
                 g.drawRenderedImage(img, xform);
-            });
+            }));
         });
     }
 
+    /**
+     * Replace the image with one with different contents;  tiles snapshots
+     * share keep the old image, which must not be written to afterwards.
+     */
+    private void replaceImage(BufferedImage nue) {
+        if (tiles != null) {
+            tiles.detach(img);
+            tiles = null;
+        }
+        img = nue;
+    }
+
     private void takeSnapshot() {
         if (snapshot == null && (currentTool == null || !isNonPainting(currentTool))) {
             Point loc = getLocation();
@@ -241,11 +271,36 @@ class RasterSurfaceImpl extends SurfaceImplementation implements RepaintHandle {
                     height -= (loc.y + height) - img.getHeight();
                 }
             }
-            snapshot = new Snapshot(img, loc, new Dimension(
+            snapshot = new Snapshot(tiles().snapshot(), loc, new Dimension(
                     width, height));
         }
     }
 
+    private RasterTiles tiles() {
+        if (tiles == null || !tiles.matches(img)) {
+            tiles = RasterTiles.track(img.getWidth(), img.getHeight(), this::image);
+        }
+        return tiles;
+    }
+
+    /**
+     * Called before anything writes to an area of the image, in image
+     * coordinates, so that tiles undo snapshots share keep their pixels.
+     */
+    void preserve(Rectangle area) {
+        if (tiles != null) {
+            tiles().preserve(area);
+        }
+    }
+
+    /**
+     * Take an immutable snapshot of the image, which may be read from any
+     * thread while the surface goes on being painted.
+     */
+    RasterTiles snapshotTiles() {
+        return tiles().snapshot();
+    }
+
     boolean isNonPainting(Tool tool) {
         NonPaintingTool oldNP = tool == null ? null : tool.getLookup().lookup(NonPaintingTool.class);
         return tool == null ? true : oldNP != null;
@@ -272,7 +327,8 @@ class RasterSurfaceImpl extends SurfaceImplementation implements RepaintHandle {
     public Graphics2D getGraphics() {
         unhibernateImmediately();
         Point p = getLocation();
-        TrackingGraphics result = GraphicsUtils.wrap(this, img.createGraphics(), p, img.getWidth(),
+        TrackingGraphics result = GraphicsUtils.wrap(this,
+                new PreservingGraphics(img.createGraphics(), this::preserve), p, img.getWidth(),
                 img.getHeight());
         Shape sel = getSelection();
         if (sel != null) {
@@ -292,32 +348,58 @@ class RasterSurfaceImpl extends SurfaceImplementation implements RepaintHandle {
             Integer.MIN_VALUE);
     private static final Rectangle ALL_MODIFIED = new Rectangle(-1, -1, -1, -1);
     private Rectangle modifiedBounds = new Rectangle(UNMODIFIED);
-
+    // Counts changes, so effects computed in the background can tell if
+    // the image was painted on meanwhile
+    private int editCount;
+
+    /**
+     * Note that an area was painted.  Coordinates are picture coordinates,
+     * as reported by the graphics from getGraphics(), and are what the
+     * repaint handle is passed;  the modified bounds are kept in image
+     * coordinates, for the undo data and the tile cache.
+     */
     @Override
     public void repaintArea(int x, int y, int w, int h) {
+        editCount++;
         if (!modifiedBounds.equals(ALL_MODIFIED)) {
             if (w != -1 && h != -1) {
+                Rectangle r = new Rectangle(x - location.x, y - location.y, w, h);
                 if (UNMODIFIED.equals(modifiedBounds)) {
-                    modifiedBounds = new Rectangle(x, y, w, h);
+                    modifiedBounds = r;
                 } else {
-                    modifiedBounds.add(new Rectangle(x, y, w, h));
+                    modifiedBounds.add(r);
                 }
             } else {
                 modifiedBounds.setBounds(ALL_MODIFIED);
             }
         }
-        _repaintArea(x, y, w < 0 ? img.getWidth() : w, h < 0
-                ? img.getHeight() : h);
+        if (w < 0 || h < 0) {
+            _repaintArea(location.x, location.y, img.getWidth(), img.getHeight());
+        } else {
+            _repaintArea(x, y, w, h);
+        }
+    }
+
+    private void repaintImage() {
+        repaintArea(location.x, location.y, img.getWidth(), img.getHeight());
     }
 
     private void _repaintArea(int x, int y, int w, int h) {
-        int maxW = Math.min(img.getWidth(), x + w);
-        int maxH = Math.min(img.getHeight(), y + h);
-        handle.repaintArea(x, y, maxW - x, maxH - y);
+        if (w < 0 || h < 0) {
+            mipMaps.changed(-1, -1, -1, -1);
+        } else {
+            mipMaps.changed(x - location.x, y - location.y, w, h);
+        }
+        handle.repaintArea(x, y, w, h);
     }
 
+    /**
+     * Get and reset the bounds, in image coordinates, of what was painted
+     * since the last call.
+     */
     public Rectangle getChangeBounds() {
         if (modifiedBounds.width == -1) {
+            modifiedBounds = new Rectangle(UNMODIFIED);
             return new Rectangle(0, 0, img.getWidth(), img.getHeight());
         }
         Rectangle changed = modifiedBounds;
@@ -329,8 +411,19 @@ class RasterSurfaceImpl extends SurfaceImplementation implements RepaintHandle {
         if (img instanceof ByteNIOBufferedImage) {
             return false;
         }
+        AffineTransform current = g.getTransform();
+        int level = current.getShearX() == 0 && current.getShearY() == 0
+                ? MipMaps.levelFor(Math.min(Math.abs(current.getScaleX()),
+                        Math.abs(current.getScaleY())))
+                : 0;
+        BufferedImage toPaint = mipMaps.level(img, level);
+        double xfactor = (double) img.getWidth() / toPaint.getWidth();
+        double yfactor = (double) img.getHeight() / toPaint.getHeight();
         PooledTransform.withTranslateInstance(location.x, location.y, xform -> {
-            g.drawRenderedImage(img, xform);
+            if (toPaint != img) {
+                xform.scale(xfactor, yfactor);
+            }
+            g.drawRenderedImage(toPaint, xform);
         });
         return true;
     }
@@ -345,13 +438,17 @@ class RasterSurfaceImpl extends SurfaceImplementation implements RepaintHandle {
 
         g2d.setRenderingHint(RenderingHints.KEY_INTERPOLATION,
                 RenderingHints.VALUE_INTERPOLATION_BICUBIC);
-        double xfactor = (double) r.width / (double) img.getWidth();
-        double yfactor = (double) r.height / (double) img.getHeight();
+        // Sample the smallest level of the pyramid that is still at least
+        // as large as the target, rather than resampling the whole image
+        BufferedImage toPaint = mipMaps.level(img, MipMaps.levelFor(Math.min(
+                (double) r.width / img.getWidth(), (double) r.height / img.getHeight())));
+        double xfactor = (double) r.width / (double) toPaint.getWidth();
+        double yfactor = (double) r.height / (double) toPaint.getHeight();
 
         PooledTransform.withScaleInstance(xfactor, yfactor, scale -> {
             PooledTransform.withTranslateInstance(r.x, r.y, xlate -> {
                 scale.concatenate(xlate);
-                g2d.drawRenderedImage(img, scale);
+                g2d.drawRenderedImage(toPaint, scale);
             });
         });
 
@@ -375,34 +472,124 @@ class RasterSurfaceImpl extends SurfaceImplementation implements RepaintHandle {
     }
 
     public void applyBufferedImageOp(BufferedImageOp op, Shape clip) {
+        int halo = bufferedImageOpReceiver.tileHalo(op);
+        Rectangle area = effectArea(clip);
+        if (area == null) {
+            return;
+        }
+        TiledOp tiled = new TiledOp(op, img, area, halo);
+        if (tiled.isSmall()) {
+            commitBufferedImageOp(op.toString(), tiled.run(null, null), area, clip);
+            return;
+        }
+        AtomicBoolean cancelled = new AtomicBoolean();
+        ProgressHandle progress = ProgressHandle.createHandle(
+                NbBundle.getMessage(RasterSurfaceImpl.class, "APPLYING_EFFECT"), () -> {
+                    cancelled.set(true);
+                    return true;
+                });
+        TiledOp.EFFECTS.post(() -> {
+            // Read the image on the event thread when the op starts, not when
+            // it was queued, so queued effects see each other's results
+            TiledOp[] job = new TiledOp[1];
+            Rectangle[] jobArea = new Rectangle[1];
+            int[] edits = new int[1];
+            try {
+                EventQueue.invokeAndWait(() -> {
+                    jobArea[0] = effectArea(clip);
+                    if (jobArea[0] != null) {
+                        job[0] = new TiledOp(op, img, jobArea[0], halo);
+                        edits[0] = editCount;
+                    }
+                });
+            } catch (InterruptedException | InvocationTargetException ex) {
+                Exceptions.printStackTrace(ex);
+                return;
+            }
+            if (job[0] == null) {
+                return;
+            }
+            BufferedImage source = job[0].source();
+            progress.start(job[0].tileCount());
+            try {
+                BufferedImage result = job[0].run(cancelled, progress::progress);
+                if (result == null || cancelled.get()) {
+                    return;
+                }
+                EventQueue.invokeLater(() -> {
+                    if (img != source || editCount != edits[0]) {
+                        // Committing would overwrite whatever was done meanwhile
+                        StatusDisplayer.getDefault().setStatusText(NbBundle.getMessage(
+                                RasterSurfaceImpl.class, "EFFECT_DISCARDED"));
+                        return;
+                    }
+                    commitBufferedImageOp(op.toString(), result, jobArea[0], clip);
+                });
+            } finally {
+                progress.finish();
+            }
+        });
+    }
+
+    /**
+     * Get the area of the image, in image coordinates, an effect limited to
+     * a region should be applied to, or null if none of the image is in it.
+     */
+    private Rectangle effectArea(Shape region) {
+        unhibernateImmediately();
+        if (region != null && location.x != 0 && location.y != 0) {
+            growImageIfNeeded();
+        }
+        Rectangle all = new Rectangle(0, 0, img.getWidth(), img.getHeight());
+        if (region == null) {
+            return all;
+        }
+        Rectangle bds = region.getBounds();
+        bds.translate(-location.x, -location.y);
+        Rectangle result = bds.intersection(all);
+        return result.isEmpty() ? null : result;
+    }
+
+    /**
+     * Replace the image, or the part of it in a region, with the result of
+     * applying an effect, as one undoable edit.
+     */
+    private void commitBufferedImageOp(String name, BufferedImage result, Rectangle area, Shape region) {
         Tool tool = currentTool;
         currentTool = null;
         try {
-            doApplyBufferedImageOp(op, clip);
+            beginUndoableOperation(name);
+            try {
+                if (region == null) {
+                    BufferedImage old = img;
+                    replaceImage(result);
+                    boundsMayBeChanged(old, result);
+                    repaintImage();
+                } else {
+                    SelectionMask mask = selection != null && region == selection.asShape()
+                            ? selection.getMask() : SelectionMask.create(region);
+                    int[] originalPixels = img.getRGB(area.x, area.y,
+                            area.width, area.height, null, 0, area.width);
+                    int[] modifiedPixels = result.getRGB(0, 0, area.width,
+                            area.height, null, 0, area.width);
+                    mask.mix(originalPixels, modifiedPixels, new Rectangle(area.x + location.x,
+                            area.y + location.y, area.width, area.height));
+                    preserve(area);
+                    img.setRGB(area.x, area.y, area.width, area.height,
+                            modifiedPixels, 0, area.width);
+                    repaintArea(area.x + location.x, area.y + location.y,
+                            area.width, area.height);
+                }
+            } catch (RuntimeException re) {
+                cancelUndoableOperation();
+                throw re;
+            }
+            endUndoableOperation();
         } finally {
             currentTool = tool;
         }
     }
 
-    private void doApplyBufferedImageOp(BufferedImageOp op, Shape region) {
-        BufferedImage old = img;
-        if (region == null || region.getBounds().contains(0, 0, img.getWidth(), img.getHeight())) {
-            BufferedImage nue = op.filter(old, null);
-            img = nue;
-            boundsMayBeChanged(old, nue);
-            repaintArea(0, 0, img.getWidth(), img.getHeight());
-        } else {
-            Rectangle regBounds = region.getBounds(); //XXX check that it fits within image!
-            regBounds = regBounds.intersection(new Rectangle(0, 0, img.getWidth(), img.getHeight()));
-            BufferedImage nue = img.getSubimage(regBounds.x, regBounds.y, regBounds.width, regBounds.height);
-            nue = op.filter(nue, null);
-            Graphics2D g = nue.createGraphics();
-            g.setClip(region);
-            g.drawRenderedImage(nue, null);
-            repaintArea(regBounds);
-        }
-    }
-
     public void repaintArea(Rectangle r) {
         repaintArea(r.x, r.y, r.width, r.height);
     }
@@ -430,84 +617,67 @@ class RasterSurfaceImpl extends SurfaceImplementation implements RepaintHandle {
             if (region == null) {
                 g.setComposite(composite);
                 g.drawRenderedImage(img, null);
-                repaintArea(0, 0, img.getWidth(), img.getHeight());
+                repaintImage();
             } else {
-                Rectangle bds = new Rectangle(location.x, location.y,
-                        img.getWidth(), img.getHeight());
-                // Store the last known clip
-                Shape clip = g.getClip();
                 int xOff = location.x;
                 int yOff = location.y;
-
-                g.translate(-xOff, -yOff);
-                // Set our composite
-                g.setComposite(composite);
-                // Paint the rectanglular bounds of the shape first;  we'll cover
-                // the outlying areas with the inverse paint later.  Some non-rectangular
-                // clip shapes cause a RasterFormatException if combined with a
-                // composite, so we need to paint with-composite into a rectangular
-                // region, then mask the excess with the original image.
-                g.setClip(region.getBounds());
-                // First draw our effect-modified content into the
-                // rectangle* surrounding the selection.  We have to
-                // do it this way.
+                // Start with an unmodified copy of the image
+                g.setComposite(AlphaComposite.Src);
+                g.drawRenderedImage(img, null);
                 Rectangle selBds = region.getBounds();
-
-                try {
-                    PooledTransform.withTranslateInstance(xOff, yOff, xform -> {
-                        g.drawRenderedImage(img, xform);
-                    });
-//                    g.drawRenderedImage(img,
-//                            AffineTransform.getTranslateInstance(xOff,
-//                                    yOff));
-                } catch (RasterFormatException rfe) {
-                    // Debugging stuff
-                    IllegalStateException ise = new IllegalStateException("Fail: src "
-                            + img.getWidth()
-                            + ","
-                            + img.getHeight()
-                            + " dest "
-                            + ""
-                            + applied.getWidth()
-                            + ","
-                            + applied.getHeight()
-                            + " clip "
-                            + g.getClipBounds()
-                            + " actual clip "
-                            + g.getClip());
-
-                    ErrorManager.getDefault().annotate(ise, rfe);
-                    throw ise;
+                // The part of the image under the selection's bounds
+                Rectangle area = new Rectangle(selBds.x - xOff, selBds.y - yOff,
+                        selBds.width, selBds.height).intersection(
+                                new Rectangle(0, 0, img.getWidth(), img.getHeight()));
+                if (!area.isEmpty()) {
+                    // Some non-rectangular clip shapes cause a
+                    // RasterFormatException if combined with a composite, so
+                    // paint with-composite into a rectangular scratch image
+                    // and merge that back in through the selection's mask,
+                    // which is cached, rather than clipping to an Area
+                    BufferedImage modified = new BufferedImage(area.width,
+                            area.height, BufferedImage.TYPE_INT_ARGB);
+                    Graphics2D mg = modified.createGraphics();
+                    try {
+                        mg.setComposite(composite);
+                        PooledTransform.withTranslateInstance(-area.x, -area.y, xform -> {
+                            mg.drawRenderedImage(img, xform);
+                        });
+                    } catch (RasterFormatException rfe) {
+                        // Debugging stuff
+                        IllegalStateException ise = new IllegalStateException("Fail: src "
+                                + img.getWidth()
+                                + ","
+                                + img.getHeight()
+                                + " dest "
+                                + ""
+                                + modified.getWidth()
+                                + ","
+                                + modified.getHeight()
+                                + " area "
+                                + area);
+
+                        ErrorManager.getDefault().annotate(ise, rfe);
+                        throw ise;
+                    } finally {
+                        mg.dispose();
+                    }
+                    SelectionMask mask = selection != null && region == selection.asShape()
+                            ? selection.getMask() : SelectionMask.create(region);
+                    int[] originalPixels = img.getRGB(area.x, area.y,
+                            area.width, area.height, null, 0, area.width);
+                    int[] modifiedPixels = modified.getRGB(0, 0, area.width,
+                            area.height, null, 0, area.width);
+                    mask.mix(originalPixels, modifiedPixels, new Rectangle(area.x + xOff,
+                            area.y + yOff, area.width, area.height));
+                    applied.setRGB(area.x, area.y, area.width, area.height,
+                            modifiedPixels, 0, area.width);
                 }
-                // Now restore the original composite, presumably straight painting
-                g.setComposite(old);
-                // Get a rectangle for the whole image, and *subtract* the shape
-                // of the selection
-                Area inverse = new Area(bds);
-
-                inverse.subtract(new Area(region));
-                // Set the clip to that
-                g.setClip(inverse);
-                // Set the fill to transparent
-                g.setBackground(new Color(255, 255, 255, 0));
-                // And clear the excess from our painting of the effect-modified
-                // selection
-                g.clearRect(0, 0, img.getWidth(), img.getHeight());
-                // Now that its empty, paint the original back into the
-                // non-selection area
-                PooledTransform.withTranslateInstance(xOff, yOff, xform -> {
-                    g.drawRenderedImage(img, xform);
-                });
-//                g.drawRenderedImage(img,
-//                        AffineTransform.getTranslateInstance(xOff,
-//                                yOff));
-                // And restore the clipping bounds
-                g.setClip(clip);
                 // And tell the editor what to repaint
                 repaintArea(selBds.x, selBds.y, selBds.width, selBds.height);
             }
             // Swap the original image for our new one
-            this.img = applied;
+            replaceImage(applied);
             // And restore the composite
             g.setComposite(old);
             g.dispose();
@@ -524,13 +694,14 @@ class RasterSurfaceImpl extends SurfaceImplementation implements RepaintHandle {
 
     void hibernate() {
         shouldBeHibernated = true;
+        mipMaps.clear();
         q.add(this, true, null);
     }
 
     void unhibernate(Runnable notify) {
         shouldBeHibernated = false;
         q.add(this, false, notify);
-        this.repaintArea(0, 0, img.getWidth(), img.getHeight());
+        repaintImage();
         if (notify != null) {
             notify.run();
         }
@@ -628,10 +799,14 @@ class RasterSurfaceImpl extends SurfaceImplementation implements RepaintHandle {
         }
     }
 
+    UndoManager undoManager() {
+        // Overridden in tests
+        return Utilities.actionsGlobalContext().lookup(UndoManager.class);
+    }
+
     OwnedEdit[] myEdits() {
         //XXX the undomanager returned here may belong to a different image!
-        UndoManager mgr
-                = Utilities.actionsGlobalContext().lookup(UndoManager.class);
+        UndoManager mgr = undoManager();
         if (mgr != null) {
             List l = mgr.getEdits();
             ArrayList<UndoableEdit> result = new ArrayList<UndoableEdit>(l.size());
@@ -710,11 +885,11 @@ class RasterSurfaceImpl extends SurfaceImplementation implements RepaintHandle {
                 //need to grow the image in this state
                 return;
             }
-            img = GraphicsUtils.newBufferedImage(img.getWidth() + grow.width, img.getHeight() + grow.height, g2d -> {
+            replaceImage(GraphicsUtils.newBufferedImage(img.getWidth() + grow.width, img.getHeight() + grow.height, g2d -> {
                 PooledTransform.withTranslateInstance(imageReplacePosition.x, imageReplacePosition.y, xform -> {
                     g2d.drawRenderedImage(img, xform);
                 });
-            });
+            }));
 
 //            BufferedImage nue = new BufferedImage(img.getWidth()
 //                    + grow.width, img.getHeight() + grow.height, type);
@@ -767,7 +942,7 @@ class RasterSurfaceImpl extends SurfaceImplementation implements RepaintHandle {
     public void endUndoableOperation() {
         inUndoableOperation = false;
         if (!location.equals(undoableStartLocation) && undoableStartLocation != null) {
-            UndoManager mgr = (UndoManager) Utilities.actionsGlobalContext().lookup(UndoManager.class);
+            UndoManager mgr = undoManager();
 
             if (mgr != null) {
                 Point nue = new Point(location);
@@ -775,6 +950,7 @@ class RasterSurfaceImpl extends SurfaceImplementation implements RepaintHandle {
                 UndoableEditEvent evt = new UndoableEditEvent(this, ed);
                 mgr.undoableEditHappened(evt);
             }
+            resync();
         } else if (snapshot != null && !UNMODIFIED.equals(modifiedBounds)) {
             Snapshot snap = snapshot;
             snapshot = null;
@@ -783,7 +959,7 @@ class RasterSurfaceImpl extends SurfaceImplementation implements RepaintHandle {
                     undoName);
 
             undoName = "--";
-            UndoManager undo = (UndoManager) Utilities.actionsGlobalContext().lookup(UndoManager.class);
+            UndoManager undo = undoManager();
             if (undo != null) {
                 undo.undoableEditHappened(new UndoableEditEvent(this, edit));
             }
@@ -794,6 +970,17 @@ class RasterSurfaceImpl extends SurfaceImplementation implements RepaintHandle {
         undoableStartLocation = null;
     }
 
+    /**
+     * Bring the snapshot up to date after an edit which does not go through
+     * PaintingUndoData, such as a move, so the next undoable operation starts
+     * from the current pixels and location.
+     */
+    private void resync() {
+        getChangeBounds();
+        snapshot = null;
+        takeSnapshot();
+    }
+
     public void cancelUndoableOperation() {
         if (inUndoableOperation) {
             inUndoableOperation = false;
@@ -805,14 +992,11 @@ class RasterSurfaceImpl extends SurfaceImplementation implements RepaintHandle {
     private static class Snapshot {
 
         private Point location;
-        private BufferedImage img;
+        private final RasterTiles tiles;
         private Dimension size;
 
-        private Snapshot(BufferedImage img, Point loc, Dimension size) {
-            this.img = new BufferedImage(img.getWidth(), img.getHeight(),
-                    img.getType() == 0 ? GraphicsUtils.DEFAULT_BUFFERED_IMAGE_TYPE
-                    : img.getType());
-            this.img.createGraphics().drawRenderedImage(img, null);
+        private Snapshot(RasterTiles tiles, Point loc, Dimension size) {
+            this.tiles = tiles;
             this.location = loc;
             this.size = size;
         }
@@ -821,8 +1005,8 @@ class RasterSurfaceImpl extends SurfaceImplementation implements RepaintHandle {
             this.location = new Point(p);
         }
 
-        BufferedImage getImage() {
-            return img;
+        RasterTiles getTiles() {
+            return tiles;
         }
 
         Point getLocation() {
@@ -836,12 +1020,12 @@ class RasterSurfaceImpl extends SurfaceImplementation implements RepaintHandle {
 
     class PaintingUndoData {
 
-        ImageHolder undoImage;
+        RasterTiles.Region undoImage;
         private Rectangle redoBounds;
         private Rectangle undoBounds;
         private Rectangle clearLeftRight = null;
         private Rectangle clearTopBottom = null;
-        ImageHolder redoImage = null;
+        RasterTiles.Region redoImage = null;
 
         public PaintingUndoData(Snapshot snapshot) {
             init(snapshot);
@@ -887,13 +1071,15 @@ class RasterSurfaceImpl extends SurfaceImplementation implements RepaintHandle {
         }
 
         private void init(Snapshot snapshot) {
-            BufferedImage before = snapshot.getImage();
-            BufferedImage after = img;
+            RasterTiles before = snapshot.getTiles();
             Rectangle r = getChangeBounds();
 
             boolean allModified = ALL_MODIFIED.equals(r);
+            // The tiles which were painted on were copied into the snapshot
+            // before they were;  the rest are shared with it
+            RasterTiles after = tiles().snapshot();
 
-            Dimension sizeAtStart = new Dimension(before.getWidth(), before.getHeight());
+            Dimension sizeAtStart = new Dimension(before.width(), before.height());
             Dimension sizeAtFinish = new Dimension(img.getWidth(),
                     img.getHeight());
 
@@ -968,7 +1154,7 @@ class RasterSurfaceImpl extends SurfaceImplementation implements RepaintHandle {
 
         }
 
-        private void fitToImage(Rectangle r, BufferedImage img) {
+        private void fitToImage(Rectangle r, RasterTiles img) {
             if (r == null) {
                 return;
             }
@@ -980,45 +1166,38 @@ class RasterSurfaceImpl extends SurfaceImplementation implements RepaintHandle {
                 r.height += r.y;
                 r.y = 0;
             }
-            if (r.x + r.width > img.getWidth()) {
-                r.width = img.getWidth() - r.x;
+            if (r.x + r.width > img.width()) {
+                r.width = img.width() - r.x;
             }
-            if (r.y + r.height > img.getHeight()) {
-                r.height = img.getHeight() - r.y;
+            if (r.y + r.height > img.height()) {
+                r.height = img.height() - r.y;
             }
         }
 
         private void generateImages(Rectangle saveBounds, boolean allModified,
-                BufferedImage before, BufferedImage after) {
-//            System.err.println("Generate images " + saveBounds + " allModified " + allModified + " before null? " + (before == null) + " after null? " + (after == null));
+                RasterTiles before, RasterTiles after) {
             if (saveBounds != null) {
-                saveBounds = saveBounds.intersection(new Rectangle(0, 0, before.getWidth(),
-                        before.getHeight()));
+                saveBounds = saveBounds.intersection(new Rectangle(0, 0, before.width(),
+                        before.height()));
             }
 
             if (allModified) {
-                undoImage = new ImageHolder(before);
-                redoImage = new ImageHolder(after);
+                undoImage = before.capture(new Rectangle(0, 0, before.width(), before.height()));
+                redoImage = after.capture(new Rectangle(0, 0, after.width(), after.height()));
             } else {
                 fitToImage(saveBounds, before);
                 undoImage = saveBounds == null
                         || saveBounds.width <= 0
                         || saveBounds.height <= 0
-                                ? null : new ImageHolder(before, saveBounds);
-                try {
-                    fitToImage(redoBounds, after);
-                    redoImage = new ImageHolder(after, redoBounds);
-                } catch (RasterFormatException ref) {
-                    throw new IllegalStateException("RFE on redo image for "
-                            + redoBounds + " from " + after.getWidth() + ","
-                            + after.getHeight());
-                }
+                                ? null : before.capture(saveBounds);
+                fitToImage(redoBounds, after);
+                redoImage = after.capture(redoBounds);
             }
             if (DEBUG && undoImage != null) {
-                showImageInFrame(undoImage.getImage(false), "Undo image");
+                showImageInFrame(undoImage.toImage(), "Undo image");
             }
-            if (DEBUG) {
-                showImageInFrame(redoImage.getImage(false), "Redo image");
+            if (DEBUG && redoImage != null) {
+                showImageInFrame(redoImage.toImage(), "Redo image");
             }
         }
 
@@ -1035,12 +1214,8 @@ class RasterSurfaceImpl extends SurfaceImplementation implements RepaintHandle {
         }
 
         void dispose() {
-            if (undoImage != null) {
-                undoImage.dispose();
-            }
-            if (redoImage != null) {
-                redoImage.dispose();
-            }
+            undoImage = null;
+            redoImage = null;
         }
 
         public void zeroMoved(int padX, int padY) {
@@ -1075,12 +1250,12 @@ class RasterSurfaceImpl extends SurfaceImplementation implements RepaintHandle {
             return new Rectangle(undoBounds);
         }
 
-        BufferedImage getRedoImage() {
-            return redoImage != null ? redoImage.getImage(false) : null;
+        RasterTiles.Region getRedoImage() {
+            return redoImage;
         }
 
-        BufferedImage getUndoImage() {
-            return undoImage != null ? undoImage.getImage(false) : null;
+        RasterTiles.Region getUndoImage() {
+            return undoImage;
         }
     }
 
@@ -1232,31 +1407,33 @@ class RasterSurfaceImpl extends SurfaceImplementation implements RepaintHandle {
             if (!canUndo()) {
                 throw new CannotUndoException();
             }
-            BufferedImage undoImage = data.getUndoImage();
-            Graphics2D g2d = img.createGraphics();
-            g2d.setBackground(new Color(0, 0, 0, 0));
+            RasterTiles.Region undoImage = data.getUndoImage();
             if (undoImage != null) {
-                if (DEBUG) {
-//                    showImageInFrame(undoImage, "Undo image");
-                }
                 Point p = data.getUndoLocation();
-                g2d.clearRect(p.x, p.y, undoImage.getWidth(),
-                        undoImage.getHeight());
-                replaceArea(undoImage, g2d, p);
+                replaceArea(undoImage, p);
                 if (DEBUG) {
+                    Graphics2D g2d = img.createGraphics();
                     g2d.setColor(new Color(128, 255, 128, 128));
                     g2d.fillRect(p.x, p.y, undoImage.getWidth(), undoImage.getHeight());
+                    g2d.dispose();
                 }
             }
             Rectangle[] r = data.getRectanglesToClear();
-            for (int i = 0; i < r.length; i++) {
-                g2d.clearRect(r[i].x, r[i].y, r[i].width, r[i].height);
-                if (DEBUG) {
-                    g2d.setColor(new Color(255, 128, 128, 128));
-                    g2d.fillRect(r[i].x, r[i].y, r[i].width, r[i].height);
+            if (r.length > 0) {
+                for (Rectangle clear : r) {
+                    preserve(clear);
                 }
+                Graphics2D g2d = img.createGraphics();
+                g2d.setBackground(new Color(0, 0, 0, 0));
+                for (int i = 0; i < r.length; i++) {
+                    g2d.clearRect(r[i].x, r[i].y, r[i].width, r[i].height);
+                    if (DEBUG) {
+                        g2d.setColor(new Color(255, 128, 128, 128));
+                        g2d.fillRect(r[i].x, r[i].y, r[i].width, r[i].height);
+                    }
+                }
+                g2d.dispose();
             }
-            g2d.dispose();
             snapshot = null;
             takeSnapshot();
             isUndo = false;
@@ -1271,42 +1448,25 @@ class RasterSurfaceImpl extends SurfaceImplementation implements RepaintHandle {
             if (!canRedo()) {
                 throw new CannotRedoException();
             }
-            BufferedImage redoImage = data.getRedoImage();
-            if (DEBUG) {
-                showImageInFrame(redoImage, "Redo image");
+            RasterTiles.Region redoImage = data.getRedoImage();
+            if (redoImage != null) {
+                if (DEBUG) {
+                    showImageInFrame(redoImage.toImage(), "Redo image");
+                }
+                replaceArea(redoImage, data.getRedoLocation());
             }
-            Graphics2D g2d = img.createGraphics();
-            replaceArea(redoImage, g2d, data.getRedoLocation());
-            g2d.dispose();
             snapshot = null;
             takeSnapshot();
             isUndo = true;
             _repaintArea(-1, -1, -1, -1);
         }
 
-        private void replaceArea(BufferedImage replaceData, Graphics2D g2d, Point loc) {
-            Rectangle replaceBounds = new Rectangle(loc,
-                    new Dimension(replaceData.getWidth(),
-                            replaceData.getHeight()));
-            g2d.setBackground(new Color(0, 0, 0, 0));
-            g2d.clearRect(replaceBounds.x, replaceBounds.y, replaceData.getWidth(),
-                    replaceData.getHeight());
-
-            PooledTransform.withTranslateInstance(replaceBounds.x, replaceBounds.y, xform -> {
-                g2d.drawRenderedImage(replaceData, xform);
-            });
-
-//            g2d.drawRenderedImage(replaceData,
-//                    AffineTransform.getTranslateInstance(replaceBounds.x,
-//                            replaceBounds.y));
-
-//            if (DEBUG) {
-//                g2d.setColor (new Color (128,128,255,128));
-//                g2d.fillRect (replaceBounds.x, replaceBounds.y, replaceBounds.width, replaceBounds.height);
-//                System.err.println("REPLACE BONUDS " + replaceBounds);
-//            }
-            _repaintArea(replaceBounds.x, replaceBounds.y, replaceBounds.width,
-                    replaceBounds.height);
+        private void replaceArea(RasterTiles.Region replaceData, Point loc) {
+            // Tiles are written straight into the raster, replacing what is
+            // there, so there is no need to clear the area first
+            Rectangle replaceBounds = tiles().write(replaceData, loc.x, loc.y);
+            _repaintArea(replaceBounds.x + location.x, replaceBounds.y + location.y,
+                    replaceBounds.width, replaceBounds.height);
         }
 
         public boolean canRedo() {
@@ -1374,6 +1534,7 @@ class RasterSurfaceImpl extends SurfaceImplementation implements RepaintHandle {
 
         public void undo() throws CannotUndoException {
             setLocation(then);
+            resync();
             isRedo = true;
         }
         private boolean isRedo = false;
@@ -1384,6 +1545,7 @@ class RasterSurfaceImpl extends SurfaceImplementation implements RepaintHandle {
 
         public void redo() throws CannotRedoException {
             setLocation(now);
+            resync();
             isRedo = false;
         }
 
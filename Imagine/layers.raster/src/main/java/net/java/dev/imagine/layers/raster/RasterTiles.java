@@ -0,0 +1,563 @@
+package net.java.dev.imagine.layers.raster;
+
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
+import java.awt.image.WritableRaster;
+import java.lang.ref.Reference;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Supplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.imagine.utils.java2d.GraphicsUtils;
+import org.netbeans.paint.misc.image.ImageCodec;
+import org.netbeans.paint.misc.image.ImageCodecs;
+import org.netbeans.paint.misc.nio.CacheManager;
+import org.openide.util.RequestProcessor;
+
+/**
+ * A raster layer's pixels, split into fixed-size tiles, which undo snapshots
+ * share with the live image until it is painted on.
+ * <p>
+ * The tiles of the surface's image are <i>tracked</i>: a tile starts out
+ * <i>live</i>, reading its pixels from the image, and costs nothing.  Taking
+ * a snapshot copies the array of tiles and marks them shared.  Before anything
+ * writes to an area of the image, it calls <code>preserve()</code>, which
+ * freezes the shared tiles the area touches - copying their pixels, once - and
+ * puts fresh live tiles in their place;  so a snapshot's tiles are never
+ * modified, and only the tiles which are actually painted on are ever copied.
+ * When the image is replaced outright, shared tiles are frozen by keeping the
+ * old image, which nothing writes to any more, rather than by copying.
+ * <p>
+ * Frozen tiles are moved off the Java heap in batches, on a background
+ * thread:  each batch is compressed with the default image codec into a
+ * single buffer from the cache file, rather than one mapping per tile, and is
+ * only decoded when undo or redo writes a tile back into an image.
+ *
+ * @author Tim Boudreau
+ */
+final class RasterTiles {
+
+    static final int TILE_SIZE = 256;
+    // Lets a stroke's worth of frozen tiles collect into one pack
+    private static final int PACK_DELAY = 500;
+    private static final int PACK_LIMIT = 16 * 1024 * 1024;
+    private static final RequestProcessor PACKER
+            = new RequestProcessor("Pack raster undo tiles", 1);
+    private static final RequestProcessor.Task PACK_TASK
+            = PACKER.create(RasterTiles::packFrozen);
+    // Weak, since there is no need to pack tiles whose undo data has died
+    private static final List<Reference<Tile>> unpacked = new ArrayList<>();
+    private final int width;
+    private final int height;
+    private final int cols;
+    private final int rows;
+    private final Tile[] tiles;
+    // Non-null only for the tracked tiles of a surface's image
+    private final Supplier<BufferedImage> source;
+
+    private RasterTiles(int width, int height, Tile[] tiles, Supplier<BufferedImage> source) {
+        this.width = width;
+        this.height = height;
+        this.cols = (width + TILE_SIZE - 1) / TILE_SIZE;
+        this.rows = (height + TILE_SIZE - 1) / TILE_SIZE;
+        this.tiles = tiles;
+        this.source = source;
+    }
+
+    /**
+     * Track the tiles of an image;  all of them start out live, so nothing is
+     * copied.
+     *
+     * @param width The image width
+     * @param height The image height
+     * @param source Supplies the image, which may be swapped for another
+     * with the same contents (as hibernation does)
+     * @return A set of tiles
+     */
+    static RasterTiles track(int width, int height, Supplier<BufferedImage> source) {
+        int cols = (width + TILE_SIZE - 1) / TILE_SIZE;
+        int rows = (height + TILE_SIZE - 1) / TILE_SIZE;
+        Tile[] tiles = new Tile[cols * rows];
+        for (int row = 0; row < rows; row++) {
+            for (int col = 0; col < cols; col++) {
+                tiles[(row * cols) + col] = new Tile(tileBounds(width, height, col, row), source);
+            }
+        }
+        return new RasterTiles(width, height, tiles, source);
+    }
+
+    boolean matches(BufferedImage img) {
+        return img.getWidth() == width && img.getHeight() == height;
+    }
+
+    int width() {
+        return width;
+    }
+
+    int height() {
+        return height;
+    }
+
+    Tile tile(int col, int row) {
+        //for unit tests
+        return tiles[(row * cols) + col];
+    }
+
+    /**
+     * Take an immutable snapshot of the tracked tiles, sharing all of them.
+     *
+     * @return A snapshot
+     */
+    RasterTiles snapshot() {
+        for (Tile tile : tiles) {
+            tile.share();
+        }
+        return new RasterTiles(width, height, tiles.clone(), null);
+    }
+
+    /**
+     * Called before an area of the tracked image is written to, to freeze
+     * any tiles in it which a snapshot shares.
+     *
+     * @param area The area about to be written, in image coordinates
+     */
+    void preserve(Rectangle area) {
+        checkTracking();
+        Rectangle r = area.intersection(new Rectangle(0, 0, width, height));
+        if (r.isEmpty()) {
+            return;
+        }
+        int lastCol = (r.x + r.width - 1) / TILE_SIZE;
+        int lastRow = (r.y + r.height - 1) / TILE_SIZE;
+        for (int row = r.y / TILE_SIZE; row <= lastRow; row++) {
+            for (int col = r.x / TILE_SIZE; col <= lastCol; col++) {
+                preserve((row * cols) + col);
+            }
+        }
+    }
+
+    private void preserve(int index) {
+        Tile tile = tiles[index];
+        if (tile.freezeIfShared()) {
+            tiles[index] = new Tile(tile.bounds(), source);
+        }
+    }
+
+    /**
+     * Called when the tracked image is about to be replaced by a different
+     * one;  shared tiles are frozen by keeping the old image, and these tiles
+     * should not be used afterwards.
+     *
+     * @param old The image being replaced, which must not be written to
+     * again
+     */
+    void detach(BufferedImage old) {
+        checkTracking();
+        for (Tile tile : tiles) {
+            tile.freezeIfShared(old);
+        }
+    }
+
+    /**
+     * Write a region captured from a snapshot back into the tracked image,
+     * with the top left corner of the region at the passed coordinates.
+     * Tiles which are still in place are skipped, and tiles written back
+     * whole to where they came from are put back in place, rather than
+     * replaced by live tiles which would need copying again.
+     *
+     * @param region The region
+     * @param x The x coordinate in the image
+     * @param y The y coordinate in the image
+     * @return The area written
+     */
+    Rectangle write(Region region, int x, int y) {
+        checkTracking();
+        BufferedImage target = source.get();
+        Rectangle imageBounds = new Rectangle(0, 0, width, height);
+        Rectangle written = new Rectangle(x, y, region.getWidth(), region.getHeight());
+        if (x != region.bounds.x || y != region.bounds.y) {
+            preserve(written);
+            region.writeTo(target, x, y);
+            return written;
+        }
+        for (Tile tile : region.tiles) {
+            Rectangle tileBounds = tile.bounds();
+            Rectangle area = tileBounds.intersection(region.bounds).intersection(imageBounds);
+            if (area.isEmpty()) {
+                continue;
+            }
+            int col = tileBounds.x / TILE_SIZE;
+            int row = tileBounds.y / TILE_SIZE;
+            int index = col < cols && row < rows ? (row * cols) + col : -1;
+            if (index >= 0 && tiles[index] == tile) {
+                continue;
+            }
+            preserve(area);
+            boolean exact = tile.writeTo(target, area.x - tileBounds.x,
+                    area.y - tileBounds.y, area.width, area.height, area.x, area.y);
+            if (exact && index >= 0 && area.equals(tileBounds)
+                    && tileBounds.equals(tiles[index].bounds())) {
+                tiles[index] = tile;
+            }
+        }
+        return written;
+    }
+
+    private void checkTracking() {
+        if (source == null) {
+            throw new IllegalStateException("Snapshot tiles are immutable");
+        }
+    }
+
+    /**
+     * Capture the tiles of a snapshot which intersect a region of the image,
+     * for use as undo or redo data.
+     *
+     * @param region A region in image coordinates
+     * @return A region, or null if the rectangle does not intersect the image
+     */
+    Region capture(Rectangle region) {
+        if (source != null) {
+            throw new IllegalStateException("Capture from a snapshot");
+        }
+        Rectangle r = region.intersection(new Rectangle(0, 0, width, height));
+        if (r.isEmpty()) {
+            return null;
+        }
+        List<Tile> captured = new ArrayList<>();
+        int lastCol = (r.x + r.width - 1) / TILE_SIZE;
+        int lastRow = (r.y + r.height - 1) / TILE_SIZE;
+        for (int row = r.y / TILE_SIZE; row <= lastRow; row++) {
+            for (int col = r.x / TILE_SIZE; col <= lastCol; col++) {
+                captured.add(tiles[(row * cols) + col]);
+            }
+        }
+        return new Region(r, captured.toArray(new Tile[captured.size()]));
+    }
+
+    private static Rectangle tileBounds(int width, int height, int col, int row) {
+        int x = col * TILE_SIZE;
+        int y = row * TILE_SIZE;
+        return new Rectangle(x, y, Math.min(TILE_SIZE, width - x),
+                Math.min(TILE_SIZE, height - y));
+    }
+
+    private static void queueForPacking(Tile tile) {
+        synchronized (unpacked) {
+            if (unpacked.isEmpty()) {
+                PACK_TASK.schedule(PACK_DELAY);
+            }
+            unpacked.add(new WeakReference<>(tile));
+        }
+    }
+
+    static void packNow() {
+        //for unit tests
+        PACK_TASK.schedule(0);
+        PACK_TASK.waitFinished();
+    }
+
+    /**
+     * Compress the tiles frozen since the last call into shared off-heap
+     * packs, and release their pixels.
+     */
+    private static void packFrozen() {
+        List<Reference<Tile>> toPack;
+        synchronized (unpacked) {
+            toPack = new ArrayList<>(unpacked);
+            unpacked.clear();
+        }
+        ImageCodec codec = ImageCodecs.getDefault();
+        List<Tile> batch = new ArrayList<>();
+        List<ByteBuffer> encoded = new ArrayList<>();
+        int batchSize = 0;
+        for (Reference<Tile> ref : toPack) {
+            Tile tile = ref.get();
+            int[] pixels = tile == null ? null : tile.pixelsToPack();
+            if (pixels == null) {
+                continue;
+            }
+            ByteBuffer data = codec.encode(pixels);
+            if (batchSize + data.remaining() > PACK_LIMIT && !batch.isEmpty()) {
+                pack(codec, batch, encoded, batchSize);
+                batch.clear();
+                encoded.clear();
+                batchSize = 0;
+            }
+            batch.add(tile);
+            encoded.add(data);
+            batchSize += data.remaining();
+        }
+        if (!batch.isEmpty()) {
+            pack(codec, batch, encoded, batchSize);
+        }
+    }
+
+    private static void pack(ImageCodec codec, List<Tile> tiles, List<ByteBuffer> encoded, int size) {
+        TilePack pack = new TilePack(codec);
+        try {
+            pack.buffer = CacheManager.requestBuffer(pack, Math.max(1, size));
+        } catch (IllegalStateException ex) {
+            // Leave the tiles on the heap
+            Logger.getLogger(RasterTiles.class.getName()).log(Level.INFO,
+                    "Could not allocate " + size + " bytes for undo tiles", ex);
+            return;
+        }
+        for (int i = 0; i < tiles.size(); i++) {
+            ByteBuffer data = encoded.get(i);
+            int offset = pack.buffer.position();
+            int length = data.remaining();
+            pack.buffer.put(data);
+            tiles.get(i).packed(pack, offset, length);
+        }
+    }
+
+    /**
+     * The type the pixels of an image are read in:  int images are read
+     * as-is, anything else, such as hibernated images, as ARGB.
+     */
+    static int pixelType(BufferedImage img) {
+        WritableRaster raster = img.getRaster();
+        if (img.getType() != BufferedImage.TYPE_CUSTOM
+                && raster.getTransferType() == DataBuffer.TYPE_INT
+                && raster.getNumDataElements() == 1) {
+            return img.getType();
+        }
+        return BufferedImage.TYPE_INT_ARGB;
+    }
+
+    static int[] readPixels(BufferedImage img, int type, int x, int y, int w, int h) {
+        if (type == img.getType()) {
+            return (int[]) img.getRaster().getDataElements(x, y, w, h, null);
+        }
+        return img.getRGB(x, y, w, h, null, 0, w);
+    }
+
+    static void writePixels(BufferedImage target, int type, int[] pixels, int x, int y, int w, int h) {
+        if (type == target.getType()) {
+            target.getRaster().setDataElements(x, y, w, h, pixels);
+        } else if (type == BufferedImage.TYPE_INT_ARGB) {
+            target.setRGB(x, y, w, h, pixels, 0, w);
+        } else {
+            BufferedImage converted = new BufferedImage(w, h, type);
+            converted.getRaster().setDataElements(0, 0, w, h, pixels);
+            target.setRGB(x, y, w, h, converted.getRGB(0, 0, w, h, null, 0, w), 0, w);
+        }
+    }
+
+    /**
+     * One tile.  A tile is live, reading its pixels from the tracked image,
+     * until it is frozen, after which it never changes.
+     */
+    static final class Tile {
+
+        private final int x;
+        private final int y;
+        private final int width;
+        private final int height;
+        private Supplier<BufferedImage> live;
+        private BufferedImage frozenImage;
+        private int[] pixels;
+        private TilePack pack;
+        private int packOffset;
+        private int packLength;
+        private int type;
+        private boolean shared;
+
+        Tile(Rectangle bounds, Supplier<BufferedImage> live) {
+            this.x = bounds.x;
+            this.y = bounds.y;
+            this.width = bounds.width;
+            this.height = bounds.height;
+            this.live = live;
+        }
+
+        Rectangle bounds() {
+            return new Rectangle(x, y, width, height);
+        }
+
+        synchronized boolean isLive() {
+            return live != null;
+        }
+
+        synchronized boolean isPacked() {
+            return pack != null;
+        }
+
+        synchronized void share() {
+            shared = true;
+        }
+
+        /**
+         * Freeze this tile by copying its pixels, if it is live and shared.
+         *
+         * @return false if this tile is live and not shared, and so can be
+         * written through
+         */
+        synchronized boolean freezeIfShared() {
+            if (live == null) {
+                return true;
+            }
+            if (!shared) {
+                return false;
+            }
+            BufferedImage img = live.get();
+            type = pixelType(img);
+            pixels = readPixels(img, type, x, y, width, height);
+            live = null;
+            queueForPacking(this);
+            return true;
+        }
+
+        synchronized void freezeIfShared(BufferedImage old) {
+            if (live != null && shared) {
+                type = pixelType(old);
+                frozenImage = old;
+                live = null;
+                queueForPacking(this);
+            }
+        }
+
+        int[] pixelsToPack() {
+            BufferedImage img;
+            synchronized (this) {
+                if (pixels != null) {
+                    return pixels;
+                }
+                img = frozenImage;
+            }
+            // The image is no longer written to, so it need not be read under
+            // the lock
+            return img == null ? null : readPixels(img, type, x, y, width, height);
+        }
+
+        synchronized void packed(TilePack pack, int offset, int length) {
+            this.pack = pack;
+            this.packOffset = offset;
+            this.packLength = length;
+            pixels = null;
+            frozenImage = null;
+        }
+
+        /**
+         * Write part of this tile into an image.
+         *
+         * @return true if the pixels were written unconverted
+         */
+        synchronized boolean writeTo(BufferedImage target, int tx, int ty, int w, int h, int dx, int dy) {
+            int[] data;
+            int dataType;
+            if (pixels != null || pack != null) {
+                int[] all = pixels != null ? pixels : pack.decode(packOffset, packLength, width * height);
+                dataType = type;
+                if (tx == 0 && ty == 0 && w == width && h == height) {
+                    data = all;
+                } else {
+                    data = new int[w * h];
+                    for (int row = 0; row < h; row++) {
+                        System.arraycopy(all, ((ty + row) * width) + tx, data, row * w, w);
+                    }
+                }
+            } else {
+                BufferedImage img = live != null ? live.get() : frozenImage;
+                dataType = pixelType(img);
+                data = readPixels(img, dataType, x + tx, y + ty, w, h);
+            }
+            writePixels(target, dataType, data, dx, dy, w, h);
+            return dataType == target.getType();
+        }
+    }
+
+    /**
+     * A buffer in the cache file holding the compressed pixels of a batch of
+     * frozen tiles;  its space is reclaimed once the tiles are collected.
+     */
+    private static final class TilePack {
+
+        private final ImageCodec codec;
+        private ByteBuffer buffer;
+
+        TilePack(ImageCodec codec) {
+            this.codec = codec;
+        }
+
+        int[] decode(int offset, int length, int count) {
+            ByteBuffer data = buffer.duplicate();
+            data.limit(offset + length);
+            data.position(offset);
+            int[] result = new int[count];
+            codec.decode(data.slice(), result);
+            return result;
+        }
+    }
+
+    /**
+     * A rectangular region of a snapshot, which holds references to the tiles
+     * it intersects.
+     */
+    static final class Region {
+
+        private final Rectangle bounds;
+        private final Tile[] tiles;
+
+        Region(Rectangle bounds, Tile[] tiles) {
+            this.bounds = bounds;
+            this.tiles = tiles;
+        }
+
+        int getWidth() {
+            return bounds.width;
+        }
+
+        int getHeight() {
+            return bounds.height;
+        }
+
+        Rectangle getBounds() {
+            return new Rectangle(bounds);
+        }
+
+        /**
+         * Write the pixels of this region into an image, replacing whatever
+         * is there, with the top left corner of the region at the passed
+         * coordinates.  The target must not be an image any of the tiles are
+         * live in.
+         *
+         * @param target The image
+         * @param x The x coordinate in the target
+         * @param y The y coordinate in the target
+         */
+        void writeTo(BufferedImage target, int x, int y) {
+            Rectangle targetBounds = new Rectangle(0, 0, target.getWidth(), target.getHeight());
+            for (Tile tile : tiles) {
+                Rectangle origin = tile.bounds();
+                Rectangle src = origin.intersection(bounds);
+                Rectangle dest = new Rectangle(x + (src.x - bounds.x),
+                        y + (src.y - bounds.y), src.width, src.height)
+                        .intersection(targetBounds);
+                if (dest.isEmpty()) {
+                    continue;
+                }
+                int tx = (dest.x - x) + bounds.x - origin.x;
+                int ty = (dest.y - y) + bounds.y - origin.y;
+                tile.writeTo(target, tx, ty, dest.width, dest.height, dest.x, dest.y);
+            }
+        }
+
+        /**
+         * Assemble the pixels in this region into a single image; used only
+         * for debugging.
+         *
+         * @return An image
+         */
+        BufferedImage toImage() {
+            BufferedImage result = GraphicsUtils.newBufferedImage(bounds.width, bounds.height);
+            writeTo(result, 0, 0);
+            return result;
+        }
+    }
+}
@@ -0,0 +1,213 @@
+package net.java.dev.imagine.layers.raster;
+
+import java.awt.AlphaComposite;
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.awt.image.BufferedImageOp;
+import java.awt.image.ColorConvertOp;
+import java.awt.image.ConvolveOp;
+import java.awt.image.Kernel;
+import java.awt.image.LookupOp;
+import java.awt.image.RescaleOp;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.IntConsumer;
+import net.java.dev.imagine.effects.api.TileSafe;
+import static net.java.dev.imagine.layers.raster.RasterTiles.TILE_SIZE;
+import org.imagine.utils.java2d.GraphicsUtils;
+import org.openide.util.RequestProcessor;
+
+/**
+ * Applies a BufferedImageOp to an area of an image.  Ops known to compute
+ * each pixel from a bounded neighborhood are run over tiles of the area in
+ * parallel on the fork/join pool, each tile filtered as a sub-image which
+ * extends past it by the op's halo, so results across tile edges match
+ * filtering the whole image; other ops are run over the whole area in one
+ * call, as before.  Nothing is written to the source image - the result is
+ * a new image the size of the area, which the caller commits.
+ *
+ * @author Tim Boudreau
+ */
+final class TiledOp {
+
+    static final RequestProcessor EFFECTS = new RequestProcessor("Apply effects", 1, true);
+    // Areas up to this many pixels are filtered synchronously
+    private static final int SMALL_AREA = 4 * TILE_SIZE * TILE_SIZE;
+    private final BufferedImageOp op;
+    private final BufferedImage source;
+    private final Rectangle area;
+    private final int halo;
+    private final int cols;
+    private final int rows;
+
+    /**
+     * Create a new tiled op.
+     *
+     * @param op The op
+     * @param source The image to read
+     * @param area The area to filter, within the image's bounds
+     * @param halo The number of pixels outside each tile the op reads, or
+     * -1 if it must be applied to the whole area at once
+     */
+    TiledOp(BufferedImageOp op, BufferedImage source, Rectangle area, int halo) {
+        this.op = op;
+        this.source = source;
+        this.area = new Rectangle(area);
+        this.halo = halo;
+        this.cols = halo < 0 ? 1 : (area.width + TILE_SIZE - 1) / TILE_SIZE;
+        this.rows = halo < 0 ? 1 : (area.height + TILE_SIZE - 1) / TILE_SIZE;
+    }
+
+    /**
+     * Get the halo of an op, if it is known to be safe to apply by tiles.
+     *
+     * @param op An op
+     * @return The halo, or -1
+     */
+    static int haloFor(BufferedImageOp op) {
+        if (op instanceof TileSafe) {
+            return Math.max(0, ((TileSafe) op).tileHalo());
+        } else if (op instanceof ConvolveOp) {
+            // Edge handling only affects pixels within the kernel's reach
+            // of a sub-image's edge, which are in the halo unless the edge
+            // is also the image's
+            Kernel k = ((ConvolveOp) op).getKernel();
+            return Math.max(Math.max(k.getXOrigin(), k.getWidth() - 1 - k.getXOrigin()),
+                    Math.max(k.getYOrigin(), k.getHeight() - 1 - k.getYOrigin()));
+        } else if (op instanceof RescaleOp || op instanceof LookupOp
+                || op instanceof ColorConvertOp) {
+            return 0;
+        }
+        return -1;
+    }
+
+    BufferedImage source() {
+        return source;
+    }
+
+    int tileCount() {
+        return cols * rows;
+    }
+
+    boolean isSmall() {
+        return (long) area.width * area.height <= SMALL_AREA;
+    }
+
+    /**
+     * Filter the area.
+     *
+     * @param cancelled Checked before each tile, if non-null
+     * @param progress Passed the number of tiles completed, if non-null;
+     * calls are made one at a time with increasing counts, as ProgressHandle
+     * requires, whichever worker threads finish the tiles
+     * @return An image the size of the area, or null if cancelled
+     */
+    BufferedImage run(AtomicBoolean cancelled, IntConsumer progress) {
+        if (halo < 0) {
+            return whole();
+        }
+        BufferedImage dest = GraphicsUtils.newBufferedImage(area.width, area.height);
+        ForkJoinPool.commonPool().invoke(new TileTask(0, tileCount(), dest,
+                cancelled, progress == null ? null : new Progress(progress)));
+        return cancelled != null && cancelled.get() ? null : dest;
+    }
+
+    private BufferedImage whole() {
+        boolean all = area.x == 0 && area.y == 0 && area.width == source.getWidth()
+                && area.height == source.getHeight();
+        BufferedImage result = op.filter(all ? source
+                : source.getSubimage(area.x, area.y, area.width, area.height), null);
+        if (!all && (result.getWidth() != area.width || result.getHeight() != area.height)) {
+            // An op which resizes can only replace a selection's area
+            BufferedImage fitted = GraphicsUtils.newBufferedImage(area.width, area.height);
+            copy(result, 0, 0, fitted, 0, 0, Math.min(area.width, result.getWidth()),
+                    Math.min(area.height, result.getHeight()));
+            result = fitted;
+        }
+        return result;
+    }
+
+    private void filterTile(int index, BufferedImage dest) {
+        Rectangle tile = new Rectangle(area.x + ((index % cols) * TILE_SIZE),
+                area.y + ((index / cols) * TILE_SIZE), TILE_SIZE, TILE_SIZE)
+                .intersection(area);
+        Rectangle read = new Rectangle(tile.x - halo, tile.y - halo,
+                tile.width + (halo * 2), tile.height + (halo * 2)).intersection(
+                new Rectangle(0, 0, source.getWidth(), source.getHeight()));
+        BufferedImage filtered = op.filter(source.getSubimage(read.x, read.y,
+                read.width, read.height), null);
+        copy(filtered, tile.x - read.x, tile.y - read.y, dest, tile.x - area.x,
+                tile.y - area.y, tile.width, tile.height);
+    }
+
+    private static void copy(BufferedImage from, int fx, int fy, BufferedImage to,
+            int tx, int ty, int w, int h) {
+        if (from.getColorModel().equals(to.getColorModel())) {
+            to.getRaster().setRect(tx, ty, from.getRaster().createChild(fx, fy,
+                    w, h, 0, 0, null));
+            return;
+        }
+        Graphics2D g = to.createGraphics();
+        try {
+            g.setComposite(AlphaComposite.Src);
+            g.drawImage(from, tx, ty, tx + w, ty + h, fx, fy, fx + w, fy + h, null);
+        } finally {
+            g.dispose();
+        }
+    }
+
+    private final class TileTask extends RecursiveAction {
+
+        private final int start;
+        private final int end;
+        private final BufferedImage dest;
+        private final AtomicBoolean cancelled;
+        private final Progress progress;
+
+        TileTask(int start, int end, BufferedImage dest, AtomicBoolean cancelled,
+                Progress progress) {
+            this.start = start;
+            this.end = end;
+            this.dest = dest;
+            this.cancelled = cancelled;
+            this.progress = progress;
+        }
+
+        @Override
+        protected void compute() {
+            if (end - start > 1) {
+                int mid = start + ((end - start) / 2);
+                invokeAll(new TileTask(start, mid, dest, cancelled, progress),
+                        new TileTask(mid, end, dest, cancelled, progress));
+                return;
+            }
+            if (cancelled != null && cancelled.get()) {
+                return;
+            }
+            filterTile(start, dest);
+            if (progress != null) {
+                progress.tileDone();
+            }
+        }
+    }
+
+    /**
+     * Counts finished tiles and reports the count under a lock, so workers
+     * finishing at the same moment cannot report counts out of order.
+     */
+    private static final class Progress {
+
+        private final IntConsumer consumer;
+        private int done;
+
+        Progress(IntConsumer consumer) {
+            this.consumer = consumer;
+        }
+
+        synchronized void tileDone() {
+            consumer.accept(++done);
+        }
+    }
+}
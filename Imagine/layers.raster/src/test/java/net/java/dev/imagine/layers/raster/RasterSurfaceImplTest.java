@@ -0,0 +1,168 @@
+package net.java.dev.imagine.layers.raster;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.Point;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import javax.swing.event.UndoableEditEvent;
+import javax.swing.undo.UndoableEdit;
+import net.dev.java.imagine.api.selection.ShapeSelection;
+import net.java.dev.imagine.spi.io.LayerSaveHandler;
+import org.netbeans.paint.api.editing.UndoManager;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import org.junit.jupiter.api.Test;
+
+/**
+ *
+ * @author Tim Boudreau
+ */
+public class RasterSurfaceImplTest {
+
+    private static final int RED = 0xFFFF0000;
+    private static final int BLUE = 0xFF0000FF;
+
+    @Test
+    public void testUndoPaintOnOffsetLayer() {
+        Surface surface = new Surface(600, 400);
+        // Puts picture 0,0 in the second column of undo tiles
+        surface.setLocation(new Point(-300, -10));
+        surface.paint(RED, new Rectangle(10, 10, 20, 20));
+        surface.paint(BLUE, new Rectangle(10, 10, 20, 20));
+        assertEquals(2, surface.edits.size());
+        assertEquals(BLUE, surface.image().getRGB(315, 25));
+
+        surface.edits.get(1).undo();
+        assertEquals(RED, surface.image().getRGB(315, 25),
+                "Undo restored stale pixels from before the first paint");
+        surface.edits.get(0).undo();
+        assertEquals(0, surface.image().getRGB(315, 25));
+        surface.edits.get(0).redo();
+        assertEquals(RED, surface.image().getRGB(315, 25));
+        surface.edits.get(1).redo();
+        assertEquals(BLUE, surface.image().getRGB(315, 25));
+    }
+
+    @Test
+    public void testUndoPaintAfterMove() {
+        Surface surface = new Surface(600, 400);
+        surface.setLocation(new Point(-300, -10));
+        surface.paint(RED, new Rectangle(10, 10, 20, 20));
+
+        surface.beginUndoableOperation("move");
+        surface.setLocation(new Point(-250, -10));
+        surface.endUndoableOperation();
+        assertEquals(2, surface.edits.size());
+
+        // The same image pixels as the first paint, at the new location
+        surface.paint(BLUE, new Rectangle(60, 10, 20, 20));
+        assertEquals(3, surface.edits.size());
+        surface.edits.get(2).undo();
+        assertEquals(RED, surface.image().getRGB(315, 25));
+        surface.edits.get(1).undo();
+        assertEquals(new Point(-300, -10), surface.getLocation());
+        surface.edits.get(0).undo();
+        assertEquals(0, surface.image().getRGB(315, 25));
+    }
+
+    @Test
+    public void testRepeatedUndoAndRedoAcrossTiles() {
+        Surface surface = new Surface(600, 400);
+        // Spans four undo tiles
+        Rectangle r = new Rectangle(240, 240, 40, 40);
+        surface.paint(RED, r);
+        surface.paint(BLUE, new Rectangle(250, 250, 10, 10));
+        for (int i = 0; i < 3; i++) {
+            surface.edits.get(1).undo();
+            assertEquals(RED, surface.image().getRGB(255, 255));
+            surface.edits.get(0).undo();
+            assertEquals(0, surface.image().getRGB(255, 255));
+            assertEquals(0, surface.image().getRGB(275, 275));
+            surface.edits.get(0).redo();
+            assertEquals(RED, surface.image().getRGB(275, 275));
+            surface.edits.get(1).redo();
+            assertEquals(BLUE, surface.image().getRGB(255, 255));
+            assertEquals(RED, surface.image().getRGB(245, 245));
+        }
+    }
+
+    @Test
+    public void testSnapshotSavesPixelsFromWhenItWasTaken() throws IOException {
+        Surface surface = new Surface(600, 400);
+        surface.setLocation(new Point(5, 7));
+        surface.paint(RED, new Rectangle(250, 250, 20, 20));
+        LayerSaveHandler.Snapshot snapshot = RasterLayerSave.snapshot(surface);
+        surface.paint(BLUE, new Rectangle(250, 250, 20, 20));
+        Path file = Files.createTempFile("RasterSurfaceImplTest", ".raster");
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ,
+                StandardOpenOption.WRITE)) {
+            snapshot.saveTo(channel, Collections.emptyMap());
+            channel.position(0);
+            Point location = new Point();
+            BufferedImage saved = RasterLayerSave.readImage(channel, location);
+            assertEquals(new Point(5, 7), location);
+            assertEquals(RED, saved.getRGB(255, 255));
+            assertEquals(RED, saved.getRGB(262, 262));
+            assertEquals(0, saved.getRGB(245, 245));
+            assertEquals(BLUE, surface.image().getRGB(255, 255));
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    static final class Surface extends RasterSurfaceImpl implements UndoManager {
+
+        final List<UndoableEdit> edits = new ArrayList<>();
+
+        Surface(int w, int h) {
+            super((x, y, ww, hh) -> {
+            }, new BufferedImage(w, h, BufferedImage.TYPE_INT_ARGB),
+                    new ShapeSelection(() -> new Rectangle(0, 0, w, h)), () -> true);
+        }
+
+        void paint(int color, Rectangle r) {
+            beginUndoableOperation("paint");
+            Graphics2D g = getGraphics();
+            try {
+                g.setColor(new Color(color, true));
+                g.fill(r);
+            } finally {
+                g.dispose();
+            }
+            endUndoableOperation();
+        }
+
+        @Override
+        UndoManager undoManager() {
+            return this;
+        }
+
+        @Override
+        public void undoableEditHappened(UndoableEditEvent ue) {
+            edits.add(ue.getEdit());
+        }
+
+        @Override
+        public boolean canUndo() {
+            return !edits.isEmpty();
+        }
+
+        @Override
+        public boolean canRedo() {
+            return false;
+        }
+
+        @Override
+        public List getEdits() {
+            return edits;
+        }
+    }
+}
@@ -0,0 +1,87 @@
+package net.java.dev.imagine.layers.raster;
+
+import java.awt.BasicStroke;
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.Test;
+
+/**
+ *
+ * @author Tim Boudreau
+ */
+public class RasterTilesTest {
+
+    private static final int RED = 0xFFFF0000;
+
+    @Test
+    public void testSnapshotCopiesOnlyPaintedTiles() {
+        BufferedImage img = new BufferedImage(1024, 512, BufferedImage.TYPE_INT_ARGB);
+        RasterTiles tracked = RasterTiles.track(img.getWidth(), img.getHeight(), () -> img);
+        RasterTiles snapshot = tracked.snapshot();
+        Graphics2D g = new PreservingGraphics(img.createGraphics(), tracked::preserve);
+        try {
+            g.setColor(new Color(RED, true));
+            g.fillRect(300, 10, 20, 20);
+            // Crosses into the first column only by the width of the stroke
+            g.setStroke(new BasicStroke(20));
+            g.drawLine(262, 300, 262, 400);
+        } finally {
+            g.dispose();
+        }
+        for (int row = 0; row < 2; row++) {
+            for (int col = 0; col < 4; col++) {
+                boolean painted = col < 2 && (row == 1 || col == 1);
+                assertEquals(!painted, snapshot.tile(col, row).isLive(),
+                        "Tile " + col + "," + row);
+            }
+        }
+        assertSame(snapshot.tile(3, 1), tracked.snapshot().tile(3, 1));
+
+        BufferedImage before = snapshot.capture(new Rectangle(300, 10, 20, 20)).toImage();
+        assertEquals(0, before.getRGB(5, 5));
+        assertEquals(RED, img.getRGB(305, 15));
+    }
+
+    @Test
+    public void testReplacedImageKeepsSnapshotPixels() {
+        BufferedImage img = new BufferedImage(300, 300, BufferedImage.TYPE_INT_ARGB);
+        img.setRGB(10, 10, RED);
+        BufferedImage[] current = {img};
+        RasterTiles tracked = RasterTiles.track(300, 300, () -> current[0]);
+        RasterTiles snapshot = tracked.snapshot();
+        tracked.detach(img);
+        current[0] = new BufferedImage(300, 300, BufferedImage.TYPE_INT_ARGB);
+        assertFalse(snapshot.tile(0, 0).isLive());
+        RasterTiles.Region region = snapshot.capture(new Rectangle(0, 0, 300, 300));
+        RasterTiles nue = RasterTiles.track(300, 300, () -> current[0]);
+        nue.write(region, 0, 0);
+        assertEquals(RED, current[0].getRGB(10, 10));
+        // Written back whole, so put back in place rather than copied again
+        assertSame(snapshot.tile(1, 1), nue.tile(1, 1));
+    }
+
+    @Test
+    public void testFrozenTilesArePackedOffHeap() {
+        BufferedImage img = new BufferedImage(600, 300, BufferedImage.TYPE_INT_ARGB);
+        img.setRGB(10, 10, RED);
+        img.setRGB(300, 10, RED);
+        RasterTiles tracked = RasterTiles.track(600, 300, () -> img);
+        RasterTiles snapshot = tracked.snapshot();
+        tracked.preserve(new Rectangle(0, 0, 600, 300));
+        img.setRGB(10, 10, 0);
+        img.setRGB(300, 10, 0);
+        RasterTiles.packNow();
+        for (int col = 0; col < 3; col++) {
+            assertTrue(snapshot.tile(col, 0).isPacked(), "Tile " + col);
+        }
+        tracked.write(snapshot.capture(new Rectangle(0, 0, 600, 300)), 0, 0);
+        assertEquals(RED, img.getRGB(10, 10));
+        assertEquals(RED, img.getRGB(300, 10));
+    }
+}
@@ -0,0 +1,169 @@
+package org.netbeans.paint.misc.image;
+
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.awt.image.ComponentSampleModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.awt.image.SampleModel;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.awt.image.WritableRaster;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.util.Arrays;
+
+/**
+ * Copies pixel data between the common standard BufferedImage raster
+ * layouts and the packed, 4-bytes-per-pixel buffer used by
+ * ByteNIOBufferedImage, a row at a time straight out of (or into) the
+ * image's backing array, with no per-pixel color model conversion.
+ * <p>
+ * Int pixels are always written little-endian, which is the byte order the
+ * ByteNIOBufferedImage color model decodes them in.
+ *
+ * @author Tim Boudreau
+ */
+final class BulkCopy {
+
+    private static final int STRIP_PIXELS = 64 * 1024;
+    private static final int[] ABGR_BAND_OFFSETS = {3, 2, 1, 0};
+
+    private BulkCopy() {
+        throw new AssertionError();
+    }
+
+    static boolean isSupported(int type) {
+        switch (type) {
+            case BufferedImage.TYPE_INT_ARGB:
+            case BufferedImage.TYPE_INT_ARGB_PRE:
+            case BufferedImage.TYPE_INT_RGB:
+            case BufferedImage.TYPE_INT_BGR:
+            case BufferedImage.TYPE_4BYTE_ABGR:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Copy a region of an image into a buffer, as rows of
+     * <code>bds.width</code> pixels; any part of the region which lies
+     * outside the image is zeroed.
+     *
+     * @param img The image
+     * @param bds The region
+     * @param buf The buffer
+     * @return false if the image's layout is not one this class can handle,
+     * in which case nothing is written
+     */
+    static boolean copy(BufferedImage img, Rectangle bds, ByteBuffer buf) {
+        if (!isSupported(img.getType())) {
+            return false;
+        }
+        if (!img.getColorModel().hasAlpha() && !new Rectangle(0, 0, img.getWidth(), img.getHeight()).contains(bds)) {
+            // Zeroed padding would come out opaque black rather than
+            // transparent
+            return false;
+        }
+        WritableRaster raster = img.getRaster();
+        SampleModel sm = raster.getSampleModel();
+        DataBuffer db = raster.getDataBuffer();
+        Rectangle src = bds.intersection(new Rectangle(0, 0, img.getWidth(), img.getHeight()));
+        int tx = raster.getSampleModelTranslateX();
+        int ty = raster.getSampleModelTranslateY();
+        ByteBuffer dest = buf.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        dest.clear();
+        if (db instanceof DataBufferInt && sm instanceof SinglePixelPackedSampleModel) {
+            int stride = ((SinglePixelPackedSampleModel) sm).getScanlineStride();
+            int[] data = ((DataBufferInt) db).getData();
+            IntBuffer ints = dest.asIntBuffer();
+            for (int y = bds.y; y < bds.y + bds.height; y++) {
+                if (src.isEmpty() || y < src.y || y >= src.y + src.height) {
+                    zeros(ints, bds.width);
+                    continue;
+                }
+                zeros(ints, src.x - bds.x);
+                int index = db.getOffset() + ((y - ty) * stride) + (src.x - tx);
+                ints.put(data, index, src.width);
+                zeros(ints, (bds.x + bds.width) - (src.x + src.width));
+            }
+            return true;
+        } else if (db instanceof DataBufferByte && sm instanceof ComponentSampleModel
+                && ((ComponentSampleModel) sm).getPixelStride() == 4
+                && Arrays.equals(ABGR_BAND_OFFSETS, ((ComponentSampleModel) sm).getBandOffsets())) {
+            int stride = ((ComponentSampleModel) sm).getScanlineStride();
+            byte[] data = ((DataBufferByte) db).getData();
+            for (int y = bds.y; y < bds.y + bds.height; y++) {
+                if (src.isEmpty() || y < src.y || y >= src.y + src.height) {
+                    zeros(dest, bds.width * 4);
+                    continue;
+                }
+                zeros(dest, (src.x - bds.x) * 4);
+                int index = db.getOffset() + ((y - ty) * stride) + ((src.x - tx) * 4);
+                dest.put(data, index, src.width * 4);
+                zeros(dest, ((bds.x + bds.width) - (src.x + src.width)) * 4);
+            }
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Copy a buffer written by <code>copy()</code> back into a newly created
+     * image of the same type and size as the one it was copied from.  Works
+     * in bounded strips through the raster's public API, so the result stays
+     * eligible for acceleration.
+     *
+     * @param buf The buffer
+     * @param target The image
+     */
+    static void restore(ByteBuffer buf, BufferedImage target) {
+        WritableRaster raster = target.getRaster();
+        int w = target.getWidth();
+        int h = target.getHeight();
+        int rowsPerStrip = Math.max(1, Math.min(h, STRIP_PIXELS / Math.max(1, w)));
+        ByteBuffer src = buf.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        src.clear();
+        if (target.getType() == BufferedImage.TYPE_4BYTE_ABGR) {
+            byte[] strip = new byte[w * rowsPerStrip * 4];
+            for (int y = 0; y < h; y += rowsPerStrip) {
+                int rows = Math.min(rowsPerStrip, h - y);
+                int count = w * rows * 4;
+                src.get(strip, 0, count);
+                // Data elements are in band (R, G, B, A) order, not the
+                // A, B, G, R order the bytes are laid out in memory
+                for (int i = 0; i < count; i += 4) {
+                    byte alpha = strip[i];
+                    byte blue = strip[i + 1];
+                    strip[i] = strip[i + 3];
+                    strip[i + 1] = strip[i + 2];
+                    strip[i + 2] = blue;
+                    strip[i + 3] = alpha;
+                }
+                raster.setDataElements(0, y, w, rows, strip);
+            }
+        } else {
+            IntBuffer ints = src.asIntBuffer();
+            int[] strip = new int[w * rowsPerStrip];
+            for (int y = 0; y < h; y += rowsPerStrip) {
+                int rows = Math.min(rowsPerStrip, h - y);
+                ints.get(strip, 0, w * rows);
+                raster.setDataElements(0, y, w, rows, strip);
+            }
+        }
+    }
+
+    private static void zeros(IntBuffer buf, int count) {
+        for (int i = 0; i < count; i++) {
+            buf.put(0);
+        }
+    }
+
+    private static void zeros(ByteBuffer buf, int count) {
+        for (int i = 0; i < count; i++) {
+            buf.put((byte) 0);
+        }
+    }
+}
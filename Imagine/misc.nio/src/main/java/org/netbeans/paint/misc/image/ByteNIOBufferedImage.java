@@ -21,13 +21,12 @@ import java.awt.geom.AffineTransform;
 import java.awt.image.BufferedImage;
 import java.awt.image.ComponentColorModel;
 import java.awt.image.DataBuffer;
-import java.awt.image.DataBufferByte;
-import java.awt.image.DataBufferInt;
 import java.awt.image.PixelInterleavedSampleModel;
 import java.awt.image.Raster;
 import java.awt.image.RasterFormatException;
 import java.awt.image.WritableRaster;
 import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.nio.IntBuffer;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
@@ -57,48 +56,16 @@ public class ByteNIOBufferedImage extends BufferedImage implements DisposableIma
 
     public ByteNIOBufferedImage(BufferedImage other) {
         this(other.getWidth(), other.getHeight());
-        int otherType = other.getType();
         CCM ccm = (CCM) getColorModel();
-
-        ccm.originalDataType = other.getType();
-        Raster r = other.getRaster();
         NIODataBufferByte b = (NIODataBufferByte) getRaster().getDataBuffer();
-        DataBuffer otherBuf = r.getDataBuffer();
-        boolean unknownType = true;
-
-        switch (otherType) {
-            case BufferedImage.TYPE_INT_RGB:
-            case BufferedImage.TYPE_INT_BGR:
-            case BufferedImage.TYPE_4BYTE_ABGR:
-            case BufferedImage.TYPE_INT_ARGB:
-                if (otherBuf instanceof DataBufferByte) {
-                    DataBufferByte dbb = (DataBufferByte) otherBuf;
-
-                    dbb.getBankData();
-                    b.buf.rewind();
-                    b.buf.put(dbb.getBankData()[0]);
-                } else if (otherBuf instanceof DataBufferInt) {
-                    DataBufferInt dbi = (DataBufferInt) otherBuf;
-
-                    b.buf.rewind();
-                    int numBanks = dbi.getNumBanks();
-                    IntBuffer ib = b.buf.asIntBuffer();
-
-                    for (int i = 0; i < numBanks; i++) {
-                        ib.put(dbi.getData(i));
-                    }
-                } else {
-                    unknownType = true;
-                }
-                break;
-            default:
-        }
-        if (unknownType) {
+        if (BulkCopy.copy(other, new Rectangle(0, 0, other.getWidth(), other.getHeight()), b.buf)) {
+            ccm.originalDataType = other.getType();
+        } else {
             int[] rgb = other.getRGB(0, 0, other.getWidth(), other.getHeight(),
                     null, 0, other.getWidth());
 
             b.buf.rewind();
-            IntBuffer ib = b.buf.asIntBuffer();
+            IntBuffer ib = b.buf.duplicate().order(ByteOrder.LITTLE_ENDIAN).asIntBuffer();
 
             ccm.originalDataType = BufferedImage.TYPE_INT_ARGB;
             ib.put(rgb);
@@ -110,6 +77,11 @@ public class ByteNIOBufferedImage extends BufferedImage implements DisposableIma
 //             Math.min(Math.max( 0, other.getHeight() - bds.y), bds.height));
 
         this(bds.width, bds.height);
+        NIODataBufferByte b = (NIODataBufferByte) getRaster().getDataBuffer();
+        if (BulkCopy.copy(other, bds, b.buf)) {
+            ((CCM) getColorModel()).originalDataType = other.getType();
+            return;
+        }
 
 //        System.err.println("Create a byte NIO buffered image from an image of " +
 //                           other.getWidth() + "," + other.getHeight() +
@@ -136,6 +108,13 @@ public class ByteNIOBufferedImage extends BufferedImage implements DisposableIma
     }
 
     BufferedImage toStandardBufferedImage() {
+        int type = ((CCM) getColorModel()).originalDataType;
+        if (BulkCopy.isSupported(type)) {
+            NIODataBufferByte b = (NIODataBufferByte) getRaster().getDataBuffer();
+            BufferedImage result = new BufferedImage(getWidth(), getHeight(), type);
+            BulkCopy.restore(b.buf, result);
+            return result;
+        }
         BufferedImage result = new BufferedImage(getWidth(), getHeight(),
                 BufferedImage.TYPE_INT_ARGB);
         // XXX optimize this to only do one memory copy
@@ -181,25 +160,42 @@ public class ByteNIOBufferedImage extends BufferedImage implements DisposableIma
         }
         int originalDataType = 0;
 
+        // Int pixels are stored in native (little endian) byte order, so
+        // the component model's "red" is the int's low byte, and so forth
         public int getRGB(Object inData) {
             switch (originalDataType) {
                 case BufferedImage.TYPE_INT_RGB:
-                    return (255 << 24) | (getGreen(inData) << 16)
-                            | (getBlue(inData) << 8) | getRed(inData);
+                    return (255 << 24) | (getBlue(inData) << 16)
+                            | (getGreen(inData) << 8) | getRed(inData);
                 case BufferedImage.TYPE_INT_BGR:
-                    return (255 << 24) | (getGreen(inData) << 16)
-                            | (getRed(inData) << 8) | getBlue(inData);
+                    return (255 << 24) | (getRed(inData) << 16)
+                            | (getGreen(inData) << 8) | getBlue(inData);
                 case BufferedImage.TYPE_4BYTE_ABGR:
-                    return (getRed(inData) << 24) | (getBlue(inData) << 16)
-                            | (getAlpha(inData) << 8) | (getGreen(inData));
+                    return (getRed(inData) << 24) | (getAlpha(inData) << 16)
+                            | (getBlue(inData) << 8) | (getGreen(inData));
                 case BufferedImage.TYPE_INT_ARGB:
                     return (getAlpha(inData) << 24) | (getBlue(inData) << 16)
                             | (getGreen(inData) << 8) | (getRed(inData));
+                case BufferedImage.TYPE_INT_ARGB_PRE:
+                    int a = getAlpha(inData);
+                    if (a == 0) {
+                        return 0;
+                    } else if (a == 255) {
+                        return (255 << 24) | (getBlue(inData) << 16)
+                                | (getGreen(inData) << 8) | (getRed(inData));
+                    }
+                    return (a << 24) | (unpremultiply(getBlue(inData), a) << 16)
+                            | (unpremultiply(getGreen(inData), a) << 8)
+                            | unpremultiply(getRed(inData), a);
                 default:
                     return super.getRGB(inData);
             }
         }
 
+        private static int unpremultiply(int component, int alpha) {
+            return Math.min(255, ((component * 255) + (alpha / 2)) / alpha);
+        }
+
         private String b2s(Object o) {
             byte[] b = (byte[]) o;
             StringBuffer sb = new StringBuffer();
@@ -305,7 +301,7 @@ public class ByteNIOBufferedImage extends BufferedImage implements DisposableIma
 
         public void run() {
             if (buf != null) {
-                CacheManager.dispose(buf);
+                CacheManager.dispose(this);
             }
         }
 
@@ -0,0 +1,38 @@
+package org.netbeans.paint.misc.image;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Encodes and decodes packed 32-bit pixel data for off-heap storage by an
+ * {@link ImageHolder}.  Implementations must be stateless and thread-safe.
+ *
+ * @see ImageCodecs
+ * @author Tim Boudreau
+ */
+public interface ImageCodec {
+
+    /**
+     * Encode some pixels.
+     *
+     * @param pixels The pixel data
+     * @return A buffer, positioned at zero with its limit at the end of the
+     * encoded data
+     */
+    ByteBuffer encode(int[] pixels);
+
+    /**
+     * Decode pixels previously encoded by this codec.
+     *
+     * @param encoded The encoded data, from its position to its limit
+     * @param into The destination array, whose length is the number of
+     * pixels originally encoded
+     */
+    void decode(ByteBuffer encoded, int[] into);
+
+    /**
+     * A short name for diagnostics.
+     *
+     * @return The name
+     */
+    String name();
+}
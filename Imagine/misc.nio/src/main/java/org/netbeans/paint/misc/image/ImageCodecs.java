@@ -0,0 +1,229 @@
+package org.netbeans.paint.misc.image;
+
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Built-in codecs for off-heap image storage.
+ *
+ * @author Tim Boudreau
+ */
+public final class ImageCodecs {
+
+    /**
+     * Stores pixels uncompressed.
+     */
+    public static final ImageCodec RAW = new Raw();
+    /**
+     * Fast LZ77-class compression - deflate at its fastest setting.
+     */
+    public static final ImageCodec DEFLATE = new Deflate();
+    /**
+     * Run-length encoding of whole pixels, which is extremely cheap and does
+     * very well on transparent or flat-colored regions.
+     */
+    public static final ImageCodec RUN_LENGTH = new RunLength();
+    /**
+     * Uses run-length encoding where it will shrink the data at least
+     * eightfold, and deflate otherwise.
+     */
+    public static final ImageCodec ADAPTIVE = new Adaptive();
+    private static volatile ImageCodec defaultCodec = ADAPTIVE;
+
+    private ImageCodecs() {
+        throw new AssertionError();
+    }
+
+    /**
+     * Get the codec used by ImageHolder instances which are not passed one.
+     *
+     * @return A codec
+     */
+    public static ImageCodec getDefault() {
+        return defaultCodec;
+    }
+
+    public static void setDefault(ImageCodec codec) {
+        if (codec == null) {
+            throw new IllegalArgumentException("Null codec");
+        }
+        defaultCodec = codec;
+    }
+
+    static int countRuns(int[] pixels) {
+        if (pixels.length == 0) {
+            return 0;
+        }
+        int runs = 1;
+        int last = pixels[0];
+        for (int i = 1; i < pixels.length; i++) {
+            if (pixels[i] != last) {
+                runs++;
+                last = pixels[i];
+            }
+        }
+        return runs;
+    }
+
+    private static final class Raw implements ImageCodec {
+
+        @Override
+        public ByteBuffer encode(int[] pixels) {
+            ByteBuffer result = ByteBuffer.allocate(pixels.length * 4);
+            result.asIntBuffer().put(pixels);
+            return result;
+        }
+
+        @Override
+        public void decode(ByteBuffer encoded, int[] into) {
+            encoded.asIntBuffer().get(into);
+        }
+
+        @Override
+        public String name() {
+            return "raw";
+        }
+    }
+
+    private static final class RunLength implements ImageCodec {
+
+        @Override
+        public ByteBuffer encode(int[] pixels) {
+            return encode(pixels, countRuns(pixels));
+        }
+
+        ByteBuffer encode(int[] pixels, int runs) {
+            ByteBuffer result = ByteBuffer.allocate(runs * 8);
+            if (pixels.length == 0) {
+                return result;
+            }
+            IntBuffer ints = result.asIntBuffer();
+            int last = pixels[0];
+            int count = 1;
+            for (int i = 1; i < pixels.length; i++) {
+                if (pixels[i] == last) {
+                    count++;
+                } else {
+                    ints.put(count).put(last);
+                    last = pixels[i];
+                    count = 1;
+                }
+            }
+            ints.put(count).put(last);
+            return result;
+        }
+
+        @Override
+        public void decode(ByteBuffer encoded, int[] into) {
+            IntBuffer ints = encoded.asIntBuffer();
+            int pos = 0;
+            while (ints.remaining() >= 2 && pos < into.length) {
+                int count = ints.get();
+                int value = ints.get();
+                Arrays.fill(into, pos, Math.min(into.length, pos + count), value);
+                pos += count;
+            }
+        }
+
+        @Override
+        public String name() {
+            return "rle";
+        }
+    }
+
+    private static final class Deflate implements ImageCodec {
+
+        @Override
+        public ByteBuffer encode(int[] pixels) {
+            ByteBuffer input = RAW.encode(pixels);
+            Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+            try {
+                deflater.setInput(input);
+                deflater.finish();
+                byte[] out = new byte[Math.max(64, pixels.length / 2)];
+                int length = 0;
+                while (!deflater.finished()) {
+                    if (length == out.length) {
+                        out = Arrays.copyOf(out, out.length * 2);
+                    }
+                    length += deflater.deflate(out, length, out.length - length);
+                }
+                return ByteBuffer.wrap(out, 0, length).slice();
+            } finally {
+                deflater.end();
+            }
+        }
+
+        @Override
+        public void decode(ByteBuffer encoded, int[] into) {
+            ByteBuffer output = ByteBuffer.allocate(into.length * 4);
+            Inflater inflater = new Inflater();
+            try {
+                inflater.setInput(encoded);
+                while (output.hasRemaining() && !inflater.finished()) {
+                    if (inflater.inflate(output) == 0 && inflater.needsInput()) {
+                        break;
+                    }
+                }
+            } catch (DataFormatException ex) {
+                throw new IllegalStateException(ex);
+            } finally {
+                inflater.end();
+            }
+            output.flip();
+            output.asIntBuffer().get(into, 0, output.remaining() / 4);
+        }
+
+        @Override
+        public String name() {
+            return "deflate";
+        }
+    }
+
+    private static final class Adaptive implements ImageCodec {
+
+        private static final byte RLE = 1;
+        private static final byte DEFLATED = 2;
+
+        @Override
+        public ByteBuffer encode(int[] pixels) {
+            int runs = countRuns(pixels);
+            ByteBuffer encoded;
+            byte kind;
+            if ((long) runs * 8 <= ((long) pixels.length * 4) / 8) {
+                encoded = ((RunLength) RUN_LENGTH).encode(pixels, runs);
+                kind = RLE;
+            } else {
+                encoded = DEFLATE.encode(pixels);
+                kind = DEFLATED;
+            }
+            ByteBuffer result = ByteBuffer.allocate(encoded.remaining() + 1);
+            result.put(kind).put(encoded).flip();
+            return result;
+        }
+
+        @Override
+        public void decode(ByteBuffer encoded, int[] into) {
+            byte kind = encoded.get();
+            switch (kind) {
+                case RLE:
+                    RUN_LENGTH.decode(encoded, into);
+                    break;
+                case DEFLATED:
+                    DEFLATE.decode(encoded, into);
+                    break;
+                default:
+                    throw new IllegalStateException("Unknown encoding " + kind);
+            }
+        }
+
+        @Override
+        public String name() {
+            return "adaptive";
+        }
+    }
+}
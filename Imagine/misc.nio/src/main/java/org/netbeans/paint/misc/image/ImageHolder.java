@@ -17,9 +17,13 @@ import java.awt.Graphics2D;
 import java.awt.Rectangle;
 import java.awt.geom.AffineTransform;
 import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.awt.image.WritableRaster;
 import java.io.IOException;
 import java.lang.ref.Reference;
 import java.lang.ref.SoftReference;
+import java.nio.ByteBuffer;
+import org.netbeans.paint.misc.nio.CacheManager;
 
 /**
  * Object which represents a cached, non-heap storage image.  It is passed a
@@ -30,6 +34,11 @@ import java.lang.ref.SoftReference;
  * On demand, a call to <code>getImage()</code> will return a normal, 
  * acceleratable BufferedImage.
  * <p>
+ * The pixels are passed through an {@link ImageCodec} on the way to the
+ * cache file - by default {@link ImageCodecs#getDefault()}, which
+ * run-length encodes mostly-transparent or flat images and deflates the
+ * rest - and are only decoded when <code>getImage()</code> is first called.
+ * <p>
  * General purpose:  For making images that are saved as undo information;  the
  * saved information should be stored off the java heap and need not have 
  * lightning fast painting times.
@@ -39,8 +48,31 @@ import java.lang.ref.SoftReference;
 public class ImageHolder {
     private Reference<BufferedImage> realImage = null;
     private BufferedImage cached;
+    private final ImageCodec codec;
+    private ByteBuffer encoded;
+    private int width;
+    private int height;
+    private int type;
+    private boolean disposed;
+
     /** Creates a new instance of NIOImageHolder */
     public ImageHolder(BufferedImage img, Rectangle r) {
+        this(img, r, ImageCodecs.getDefault());
+    }
+    
+    public ImageHolder(BufferedImage img) {
+        this(img, null, ImageCodecs.getDefault());
+    }
+
+    /**
+     * Create an image holder which stores its pixels using a specific codec.
+     *
+     * @param img The image
+     * @param r The region of the image to store, or null for all of it
+     * @param codec The codec
+     */
+    public ImageHolder(BufferedImage img, Rectangle r, ImageCodec codec) {
+        this.codec = codec;
 	try {
 	    createCache (img, r);
 	} catch (IOException e) {
@@ -49,33 +81,95 @@ public class ImageHolder {
 	    throw ise;
 	}
     }
-    
-    public ImageHolder(BufferedImage img) {
-	try {
-	    createCache (img, null);
-	} catch (IOException ioe) {
-	    IllegalStateException ise = 
-		    new IllegalStateException (ioe);
-	    throw ise;
-	}
-    }
 
     protected boolean canCache() {
 	return true; //XXX if serious IOError in cacheManager, set false
     }
 
     protected void createCache(BufferedImage img, Rectangle r) throws IOException {
-	if (!(img instanceof ByteNIOBufferedImage)) {
-	    cached = r == null ? new ByteNIOBufferedImage (img) :
-		new ByteNIOBufferedImage (img, r);
-	} else {
+	if (img instanceof ByteNIOBufferedImage && r == null) {
 	    cached = img;
+            return;
 	}
+        Rectangle bds = r == null ? new Rectangle(0, 0, img.getWidth(), img.getHeight()) : r;
+        width = bds.width;
+        height = bds.height;
+        type = fastPathType(img) ? img.getType() : BufferedImage.TYPE_INT_ARGB;
+        ByteBuffer data = codec.encode(pixels(img, bds, type != img.getType()));
+        encoded = CacheManager.requestBuffer(this, Math.max(1, data.remaining()));
+        encoded.put(data);
+        encoded.flip();
+    }
+
+    private static boolean fastPathType(BufferedImage img) {
+        switch (img.getType()) {
+            case BufferedImage.TYPE_INT_ARGB:
+            case BufferedImage.TYPE_INT_ARGB_PRE:
+            case BufferedImage.TYPE_INT_RGB:
+                return img.getRaster().getDataBuffer() instanceof DataBufferInt;
+            default:
+                return false;
+        }
+    }
+
+    private static int[] pixels(BufferedImage img, Rectangle bds, boolean convert) {
+        // Portions of the rectangle outside the image are left transparent
+        int[] result = new int[bds.width * bds.height];
+        Rectangle src = bds.intersection(new Rectangle(0, 0, img.getWidth(), img.getHeight()));
+        if (src.isEmpty()) {
+            return result;
+        }
+        int offset = ((src.y - bds.y) * bds.width) + (src.x - bds.x);
+        if (convert) {
+            img.getRGB(src.x, src.y, src.width, src.height, result, offset, bds.width);
+        } else if (src.equals(bds)) {
+            img.getRaster().getDataElements(src.x, src.y, src.width, src.height, result);
+        } else {
+            int[] row = new int[src.width];
+            WritableRaster raster = img.getRaster();
+            for (int y = 0; y < src.height; y++) {
+                raster.getDataElements(src.x, src.y + y, src.width, 1, row);
+                System.arraycopy(row, 0, result, offset + (y * bds.width), src.width);
+            }
+        }
+        return result;
+    }
+
+    private BufferedImage decode(boolean acceleratable) {
+        BufferedImage result = new BufferedImage(width, height, type);
+        WritableRaster raster = result.getRaster();
+        ByteBuffer data = encoded.duplicate();
+        data.rewind();
+        if (acceleratable) {
+            // Grabbing the backing array would make the image unmanaged
+            int[] px = new int[width * height];
+            codec.decode(data, px);
+            raster.setDataElements(0, 0, width, height, px);
+        } else {
+            codec.decode(data, ((DataBufferInt) raster.getDataBuffer()).getData());
+        }
+        return result;
     }
     
-    public BufferedImage getImage ( boolean acceleratable) {
+    /**
+     * Get the stored image.
+     *
+     * @param acceleratable Whether the result should be a managed image
+     * @return An image
+     * @throws IllegalStateException if this holder has been disposed
+     */
+    public synchronized BufferedImage getImage ( boolean acceleratable) {
+        if (disposed) {
+            throw new IllegalStateException("Image holder disposed");
+        }
 	BufferedImage result = null;
-        if (!acceleratable) {
+        if (encoded != null) {
+            result = realImage != null ? realImage.get() : null;
+            if (result == null) {
+                result = decode(acceleratable);
+                realImage = new SoftReference<BufferedImage> (result);
+            }
+        } else if (!acceleratable) {
             result = realImage != null ? realImage.get() : null;
             if (result == null) {
                 result = cached;
@@ -85,12 +179,6 @@ public class ImageHolder {
                 result = realImage.get();
             }
             if (result == null) {
-                int type;
-                if (System.getProperty("mrj.version") != null) {
-                    type = BufferedImage.TYPE_INT_ARGB;
-                } else {
-                    type = BufferedImage.TYPE_INT_ARGB;
-                }
                 result = new BufferedImage (cached.getWidth(), cached.getHeight(),
                         BufferedImage.TYPE_INT_ARGB);
                 Graphics2D g = result.createGraphics();
@@ -102,8 +190,34 @@ public class ImageHolder {
         }
         return result;
     }
+
+    /**
+     * Get the number of bytes of off-heap storage used by the encoded image.
+     *
+     * @return A byte count, or 0 once disposed
+     */
+    public synchronized int getStoredSize() {
+        if (disposed) {
+            return 0;
+        }
+        if (encoded != null) {
+            return encoded.limit();
+        }
+        return cached.getWidth() * cached.getHeight() * 4;
+    }
     
-    public void dispose() {
-	((DisposableImage) cached).dispose();
+    public synchronized void dispose() {
+        if (disposed) {
+            return;
+        }
+        disposed = true;
+        realImage = null;
+        if (encoded != null) {
+            CacheManager.dispose(this);
+            encoded = null;
+        } else {
+            ((DisposableImage) cached).dispose();
+            cached = null;
+        }
     }
 }
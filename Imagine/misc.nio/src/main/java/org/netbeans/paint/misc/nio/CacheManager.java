@@ -8,6 +8,7 @@ import java.io.File;
 import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
 import java.lang.ref.WeakReference;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
@@ -16,25 +17,56 @@ import java.nio.channels.FileChannel;
 import java.nio.channels.FileChannel.MapMode;
 import java.util.ArrayList;
 import java.util.Collections;
-import java.util.HashSet;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
-import java.util.Set;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 /**
- * A crude memory manager to recycle unused regions of a memory mapped file
- * that serves as off-heap storage for raster data for undo operations and
- * images that are not currently on-screen.
+ * A memory manager which allocates regions of a memory mapped file that
+ * serves as off-heap storage for raster data for undo operations and images
+ * that are not currently on-screen.
+ * <p>
+ * Free space is kept in size-class segregated free lists, with adjacent free
+ * regions coalesced as they are released;  a background thread trims free
+ * space at the end of the file so it does not grow without bound. Live
+ * allocations are tracked in lock stripes keyed by owner, so threads
+ * allocating or disposing unrelated buffers only contend for the brief
+ * moment it takes to pick a free region.
  *
  * @author Tim Boudreau
  */
 public class CacheManager implements CacheMap {
+
     static boolean DEBUG = false;
-    private final Object LOCK = new Object();
+    /**
+     * Allocations are rounded up to a multiple of this, so freed regions are
+     * likely to be reusable and coalesce cleanly.
+     */
+    static final int GRANULE = 4096;
+    private static final int STRIPES = 16;
+    private static final long COMPACTION_DELAY_MILLIS = 2000;
+    private static final long COMPACTION_INTERVAL_SECONDS = 30;
     private static final CacheManager INSTANCE = new CacheManager();
-    private final Set<Entry> entries = new HashSet<Entry>();
+    private final Stripe[] stripes = new Stripe[STRIPES];
+    private final FreeSpace free = new FreeSpace();
+    private final ReferenceQueue<Object> collectedOwners = new ReferenceQueue<>();
+    private final AtomicBoolean compactionPending = new AtomicBoolean();
+    private final ScheduledExecutorService compactor;
     private File cacheFile;
     private FileChannel fc;
+
     CacheManager() {
         try {
             String uniq = Long.toString(System.currentTimeMillis(), 36) + "-"
@@ -44,38 +76,55 @@ public class CacheManager implements CacheMap {
         } catch (IOException ex) {
             throw new Error("Could not create cache file");
         }
+        for (int i = 0; i < stripes.length; i++) {
+            stripes[i] = new Stripe();
+        }
+        compactor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "Image cache compaction");
+            t.setDaemon(true);
+            t.setPriority(Thread.MIN_PRIORITY);
+            return t;
+        });
+        // Owners which are garbage collected rather than disposed only
+        // show up in the reference queue, so poll it periodically
+        compactor.scheduleWithFixedDelay(this::compact, COMPACTION_INTERVAL_SECONDS,
+                COMPACTION_INTERVAL_SECONDS, TimeUnit.SECONDS);
     }
 
     public static ByteBuffer requestBuffer(Object requestor, int size) {
         return INSTANCE._requestBuffer(requestor, size);
     }
-    
+
     public static void shutdown() {
-        
+        if (INSTANCE != null) {
+            INSTANCE.compactor.shutdownNow();
+        }
     }
-    
+
     public static void dispose(Object owner) {
         if (INSTANCE != null) {
             INSTANCE._dispose(owner);
         }
     }
-    
+
     public static CacheMap getMap() {
         return INSTANCE;
     }
-    
 
     public int getSize() {
-        synchronized (LOCK) {
-            return entries.size();
+        int result = free.count();
+        for (Stripe s : stripes) {
+            result += s.count();
         }
+        return result;
     }
 
     public List<Region> getRegions() {
-        List<Region> result;
-        synchronized (LOCK) {
-            result = new ArrayList<Region>(entries);
+        List<Region> result = new ArrayList<>();
+        for (Stripe s : stripes) {
+            s.collect(result);
         }
+        free.collect(result);
         Collections.sort(result);
         return result;
     }
@@ -88,87 +137,125 @@ public class CacheManager implements CacheMap {
             return cacheFile == null ? 0 : cacheFile.length();
         }
     }
-    private int maxSize = 0;
+
+    private Stripe stripeFor(int ownerHash) {
+        return stripes[(ownerHash ^ (ownerHash >>> 16)) & (STRIPES - 1)];
+    }
 
     private void _dispose(Object owner) {
-        synchronized (LOCK) {
-            for (Entry e : entries) {
-                if (e.owner != null && e.owner.get() == owner) {
-                    e.owner = null;
-                }
+        List<Allocation> released = stripeFor(System.identityHashCode(owner)).removeOwnedBy(owner);
+        if (!released.isEmpty()) {
+            for (Allocation a : released) {
+                free.release(a);
+            }
+            scheduleCompaction();
+        }
+    }
+
+    private boolean reclaimCollected() {
+        boolean any = false;
+        Reference<?> ref;
+        while ((ref = collectedOwners.poll()) != null) {
+            Allocation a = ((OwnerReference) ref).allocation;
+            if (stripeFor(a.ownerHash).remove(a)) {
+                free.release(a);
+                any = true;
+            }
+        }
+        return any;
+    }
+
+    private void scheduleCompaction() {
+        if (compactionPending.compareAndSet(false, true)) {
+            try {
+                compactor.schedule(this::compact, COMPACTION_DELAY_MILLIS, TimeUnit.MILLISECONDS);
+            } catch (RuntimeException ex) {
+                // shut down
+                compactionPending.set(false);
             }
         }
     }
 
-    private void addRegion(Entry e) {
-        synchronized (LOCK) {
-            entries.add(e);
-            maxSize = Math.max(e.getUsedSize(), maxSize);
+    void compact() {
+        compactionPending.set(false);
+        reclaimCollected();
+        try {
+            free.trimTail(fc);
+        } catch (IOException ex) {
+            Logger.getLogger(CacheManager.class.getName()).log(Level.INFO,
+                    "Could not trim " + cacheFile, ex);
         }
     }
-    
+
+    private ByteBuffer _requestBuffer(Object requestor, int size) {
+        if (reclaimCollected()) {
+            scheduleCompaction();
+        }
+        long capacity = roundUp(size);
+        long start = free.allocate(capacity);
+        int ownerHash = System.identityHashCode(requestor);
+        Allocation toUse = new Allocation(start, capacity, size, requestor, ownerHash);
+        stripeFor(ownerHash).add(toUse);
+        try {
+            return toUse.getBuffer();
+        } catch (IOException ex) {
+            if (stripeFor(ownerHash).remove(toUse)) {
+                free.release(toUse);
+            }
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    static long roundUp(long size) {
+        return ((Math.max(1, size) + GRANULE - 1) / GRANULE) * GRANULE;
+    }
+
     public String toString() {
         StringBuilder sb = new StringBuilder();
         for (Region e : getRegions()) {
-            sb.append (e);
+            sb.append(e);
         }
         return sb.toString();
     }
-    
-    private void clearByteBuffer(ByteBuffer buf, int size) {
-        //XXX is this necessary?
-        buf.clear();
-        int factor = size/8;
-        int remainder = size%8;
-        byte[] b = new byte[factor];
-        int count = size/factor;
-
-        for (int i = 0; i < count; i++) {
-            buf.put(b);
-        }
-        if (remainder != 0) {
-            buf.put(new byte[remainder]);
-        }
-        buf.rewind();
+
+    private static int compareStarts(Region a, Region b) {
+        return Long.compare(a.getStart(), b.getStart());
     }
-    
-    private final class Entry implements Region {
+
+    private final class OwnerReference extends WeakReference<Object> {
+
+        private final Allocation allocation;
+
+        OwnerReference(Object owner, Allocation allocation) {
+            super(owner, collectedOwners);
+            this.allocation = allocation;
+        }
+    }
+
+    /**
+     * A region of the file currently handed out to some owner.
+     */
+    private final class Allocation implements Region {
 
         private final long start;
-        private int size;
-        private int capacity;
-        private Reference<MappedByteBuffer> buffer;
-        private Reference<Object> owner;
-        private Exception exception;
-
-        Entry(long start, int size, MappedByteBuffer buf, Object owner) {
-            this.size = this.capacity = size;
+        private final long capacity;
+        private final int size;
+        private final int ownerHash;
+        private final OwnerReference owner;
+        private volatile Reference<MappedByteBuffer> buffer;
+        private final Exception exception;
+
+        Allocation(long start, long capacity, int size, Object owner, int ownerHash) {
             this.start = start;
-            this.buffer = buffer == null ? null : new WeakReference<MappedByteBuffer>(buf);
-            this.owner = new WeakReference<Object>(owner);
+            this.capacity = capacity;
+            this.size = size;
+            this.ownerHash = ownerHash;
+            this.owner = new OwnerReference(owner, this);
             if (DEBUG) {
                 exception = new Exception();
                 exception.printStackTrace();
-            }
-        }
-
-        boolean volunteer(Object newOwner, int requestedSize) {
-            if (owner != null && owner.get() != null) {
-                return false;
             } else {
-                if (capacity >= requestedSize) {
-                    if (capacity >= requestedSize * 2) {
-                        //Don't waste this entry on such a small region
-                        return false;
-                    } else {
-                        owner = new WeakReference(newOwner);
-                        buffer = null;
-                        this.size = requestedSize;
-                        return true;
-                    }
-                } else {
-                    return false;
-                }
+                exception = null;
             }
         }
 
@@ -185,35 +272,34 @@ public class CacheManager implements CacheMap {
         }
 
         public boolean hasBuffer() {
-            return buffer != null && buffer.get() != null;
+            Reference<MappedByteBuffer> buf = buffer;
+            return buf != null && buf.get() != null;
         }
 
-        public MappedByteBuffer getBuffer() throws IOException {
-            MappedByteBuffer result = buffer == null ? null : buffer.get();
+        MappedByteBuffer getBuffer() throws IOException {
+            Reference<MappedByteBuffer> ref = buffer;
+            MappedByteBuffer result = ref == null ? null : ref.get();
             if (result == null) {
                 result = fc.map(MapMode.READ_WRITE, start, size);
-                this.buffer = new WeakReference<MappedByteBuffer>(result);
+                this.buffer = new WeakReference<>(result);
                 result.order(ByteOrder.nativeOrder());
             } else {
                 result.rewind();
             }
             result.limit(size);
-//            clearByteBuffer (result, size);
             return result;
         }
 
         public State getState() {
-            if (owner != null && owner.get() != null) {
+            if (owner.get() != null) {
                 return State.IN_USE;
-            } else if (hasBuffer()) {
-                return State.USED_BUT_OWNER_GONE;
             } else {
-                return State.UNUSED;
+                return State.USED_BUT_OWNER_GONE;
             }
         }
 
         public int compareTo(Region o) {
-            return (int) (getStart() - o.getStart());
+            return compareStarts(this, o);
         }
 
         public StackTraceElement[] getAllocationBacktrace() {
@@ -223,35 +309,231 @@ public class CacheManager implements CacheMap {
                 return new StackTraceElement[0];
             }
         }
-        
+
         public String toString() {
             return "[start:" + start + " capacity:" + capacity + " used: " + size + " state:" + getState() + "]";
         }
     }
 
-    private ByteBuffer _requestBuffer(Object requestor, int size) {
-        Entry toUse = null;
-        synchronized (LOCK) {
-            if (size < maxSize) {
-                for (Entry e : entries) {
-                    if (e.volunteer(requestor, size)) {
-                        toUse = e;
-                        break;
-                    }
+    /**
+     * One partition of the set of live allocations, indexed by the identity
+     * hash code of their owners.
+     */
+    private static final class Stripe {
+
+        private final Map<Integer, List<Allocation>> byOwner = new HashMap<>();
+        private int count;
+
+        synchronized void add(Allocation a) {
+            byOwner.computeIfAbsent(a.ownerHash, h -> new ArrayList<>(2)).add(a);
+            count++;
+        }
+
+        synchronized boolean remove(Allocation a) {
+            List<Allocation> l = byOwner.get(a.ownerHash);
+            if (l != null && l.remove(a)) {
+                count--;
+                if (l.isEmpty()) {
+                    byOwner.remove(a.ownerHash);
                 }
+                return true;
             }
-            try {
-                if (toUse != null) {
-                    return toUse.getBuffer();
+            return false;
+        }
+
+        synchronized List<Allocation> removeOwnedBy(Object owner) {
+            int hash = System.identityHashCode(owner);
+            List<Allocation> l = byOwner.get(hash);
+            if (l == null) {
+                return Collections.emptyList();
+            }
+            List<Allocation> result = new ArrayList<>(1);
+            for (Iterator<Allocation> it = l.iterator(); it.hasNext();) {
+                Allocation a = it.next();
+                if (a.owner.get() == owner) {
+                    it.remove();
+                    a.owner.clear();
+                    result.add(a);
+                    count--;
+                }
+            }
+            if (l.isEmpty()) {
+                byOwner.remove(hash);
+            }
+            return result;
+        }
+
+        synchronized int count() {
+            return count;
+        }
+
+        synchronized void collect(List<? super Allocation> into) {
+            for (List<Allocation> l : byOwner.values()) {
+                into.addAll(l);
+            }
+        }
+    }
+
+    /**
+     * A free region of the file.  Remembers any mappings that were made of
+     * the space it covers while it was in use, so the file is not truncated
+     * underneath a buffer something can still reach.
+     */
+    private static final class Extent implements Region {
+
+        private final long start;
+        private final long capacity;
+        private final List<Reference<MappedByteBuffer>> mappings;
+
+        Extent(long start, long capacity, List<Reference<MappedByteBuffer>> mappings) {
+            this.start = start;
+            this.capacity = capacity;
+            this.mappings = mappings;
+        }
+
+        public long getStart() {
+            return start;
+        }
+
+        public long getEnd() {
+            return start + capacity;
+        }
+
+        public int getUsedSize() {
+            return 0;
+        }
+
+        public boolean hasBuffer() {
+            for (Iterator<Reference<MappedByteBuffer>> it = mappings.iterator(); it.hasNext();) {
+                if (it.next().get() == null) {
+                    it.remove();
                 } else {
-                    long start = fc.size();
-                    toUse = new Entry(start, size, null, requestor);
-                    addRegion(toUse);
-                    return toUse.getBuffer();
+                    return true;
                 }
-            } catch (IOException ex) {
-                throw new IllegalStateException(ex);
             }
+            return false;
+        }
+
+        public State getState() {
+            return State.UNUSED;
+        }
+
+        public int compareTo(Region o) {
+            return compareStarts(this, o);
+        }
+
+        public StackTraceElement[] getAllocationBacktrace() {
+            return new StackTraceElement[0];
+        }
+
+        public String toString() {
+            return "[start:" + start + " capacity:" + capacity + " state:" + getState() + "]";
+        }
+    }
+
+    /**
+     * Free space in the file, kept both in address order (for coalescing and
+     * trimming) and in power-of-two size classes, each ordered by size (for
+     * best-fit allocation that favors low addresses).
+     */
+    private static final class FreeSpace {
+
+        private static final int SIZE_CLASSES = 48;
+        private static final Comparator<Extent> BY_SIZE = (a, b) -> {
+            int result = Long.compare(a.capacity, b.capacity);
+            return result != 0 ? result : Long.compare(a.start, b.start);
+        };
+        private final TreeMap<Long, Extent> byStart = new TreeMap<>();
+        @SuppressWarnings("unchecked")
+        private final TreeSet<Extent>[] sizeClasses = new TreeSet[SIZE_CLASSES];
+        private long end;
+
+        FreeSpace() {
+            for (int i = 0; i < SIZE_CLASSES; i++) {
+                sizeClasses[i] = new TreeSet<>(BY_SIZE);
+            }
+        }
+
+        private static int sizeClass(long capacity) {
+            long granules = Math.max(1, capacity / GRANULE);
+            return Math.min(SIZE_CLASSES - 1, 63 - Long.numberOfLeadingZeros(granules));
+        }
+
+        synchronized long allocate(long capacity) {
+            Extent probe = new Extent(-1, capacity, null);
+            for (int i = sizeClass(capacity); i < SIZE_CLASSES; i++) {
+                Extent fit = sizeClasses[i].ceiling(probe);
+                if (fit != null) {
+                    removeExtent(fit);
+                    long remainder = fit.capacity - capacity;
+                    if (remainder > 0) {
+                        addExtent(new Extent(fit.start + capacity, remainder,
+                                new ArrayList<>(fit.mappings)));
+                    }
+                    return fit.start;
+                }
+            }
+            long result = end;
+            end += capacity;
+            return result;
+        }
+
+        synchronized void release(Allocation a) {
+            List<Reference<MappedByteBuffer>> mappings = new ArrayList<>(2);
+            Reference<MappedByteBuffer> buf = a.buffer;
+            if (buf != null && buf.get() != null) {
+                mappings.add(buf);
+            }
+            long start = a.start;
+            long capacity = a.capacity;
+            Entry<Long, Extent> before = byStart.floorEntry(start);
+            if (before != null && before.getValue().getEnd() == start) {
+                Extent prev = before.getValue();
+                removeExtent(prev);
+                start = prev.start;
+                capacity += prev.capacity;
+                mappings.addAll(prev.mappings);
+            }
+            Extent next = byStart.get(start + capacity);
+            if (next != null) {
+                removeExtent(next);
+                capacity += next.capacity;
+                mappings.addAll(next.mappings);
+            }
+            addExtent(new Extent(start, capacity, mappings));
+        }
+
+        synchronized void trimTail(FileChannel fc) throws IOException {
+            Entry<Long, Extent> last;
+            while ((last = byStart.lastEntry()) != null) {
+                Extent tail = last.getValue();
+                if (tail.getEnd() != end || tail.hasBuffer()) {
+                    break;
+                }
+                removeExtent(tail);
+                end = tail.start;
+            }
+            if (fc.size() > end) {
+                fc.truncate(end);
+            }
+        }
+
+        synchronized int count() {
+            return byStart.size();
+        }
+
+        synchronized void collect(List<? super Extent> into) {
+            into.addAll(byStart.values());
+        }
+
+        private void addExtent(Extent e) {
+            byStart.put(e.start, e);
+            sizeClasses[sizeClass(e.capacity)].add(e);
+        }
+
+        private void removeExtent(Extent e) {
+            byStart.remove(e.start);
+            sizeClasses[sizeClass(e.capacity)].remove(e);
         }
     }
 }
@@ -213,6 +213,14 @@ public final class ObjectSelection<T> extends Selection<Collection<T>> implement
         }
     }
 
+    @Override
+    public SelectionMask getMask() {
+        // The selected objects can change shape without the selection
+        // changing, so the mask cannot be cached
+        Shape shape = asShape();
+        return shape == null ? null : SelectionMask.create(shape);
+    }
+
     @Override
     public void clearNoUndo() {
         clearContents();
@@ -119,6 +119,7 @@ public abstract class Selection<T> implements Lookup.Provider {
      * @param edit
      */
     protected final void changed(UndoableEdit edit) {
+        contentChanged();
         onChange();
         UndoManager mgr = (UndoManager) 
             Utilities.actionsGlobalContext().lookup(UndoManager.class);
@@ -170,11 +171,54 @@ public abstract class Selection<T> implements Lookup.Provider {
      * the changed() method.
      */
     public abstract void clearNoUndo();
+
+    /**
+     * Get a rasterized mask of the selection, suitable for masking pixels
+     * directly without clipping to the selection shape.  The mask is cached
+     * until the selection changes.
+     *
+     * @return A mask, or null if asShape() returns null
+     */
+    public SelectionMask getMask() {
+        Shape shape = asShape();
+        if (shape == null) {
+            return null;
+        }
+        int rev = revision;
+        SelectionMask result = mask;
+        if (result == null || !result.isFor(shape, rev)) {
+            result = SelectionMask.create(shape, rev);
+            mask = result;
+        }
+        return result;
+    }
+
+    /**
+     * Get the revision of this selection, which increases every time its
+     * content is changed.
+     *
+     * @return The revision
+     */
+    public final int revision() {
+        return revision;
+    }
+
+    /**
+     * Called by implementations when the content of the selection changes
+     * by some means other than passing an edit to changed(), such as undo,
+     * to discard the cached mask.
+     */
+    protected final void contentChanged() {
+        revision++;
+        mask = null;
+    }
     
     public abstract void invert(Rectangle bds);
     
     public abstract boolean contains (T what);
     
+    private volatile int revision;
+    private volatile SelectionMask mask;
     private Set<ChangeListener> listeners = Collections.synchronizedSet(new HashSet<ChangeListener>());
     public final void addChangeListener (ChangeListener l) {
         listeners.add (l);
@@ -0,0 +1,201 @@
+package net.dev.java.imagine.api.selection;
+
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.RenderingHints;
+import java.awt.Shape;
+import java.awt.geom.Area;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+
+/**
+ * A rasterized, immutable snapshot of a selection shape: an antialiased
+ * 8-bit coverage mask, plus a 1-bit bitmap of which pixels are inside it
+ * (those at least half covered).  Raster tools and effects can use these
+ * to mask pixels directly, rather than constructing an Area from the
+ * selection and clipping to it on every operation.
+ * <p>
+ * Obtain one from {@link Selection#getMask()}, which caches it until the
+ * selection changes.  Coordinates are the same as those of the selection
+ * shape.
+ *
+ * @author Tim Boudreau
+ */
+public final class SelectionMask {
+
+    private final Shape source;
+    private final int revision;
+    private final Rectangle bounds;
+    // Both null if the shape is a rectangle, in which case every pixel in
+    // the bounds is fully covered
+    private final byte[] alpha;
+    private final long[] bits;
+
+    private SelectionMask(Shape source, int revision, Rectangle bounds, byte[] alpha, long[] bits) {
+        this.source = source;
+        this.revision = revision;
+        this.bounds = bounds;
+        this.alpha = alpha;
+        this.bits = bits;
+    }
+
+    /**
+     * Rasterize a shape which is not necessarily a selection.
+     *
+     * @param shape A shape
+     * @return A mask
+     */
+    public static SelectionMask create(Shape shape) {
+        return create(shape, -1);
+    }
+
+    static SelectionMask create(Shape shape, int revision) {
+        Rectangle bds = shape.getBounds();
+        if (shape instanceof Rectangle || (shape instanceof Area && ((Area) shape).isRectangular()
+                && bds.equals(shape.getBounds2D()))) {
+            return new SelectionMask(shape, revision, bds, null, null);
+        }
+        if (bds.isEmpty()) {
+            return new SelectionMask(shape, revision, new Rectangle(bds.x, bds.y, 0, 0),
+                    new byte[0], new long[0]);
+        }
+        BufferedImage maskImage = new BufferedImage(bds.width, bds.height,
+                BufferedImage.TYPE_BYTE_GRAY);
+        Graphics2D g = maskImage.createGraphics();
+        try {
+            g.setRenderingHint(RenderingHints.KEY_ANTIALIASING,
+                    RenderingHints.VALUE_ANTIALIAS_ON);
+            g.setRenderingHint(RenderingHints.KEY_STROKE_CONTROL,
+                    RenderingHints.VALUE_STROKE_PURE);
+            g.translate(-bds.x, -bds.y);
+            g.fill(shape);
+        } finally {
+            g.dispose();
+        }
+        byte[] alpha = ((DataBufferByte) maskImage.getRaster().getDataBuffer()).getData();
+        long[] bits = new long[(int) ((((long) bds.width * bds.height) + 63) >> 6)];
+        for (int i = 0; i < alpha.length; i++) {
+            if ((alpha[i] & 0xFF) >= 128) {
+                bits[i >> 6] |= 1L << i;
+            }
+        }
+        return new SelectionMask(shape, revision, bds, alpha, bits);
+    }
+
+    boolean isFor(Shape shape, int revision) {
+        return this.source == shape && this.revision == revision;
+    }
+
+    /**
+     * Get the revision of the selection this mask was created from, or -1
+     * if it was created from an arbitrary shape.
+     *
+     * @return The revision
+     */
+    public int revision() {
+        return revision;
+    }
+
+    /**
+     * Get the bounds of the mask; every pixel outside them has zero
+     * coverage.
+     *
+     * @return A rectangle
+     */
+    public Rectangle getBounds() {
+        return new Rectangle(bounds);
+    }
+
+    /**
+     * Determine if the mask covers every pixel in its bounds completely.
+     *
+     * @return true if the shape was a rectangle
+     */
+    public boolean isRectangular() {
+        return alpha == null;
+    }
+
+    /**
+     * Get the coverage of a pixel.
+     *
+     * @param x The x coordinate
+     * @param y The y coordinate
+     * @return A value from 0 (outside the selection) to 255 (entirely
+     * inside it)
+     */
+    public int getAlpha(int x, int y) {
+        if (!bounds.contains(x, y)) {
+            return 0;
+        }
+        if (alpha == null) {
+            return 255;
+        }
+        return alpha[((y - bounds.y) * bounds.width) + (x - bounds.x)] & 0xFF;
+    }
+
+    /**
+     * Determine if a pixel is inside the selection, using the 1-bit
+     * coverage bitmap.
+     *
+     * @param x The x coordinate
+     * @param y The y coordinate
+     * @return Whether or not the pixel is at least half covered
+     */
+    public boolean contains(int x, int y) {
+        if (!bounds.contains(x, y)) {
+            return false;
+        }
+        if (bits == null) {
+            return true;
+        }
+        int index = ((y - bounds.y) * bounds.width) + (x - bounds.x);
+        return (bits[index >> 6] & (1L << index)) != 0;
+    }
+
+    /**
+     * Combine an unmodified and a modified copy of a rectangle of pixels,
+     * so that the result has the modified pixels inside the selection, the
+     * original ones outside it, and a coverage-weighted mix of the two along
+     * its antialiased edges.
+     *
+     * @param original Non-premultiplied ARGB pixels, as rows of
+     * <code>area.width</code>
+     * @param modified Pixels of the same area after modification, which are
+     * replaced with the result
+     * @param area The area the pixel arrays represent, in mask coordinates
+     */
+    public void mix(int[] original, int[] modified, Rectangle area) {
+        for (int y = 0; y < area.height; y++) {
+            int row = y * area.width;
+            for (int x = 0; x < area.width; x++) {
+                int cov = getAlpha(area.x + x, area.y + y);
+                if (cov == 255) {
+                    continue;
+                }
+                int ix = row + x;
+                if (cov == 0) {
+                    modified[ix] = original[ix];
+                } else {
+                    modified[ix] = blend(original[ix], modified[ix], cov);
+                }
+            }
+        }
+    }
+
+    private static int blend(int under, int over, int cov) {
+        int inv = 255 - cov;
+        int aUnder = (under >>> 24) * inv;
+        int aOver = (over >>> 24) * cov;
+        int a = aUnder + aOver;
+        if (a == 0) {
+            return 0;
+        }
+        int result = ((a + 127) / 255) << 24;
+        for (int shift = 0; shift < 24; shift += 8) {
+            long c = ((long) ((under >> shift) & 0xFF) * aUnder)
+                    + ((long) ((over >> shift) & 0xFF) * aOver);
+            result |= ((int) ((c + (a / 2)) / a)) << shift;
+        }
+        return result;
+    }
+}
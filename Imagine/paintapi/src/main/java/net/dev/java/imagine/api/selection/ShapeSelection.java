@@ -38,6 +38,7 @@ public final class ShapeSelection extends Selection<Shape> {
         if (op == Op.CLEAR) {
             assert toAdd == null;
             content = null;
+            contentChanged();
             return;
         }
         if (this.content == null || op == Op.REPLACE) {
@@ -105,6 +106,7 @@ public final class ShapeSelection extends Selection<Shape> {
     public void transform (AffineTransform xform) {
         if (content != null) {
             content = xform.createTransformedShape(content);
+            contentChanged();
         }
     }
     
@@ -138,6 +140,7 @@ public final class ShapeSelection extends Selection<Shape> {
 
         public void undo() throws CannotUndoException {
             sel.content = old;
+            sel.contentChanged();
         }
 
         public boolean canUndo() {
@@ -146,6 +149,7 @@ public final class ShapeSelection extends Selection<Shape> {
 
         public void redo() throws CannotRedoException {
             sel.content = nue;
+            sel.contentChanged();
         }
 
         public boolean canRedo() {
@@ -263,6 +267,7 @@ public final class ShapeSelection extends Selection<Shape> {
             shape = selection.asShape();
         }
         content = shape;
+        contentChanged();
         selection.clearNoUndo();
     }
     
@@ -282,6 +287,7 @@ public final class ShapeSelection extends Selection<Shape> {
     @Override
     public void clearNoUndo() {
         content = null;
+        contentChanged();
     }
     
     public void invert(Rectangle bounds) {
@@ -292,5 +298,6 @@ public final class ShapeSelection extends Selection<Shape> {
             a.subtract(content instanceof Area ? (Area) content : new Area(content));
             content = a;
         }
+        contentChanged();
     }
 }
@@ -0,0 +1,906 @@
+package net.java.dev.imagine.api.io;
+
+import java.awt.Cursor;
+import java.awt.EventQueue;
+import java.awt.Point;
+import java.awt.Rectangle;
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+import javax.swing.event.ChangeListener;
+import net.java.dev.imagine.Accessor;
+import net.java.dev.imagine.api.image.Picture;
+import static net.java.dev.imagine.api.io.SaveSupport.IO_REV;
+import static net.java.dev.imagine.api.io.SaveSupport.MAGIC_1;
+import static net.java.dev.imagine.api.io.SaveSupport.MAGIC_2;
+import net.java.dev.imagine.spi.image.LayerImplementation;
+import net.java.dev.imagine.spi.image.PictureImplementation;
+import net.java.dev.imagine.spi.image.SurfaceImplementation;
+import net.java.dev.imagine.spi.io.LayerJournalHandler;
+import org.imagine.utils.painting.RepaintHandle;
+import org.openide.util.RequestProcessor;
+
+/**
+ * An append-only journal, kept beside a document, of the changes made to an
+ * open picture since it was last saved, so that autosave costs in proportion
+ * to what was edited rather than to the size of the document, and unsaved
+ * work can be recovered after a crash.
+ * <p>
+ * The journal attaches a repaint handle to each layer and accumulates the
+ * regions they report.  A while after the first change, the dirty regions
+ * are handed to each layer's LayerJournalHandler on the event thread, and
+ * the changes it captures are written and forced to disk on a background
+ * thread, each as a record with a checksum, so a record torn by a crash is
+ * simply ignored on recovery.  Changes to a layer's visibility, opacity,
+ * name or location are journaled as small records of their own.  Changes
+ * the handlers cannot express - layers being added, removed, reordered or
+ * resized, or layers with no handler - and journals which have grown large
+ * are dealt with by <i>compaction</i>: the whole picture is saved to a
+ * snapshot file beside the document, and a new, empty journal is started
+ * against it; this happens at the next autosave for structural changes, and
+ * otherwise once the picture has been left alone for a while.  Only
+ * capturing the layers, copy-on-write where their save handlers support
+ * it, happens on the event thread;  they are encoded on the background
+ * thread.
+ * <p>
+ * The journal's header records which file it applies to, and that file's
+ * size and modification time, so a journal can never be replayed onto a
+ * document which has changed since.  Nothing is written until the picture
+ * is first changed, and the files are deleted when the picture is saved or
+ * closed.
+ *
+ * @author Tim Boudreau
+ */
+public final class AutosaveJournal {
+
+    static final int JOURNAL_MAGIC = 492110357;
+    static final byte JOURNAL_REV = 1;
+    static final int RECORD_MARKER = 688130923;
+    static final int STATE_MARKER = 688130924;
+    static final byte BASE_DOCUMENT = 0;
+    static final byte BASE_SNAPSHOT = 1;
+    /**
+     * The journal has no base yet - the document is not in the native format
+     * or the picture was recovered, so the first change is saved by
+     * compaction.
+     */
+    private static final byte BASE_NONE = -1;
+    private static final int HEADER_LENGTH = Integer.BYTES + 2 + (Long.BYTES * 2) + Integer.BYTES;
+    private static final int RECORD_HEADER_LENGTH = Integer.BYTES * 3;
+    private static final int MAX_REGIONS_PER_LAYER = 64;
+    private static final int AUTOSAVE_DELAY
+            = Integer.getInteger("imagine.autosave.seconds", 30) * 1000;
+    private static final int IDLE_DELAY
+            = Integer.getInteger("imagine.autosave.idle.seconds", 120) * 1000;
+    private static final long COMPACTION_THRESHOLD
+            = Long.getLong("imagine.autosave.compact.mb", 64) * 1024 * 1024;
+    private static final RequestProcessor AUTOSAVE = new RequestProcessor("Autosave", 1, true);
+    private static final Map<Picture, AutosaveJournal> JOURNALS = new IdentityHashMap<>();
+    private static final Logger LOG = Logger.getLogger(AutosaveJournal.class.getName());
+    private final Picture picture;
+    private final Path document;
+    private final Path journal;
+    private final Path snapshot;
+    private final Map<LayerImplementation, Tracker> trackers = new IdentityHashMap<>();
+    private final List<Object> signature = new ArrayList<>();
+    private final Map<LayerImplementation, LayerState> states = new IdentityHashMap<>();
+    private final RequestProcessor.Task autosaveTask;
+    private final RequestProcessor.Task compactionTask;
+    private final ChangeListener structureListener = e -> changed();
+    private boolean scheduled;
+    private boolean structureChanged;
+    private boolean compactWhenIdle;
+    private volatile boolean closed;
+    // Used only on the autosave thread
+    private FileChannel channel;
+    private volatile byte base;
+    private long baseSize;
+    private long baseModified;
+    private int baseLayerCount;
+
+    private AutosaveJournal(Picture picture, Path document, boolean recovered) throws IOException {
+        this.picture = picture;
+        this.document = document;
+        this.journal = journalFile(document);
+        this.snapshot = snapshotFile(document);
+        autosaveTask = AUTOSAVE.create(this::autosave);
+        compactionTask = AUTOSAVE.create(this::compactIfIdle);
+        if (!recovered && isNative(document)) {
+            base = BASE_DOCUMENT;
+            baseSize = Files.size(document);
+            baseModified = Files.getLastModifiedTime(document).toMillis();
+        } else {
+            base = BASE_NONE;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "AutosaveJournal(" + journal + " base " + base + ")";
+    }
+
+    static Path journalFile(Path document) {
+        return document.resolveSibling(document.getFileName() + ".journal");
+    }
+
+    static Path snapshotFile(Path document) {
+        return document.resolveSibling(document.getFileName() + ".autosave");
+    }
+
+    /**
+     * Start journaling changes to a picture, replacing and discarding any
+     * journal already running for it.  The document is the file the picture
+     * was loaded from or saved to; if it is not in the native format, the
+     * first change causes a full save to the snapshot file.
+     *
+     * @param picture A picture
+     * @param document The file it belongs to
+     */
+    public static void start(Picture picture, Path document) {
+        start(picture, document, false);
+    }
+
+    private static void start(Picture picture, Path document, boolean recovered) {
+        AutosaveJournal nue;
+        try {
+            nue = new AutosaveJournal(picture, document, recovered);
+        } catch (IOException ex) {
+            LOG.log(Level.INFO, "Cannot journal " + document, ex);
+            return;
+        }
+        AutosaveJournal old;
+        synchronized (JOURNALS) {
+            old = JOURNALS.put(picture, nue);
+        }
+        if (old != null) {
+            old.close(true);
+        }
+        EventQueue.invokeLater(nue::attach);
+    }
+
+    /**
+     * Called when a picture has been saved in full; restarts its journal
+     * against the saved file.
+     */
+    static void saved(Picture picture, Path document) {
+        start(picture, document, false);
+    }
+
+    /**
+     * Stop journaling changes to a picture, because it has been closed, and
+     * delete its journal and snapshot.
+     *
+     * @param picture A picture
+     */
+    public static void discard(Picture picture) {
+        AutosaveJournal old;
+        synchronized (JOURNALS) {
+            old = JOURNALS.remove(picture);
+        }
+        if (old != null) {
+            old.close(true);
+        }
+    }
+
+    /**
+     * Delete any journal and snapshot left beside a document.
+     *
+     * @param document A document
+     * @throws IOException If the files cannot be deleted
+     */
+    public static void discard(Path document) throws IOException {
+        Files.deleteIfExists(journalFile(document));
+        Files.deleteIfExists(snapshotFile(document));
+    }
+
+    /**
+     * Determine if there are unsaved changes to a document which could be
+     * recovered.
+     *
+     * @param document A document
+     * @return true if a journal or snapshot exists beside it
+     */
+    public static boolean hasJournal(Path document) {
+        return Files.exists(journalFile(document)) || Files.exists(snapshotFile(document));
+    }
+
+    /**
+     * Load a document with the changes recorded in its journal applied.
+     * Records after the first damaged one are ignored.  The journal and
+     * snapshot are left in place until the recovered picture is changed,
+     * saved or closed.
+     *
+     * @param document The document
+     * @param open Whether to open the result in the editor
+     * @return The recovered picture
+     * @throws IOException If the journal does not apply to the document and
+     * there is no snapshot, or the base cannot be loaded
+     */
+    public static Picture recover(Path document, boolean open) throws IOException {
+        Path journal = journalFile(document);
+        Path snapshot = snapshotFile(document);
+        try (FileChannel jc = Files.exists(journal) ? FileChannel.open(journal, StandardOpenOption.READ) : null) {
+            Header header = jc == null ? null : Header.read(jc);
+            Path basePath;
+            if (header != null && header.matches(document, snapshot)) {
+                basePath = header.base == BASE_DOCUMENT ? document : snapshot;
+            } else if (Files.exists(snapshot)) {
+                // The snapshot is always written before the journal that
+                // refers to it, so a journal which does not match it is
+                // older than it
+                basePath = snapshot;
+                header = null;
+            } else {
+                throw new IOException("Journal " + journal + " does not apply to "
+                        + document + " as it is now");
+            }
+            Header replay = header;
+            Picture result;
+            try (FileChannel bc = FileChannel.open(basePath, StandardOpenOption.READ)) {
+                result = LoadSupport.doLoad(bc, open, false, impl -> {
+                    impl.getPicture().associateFile(document);
+                    if (replay != null) {
+                        replay(jc, replay, impl);
+                    }
+                });
+            }
+            if (open) {
+                start(result, document, true);
+            }
+            return result;
+        }
+    }
+
+    private static void replay(FileChannel jc, Header header, PictureImplementation impl) throws IOException {
+        List<LayerImplementation> layers = impl.getLayers();
+        if (layers.size() != header.layerCount) {
+            throw new IOException("Journal expects " + header.layerCount
+                    + " layers but found " + layers.size());
+        }
+        ByteBuffer head = ByteBuffer.allocate(RECORD_HEADER_LENGTH);
+        CRC32 crc = new CRC32();
+        int applied = 0;
+        for (;;) {
+            long start = jc.position();
+            head.clear();
+            if (!readFully(jc, head)) {
+                break;
+            }
+            int marker = head.getInt();
+            int index = head.getInt();
+            int length = head.getInt();
+            if ((marker != RECORD_MARKER && marker != STATE_MARKER)
+                    || index < 0 || index >= layers.size()
+                    || length < 0 || start + RECORD_HEADER_LENGTH + length
+                    + Integer.BYTES > jc.size()) {
+                LOG.log(Level.INFO, "Bad journal record at {0}", start);
+                break;
+            }
+            ByteBuffer payload = ByteBuffer.allocate(length + Integer.BYTES);
+            if (!readFully(jc, payload)) {
+                break;
+            }
+            crc.reset();
+            crc.update(payload.duplicate().limit(length));
+            if ((int) crc.getValue() != payload.getInt(length)) {
+                LOG.log(Level.INFO, "Journal record at {0} fails checksum", start);
+                break;
+            }
+            LayerImplementation layer = layers.get(index);
+            payload.limit(length);
+            if (marker == STATE_MARKER) {
+                LayerState.read(payload).applyTo(layer);
+            } else {
+                LayerJournalHandler handler = handlerFor(layer);
+                if (handler == null) {
+                    throw new IOException("No journal handler for " + layer);
+                }
+                handler.apply(layer, new LayerBufferChannel(0, payload), length);
+            }
+            applied++;
+        }
+        int count = applied;
+        LoadSupport.fine(() -> "Applied " + count + " journal records");
+    }
+
+    private static boolean readFully(ReadableByteChannel channel, ByteBuffer buf) throws IOException {
+        while (buf.hasRemaining()) {
+            if (channel.read(buf) < 0) {
+                return false;
+            }
+        }
+        buf.flip();
+        return true;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static LayerJournalHandler handlerFor(LayerImplementation layer) {
+        LayerJournalHandler result = layer.getLookup().lookup(LayerJournalHandler.class);
+        return result != null && result.layerType().isInstance(layer) ? result : null;
+    }
+
+    private static boolean isNative(Path document) throws IOException {
+        if (!Files.exists(document)) {
+            return false;
+        }
+        try (FileChannel ch = FileChannel.open(document, StandardOpenOption.READ)) {
+            ByteBuffer buf = ByteBuffer.allocate(3);
+            return readFully(ch, buf) && buf.get() == MAGIC_1
+                    && buf.get() == MAGIC_2 && buf.get() == IO_REV;
+        }
+    }
+
+    private PictureImplementation impl() {
+        return Accessor.pictureImplFor(picture);
+    }
+
+    private synchronized void attach() {
+        if (closed) {
+            return;
+        }
+        impl().addChangeListener(structureListener);
+        List<LayerImplementation> layers = impl().getLayers();
+        syncTrackers(layers);
+        signature(layers, signature);
+        syncStates(layers);
+        rebase(layers);
+    }
+
+    private void syncTrackers(List<LayerImplementation> layers) {
+        for (Iterator<Map.Entry<LayerImplementation, Tracker>> it
+                = trackers.entrySet().iterator(); it.hasNext();) {
+            Map.Entry<LayerImplementation, Tracker> e = it.next();
+            if (!layers.contains(e.getKey())) {
+                e.getKey().removeRepaintHandle(e.getValue());
+                it.remove();
+            }
+        }
+        for (LayerImplementation layer : layers) {
+            if (!trackers.containsKey(layer)) {
+                Tracker tracker = new Tracker();
+                trackers.put(layer, tracker);
+                layer.addRepaintHandle(tracker);
+            }
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static void rebase(List<LayerImplementation> layers) {
+        for (LayerImplementation layer : layers) {
+            LayerJournalHandler handler = handlerFor(layer);
+            if (handler != null) {
+                handler.rebased(layer);
+            }
+        }
+    }
+
+    private void syncStates(List<LayerImplementation> layers) {
+        states.clear();
+        for (LayerImplementation layer : layers) {
+            states.put(layer, new LayerState(layer));
+        }
+    }
+
+    /**
+     * Everything about the layers which journal records cannot express -
+     * which layers there are, in what order, and their sizes.
+     */
+    private static void signature(List<LayerImplementation> layers, List<Object> into) {
+        into.clear();
+        for (LayerImplementation layer : layers) {
+            into.add(layer);
+            into.add(layer.getBounds().getSize());
+        }
+    }
+
+    private synchronized void changed() {
+        if (closed) {
+            return;
+        }
+        if (!scheduled) {
+            scheduled = true;
+            autosaveTask.schedule(AUTOSAVE_DELAY);
+        }
+        if (compactWhenIdle) {
+            compactionTask.schedule(IDLE_DELAY);
+        }
+    }
+
+    private void close(boolean deleteFiles) {
+        synchronized (this) {
+            closed = true;
+            autosaveTask.cancel();
+            compactionTask.cancel();
+        }
+        EventQueue.invokeLater(() -> {
+            synchronized (this) {
+                impl().removeChangeListener(structureListener);
+                for (Map.Entry<LayerImplementation, Tracker> e : trackers.entrySet()) {
+                    e.getKey().removeRepaintHandle(e.getValue());
+                }
+                trackers.clear();
+            }
+        });
+        // Runs after anything this journal has already started writing
+        AUTOSAVE.post(() -> {
+            closeChannel();
+            if (deleteFiles) {
+                try {
+                    discard(document);
+                } catch (IOException ex) {
+                    LOG.log(Level.INFO, "Deleting " + journal, ex);
+                }
+            }
+        });
+    }
+
+    private void closeChannel() {
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException ex) {
+                LOG.log(Level.FINE, "Closing " + journal, ex);
+            }
+            channel = null;
+        }
+    }
+
+    /**
+     * The changes captured on the event thread in one autosave.
+     */
+    private static final class Capture {
+
+        final List<Integer> markers = new ArrayList<>();
+        final List<Integer> indices = new ArrayList<>();
+        final List<LayerJournalHandler.Change> changes = new ArrayList<>();
+        boolean compact;
+        int layerCount;
+        // The whole picture, captured when compacting
+        SaveSupport<?, ?>.PictureWriter snapshot;
+
+        void add(int marker, int index, LayerJournalHandler.Change change) {
+            markers.add(marker);
+            indices.add(index);
+            changes.add(change);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private synchronized Capture capture() throws IOException {
+        Capture result = new Capture();
+        if (closed) {
+            return result;
+        }
+        List<LayerImplementation> layers = impl().getLayers();
+        result.layerCount = layers.size();
+        List<Object> sig = new ArrayList<>(signature.size());
+        signature(layers, sig);
+        result.compact = structureChanged || base == BASE_NONE || !sig.equals(signature);
+        for (int i = 0; i < layers.size() && !result.compact; i++) {
+            LayerImplementation layer = layers.get(i);
+            // Written ahead of the layer's content, which may only apply at
+            // its new location
+            LayerState state = new LayerState(layer);
+            if (!state.equals(states.get(layer))) {
+                states.put(layer, state);
+                result.add(STATE_MARKER, i, state);
+            }
+            Tracker tracker = trackers.get(layer);
+            if (tracker == null || tracker.dirty.isEmpty()) {
+                continue;
+            }
+            LayerJournalHandler handler = handlerFor(layer);
+            if (handler == null) {
+                result.compact = true;
+                break;
+            }
+            LayerJournalHandler.Change change = handler.capture(layer, tracker.take());
+            if (change != null) {
+                result.add(RECORD_MARKER, i, change);
+            }
+        }
+        if (result.compact) {
+            // Everything up to now will be in the snapshot; anything changed
+            // while it is being written is journaled afterwards
+            result.markers.clear();
+            result.indices.clear();
+            result.changes.clear();
+            syncTrackers(layers);
+            for (Tracker tracker : trackers.values()) {
+                tracker.dirty.clear();
+            }
+            signature.clear();
+            signature.addAll(sig);
+            syncStates(layers);
+            rebase(layers);
+            structureChanged = true;
+            // Layers are only safe to read on the event thread, so capture
+            // them here, and leave encoding and writing them to the
+            // background
+            result.snapshot = SaveSupport.snapshot(picture);
+        }
+        return result;
+    }
+
+    private Capture captureOnEventThread() throws IOException {
+        Capture[] result = new Capture[1];
+        IOException[] failure = new IOException[1];
+        try {
+            EventQueue.invokeAndWait(() -> {
+                try {
+                    result[0] = capture();
+                } catch (IOException ex) {
+                    failure[0] = ex;
+                }
+            });
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            return null;
+        } catch (InvocationTargetException ex) {
+            throw new IOException("Capturing changes for " + journal, ex.getCause());
+        }
+        if (failure[0] != null) {
+            throw failure[0];
+        }
+        return result[0];
+    }
+
+    private void autosave() {
+        synchronized (this) {
+            scheduled = false;
+            if (closed) {
+                return;
+            }
+        }
+        try {
+            Capture capture = captureOnEventThread();
+            if (capture == null || closed) {
+                return;
+            }
+            if (capture.compact) {
+                compact(capture);
+                return;
+            }
+            if (!capture.changes.isEmpty()) {
+                append(capture);
+            }
+            if (channel != null && channel.size() > COMPACTION_THRESHOLD) {
+                synchronized (this) {
+                    compactWhenIdle = true;
+                    compactionTask.schedule(IDLE_DELAY);
+                }
+            }
+        } catch (IOException | RuntimeException ex) {
+            LOG.log(Level.WARNING, "Autosave to " + journal + " failed", ex);
+            synchronized (this) {
+                // Records may be missing - start over from a full snapshot
+                structureChanged = true;
+            }
+            closeChannel();
+            changed();
+        }
+    }
+
+    private void compactIfIdle() {
+        synchronized (this) {
+            if (closed || !compactWhenIdle) {
+                return;
+            }
+            structureChanged = true;
+        }
+        autosave();
+    }
+
+    private FileChannel channel(int layerCount) throws IOException {
+        if (channel == null) {
+            channel = FileChannel.open(journal, StandardOpenOption.CREATE,
+                    StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+            writeHeader(channel, layerCount);
+            baseLayerCount = layerCount;
+        }
+        return channel;
+    }
+
+    private void writeHeader(FileChannel ch, int layerCount) throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate(HEADER_LENGTH);
+        buf.putInt(JOURNAL_MAGIC);
+        buf.put(JOURNAL_REV);
+        buf.put(base);
+        buf.putLong(baseSize);
+        buf.putLong(baseModified);
+        buf.putInt(layerCount);
+        buf.flip();
+        while (buf.hasRemaining()) {
+            ch.write(buf);
+        }
+        ch.force(true);
+    }
+
+    /**
+     * Append captured changes to the journal, each encoded in memory first
+     * so its length and checksum are known, and force them to disk.  On
+     * failure the journal is truncated back to its last complete record.
+     */
+    private void append(Capture capture) throws IOException {
+        FileChannel ch = channel(capture.layerCount);
+        if (capture.layerCount != baseLayerCount) {
+            throw new IOException("Layer count changed without compaction");
+        }
+        long start = ch.size();
+        ch.position(start);
+        try {
+            CRC32 crc = new CRC32();
+            ByteBuffer head = ByteBuffer.allocate(RECORD_HEADER_LENGTH);
+            ByteBuffer tail = ByteBuffer.allocate(Integer.BYTES);
+            for (int i = 0; i < capture.changes.size(); i++) {
+                LayerBufferChannel buffer = new LayerBufferChannel(0, 8192);
+                capture.changes.get(i).writeTo(buffer);
+                int length = (int) buffer.size();
+                crc.reset();
+                crc.update(buffer.view(0, length));
+                head.clear();
+                head.putInt(capture.markers.get(i)).putInt(capture.indices.get(i))
+                        .putInt(length).flip();
+                tail.clear();
+                tail.putInt((int) crc.getValue()).flip();
+                while (head.hasRemaining()) {
+                    ch.write(head);
+                }
+                buffer.writeTo(ch);
+                while (tail.hasRemaining()) {
+                    ch.write(tail);
+                }
+            }
+            ch.force(false);
+        } catch (IOException | RuntimeException ex) {
+            ch.truncate(start);
+            throw ex;
+        }
+        LoadSupport.finer(() -> "Journaled " + capture.changes.size()
+                + " changes to " + journal);
+    }
+
+    /**
+     * Encode the whole picture, as captured on the event thread, to the
+     * snapshot file, and start a new journal against it.  Each file is
+     * written beside its final name and moved into place, snapshot first, so
+     * a crash at any point leaves either the old journal and its base, or the
+     * new snapshot, recoverable.
+     */
+    private void compact(Capture capture) throws IOException {
+        int layerCount = capture.layerCount;
+        Path snapshotTemp = snapshot.resolveSibling(snapshot.getFileName() + ".tmp");
+        Path journalTemp = journal.resolveSibling(journal.getFileName() + ".tmp");
+        try (FileChannel out = FileChannel.open(snapshotTemp, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            capture.snapshot.writeTo(out);
+            out.force(true);
+        }
+        closeChannel();
+        move(snapshotTemp, snapshot);
+        base = BASE_SNAPSHOT;
+        baseSize = Files.size(snapshot);
+        baseModified = Files.getLastModifiedTime(snapshot).toMillis();
+        try (FileChannel out = FileChannel.open(journalTemp, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            writeHeader(out, layerCount);
+        }
+        move(journalTemp, journal);
+        channel = FileChannel.open(journal, StandardOpenOption.WRITE);
+        baseLayerCount = layerCount;
+        synchronized (this) {
+            structureChanged = false;
+            compactWhenIdle = false;
+        }
+        LoadSupport.fine(() -> "Compacted " + journal + " into " + snapshot
+                + " of " + baseSize + " bytes");
+    }
+
+    private static void move(Path from, Path to) throws IOException {
+        try {
+            Files.move(from, to, StandardCopyOption.ATOMIC_MOVE,
+                    StandardCopyOption.REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException ex) {
+            Files.move(from, to, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    /**
+     * Accumulates the regions a layer reports as repainted.
+     */
+    private final class Tracker implements RepaintHandle {
+
+        private final List<Rectangle> dirty = new ArrayList<>();
+
+        @Override
+        public void repaintArea(int x, int y, int w, int h) {
+            synchronized (AutosaveJournal.this) {
+                if (w < 0 || h < 0) {
+                    dirty.clear();
+                    dirty.add(new Rectangle(x, y, w, h));
+                } else if (dirty.isEmpty() || !isEverything(dirty.get(0))) {
+                    if (dirty.size() >= MAX_REGIONS_PER_LAYER) {
+                        Rectangle union = new Rectangle(x, y, w, h);
+                        for (Rectangle r : dirty) {
+                            union.add(r);
+                        }
+                        dirty.clear();
+                        dirty.add(union);
+                    } else {
+                        dirty.add(new Rectangle(x, y, w, h));
+                    }
+                }
+            }
+            changed();
+        }
+
+        private boolean isEverything(Rectangle r) {
+            return r.width < 0 || r.height < 0;
+        }
+
+        List<Rectangle> take() {
+            List<Rectangle> result = new ArrayList<>(dirty);
+            dirty.clear();
+            return result;
+        }
+
+        @Override
+        public void setCursor(Cursor cursor) {
+            // do nothing
+        }
+    }
+
+    /**
+     * A layer's generic properties and bounds, journaled as a record of its
+     * own when they change.  Only the location can be applied to a layer on
+     * recovery, since resizing a layer causes compaction.
+     */
+    private static final class LayerState implements LayerJournalHandler.Change {
+
+        private final boolean visible;
+        private final float opacity;
+        private final String name;
+        private final Rectangle bounds;
+
+        LayerState(LayerImplementation layer) {
+            this(layer.isVisible(), layer.getOpacity(), layer.getName(), layer.getBounds());
+        }
+
+        private LayerState(boolean visible, float opacity, String name, Rectangle bounds) {
+            this.visible = visible;
+            this.opacity = opacity;
+            this.name = name;
+            this.bounds = bounds;
+        }
+
+        static LayerState read(ByteBuffer buf) throws IOException {
+            if (buf.remaining() < 1 + Float.BYTES + (Integer.BYTES * 5)) {
+                throw new IOException("Layer state record too short: " + buf.remaining());
+            }
+            boolean visible = buf.get() != 0;
+            float opacity = buf.getFloat();
+            Rectangle bounds = new Rectangle(buf.getInt(), buf.getInt(), buf.getInt(), buf.getInt());
+            int nameLength = buf.getInt();
+            if (nameLength < 0 || nameLength != buf.remaining()) {
+                throw new IOException("Name length " + nameLength
+                        + " does not match remaining byte count " + buf.remaining());
+            }
+            byte[] bytes = new byte[nameLength];
+            buf.get(bytes);
+            return new LayerState(visible, opacity, new String(bytes, UTF_8), bounds);
+        }
+
+        @Override
+        public <C extends WritableByteChannel & SeekableByteChannel> void writeTo(C channel) throws IOException {
+            byte[] bytes = name.getBytes(UTF_8);
+            ByteBuffer buf = ByteBuffer.allocate(1 + Float.BYTES + (Integer.BYTES * 5) + bytes.length);
+            buf.put(visible ? 1 : (byte) 0);
+            buf.putFloat(opacity);
+            buf.putInt(bounds.x).putInt(bounds.y).putInt(bounds.width).putInt(bounds.height);
+            buf.putInt(bytes.length);
+            buf.put(bytes);
+            buf.flip();
+            while (buf.hasRemaining()) {
+                channel.write(buf);
+            }
+        }
+
+        void applyTo(LayerImplementation layer) throws IOException {
+            Rectangle current = layer.getBounds();
+            if (current.width != bounds.width || current.height != bounds.height) {
+                throw new IOException("Journal expects " + layer + " to be "
+                        + bounds.width + "x" + bounds.height + " but it is "
+                        + current.width + "x" + current.height);
+            }
+            if (current.x != bounds.x || current.y != bounds.y) {
+                SurfaceImplementation surface = layer.getSurface();
+                if (surface == null) {
+                    throw new IOException("Cannot move " + layer + " to "
+                            + bounds.x + "," + bounds.y);
+                }
+                surface.setLocation(new Point(bounds.x, bounds.y));
+            }
+            if (!name.isEmpty()) {
+                layer.setName(name);
+            }
+            layer.setOpacity(opacity);
+            layer.setVisible(visible);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (o == this) {
+                return true;
+            } else if (!(o instanceof LayerState)) {
+                return false;
+            }
+            LayerState other = (LayerState) o;
+            return visible == other.visible
+                    && Float.floatToIntBits(opacity) == Float.floatToIntBits(other.opacity)
+                    && name.equals(other.name) && bounds.equals(other.bounds);
+        }
+
+        @Override
+        public int hashCode() {
+            return (31 * name.hashCode()) + bounds.hashCode()
+                    + Float.floatToIntBits(opacity) + (visible ? 1 : 0);
+        }
+    }
+
+    /**
+     * The journal's header, which identifies the file it applies to.
+     */
+    private static final class Header {
+
+        final byte base;
+        final long baseSize;
+        final long baseModified;
+        final int layerCount;
+
+        Header(byte base, long baseSize, long baseModified, int layerCount) {
+            this.base = base;
+            this.baseSize = baseSize;
+            this.baseModified = baseModified;
+            this.layerCount = layerCount;
+        }
+
+        static Header read(FileChannel channel) throws IOException {
+            ByteBuffer buf = ByteBuffer.allocate(HEADER_LENGTH);
+            if (!readFully(channel, buf)) {
+                return null;
+            }
+            if (buf.getInt() != JOURNAL_MAGIC || buf.get() != JOURNAL_REV) {
+                return null;
+            }
+            byte base = buf.get();
+            if (base != BASE_DOCUMENT && base != BASE_SNAPSHOT) {
+                return null;
+            }
+            return new Header(base, buf.getLong(), buf.getLong(), buf.getInt());
+        }
+
+        boolean matches(Path document, Path snapshot) throws IOException {
+            Path file = base == BASE_DOCUMENT ? document : snapshot;
+            return Files.exists(file) && Files.size(file) == baseSize
+                    && Files.getLastModifiedTime(file).toMillis() == baseModified;
+        }
+    }
+}
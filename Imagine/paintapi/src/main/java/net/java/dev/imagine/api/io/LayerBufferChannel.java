@@ -0,0 +1,158 @@
+package net.java.dev.imagine.api.io;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.WritableByteChannel;
+import net.java.dev.imagine.spi.io.InMemoryChannel;
+
+/**
+ * An in-memory channel holding the bytes of a single layer, so that layers
+ * can be encoded or decoded on other threads without sharing the file's
+ * channel, or decoded later from a memory-mapped view of the file.
+ * Positions are offset by a base, so a buffer holding bytes read from the
+ * middle of a file reports the same positions the file would.
+ *
+ * @author Tim Boudreau
+ */
+final class LayerBufferChannel implements InMemoryChannel {
+
+    private final long base;
+    private ByteBuffer data;
+    private int size;
+    private int cursor;
+    private boolean open = true;
+
+    LayerBufferChannel(long base, int initialCapacity) {
+        this.base = base;
+        this.data = ByteBuffer.allocate(initialCapacity);
+    }
+
+    LayerBufferChannel(long base, ByteBuffer contents) {
+        this.base = base;
+        this.data = contents.slice();
+        this.size = data.capacity();
+    }
+
+    private void checkOpen() throws IOException {
+        if (!open) {
+            throw new ClosedChannelException();
+        }
+    }
+
+    @Override
+    public int read(ByteBuffer dst) throws IOException {
+        checkOpen();
+        if (cursor >= size) {
+            return -1;
+        }
+        int count = Math.min(size - cursor, dst.remaining());
+        ByteBuffer src = data.duplicate();
+        src.limit(cursor + count).position(cursor);
+        dst.put(src);
+        cursor += count;
+        return count;
+    }
+
+    @Override
+    public int write(ByteBuffer src) throws IOException {
+        checkOpen();
+        if (data.isReadOnly()) {
+            throw new IOException("Read only: " + this);
+        }
+        int count = src.remaining();
+        int end = cursor + count;
+        if (end < 0) {
+            throw new IOException("Layer too large for buffer");
+        }
+        if (end > data.capacity()) {
+            ByteBuffer nue = ByteBuffer.allocate(Math.max(end,
+                    Math.min(Integer.MAX_VALUE - 8, data.capacity() * 2)));
+            ByteBuffer old = data.duplicate();
+            old.limit(size).position(0);
+            nue.put(old);
+            data = nue;
+        }
+        ByteBuffer dest = data.duplicate();
+        dest.limit(end).position(cursor);
+        dest.put(src);
+        cursor = end;
+        size = Math.max(size, end);
+        return count;
+    }
+
+    @Override
+    public long position() throws IOException {
+        return base + cursor;
+    }
+
+    @Override
+    public LayerBufferChannel position(long newPosition) throws IOException {
+        checkOpen();
+        long pos = newPosition - base;
+        if (pos < 0 || pos > size) {
+            throw new IOException("Position " + newPosition + " outside "
+                    + base + " to " + (base + size));
+        }
+        cursor = (int) pos;
+        return this;
+    }
+
+    @Override
+    public long size() throws IOException {
+        return base + size;
+    }
+
+    @Override
+    public LayerBufferChannel truncate(long newSize) throws IOException {
+        checkOpen();
+        long sz = Math.max(0, newSize - base);
+        if (sz < size) {
+            size = (int) sz;
+            cursor = Math.min(cursor, size);
+        }
+        return this;
+    }
+
+    @Override
+    public boolean isOpen() {
+        return open;
+    }
+
+    @Override
+    public void close() throws IOException {
+        open = false;
+    }
+
+    @Override
+    public ByteBuffer view(long position, int length) throws IOException {
+        long pos = position - base;
+        if (pos < 0 || length < 0 || pos + length > size) {
+            throw new IOException("Region " + position + " to " + (position + length)
+                    + " outside " + base + " to " + (base + size));
+        }
+        ByteBuffer result = data.asReadOnlyBuffer();
+        result.limit((int) pos + length).position((int) pos);
+        return result.slice();
+    }
+
+    /**
+     * Write the entire contents of this buffer to another channel.
+     *
+     * @param channel The channel
+     * @throws IOException If something goes wrong
+     */
+    void writeTo(WritableByteChannel channel) throws IOException {
+        ByteBuffer buf = data.duplicate();
+        buf.limit(size).position(0);
+        while (buf.hasRemaining()) {
+            channel.write(buf);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "LayerBufferChannel(" + base + " to " + (base + size) + " @ "
+                + (base + cursor) + ")";
+    }
+}
@@ -1,5 +1,6 @@
 package net.java.dev.imagine.api.io;
 
+import com.mastfrog.function.throwing.io.IOConsumer;
 import java.awt.Dimension;
 import java.awt.Rectangle;
 import java.io.IOException;
@@ -14,6 +15,7 @@ import java.util.Collection;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Future;
 import java.util.function.BiConsumer;
 import java.util.function.BiFunction;
 import java.util.function.Function;
@@ -22,10 +24,13 @@ import java.util.logging.Level;
 import java.util.logging.Logger;
 import net.java.dev.imagine.api.image.Picture;
 import static net.java.dev.imagine.api.io.SaveSupport.IO_REV;
+import static net.java.dev.imagine.api.io.SaveSupport.LAYER_IO;
+import static net.java.dev.imagine.api.io.SaveSupport.LAYER_IO_THREADS;
 import static net.java.dev.imagine.api.io.SaveSupport.LAYER_START_MARKER;
 import static net.java.dev.imagine.api.io.SaveSupport.MAGIC_1;
 import static net.java.dev.imagine.api.io.SaveSupport.MAGIC_2;
 import static net.java.dev.imagine.api.io.SaveSupport.applyLayerProperties;
+import static net.java.dev.imagine.api.io.SaveSupport.await;
 import net.java.dev.imagine.spi.image.LayerImplementation;
 import net.java.dev.imagine.spi.image.PictureImplementation;
 import net.java.dev.imagine.spi.io.LayerLoadHandler;
@@ -120,14 +125,32 @@ public abstract class LoadSupport<R extends RepaintHandle, D, I extends PictureI
     }
 
     public Picture open(Path path) throws IOException {
-        return load(path, true);
+        return load(path, true, true);
     }
 
     public Picture load(Path path, boolean open) throws IOException {
+        return load(path, open, false);
+    }
+
+    /**
+     * Load a picture from a file.
+     *
+     * @param path The file
+     * @param open Whether to open it in the editor
+     * @param lazy If true, layers whose handlers support it are created
+     * without decoding their content, which is decoded from a memory-mapped
+     * view of the file when first needed
+     * @return A picture
+     * @throws IOException If something goes wrong
+     */
+    public Picture load(Path path, boolean open, boolean lazy) throws IOException {
         try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
-            Picture result = doLoad(channel, open);
+            Picture result = doLoad(channel, open, lazy);
             if (result != null) {
                 result.associateFile(path);
+                if (open) {
+                    AutosaveJournal.start(result, path);
+                }
             }
             return result;
         }
@@ -137,7 +160,21 @@ public abstract class LoadSupport<R extends RepaintHandle, D, I extends PictureI
             int type,
             int layerCount, Dimension pictureSize,
             List<Long> layerPositions) throws IOException {
-        return defaultLoad(channel, type, layerCount, pictureSize, layerPositions);
+        return defaultLoad(channel, type, layerCount, pictureSize, layerPositions, false);
+    }
+
+    /**
+     * Load a picture, possibly deferring decoding of layer contents.  The
+     * default implementation calls the non-lazy variant if lazy is false.
+     */
+    protected <C extends ReadableByteChannel & SeekableByteChannel> I load(C channel,
+            int type,
+            int layerCount, Dimension pictureSize,
+            List<Long> layerPositions, boolean lazy) throws IOException {
+        if (!lazy) {
+            return load(channel, type, layerCount, pictureSize, layerPositions);
+        }
+        return defaultLoad(channel, type, layerCount, pictureSize, layerPositions, true);
     }
 
     public interface PictureFactory<R extends RepaintHandle, P, I extends PictureImplementation> {
@@ -151,6 +188,20 @@ public abstract class LoadSupport<R extends RepaintHandle, D, I extends PictureI
 
     static final <C extends ReadableByteChannel & SeekableByteChannel>
             Picture doLoad(C channel, boolean open) throws IOException {
+        return doLoad(channel, open, false);
+    }
+
+    static final <C extends ReadableByteChannel & SeekableByteChannel>
+            Picture doLoad(C channel, boolean open, boolean lazy) throws IOException {
+        return doLoad(channel, open, lazy, null);
+    }
+
+    /**
+     * Load a picture, passing it to a consumer before it is opened.
+     */
+    static final <C extends ReadableByteChannel & SeekableByteChannel>
+            Picture doLoad(C channel, boolean open, boolean lazy,
+                    IOConsumer<? super PictureImplementation> beforeOpen) throws IOException {
         long startPos = channel.position();
         int headBufferSize = 3 + (Integer.BYTES * 4);
         ByteBuffer head = ByteBuffer.allocate(headBufferSize);
@@ -205,15 +256,19 @@ public abstract class LoadSupport<R extends RepaintHandle, D, I extends PictureI
             if (ls.typeId() == type) {
                 long lpos = channel.position();
                 fine(() -> "Hand off layer reading to " + ls + " @ " + lpos);
-                return loadWithLoader(ls, channel, type, open, layerCount, pictureDim, layerPositions).getPicture();
+                return loadWithLoader(ls, channel, type, open, lazy, layerCount, pictureDim, layerPositions, beforeOpen).getPicture();
             }
         }
         throw new IOException("No LoadSupport recognizes type id " + type);
     }
 
     private static <C extends ReadableByteChannel & SeekableByteChannel, R extends RepaintHandle, D, I extends PictureImplementation>
-            I loadWithLoader(LoadSupport<R, D, I> ls, C channel, int type, boolean open, int layerCount, Dimension pictureDim, List<Long> layerPositions) throws IOException {
-        I result = ls.load(channel, type, layerCount, pictureDim, layerPositions);
+            I loadWithLoader(LoadSupport<R, D, I> ls, C channel, int type, boolean open, boolean lazy, int layerCount, Dimension pictureDim, List<Long> layerPositions,
+                    IOConsumer<? super PictureImplementation> beforeOpen) throws IOException {
+        I result = ls.load(channel, type, layerCount, pictureDim, layerPositions, lazy);
+        if (beforeOpen != null) {
+            beforeOpen.accept(result);
+        }
         if (open) {
             ls.open(result);
         }
@@ -224,7 +279,7 @@ public abstract class LoadSupport<R extends RepaintHandle, D, I extends PictureI
             C channel,
             int type,
             int layerCount, Dimension pictureSize,
-            List<Long> layerPositions) throws IOException {
+            List<Long> layerPositions, boolean lazy) throws IOException {
         info(() -> this + ".defaultLoad() type " + type + " layerCount " + layerCount
                 + " pictureSize " + pictureSize.width + "x" + pictureSize.height
                 + " layerPositions " + layerPositions);
@@ -241,78 +296,104 @@ public abstract class LoadSupport<R extends RepaintHandle, D, I extends PictureI
         finer(() -> "Starting load of layers at " + start + " by " + this);
         R repaintHandle = pictureFactory.newRepaintHandle(pictureSize, data);
         Map<String, String> hints = hints();
-        Rectangle r = new Rectangle();
-        for (int i = 0; i < layerCount; i++) {
-            int layerHeaderBytes = Integer.BYTES * 3;
-            int ix = i;
-            long layerStart = channel.position();
-            fine(() -> "Start reading layer " + ix + " @ " + layerStart
-                    + " reading " + layerHeaderBytes + " byte header");
-            ByteBuffer layerHeader = ByteBuffer.allocate(layerHeaderBytes);
-            channel.read(layerHeader);
-            layerHeader.flip();
-            long layerHeaderEnd = channel.position();
-            int startMarker = layerHeader.getInt();
-            if (startMarker != LAYER_START_MARKER) {
-                throw new IOException("Did not find layer start marker at "
-                        + channel.position() + " - got " + startMarker);
-            }
-            int layerIndex = layerHeader.getInt();
-            finer(() -> "Start marker " + startMarker
-                    + " ok. Checking layer index expecting " + layerIndex);
-            if (layerIndex != i) {
-                throw new IOException("Layer index " + layerIndex
-                        + " does not match current " + i);
-            }
-            int layerType = layerHeader.getInt();
-            fine(() -> "Layer index " + layerIndex + " ok. Layer type is " + layerType);
-            LayerLoadHandler h = null;
-            for (LayerLoadHandler handler : handlers) {
-                if (handler.recognizes(layerType)) {
-                    finer(() -> "Recog by " + handler);
-                    h = handler;
-                    break;
+        // Layers whose handlers can defer decoding their content are handed
+        // a memory-mapped view of just their own bytes, which they may keep
+        FileChannel mappable = lazy && channel instanceof FileChannel
+                ? (FileChannel) channel : null;
+        Map<String, String> deferredHints = new HashMap<>(hints);
+        deferredHints.put(LayerLoadHandler.DEFERRED_LOAD_HINT, "true");
+        // Layers whose handlers are thread-safe are read into memory and
+        // decoded in the background, while the calling thread moves on to
+        // the next layer using the offsets recorded in the file
+        boolean parallel = LAYER_IO_THREADS > 1 && layerCount > 1;
+        List<Future<LayerImplementation>> decoding = new ArrayList<>(layerCount);
+        List<LayerBufferChannel> buffers = new ArrayList<>(layerCount);
+        try {
+            for (int i = 0; i < layerCount; i++) {
+                int ix = i;
+                long layerStart = layerPositions.get(i);
+                if (channel.position() != layerStart) {
+                    channel.position(layerStart);
+                }
+                int layerType = readLayerHeader(i, channel);
+                long layerHeaderEnd = channel.position();
+                LayerLoadHandler h = handlerFor(layerType, handlers);
+                long len;
+                if (i < layerCount - 1) {
+                    len = layerPositions.get(i + 1) - layerPositions.get(i);
+                    finer(() -> "Expected layer data length based on index: " + len);
+                } else {
+                    len = (channel.size() - Integer.BYTES) - layerPositions.get(i);
+                    finer(() -> "Expected layer data length based on stream position: "
+                            + len);
+                }
+                long remaining = len - (layerHeaderEnd - layerStart);
+                if (mappable != null && h.supportsDeferredLoading() && remaining > 0
+                        && remaining <= Integer.MAX_VALUE) {
+                    ByteBuffer mapped = mappable.map(FileChannel.MapMode.READ_ONLY,
+                            layerHeaderEnd, remaining);
+                    LayerBufferChannel view = new LayerBufferChannel(layerHeaderEnd, mapped);
+                    fine(() -> "Hand off deferred layer loading to " + h + " for " + view);
+                    LayerImplementation layer = h.loadLayer(layerType, len, view, repaintHandle, deferredHints);
+                    applyLayerProperties(i, layer, view);
+                    layers.add(layer);
+                    buffers.add(null);
+                    decoding.add(null);
+                    channel.position(layerStart + len);
+                } else if (parallel && h.isThreadSafe() && remaining > 0
+                        && remaining <= Integer.MAX_VALUE - 8) {
+                    ByteBuffer bytes = ByteBuffer.allocate((int) remaining);
+                    while (bytes.hasRemaining()) {
+                        if (channel.read(bytes) < 0) {
+                            throw new IOException("Unexpected end of file reading layer "
+                                    + i + " at " + channel.position());
+                        }
+                    }
+                    LayerBufferChannel buffer = new LayerBufferChannel(layerHeaderEnd, (ByteBuffer) bytes.flip());
+                    fine(() -> "Hand off layer loading to " + h + " in background for "
+                            + buffer);
+                    buffers.add(buffer);
+                    decoding.add(LAYER_IO.submit(()
+                            -> (LayerImplementation) h.loadLayer(layerType, len, buffer, repaintHandle, hints)));
                 } else {
-                    finer(() -> "Layer type " + layerType
-                            + " not recognized by " + handler);
+                    fine(() -> "Hand off layer loading to " + h + " at "
+                            + layerHeaderEnd);
+                    LayerImplementation layer = h.loadLayer(layerType, len, channel, repaintHandle, hints);
+                    long lpStart = channel.position();
+                    finer(() -> "Loaded layer " + ix + " (" + layer
+                            + ") successfully using " + h
+                            + ". Will read standard layer properties @ "
+                            + lpStart);
+                    applyLayerProperties(i, layer, channel);
+                    layers.add(layer);
+                    buffers.add(null);
+                    decoding.add(null);
                 }
             }
-            if (h == null) {
-                info(() -> "Uh oh. No LayerLoad handler recogizes layer type "
-                        + layerType + ", out of " + handlers + ". Cannot "
-                        + "load this stream.");
-                // XXX - the right way to do this would be to simply
-                // create a dummy layer type which is undisplayable but
-                // preserves the bytes from the unreadable layer, and
-                // writes them back out in the same position on save,
-                // so that files with unreadable layers could be edited
-                // without destroying data.
-                throw new IOException("No layer handler recognizes layer type "
-                        + layerType);
+            for (int i = 0; i < layerCount; i++) {
+                Future<LayerImplementation> pending = decoding.get(i);
+                if (pending == null) {
+                    continue;
+                }
+                LayerImplementation layer = await(pending);
+                decoding.set(i, null);
+                LayerBufferChannel buffer = buffers.get(i);
+                int ix = i;
+                finer(() -> "Loaded layer " + ix + " (" + layer
+                        + ") in background. Will read standard layer properties @ "
+                        + buffer);
+                applyLayerProperties(i, layer, buffer);
+                layers.add(i, layer);
             }
-            long len;
-            if (i < layerCount - 1) {
-                len = layerPositions.get(i + 1) - layerPositions.get(i);
-                finer(() -> "Expected layer data length based on index: " + len);
-            } else {
-                len = (channel.size() - Integer.BYTES) - layerPositions.get(i);
-                finer(() -> "Expected layer data length based on stream position: "
-                        + len);
+        } finally {
+            for (Future<?> f : decoding) {
+                if (f != null) {
+                    f.cancel(true);
+                }
             }
-            LayerLoadHandler theHandler = h;
-            fine(() -> "Hand off layer loading to " + theHandler + " at "
-                    + layerHeaderEnd);
-            LayerImplementation layer = h.loadLayer(layerType, len, channel, repaintHandle, hints);
-            layers.add(layer);
-            long lpStart = channel.position();
-            finer(() -> "Loaded layer " + ix + " (" + layer
-                    + ") successfully using " + theHandler
-                    + ". Will read standard layer properties @ "
-                    + lpStart);
-            applyLayerProperties(i, layers.get(i), channel);
-            long lpEnd = channel.position();
-            finer(() -> "After standard layer properties load, stream position "
-                    + lpEnd);
+        }
+        Rectangle r = new Rectangle();
+        for (LayerImplementation layer : layers) {
             Rectangle bds = layer.getBounds();
             if (r.isEmpty()) {
                 r.setFrame(bds);
@@ -345,4 +426,53 @@ public abstract class LoadSupport<R extends RepaintHandle, D, I extends PictureI
         }
         return result;
     }
+
+    private static <C extends ReadableByteChannel & SeekableByteChannel> int readLayerHeader(int i, C channel) throws IOException {
+        int layerHeaderBytes = Integer.BYTES * 3;
+        long layerStart = channel.position();
+        fine(() -> "Start reading layer " + i + " @ " + layerStart
+                + " reading " + layerHeaderBytes + " byte header");
+        ByteBuffer layerHeader = ByteBuffer.allocate(layerHeaderBytes);
+        channel.read(layerHeader);
+        layerHeader.flip();
+        int startMarker = layerHeader.getInt();
+        if (startMarker != LAYER_START_MARKER) {
+            throw new IOException("Did not find layer start marker at "
+                    + channel.position() + " - got " + startMarker);
+        }
+        int layerIndex = layerHeader.getInt();
+        finer(() -> "Start marker " + startMarker
+                + " ok. Checking layer index expecting " + layerIndex);
+        if (layerIndex != i) {
+            throw new IOException("Layer index " + layerIndex
+                    + " does not match current " + i);
+        }
+        int layerType = layerHeader.getInt();
+        fine(() -> "Layer index " + layerIndex + " ok. Layer type is " + layerType);
+        return layerType;
+    }
+
+    private static LayerLoadHandler handlerFor(int layerType,
+            Collection<? extends LayerLoadHandler> handlers) throws IOException {
+        for (LayerLoadHandler handler : handlers) {
+            if (handler.recognizes(layerType)) {
+                finer(() -> "Recog by " + handler);
+                return handler;
+            } else {
+                finer(() -> "Layer type " + layerType
+                        + " not recognized by " + handler);
+            }
+        }
+        info(() -> "Uh oh. No LayerLoad handler recogizes layer type "
+                + layerType + ", out of " + handlers + ". Cannot "
+                + "load this stream.");
+        // XXX - the right way to do this would be to simply
+        // create a dummy layer type which is undisplayable but
+        // preserves the bytes from the unreadable layer, and
+        // writes them back out in the same position on save,
+        // so that files with unreadable layers could be edited
+        // without destroying data.
+        throw new IOException("No layer handler recognizes layer type "
+                + layerType);
+    }
 }
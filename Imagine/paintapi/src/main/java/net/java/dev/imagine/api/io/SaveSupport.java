@@ -8,6 +8,7 @@ package net.java.dev.imagine.api.io;
 import com.mastfrog.function.state.Obj;
 import java.awt.Dimension;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
 import java.nio.channels.ReadableByteChannel;
@@ -18,20 +19,25 @@ import java.nio.file.Path;
 import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 import java.util.function.Supplier;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import net.java.dev.imagine.Accessor;
+import net.java.dev.imagine.api.image.Hibernator;
 import net.java.dev.imagine.api.image.Picture;
 import net.java.dev.imagine.spi.image.LayerImplementation;
 import net.java.dev.imagine.spi.image.PictureImplementation;
 import net.java.dev.imagine.spi.io.LayerSaveHandler;
 import org.openide.util.Lookup;
+import org.openide.util.RequestProcessor;
 
 /**
  *
@@ -48,6 +54,13 @@ public abstract class SaveSupport<P, I extends PictureImplementation> {
     private final int typeId;
     private final String ext;
     private static final Logger LOG = Logger.getLogger(SaveSupport.class.getName());
+    /**
+     * Pool used to encode and decode layers whose handlers are thread-safe
+     * concurrently.
+     */
+    static final int LAYER_IO_THREADS = Runtime.getRuntime().availableProcessors();
+    static final RequestProcessor LAYER_IO = new RequestProcessor("Layer IO",
+            LAYER_IO_THREADS, true);
 
     static {
         LOG.setLevel(Level.FINER);
@@ -125,14 +138,18 @@ public abstract class SaveSupport<P, I extends PictureImplementation> {
             fine(() -> "Try save support " + supp + " can save? " + canSave + " ext " + supp.ext + " path " + path
                     + " ext matches " + extMatches);
             if (canSave && extMatches) {
-                return supp.doSave(picture, path);
+                long result = supp.doSave(picture, path);
+                AutosaveJournal.saved(picture, path);
+                return result;
             }
         }
         if (last.isSet()) {
             SaveSupport supp = last.get();
             Path pth = path.getParent().resolve(path.getFileName() + "." + supp.ext);
             fine(() -> "Try save support " + supp + " with added extension " + supp.ext + " path " + pth);
-            return supp.doSave(picture, pth);
+            long result = supp.doSave(picture, pth);
+            AutosaveJournal.saved(picture, pth);
+            return result;
         }
         throw new IOException("No SaveSupport can save " + Accessor.pictureImplFor(picture)
                 + " to the file extension of " + path + ". Available extensions: " + avail);
@@ -181,6 +198,15 @@ public abstract class SaveSupport<P, I extends PictureImplementation> {
      * @throws IOException If something goes wrong
      */
     private long doSave(Picture picture, Path path) throws IOException {
+        // Layers loaded lazily from this file may still be reading their
+        // content from a memory-mapped view of it, which truncating the
+        // file would invalidate
+        for (LayerImplementation layer : Accessor.pictureImplFor(picture).getLayers()) {
+            Hibernator hib = layer.getLookup().lookup(Hibernator.class);
+            if (hib != null) {
+                hib.wakeup(true, null);
+            }
+        }
         try (FileChannel out = FileChannel.open(path, StandardOpenOption.WRITE, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)) {
             return callSaveImpl(picture, out);
         }
@@ -198,137 +224,330 @@ public abstract class SaveSupport<P, I extends PictureImplementation> {
     }
 
     private final <C extends WritableByteChannel & SeekableByteChannel> long defaultSaveImpl(I picture, C c) throws IOException {
-        long initialPosition = c.position();
-        int headLength = 3 + (Integer.BYTES * 4);
-        fine(() -> "Start write at " + initialPosition + " ready " + headLength + " bytes");
-        try {
-            List<LayerImplementation> layers = picture.getLayers();
-            // 1.  Write the file header:
-            //  - Two bytes magic number
-            //  - One byte save support file type revision
-            //  - One int - the id of this loader for lookup on load attempts
-            //  - One int - The layer count
-            //  - Two ints - The width and height of the picture
-            //    (layers may be larger - the visual window)
-
-            ByteBuffer buf = ByteBuffer.allocate(headLength);
-            buf.put(MAGIC_1);
-            buf.put(MAGIC_2);
-            buf.put(IO_REV);
-            buf.putInt(typeId());
-            buf.putInt(layers.size());
-            Dimension sz = picture.getSize();
-            buf.putInt(sz.width);
-            buf.putInt(sz.height);
-            buf.flip();
-            c.write(buf);
-
-            // For error recovery (so one layer loader can fail without the file
-            // being completely unopenable), we will record the file-offset of
-            // each layer here; for now we just write zeros, then seek backward
-            // to layerInfoPosition after all layers have been written and
-            // rewrite this section
-            long layerInfoPosition = c.position();
-            // Write placeholders - we go back and overwrite with real data later
-            int layerInfoLength = Long.BYTES * layers.size();
-            ByteBuffer layerInfo = ByteBuffer.allocate(layerInfoLength);
-            finer(() -> "Will write initial info at " + layerInfoPosition + " of " + layerInfoLength + " bytes");
-            for (int i = 0; i < layers.size(); i++) {
-                layerInfo.putLong(0);
+        return new PictureWriter(picture, false).writeTo(c);
+    }
+
+    /**
+     * Capture a picture on the event thread, so that it can be encoded and
+     * written later on a background thread while it goes on being edited.
+     * Layers whose save handlers can snapshot them are captured copy-on-write
+     * and encoded when the result is written;  the rest are encoded now.
+     * The result is always in the default format, whether or not the
+     * SaveSupport overrides saveImpl().
+     *
+     * @param picture The picture
+     * @return A writer for the picture as it is now
+     * @throws IOException If no SaveSupport can save the picture, or a layer
+     * cannot be saved
+     */
+    static SaveSupport<?, ?>.PictureWriter snapshot(Picture picture) throws IOException {
+        for (SaveSupport<?, ?> supp : Lookup.getDefault().lookupAll(SaveSupport.class)) {
+            if (supp.canSavePicture(picture)) {
+                return supp.callSnapshotImpl(picture);
             }
-            layerInfo.flip();
-            c.write(layerInfo);
-
-            // The picture type may have its own data that it wants to save;
-            // Do that here.
-            P data = saveCustomData(picture, c);
-            finer(() -> "Saved custom data " + data);
-
-            // A list to collect layer file offsets in for later overwriting
-            // at layerInfoPosition
-            List<Long> layerPositions = new ArrayList<>();
-            long lastLayerEnd = 0;
-
-            // Hints allow customization of the file format for future-proofing,
-            // such as signalling to save in an older version, JSON, whatever
-            Map<String, String> hints = hints();
-            // Now write each layer in order
-            for (int i = 0; i < layers.size(); i++) {
-                LayerImplementation layer = layers.get(i);
-                // The layer must have a LayerSaveHandler that can write it to
-                // the file
+        }
+        throw new IOException("Could not find an installed SaveSupport that "
+                + "can save " + Accessor.pictureImplFor(picture));
+    }
+
+    private PictureWriter callSnapshotImpl(Picture picture) throws IOException {
+        return new PictureWriter(implType.cast(Accessor.pictureImplFor(picture)), true);
+    }
+
+    /**
+     * A picture captured for writing - its size, custom data and layers -
+     * which writes it in the default format.
+     */
+    final class PictureWriter {
+
+        private final I picture;
+        private final Dimension size;
+        private final int activeLayer;
+        private final List<LayerWriter> layers;
+        // Hints allow customization of the file format for future-proofing,
+        // such as signalling to save in an older version, JSON, whatever
+        private final Map<String, String> hints = hints();
+        // For snapshots, the custom data encoded when the picture was captured
+        private final LayerBufferChannel customData;
+
+        PictureWriter(I picture, boolean snapshot) throws IOException {
+            List<LayerImplementation> all = picture.getLayers();
+            size = picture.getSize();
+            activeLayer = all.indexOf(picture.getActiveLayer());
+            layers = new ArrayList<>(all.size());
+            // Each layer must have a LayerSaveHandler that can write it to
+            // the file
+            for (int i = 0; i < all.size(); i++) {
+                LayerImplementation layer = all.get(i);
                 LayerSaveHandler h = layer.getLookup().lookup(LayerSaveHandler.class);
                 if (h == null) {
                     // Future - warn the user and offer to continue?
                     throw new IOException("Layer " + layer + " does not support saving");
                 }
-                long start = c.position();
-                int ix = i;
-                layerPositions.add(start);
-                // Write the layer header, including some sanity-checking
-                // information
-                // a. One int - layer start marker - if missing, the file is
-                //    corrupt
-                // b. This layer's index, as an additional integrity check
-                // c. The type id of this layer loader, to look up the right one
-                //    when loading
-                int layerHeaderLength = Integer.BYTES * 3;
-                ByteBuffer layerHeader = ByteBuffer.allocate(layerHeaderLength);
-                finer(() -> "Begin layer " + ix + " header of "
-                        + layerHeaderLength + " bytes @ " + start);
-                layerHeader.putInt(LAYER_START_MARKER);
-                layerHeader.putInt(i);
-                layerHeader.putInt(h.layerTypeId());
-                layerHeader.flip();
-                c.write(layerHeader);
-                // Now we hand off writing of the file to the layer writer
-                long writerStart = c.position();
-                fine(() -> "Hand off layer writing to " + h + " @ " + writerStart);
-                h.saveTo(layer, c, hints);
-                // Ensure the layer writer didn't seek the stream somewhere
-                // weird
-                if (c.position() < lastLayerEnd) {
-                    throw new IOException("Layer saver " + h + " repositioned stream");
+                layers.add(new LayerWriter(i, layer, h, snapshot, hints));
+            }
+            if (snapshot) {
+                this.picture = null;
+                customData = new LayerBufferChannel(0, 256);
+                P data = saveCustomData(picture, customData);
+                finer(() -> "Captured custom data " + data);
+            } else {
+                this.picture = picture;
+                customData = null;
+            }
+        }
+
+        <C extends WritableByteChannel & SeekableByteChannel> long writeTo(C c) throws IOException {
+            long initialPosition = c.position();
+            int headLength = 3 + (Integer.BYTES * 4);
+            fine(() -> "Start write at " + initialPosition + " ready " + headLength + " bytes");
+            try {
+                // 1.  Write the file header:
+                //  - Two bytes magic number
+                //  - One byte save support file type revision
+                //  - One int - the id of this loader for lookup on load attempts
+                //  - One int - The layer count
+                //  - Two ints - The width and height of the picture
+                //    (layers may be larger - the visual window)
+
+                ByteBuffer buf = ByteBuffer.allocate(headLength);
+                buf.put(MAGIC_1);
+                buf.put(MAGIC_2);
+                buf.put(IO_REV);
+                buf.putInt(typeId());
+                buf.putInt(layers.size());
+                buf.putInt(size.width);
+                buf.putInt(size.height);
+                buf.flip();
+                c.write(buf);
+
+                // For error recovery (so one layer loader can fail without the file
+                // being completely unopenable), we will record the file-offset of
+                // each layer here; for now we just write zeros, then seek backward
+                // to layerInfoPosition after all layers have been written and
+                // rewrite this section
+                long layerInfoPosition = c.position();
+                // Write placeholders - we go back and overwrite with real data later
+                int layerInfoLength = Long.BYTES * layers.size();
+                ByteBuffer layerInfo = ByteBuffer.allocate(layerInfoLength);
+                finer(() -> "Will write initial info at " + layerInfoPosition + " of " + layerInfoLength + " bytes");
+                for (int i = 0; i < layers.size(); i++) {
+                    layerInfo.putLong(0);
                 }
-                if (c.position() <= writerStart) {
-                    throw new IOException("Layer saver " + h + " repositioned stream");
+                layerInfo.flip();
+                c.write(layerInfo);
+
+                // The picture type may have its own data that it wants to save;
+                // Do that here.
+                if (customData != null) {
+                    customData.writeTo(c);
+                } else {
+                    P data = saveCustomData(picture, c);
+                    finer(() -> "Saved custom data " + data);
                 }
-                long lle = c.position();
-                finer(() -> "Return from " + h + " @ " + lle + " having written " + (lle - start) + " bytes");
 
-                // Save generic layer properties (visibility, opacity, name if assigned)
-                long layerPropsStart = c.position();
-                finer(() -> "Save standard layer properties for " + layer + " @ " + layerPropsStart);
-                saveLayerProperties(i, layer, c);
+                // A list to collect layer file offsets in for later overwriting
+                // at layerInfoPosition
+                List<Long> layerPositions = new ArrayList<>();
+                int threadSafe = 0;
+                for (LayerWriter layer : layers) {
+                    if (layer.isThreadSafe()) {
+                        threadSafe++;
+                    }
+                }
+                // If more than one layer can be encoded concurrently, encode
+                // those into memory in the background, and write each one out
+                // when its turn comes.  No more layers than there are threads
+                // are encoding or waiting to be written at any time, so only
+                // that many encoded layers are held in memory at once
+                boolean parallel = LAYER_IO_THREADS > 1 && threadSafe > 1;
+                List<Future<LayerBufferChannel>> encoded
+                        = new ArrayList<>(Collections.nCopies(layers.size(), null));
+                int submitted = 0;
+                int inFlight = 0;
+                try {
+                    for (int i = 0; i < layers.size(); i++) {
+                        while (parallel && submitted < layers.size() && inFlight < LAYER_IO_THREADS) {
+                            if (layers.get(submitted).isThreadSafe()) {
+                                int ix = submitted;
+                                LayerWriter layer = layers.get(ix);
+                                encoded.set(ix, LAYER_IO.submit(() -> {
+                                    LayerBufferChannel buffer = new LayerBufferChannel(0, 8192);
+                                    writeLayer(ix, layer, buffer, hints);
+                                    return buffer;
+                                }));
+                                inFlight++;
+                            }
+                            submitted++;
+                        }
+                        long start = c.position();
+                        layerPositions.add(start);
+                        Future<LayerBufferChannel> pending = encoded.get(i);
+                        LayerWriter layer = layers.get(i);
+                        if (pending != null) {
+                            LayerBufferChannel buffer = await(pending);
+                            int ix = i;
+                            finer(() -> "Write layer " + ix + " encoded in background as "
+                                    + buffer + " @ " + start);
+                            buffer.writeTo(c);
+                            encoded.set(i, null);
+                            inFlight--;
+                        } else if (layer.encoded != null) {
+                            layer.encoded.writeTo(c);
+                        } else {
+                            writeLayer(i, layer, c, hints);
+                        }
+                    }
+                } finally {
+                    for (Future<?> f : encoded) {
+                        if (f != null) {
+                            f.cancel(true);
+                        }
+                    }
+                }
+                // Lastly, save the index of the active layer
+                long tailStart = c.position();
+                ByteBuffer tail = ByteBuffer.allocate(Integer.BYTES);
+                finer(() -> "Write tail @ " + tailStart + " of " + tail.capacity() + " bytes");
+                tail.putInt(activeLayer);
+                tail.flip();
+                c.write(tail);
+                long tailEnd = c.position();
+                finer(() -> "End of data at " + tailEnd + " rewinding to " + layerInfoPosition + " to update layer offset table");
+                // Now go back and overwrite the layer file offsets now that we know
+                // what they are
+                layerInfo.rewind();
+                for (int i = 0; i < layers.size(); i++) {
+                    layerInfo.putLong(layerPositions.get(i));
+                }
+                layerInfo.flip();
+                c.position(layerInfoPosition);
+                c.write(layerInfo);
+                c.position(tailEnd);
+                return tailEnd;
+            } catch (IOException | RuntimeException | Error ioe) {
+                // try to restore the stream state
+                if (c.isOpen()) {
+                    c.position(initialPosition);
+                }
+                throw ioe;
+            }
+        }
+    }
 
-                lastLayerEnd = lle;
+    /**
+     * One layer as it is to be written:  the layer itself, a snapshot of it
+     * which can be encoded on any thread, or - for snapshots of layers which
+     * can only be saved on the event thread - its encoded bytes.  The
+     * generic layer properties are read when it is created.
+     */
+    private static final class LayerWriter {
+
+        private final LayerImplementation layer;
+        private final LayerSaveHandler handler;
+        private final LayerSaveHandler.Snapshot snapshot;
+        private final String name;
+        private final float opacity;
+        private final boolean visible;
+        private final LayerBufferChannel encoded;
+
+        @SuppressWarnings("unchecked")
+        LayerWriter(int index, LayerImplementation layer, LayerSaveHandler handler,
+                boolean snapshot, Map<String, String> hints) throws IOException {
+            this.layer = layer;
+            this.handler = handler;
+            this.snapshot = snapshot ? handler.snapshot(layer) : null;
+            name = layer.getName();
+            opacity = layer.getOpacity();
+            visible = layer.isVisible();
+            if (snapshot && this.snapshot == null) {
+                LayerBufferChannel buffer = new LayerBufferChannel(0, 8192);
+                writeLayer(index, this, buffer, hints);
+                encoded = buffer;
+            } else {
+                encoded = null;
             }
-            // Lastly, save the index of the active layer
-            long tailStart = c.position();
-            ByteBuffer tail = ByteBuffer.allocate(Integer.BYTES);
-            finer(() -> "Write tail @ " + tailStart + " of " + tail.capacity() + " bytes");
-            tail.putInt(layers.indexOf(picture.getActiveLayer()));
-            tail.flip();
-            c.write(tail);
-            long tailEnd = c.position();
-            finer(() -> "End of data at " + tailEnd + " rewinding to " + layerInfoPosition + " to update layer offset table");
-            // Now go back and overwrite the layer file offsets now that we know
-            // what they are
-            layerInfo.rewind();
-            for (int i = 0; i < layers.size(); i++) {
-                layerInfo.putLong(layerPositions.get(i));
+        }
+
+        boolean isThreadSafe() {
+            return encoded == null && (snapshot != null || handler.isThreadSafe());
+        }
+
+        @SuppressWarnings("unchecked")
+        <C extends WritableByteChannel & SeekableByteChannel> void saveContent(C c, Map<String, String> hints) throws IOException {
+            if (snapshot != null) {
+                snapshot.saveTo(c, hints);
+            } else {
+                handler.saveTo(layer, c, hints);
             }
-            layerInfo.flip();
-            c.position(layerInfoPosition);
-            c.write(layerInfo);
-            c.position(tailEnd);
-            return tailEnd;
-        } catch (IOException | RuntimeException | Error ioe) {
-            // try to restore the stream state
-            if (c.isOpen()) {
-                c.position(initialPosition);
+        }
+
+        @Override
+        public String toString() {
+            return snapshot != null ? "Snapshot of " + layer : layer.toString();
+        }
+    }
+
+    /**
+     * Write one layer, with its header and generic properties, to a channel.
+     */
+    private static <C extends WritableByteChannel & SeekableByteChannel> void writeLayer(int i,
+            LayerWriter layer, C c, Map<String, String> hints) throws IOException {
+        long start = c.position();
+        LayerSaveHandler h = layer.handler;
+        // Write the layer header, including some sanity-checking
+        // information
+        // a. One int - layer start marker - if missing, the file is
+        //    corrupt
+        // b. This layer's index, as an additional integrity check
+        // c. The type id of this layer loader, to look up the right one
+        //    when loading
+        int layerHeaderLength = Integer.BYTES * 3;
+        ByteBuffer layerHeader = ByteBuffer.allocate(layerHeaderLength);
+        finer(() -> "Begin layer " + i + " header of "
+                + layerHeaderLength + " bytes @ " + start);
+        layerHeader.putInt(LAYER_START_MARKER);
+        layerHeader.putInt(i);
+        layerHeader.putInt(h.layerTypeId());
+        layerHeader.flip();
+        c.write(layerHeader);
+        // Now we hand off writing of the file to the layer writer
+        long writerStart = c.position();
+        fine(() -> "Hand off layer writing to " + h + " @ " + writerStart);
+        layer.saveContent(c, hints);
+        // Ensure the layer writer didn't seek the stream somewhere
+        // weird
+        if (c.position() <= writerStart) {
+            throw new IOException("Layer saver " + h + " repositioned stream");
+        }
+        long lle = c.position();
+        finer(() -> "Return from " + h + " @ " + lle + " having written " + (lle - start) + " bytes");
+
+        // Save generic layer properties (visibility, opacity, name if assigned)
+        finer(() -> "Save standard layer properties for " + layer + " @ " + lle);
+        saveLayerProperties(i, layer.name, layer.opacity, layer.visible, c);
+    }
+
+    /**
+     * Wait for a layer being encoded or decoded in the background, rethrowing
+     * whatever it failed with.
+     */
+    static <T> T await(Future<T> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for " + future);
+        } catch (ExecutionException ex) {
+            Throwable cause = ex.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
             }
-            throw ioe;
+            throw new IOException(cause);
         }
     }
 
@@ -390,12 +609,12 @@ public abstract class SaveSupport<P, I extends PictureImplementation> {
         layer.setVisible(visible);
     }
 
-    static <C extends WritableByteChannel & SeekableByteChannel> void saveLayerProperties(int layerIndex, LayerImplementation layer, C c) throws IOException {
-        byte[] bts = layer.getName().getBytes(UTF_8);
+    static <C extends WritableByteChannel & SeekableByteChannel> void saveLayerProperties(int layerIndex, String name, float opacity, boolean visible, C c) throws IOException {
+        byte[] bts = name.getBytes(UTF_8);
         // Compute the section length
         int length = Float.BYTES + 1 + bts.length + (Integer.BYTES * 2);
         long start = c.position();
-        fine(() -> "Save generic layer properties for layer " + layerIndex + " (" + layer + ") of length " + length + " @ " + start);
+        fine(() -> "Save generic layer properties for layer " + layerIndex + " (" + name + ") of length " + length + " @ " + start);
         // Write the info:
         // 1. 1-int - layer start marker sanity check
         // 2. 1-float - opacity
@@ -405,8 +624,8 @@ public abstract class SaveSupport<P, I extends PictureImplementation> {
         ByteBuffer buf = ByteBuffer.allocate(length + Integer.BYTES);
         buf.putInt(length);
         buf.putInt(LAYER_PROPS_MARKER);
-        buf.putFloat(layer.getOpacity());
-        buf.put(layer.isVisible() ? 1 : (byte) 0);
+        buf.putFloat(opacity);
+        buf.put(visible ? 1 : (byte) 0);
         buf.putInt(bts.length);
         buf.put(bts);
         buf.flip();
@@ -59,6 +59,7 @@ public abstract class AbstractPictureImplementation extends PictureImplementatio
     private final ChangeSupport changes = new ChangeSupport(this);
     private final UndoSupport undoables = new UndoSupport(
             changes::fireChange, this::state);
+    private LayerCompositeCache compositeCache;
 
     protected AbstractPictureImplementation(Dimension dim) {
         state.get().setSize(dim);
@@ -95,6 +96,29 @@ public abstract class AbstractPictureImplementation extends PictureImplementatio
         return false;
     }
 
+    /**
+     * Get the cache of flattened images of the layers above and below the
+     * active layer, for use when painting for editing.
+     *
+     * @return The cache
+     */
+    public final synchronized LayerCompositeCache compositeCache() {
+        if (compositeCache == null) {
+            compositeCache = createCompositeCache();
+        }
+        return compositeCache;
+    }
+
+    /**
+     * Create the composite cache; the default implementation caches only
+     * layers which are not resolution independent.
+     *
+     * @return A cache
+     */
+    protected LayerCompositeCache createCompositeCache() {
+        return new LayerCompositeCache(layer -> !layer.isResolutionIndependent());
+    }
+
     protected final void updateSize(Dimension dim) {
         state().setSize(dim);
     }
@@ -388,6 +412,13 @@ public abstract class AbstractPictureImplementation extends PictureImplementatio
         if (hibernated.compareAndSet(!val, val)) {
             Runnable doit = () -> {
                 if (val) {
+                    LayerCompositeCache cache;
+                    synchronized (this) {
+                        cache = compositeCache;
+                    }
+                    if (cache != null) {
+                        cache.dispose();
+                    }
                     onHibernate();
                 }
                 try {
@@ -0,0 +1,358 @@
+package net.java.dev.imagine.spi.image.support;
+
+import java.awt.AlphaComposite;
+import java.awt.Cursor;
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.Shape;
+import java.awt.geom.Area;
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Predicate;
+import net.java.dev.imagine.spi.image.LayerImplementation;
+import org.imagine.utils.painting.RepaintHandle;
+
+/**
+ * Caches pre-flattened images of the layers below and above the active
+ * layer, so that repainting while the user edits the active layer composites
+ * three surfaces rather than every layer in the picture.
+ * <p>
+ * The cache attaches a repaint handle to each layer it has seen; repaints
+ * requested by any layer other than the active one mark the affected region
+ * of the flattened image containing it as dirty, and only that region is
+ * re-rendered on the next paint.  Repaint regions are expected in picture
+ * coordinates, as layers report them to their repaint handles; a region
+ * with a negative width or height dirties the whole image.  Changes in the order, visibility, opacity
+ * or bounds of the layers in a group cause that group to be re-rendered in
+ * full.  Groups which contain layers the predicate passed to the constructor
+ * rejects (such as resolution-independent layers, which should be rendered
+ * at the current zoom) are never cached, and are painted layer by layer as
+ * before.
+ *
+ * @author Tim Boudreau
+ */
+public final class LayerCompositeCache {
+
+    private final Predicate<? super LayerImplementation> cacheable;
+    private final Map<LayerImplementation, Tracker> trackers = new IdentityHashMap<>();
+    private final Group below = new Group();
+    private final Group above = new Group();
+    private LayerImplementation active;
+
+    public LayerCompositeCache(Predicate<? super LayerImplementation> cacheable) {
+        this.cacheable = cacheable;
+    }
+
+    /**
+     * Paints a layer, however the caller would normally paint it.
+     */
+    @FunctionalInterface
+    public interface LayerPainter {
+
+        void paint(LayerImplementation layer, Graphics2D g);
+    }
+
+    /**
+     * Paint all of the passed layers, using flattened images for those below
+     * and above the active layer where possible.
+     *
+     * @param g The graphics context
+     * @param layers The layers, bottom-most first
+     * @param activeLayer The active layer, or null
+     * @param painter Paints individual layers
+     * @return true if any flattened image was painted
+     */
+    public synchronized boolean paint(Graphics2D g, List<? extends LayerImplementation> layers,
+            LayerImplementation activeLayer, LayerPainter painter) {
+        int activeIndex = sync(layers, activeLayer);
+        boolean result = paintGroup(below, g, layers.subList(0, activeIndex), painter);
+        if (activeIndex < layers.size()) {
+            painter.paint(layers.get(activeIndex), g);
+            result |= paintGroup(above, g, layers.subList(activeIndex + 1, layers.size()), painter);
+        }
+        return result;
+    }
+
+    /**
+     * For user interfaces which paint each layer separately, in order:  paint
+     * on behalf of one layer, if it is part of a flattened group.  Each
+     * visible member of a group paints the part of the group's flattened
+     * image which lies within its own bounds and outside those of the
+     * visible members below it, so every part of the image is painted
+     * exactly once, by a layer whose bounds contain it - whichever layers
+     * the user interface repaints.
+     *
+     * @param layer The layer about to be painted
+     * @param g The graphics context
+     * @param layers All layers in the picture, bottom-most first
+     * @param activeLayer The active layer, or null
+     * @param painter Paints individual layers
+     * @return true if the caller should not paint the layer itself
+     */
+    public synchronized boolean paintInPlaceOf(LayerImplementation layer, Graphics2D g,
+            List<? extends LayerImplementation> layers, LayerImplementation activeLayer,
+            LayerPainter painter) {
+        int activeIndex = sync(layers, activeLayer);
+        int ix = layers.indexOf(layer);
+        if (ix < 0 || ix == activeIndex) {
+            return false;
+        }
+        Group group;
+        List<? extends LayerImplementation> members;
+        if (ix < activeIndex) {
+            group = below;
+            members = layers.subList(0, activeIndex);
+        } else {
+            group = above;
+            members = layers.subList(activeIndex + 1, layers.size());
+        }
+        if (!group.update(members, g, painter)) {
+            return false;
+        }
+        Shape region = group.regions.get(layer);
+        if (region != null) {
+            Shape oldClip = g.getClip();
+            try {
+                g.clip(region);
+                group.paint(g);
+            } finally {
+                g.setClip(oldClip);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Mark a region of both flattened images as needing to be re-rendered.
+     *
+     * @param r The region, in picture coordinates, or a rectangle with a
+     * negative width or height for everything
+     */
+    public synchronized void invalidate(Rectangle r) {
+        below.invalidate(r);
+        above.invalidate(r);
+    }
+
+    /**
+     * Discard the flattened images and detach from all layers, for example
+     * when the picture is hibernated or closed.
+     */
+    public synchronized void dispose() {
+        for (Map.Entry<LayerImplementation, Tracker> e : trackers.entrySet()) {
+            e.getKey().removeRepaintHandle(e.getValue());
+        }
+        trackers.clear();
+        below.clear();
+        above.clear();
+    }
+
+    private int sync(List<? extends LayerImplementation> layers, LayerImplementation activeLayer) {
+        if (activeLayer != active) {
+            // Layers move between groups - cheaper to start over than to
+            // work out which images are still valid
+            below.clear();
+            above.clear();
+            active = activeLayer;
+        }
+        if (trackers.size() != layers.size() || !trackers.keySet().containsAll(layers)) {
+            for (Iterator<Map.Entry<LayerImplementation, Tracker>> it
+                    = trackers.entrySet().iterator(); it.hasNext();) {
+                Map.Entry<LayerImplementation, Tracker> e = it.next();
+                if (!layers.contains(e.getKey())) {
+                    e.getKey().removeRepaintHandle(e.getValue());
+                    it.remove();
+                }
+            }
+            for (LayerImplementation layer : layers) {
+                if (!trackers.containsKey(layer)) {
+                    Tracker tracker = new Tracker(layer);
+                    trackers.put(layer, tracker);
+                    layer.addRepaintHandle(tracker);
+                }
+            }
+        }
+        int ix = activeLayer == null ? -1 : layers.indexOf(activeLayer);
+        return ix < 0 ? layers.size() : ix;
+    }
+
+    private boolean paintGroup(Group group, Graphics2D g, List<? extends LayerImplementation> members,
+            LayerPainter painter) {
+        if (group.update(members, g, painter)) {
+            group.paint(g);
+            return true;
+        }
+        for (LayerImplementation layer : members) {
+            painter.paint(layer, g);
+        }
+        return false;
+    }
+
+    synchronized void layerRepainted(LayerImplementation layer, Rectangle r) {
+        if (layer == active) {
+            return;
+        }
+        if (below.contains(layer)) {
+            below.invalidate(r);
+        } else if (above.contains(layer)) {
+            above.invalidate(r);
+        }
+    }
+
+    private final class Tracker implements RepaintHandle {
+
+        private final LayerImplementation layer;
+
+        Tracker(LayerImplementation layer) {
+            this.layer = layer;
+        }
+
+        @Override
+        public void repaintArea(int x, int y, int w, int h) {
+            layerRepainted(layer, new Rectangle(x, y, w, h));
+        }
+
+        @Override
+        public void setCursor(Cursor cursor) {
+            // do nothing
+        }
+    }
+
+    private final class Group {
+
+        private final List<Object> signature = new ArrayList<>();
+        private final List<Object> scratch = new ArrayList<>();
+        private BufferedImage image;
+        private Rectangle bounds;
+        private Rectangle dirty;
+        // The part of the image each visible member paints in paintInPlaceOf()
+        final Map<LayerImplementation, Shape> regions = new IdentityHashMap<>();
+
+        boolean contains(LayerImplementation layer) {
+            for (int i = 0; i < signature.size(); i += 4) {
+                if (signature.get(i) == layer) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        void invalidate(Rectangle r) {
+            if (image == null) {
+                return;
+            }
+            if (r.width < 0 || r.height < 0) {
+                dirty = new Rectangle(bounds);
+                return;
+            }
+            if (!r.intersects(bounds)) {
+                return;
+            }
+            if (dirty == null) {
+                dirty = new Rectangle(r);
+            } else {
+                dirty.add(r);
+            }
+        }
+
+        void clear() {
+            signature.clear();
+            image = null;
+            bounds = null;
+            dirty = null;
+            regions.clear();
+        }
+
+        /**
+         * Bring the flattened image up to date with the passed layers.
+         *
+         * @return false if this group cannot be cached
+         */
+        boolean update(List<? extends LayerImplementation> members, Graphics2D g, LayerPainter painter) {
+            scratch.clear();
+            Rectangle union = null;
+            int visibleCount = 0;
+            for (LayerImplementation layer : members) {
+                boolean visible = layer.isVisible();
+                if (visible && !cacheable.test(layer)) {
+                    clear();
+                    return false;
+                }
+                Rectangle layerBounds = layer.getBounds();
+                scratch.add(layer);
+                scratch.add(visible);
+                scratch.add(layer.getOpacity());
+                scratch.add(layerBounds);
+                if (visible) {
+                    visibleCount++;
+                    if (union == null) {
+                        union = new Rectangle(layerBounds);
+                    } else {
+                        union.add(layerBounds);
+                    }
+                }
+            }
+            if (visibleCount < 2 || union.isEmpty()) {
+                // Nothing to gain from caching a single layer
+                clear();
+                return false;
+            }
+            if (image == null || !signature.equals(scratch)) {
+                signature.clear();
+                signature.addAll(scratch);
+                regions.clear();
+                Area covered = new Area();
+                for (int i = 0; i < scratch.size(); i += 4) {
+                    if (Boolean.TRUE.equals(scratch.get(i + 1))) {
+                        Area layerArea = new Area((Rectangle) scratch.get(i + 3));
+                        Area own = new Area(layerArea);
+                        own.subtract(covered);
+                        covered.add(layerArea);
+                        regions.put((LayerImplementation) scratch.get(i), own);
+                    }
+                }
+                if (image == null || !union.equals(bounds)) {
+                    image = new BufferedImage(union.width, union.height,
+                            BufferedImage.TYPE_INT_ARGB_PRE);
+                    bounds = union;
+                }
+                dirty = new Rectangle(bounds);
+            }
+            if (dirty != null) {
+                render(members, g, painter, dirty.intersection(bounds));
+                dirty = null;
+            }
+            return true;
+        }
+
+        private void render(List<? extends LayerImplementation> members, Graphics2D target,
+                LayerPainter painter, Rectangle region) {
+            if (region.isEmpty()) {
+                return;
+            }
+            Graphics2D g = image.createGraphics();
+            try {
+                g.setRenderingHints(target.getRenderingHints());
+                g.translate(-bounds.x, -bounds.y);
+                g.clip(region);
+                g.setComposite(AlphaComposite.Clear);
+                g.fill(region);
+                g.setComposite(AlphaComposite.SrcOver);
+                for (LayerImplementation layer : members) {
+                    if (layer.isVisible()) {
+                        painter.paint(layer, g);
+                    }
+                }
+            } finally {
+                g.dispose();
+            }
+        }
+
+        void paint(Graphics2D g) {
+            g.drawImage(image, bounds.x, bounds.y, null);
+        }
+    }
+}
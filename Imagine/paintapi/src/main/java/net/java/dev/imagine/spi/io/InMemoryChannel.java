@@ -0,0 +1,27 @@
+package net.java.dev.imagine.spi.io;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SeekableByteChannel;
+
+/**
+ * Implemented by channels passed to a LayerLoadHandler whose content is
+ * already in memory or memory-mapped, so the handler can decode it in place
+ * rather than copying it out through read().
+ *
+ * @author Tim Boudreau
+ */
+public interface InMemoryChannel extends SeekableByteChannel {
+
+    /**
+     * Get a read-only view of a region of this channel's content, without
+     * copying it or changing the channel's position.
+     *
+     * @param position The start of the region, in the same terms as
+     * position()
+     * @param length The number of bytes
+     * @return A buffer whose position is zero and whose limit is the length
+     * @throws IOException If the region is outside the channel's content
+     */
+    ByteBuffer view(long position, int length) throws IOException;
+}
@@ -0,0 +1,75 @@
+package net.java.dev.imagine.spi.io;
+
+import java.awt.Rectangle;
+import java.io.IOException;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.List;
+import net.java.dev.imagine.spi.image.LayerImplementation;
+
+/**
+ * Records the parts of a layer which have changed since the picture was last
+ * saved, so that autosave can append just those to a journal rather than
+ * rewriting the whole document, and replays them onto a freshly loaded copy
+ * of the layer when recovering.  Found in the layer's lookup, alongside its
+ * LayerSaveHandler.
+ * <p>
+ * Changes must describe the resulting state of the regions they cover, not
+ * the edit which produced it, so that applying a change more than once, or
+ * applying it to a layer which already contains it, is harmless.
+ *
+ * @author Tim Boudreau
+ */
+public interface LayerJournalHandler<L extends LayerImplementation> {
+
+    /**
+     * Capture the current content of the regions of a layer which have been
+     * repainted since the last capture.  Called on the event thread, so
+     * implementations should copy what they need and defer anything
+     * expensive, such as compression, to Change.writeTo(), which is called
+     * on a background thread.
+     *
+     * @param layer The layer
+     * @param regions The regions passed to the layer's repaint handles, in
+     * picture coordinates; a rectangle with a negative width or height
+     * means the entire layer
+     * @return A change, or null if there is nothing to record
+     */
+    Change capture(L layer, List<Rectangle> regions);
+
+    /**
+     * Apply a change written by a Change returned from capture() to a layer
+     * loaded from the document the change was recorded against.
+     *
+     * @param <C> The channel type
+     * @param layer The layer
+     * @param channel A channel positioned at the start of the change
+     * @param length The number of bytes in the change
+     * @throws IOException If the change cannot be applied
+     */
+    <C extends ReadableByteChannel & SeekableByteChannel> void apply(L layer, C channel, int length) throws IOException;
+
+    /**
+     * Called on the event thread when the journal is started or compacted,
+     * as the layer as it is now becomes the base which later changes are
+     * applied to on recovery.  Handlers which record differences from what
+     * they last captured should take the layer's current state as their
+     * starting point.
+     *
+     * @param layer The layer
+     */
+    default void rebased(L layer) {
+        // do nothing
+    }
+
+    Class<L> layerType();
+
+    /**
+     * A captured change to a layer.
+     */
+    interface Change {
+
+        <C extends WritableByteChannel & SeekableByteChannel> void writeTo(C channel) throws IOException;
+    }
+}
@@ -13,7 +13,41 @@ import org.imagine.utils.painting.RepaintHandle;
  */
 public interface LayerLoadHandler<L extends LayerImplementation> {
 
+    /**
+     * Loader hint, with the value "true", passed to handlers which support
+     * deferred loading when the channel passed to them may be retained.
+     */
+    String DEFERRED_LOAD_HINT = "deferred";
+
     boolean recognizes(int layerTypeId);
 
     <C extends ReadableByteChannel & SeekableByteChannel> L loadLayer(int type, long length, C channel, RepaintHandle handle, Map<String,String> loaderHints) throws IOException;
+
+    /**
+     * Whether loadLayer() may be called concurrently for different layers,
+     * so a picture's layers can be decoded in parallel.  Each concurrent call
+     * is passed its own channel over the bytes of just that layer, whose
+     * positions are those of the same bytes in the file.
+     *
+     * @return true if layers may be loaded concurrently; the default is false
+     */
+    default boolean isThreadSafe() {
+        return false;
+    }
+
+    /**
+     * Whether this handler can create layers which decode their content the
+     * first time it is needed, rather than when the file is opened.  When a
+     * picture is loaded lazily, such handlers are passed a channel over a
+     * read-only, memory-mapped view of just their layer, which remains
+     * readable after loading completes and may be retained, along with the
+     * hint DEFERRED_LOAD_HINT.  The handler must still leave the channel
+     * positioned after the layer's content, and is responsible for
+     * synchronizing its own later use of the channel.
+     *
+     * @return true if this handler can defer decoding; the default is false
+     */
+    default boolean supportsDeferredLoading() {
+        return false;
+    }
 }
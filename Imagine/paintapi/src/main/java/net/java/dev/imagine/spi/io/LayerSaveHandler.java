@@ -25,5 +25,52 @@ public interface LayerSaveHandler<L extends LayerImplementation> {
 
     int layerTypeId();
 
+    /**
+     * Whether saveTo() may be called concurrently for different layers, so
+     * a picture's layers can be encoded in parallel.  Each concurrent call
+     * is passed its own channel - typically an in-memory buffer which starts
+     * at position zero rather than at the layer's eventual offset in the file
+     * - so implementations which return true must not depend on the absolute
+     * position of the channel.
+     *
+     * @return true if layers may be saved concurrently; the default is false
+     */
+    default boolean isThreadSafe() {
+        return false;
+    }
+
+    /**
+     * Capture the layer's content, on the event thread, as an immutable
+     * snapshot which can be saved later from a background thread while the
+     * layer goes on being edited - so a picture can be saved without
+     * encoding it on the event thread.  Implementations should share the
+     * layer's data copy-on-write where they can, rather than copying it.
+     *
+     * @param layer The layer
+     * @return A snapshot, or null if the layer can only be saved on the
+     * event thread; the default is null
+     */
+    default Snapshot snapshot(L layer) {
+        return null;
+    }
+
     Class<L> layerType();
+
+    /**
+     * An immutable snapshot of a layer's content.
+     */
+    interface Snapshot {
+
+        /**
+         * Save the content as saveTo() would have when the snapshot was
+         * taken.  Called on a background thread, possibly concurrently with
+         * other snapshots, with its own channel starting at position zero.
+         *
+         * @param <C> The channel type
+         * @param channel The channel
+         * @param saveHints The save hints
+         * @throws IOException If something goes wrong
+         */
+        <C extends WritableByteChannel & SeekableByteChannel> void saveTo(C channel, Map<String, String> saveHints) throws IOException;
+    }
 }
@@ -0,0 +1,204 @@
+package net.java.dev.imagine.spi.image.support;
+
+import java.awt.Color;
+import java.awt.EventQueue;
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.beans.PropertyChangeListener;
+import java.lang.reflect.InvocationTargetException;
+import java.util.Arrays;
+import java.util.List;
+import net.java.dev.imagine.api.image.RenderingGoal;
+import net.java.dev.imagine.spi.image.LayerImplementation;
+import org.imagine.editor.api.AspectRatio;
+import org.imagine.editor.api.Zoom;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import org.junit.jupiter.api.Test;
+
+/**
+ *
+ * @author Tim Boudreau
+ */
+public class LayerCompositeCacheTest {
+
+    private static final int RED = 0xFFFF0000;
+    private static final int GREEN = 0xFF00FF00;
+    private static final int BLUE = 0xFF0000FF;
+
+    private final FakeLayer bottom = new FakeLayer(new Rectangle(0, 0, 100, 100), RED);
+    // Not at the origin, and outside the bottom layer's bounds
+    private final FakeLayer offset = new FakeLayer(new Rectangle(150, 20, 50, 50), GREEN);
+    private final FakeLayer active = new FakeLayer(new Rectangle(0, 0, 10, 10), BLUE);
+    private final List<FakeLayer> layers = Arrays.asList(bottom, offset, active);
+    private final LayerCompositeCache cache = new LayerCompositeCache(layer -> true);
+
+    @Test
+    public void testRepaintOfOffsetLayerInvalidatesCachedGroup() throws Exception {
+        // Repaint handles may only be attached on the event thread
+        onEventThread(this::repaintOfOffsetLayerInvalidatesCachedGroup);
+    }
+
+    private void repaintOfOffsetLayerInvalidatesCachedGroup() {
+        assertEquals(GREEN, paint().getRGB(160, 30));
+        offset.recolor(BLUE, new Rectangle(150, 20, 50, 50));
+        assertEquals(BLUE, paint().getRGB(160, 30));
+        assertEquals(RED, paint().getRGB(50, 50));
+        // Negative sizes mean everything, as when undoing
+        offset.recolor(RED, new Rectangle(-1, -1, -1, -1));
+        assertEquals(RED, paint().getRGB(160, 30));
+    }
+
+    @Test
+    public void testEachLayerPaintsItsOwnPartOfTheGroup() throws Exception {
+        onEventThread(this::eachLayerPaintsItsOwnPartOfTheGroup);
+    }
+
+    private void eachLayerPaintsItsOwnPartOfTheGroup() {
+        BufferedImage img = paintByLayer(new Rectangle(0, 0, 300, 200));
+        assertEquals(RED, img.getRGB(50, 50));
+        assertEquals(GREEN, img.getRGB(160, 30));
+        // As when the UI repaints only the offset layer's area
+        offset.recolor(BLUE, new Rectangle(150, 20, 50, 50));
+        img = paintByLayer(new Rectangle(150, 20, 50, 50));
+        assertEquals(BLUE, img.getRGB(160, 30));
+    }
+
+    private static void onEventThread(Runnable r) throws Exception {
+        try {
+            EventQueue.invokeAndWait(r);
+        } catch (InvocationTargetException ex) {
+            if (ex.getCause() instanceof Error) {
+                throw (Error) ex.getCause();
+            }
+            throw (Exception) ex.getCause();
+        }
+    }
+
+    private BufferedImage paint() {
+        BufferedImage img = new BufferedImage(300, 200, BufferedImage.TYPE_INT_ARGB);
+        Graphics2D g = img.createGraphics();
+        try {
+            cache.paint(g, layers, active, LayerCompositeCacheTest::paintLayer);
+        } finally {
+            g.dispose();
+        }
+        return img;
+    }
+
+    /**
+     * Paint the way a UI with one component per layer does, skipping layers
+     * whose bounds do not intersect the repainted region.
+     */
+    private BufferedImage paintByLayer(Rectangle repaint) {
+        BufferedImage img = new BufferedImage(300, 200, BufferedImage.TYPE_INT_ARGB);
+        for (FakeLayer layer : layers) {
+            Rectangle clip = layer.getBounds().intersection(repaint);
+            if (clip.isEmpty()) {
+                continue;
+            }
+            Graphics2D g = img.createGraphics();
+            try {
+                g.clip(clip);
+                if (!cache.paintInPlaceOf(layer, g, layers, active,
+                        LayerCompositeCacheTest::paintLayer)) {
+                    paintLayer(layer, g);
+                }
+            } finally {
+                g.dispose();
+            }
+        }
+        return img;
+    }
+
+    private static void paintLayer(LayerImplementation layer, Graphics2D g) {
+        layer.paint(RenderingGoal.EDITING, g, null, false, false, Zoom.ONE_TO_ONE, null);
+    }
+
+    static final class FakeLayer extends LayerImplementation {
+
+        private final Rectangle bounds;
+        private int color;
+
+        @SuppressWarnings("unchecked")
+        FakeLayer(Rectangle bounds, int color) {
+            super(null, false);
+            this.bounds = bounds;
+            this.color = color;
+        }
+
+        void recolor(int color, Rectangle repaint) {
+            this.color = color;
+            getMasterRepaintHandle().repaintArea(repaint.x, repaint.y,
+                    repaint.width, repaint.height);
+        }
+
+        @Override
+        public Rectangle getBounds() {
+            return new Rectangle(bounds);
+        }
+
+        @Override
+        public String getName() {
+            return "Layer " + bounds;
+        }
+
+        @Override
+        public void resize(int width, int height) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void setName(String name) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void addPropertyChangeListener(PropertyChangeListener l) {
+            // do nothing
+        }
+
+        @Override
+        public void removePropertyChangeListener(PropertyChangeListener l) {
+            // do nothing
+        }
+
+        @Override
+        public void setVisible(boolean visible) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public boolean isVisible() {
+            return true;
+        }
+
+        @Override
+        public float getOpacity() {
+            return 1;
+        }
+
+        @Override
+        public void setOpacity(float f) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void commitLastPropertyChangeToUndoHistory() {
+            // do nothing
+        }
+
+        @Override
+        public boolean paint(RenderingGoal goal, Graphics2D g, Rectangle r, boolean showSelection,
+                boolean paintWhenVisibleFalse, Zoom zoom, AspectRatio ratio) {
+            g.setColor(new Color(color, true));
+            g.fill(bounds);
+            return true;
+        }
+
+        @Override
+        public LayerImplementation clone(boolean isUserCopy, boolean deepCopy) {
+            throw new UnsupportedOperationException();
+        }
+    }
+}
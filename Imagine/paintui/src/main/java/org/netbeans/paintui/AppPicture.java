@@ -46,6 +46,7 @@ import net.java.dev.imagine.spi.image.LayerImplementation;
 import net.java.dev.imagine.spi.image.PictureImplementation;
 import org.imagine.utils.painting.RepaintHandle;
 import net.java.dev.imagine.spi.image.SurfaceImplementation;
+import net.java.dev.imagine.spi.image.support.LayerCompositeCache;
 import org.imagine.editor.api.AspectRatio;
 import org.imagine.editor.api.Zoom;
 import org.netbeans.paint.api.editing.LayerFactory;
@@ -73,6 +74,8 @@ class AppPicture extends PictureImplementation {
     private LayersState state;
 
     private final AspectRatio ratio = AspectRatio.create(this::getSize);
+    private final LayerCompositeCache compositeCache
+            = new LayerCompositeCache(layer -> !layer.isResolutionIndependent());
 
     public AppPicture(RepaintHandle handle, Dimension size) {
         addRepaintHandle (handle);
@@ -170,6 +173,16 @@ class AppPicture extends PictureImplementation {
             return false;
         }
         boolean result = false;
+        if (r == null && !goal.isProduction()) {
+            // Interactive painting - only the active layer is painted
+            // directly; the layers above and below it come from cached
+            // flattened images where possible
+            boolean[] painted = new boolean[1];
+            boolean flattened = compositeCache.paint(g, state.layers, state.activeLayer, (l, gg) -> {
+                painted[0] |= l.paint(goal, gg, null, showSelection, false, zoom, ratio);
+            });
+            return painted[0] || flattened;
+        }
         for (Iterator i = state.layers.iterator(); i.hasNext(); ) {
             LayerImplementation l = (LayerImplementation)i.next();
             result |= l.paint(goal, g, r, showSelection, r != null, zoom, ratio);
@@ -462,6 +475,9 @@ class AppPicture extends PictureImplementation {
         }
         Dimension d = getSize();
         hibernated = val;
+        if (val) {
+            compositeCache.dispose();
+        }
         LayerImplementation[] layers = (LayerImplementation[])
                 state.layers.toArray(new LayerImplementation[state.layers.size()]);
 
@@ -6,17 +6,8 @@
 package org.netbeans.paintui;
 
 import java.awt.Dimension;
-import java.awt.EventQueue;
-import java.awt.Graphics2D;
-import java.awt.image.BufferedImage;
 import java.io.File;
-import java.io.IOException;
-import java.util.Arrays;
-import java.util.Collections;
 import java.util.HashSet;
-import java.util.Iterator;
-import java.util.LinkedHashMap;
-import java.util.Map;
 import java.util.Set;
 import java.util.function.Consumer;
 import javax.imageio.ImageIO;
@@ -24,9 +15,7 @@ import net.java.dev.imagine.spi.image.LayerImplementation;
 import net.java.dev.imagine.ui.common.BackgroundStyle;
 import net.java.dev.imagine.ui.common.ImageEditorFactory;
 import org.netbeans.api.progress.ProgressHandle;
-import org.imagine.utils.java2d.GraphicsUtils;
 import org.netbeans.paint.api.editing.LayerFactory;
-import org.openide.util.Cancellable;
 import org.openide.util.Exceptions;
 import org.openide.util.NbBundle;
 import org.openide.util.RequestProcessor;
@@ -69,49 +58,26 @@ public class ImageEditorFactoryImpl extends ImageEditorFactory {
 
     @Override
     public boolean openExisting(File file) {
-        return load(file, (err, img, origin) -> {
+        return load(file, (err, editor, origin) -> {
             if (err != null) {
                 Exceptions.printStackTrace(err);
                 return;
             }
-            PaintTopComponent last;
-            try {
-                last = new PaintTopComponent(img, file);
-                last.setDisplayName(file.getName());
-                last.open();
-                last.requestActive();
-            } catch (IOException ex) {
-                Exceptions.printStackTrace(ex);
-            }
+            editor.open();
+            editor.requestActive();
         });
     }
 
-    private boolean load(File file, OpenConsumer img) {
-        // 
-        IMAGE_OPEN.submit(() -> {
-            try {
-                BufferedImage bi = ImageIO.read(file);
-                // Loaded PNGs are slow to render;  unpack the data.
-                if (bi.getType() != GraphicsUtils.DEFAULT_BUFFERED_IMAGE_TYPE) {
-                    BufferedImage nue = new BufferedImage(bi.getWidth(),
-                            bi.getHeight(),
-                            GraphicsUtils.DEFAULT_BUFFERED_IMAGE_TYPE);
-                    Graphics2D g2d = (Graphics2D) nue.createGraphics();
-
-                    g2d.drawRenderedImage(bi, null);
-                    g2d.dispose();
-                    bi = nue;
-                }
-            } catch (IOException ex) {
-                img.accept(ex, null, file);
-            }
-        });
+    private boolean load(File file, OpenConsumer onOpen) {
+        // The editor is opened as soon as the image's header has been read,
+        // and the image decoded into it afterwards
+        IMAGE_OPEN.submit(() -> ImageImport.open(file, onOpen));
         return true;
     }
 
     interface OpenConsumer {
 
-        void accept(Exception ex, BufferedImage img, File origin);
+        void accept(Exception ex, PaintTopComponent editor, File origin);
     }
 
     @Override
@@ -119,60 +85,39 @@ public class ImageEditorFactoryImpl extends ImageEditorFactory {
         if (files.length == 0) {
             return;
         }
-        final Iterator<File> iter = Arrays.asList(files).iterator();
-        Map<File, BufferedImage> images = new LinkedHashMap<>(files.length);
-        Set<File> unopened = Collections.synchronizedSet(new HashSet<>());
+        Set<File> unopened = new HashSet<>();
         String msg = NbBundle.getMessage(ImageEditorFactoryImpl.class, "OPENING_IMAGES", files.length);
-        ProgressHandle h = ProgressHandle.createHandle(msg, new Cancellable() {
-            @Override
-            public boolean cancel() {
-                // do nothing
-                return false;
-            }
-        });
-        h.start(files.length * 2);
+        ProgressHandle h = ProgressHandle.createHandle(msg);
+        h.start(files.length);
         OpenConsumer c = new OpenConsumer() {
             int completed = 0;
+            PaintTopComponent last;
 
             @Override
-            public void accept(Exception t, BufferedImage u, File origin) {
+            public void accept(Exception t, PaintTopComponent editor, File origin) {
+                // Always called on the event thread
                 h.progress(++completed);
                 if (t != null) {
                     Exceptions.printStackTrace(t);
                     unopened.add(origin);
-                } else if (u != null) {
-                    images.put(origin, u);
-                }
-                if (iter.hasNext()) {
-                    load(iter.next(), this);
                 } else {
-                    EventQueue.invokeLater(() -> {
-                        for (Iterator<Map.Entry<File, BufferedImage>> it = images.entrySet().iterator(); it.hasNext();) {
-                            Map.Entry<File, BufferedImage> e = it.next();
-                            PaintTopComponent last;
-                            try {
-                                last = new PaintTopComponent(e.getValue(), e.getKey());
-                                last.setDisplayName(e.getKey().getName());
-                                last.open();
-                                if (!it.hasNext()) {
-                                    last.requestActive();
-                                    h.finish();
-                                } else {
-                                    h.progress(++completed);
-                                }
-                            } catch (IOException ex) {
-                                Exceptions.printStackTrace(ex);
-                                unopened.add(e.getKey());
-                            }
-                        }
-                        if (!unopened.isEmpty()) {
-                            unopenedConsumer.accept(unopened);
-                        }
-                    });
+                    editor.open();
+                    last = editor;
+                }
+                if (completed == files.length) {
+                    h.finish();
+                    if (last != null) {
+                        last.requestActive();
+                    }
+                    if (!unopened.isEmpty()) {
+                        unopenedConsumer.accept(unopened);
+                    }
                 }
             }
         };
-        load(iter.next(), c);
+        for (File file : files) {
+            load(file, c);
+        }
     }
 
     @Override
@@ -0,0 +1,335 @@
+package org.netbeans.paintui;
+
+import java.awt.AlphaComposite;
+import java.awt.Dimension;
+import java.awt.EventQueue;
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.lang.reflect.InvocationTargetException;
+import java.util.Iterator;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.event.IIOReadUpdateListener;
+import javax.imageio.stream.ImageInputStream;
+import net.java.dev.imagine.spi.image.LayerImplementation;
+import net.java.dev.imagine.ui.common.BackgroundStyle;
+import org.netbeans.api.progress.ProgressHandle;
+import org.openide.awt.StatusDisplayer;
+import org.openide.util.Exceptions;
+import org.openide.util.NbBundle.Messages;
+
+/**
+ * Opens bitmaps without decoding them before anything is shown.  The
+ * image's dimensions are read from its header, and an editor with an empty
+ * layer of that size is opened at once; the image is then decoded on a
+ * background thread straight into the layer, a band of rows at a time, so
+ * rows appear as they are decoded.  If the file has an embedded thumbnail,
+ * it is scaled up and shown until the real pixels replace it.
+ * <p>
+ * Images whose tiles the reader can decode independently are read a tile
+ * at a time, so that only the layer and one tile are in memory.  Other
+ * formats, which must be decoded sequentially, are decoded in a single pass
+ * into the reader's own image, which is copied into the layer as rows
+ * complete; that is one full-size copy fewer than decoding the whole image
+ * and converting it before opening the editor.  Images too large for the
+ * heap to hold are subsampled by the smallest factor which fits, and the
+ * user is told so.
+ *
+ * @author Tim Boudreau
+ */
+final class ImageImport implements IIOReadUpdateListener {
+
+    private static final int FLUSH_ROWS = 128;
+    private static final int BYTES_PER_PIXEL = 4;
+    private final File file;
+    private final ImageEditorFactoryImpl.OpenConsumer onOpen;
+    private ImageReader reader;
+    private LayerImplementation layer;
+    private PaintTopComponent editor;
+    private ProgressHandle progress;
+    private int width;
+    private int height;
+    private int factor = 1;
+    private int flushedTo;
+    private int pendingTop = Integer.MAX_VALUE;
+    private int pendingBottom = -1;
+    private boolean updated;
+
+    private ImageImport(File file, ImageEditorFactoryImpl.OpenConsumer onOpen) {
+        this.file = file;
+        this.onOpen = onOpen;
+    }
+
+    /**
+     * Open an image, calling the consumer on the event thread once its editor
+     * exists or opening has failed, and decoding it on the calling thread.
+     *
+     * @param file The file
+     * @param onOpen Called with the unopened editor, or an exception
+     */
+    static void open(File file, ImageEditorFactoryImpl.OpenConsumer onOpen) {
+        ImageImport imp = new ImageImport(file, onOpen);
+        boolean opened = false;
+        try (ImageInputStream in = ImageIO.createImageInputStream(file)) {
+            if (in == null) {
+                throw new IOException("Cannot read " + file);
+            }
+            Iterator<ImageReader> readers = ImageIO.getImageReaders(in);
+            if (!readers.hasNext()) {
+                throw new IOException("No image reader for " + file);
+            }
+            imp.reader = readers.next();
+            try {
+                imp.reader.setInput(in);
+                opened = imp.openEditor();
+                if (opened) {
+                    imp.decode();
+                }
+            } finally {
+                imp.reader.dispose();
+            }
+        } catch (IOException | RuntimeException ex) {
+            if (!opened) {
+                EventQueue.invokeLater(() -> onOpen.accept(ex, null, file));
+            } else {
+                Exceptions.printStackTrace(ex);
+            }
+        } finally {
+            if (imp.progress != null) {
+                imp.progress.finish();
+            }
+        }
+    }
+
+    /**
+     * Find the smallest subsampling factor at which the image, and the given
+     * number of copies of it, fit in the memory available.
+     */
+    static int subsamplingFor(int width, int height, int copies, long available) {
+        long budget = (available / 4) * 3;
+        int result = 1;
+        while (result < Math.max(width, height)) {
+            long w = (width + result - 1) / result;
+            long h = (height + result - 1) / result;
+            if (w * h * BYTES_PER_PIXEL * copies <= budget) {
+                break;
+            }
+            result++;
+        }
+        return result;
+    }
+
+    private static long availableMemory() {
+        Runtime rt = Runtime.getRuntime();
+        return rt.maxMemory() - (rt.totalMemory() - rt.freeMemory());
+    }
+
+    private boolean tiled() throws IOException {
+        return reader.isImageTiled(0) && reader.getNumImages(false) != 0;
+    }
+
+    @Messages({
+        "# {0} - the file name",
+        "LOADING_IMAGE=Loading {0}",
+        "# {0} - the file name",
+        "# {1} - the subsampling factor",
+        "IMAGE_SUBSAMPLED={0} is too large to open at full size, and was "
+            + "opened at 1/{1} of its width and height"})
+    private boolean openEditor() throws IOException {
+        int fullWidth = reader.getWidth(0);
+        int fullHeight = reader.getHeight(0);
+        factor = subsamplingFor(fullWidth, fullHeight, tiled() ? 1 : 2,
+                availableMemory());
+        width = (fullWidth + factor - 1) / factor;
+        height = (fullHeight + factor - 1) / factor;
+        BufferedImage thumbnail = null;
+        try {
+            if (reader.readerSupportsThumbnails() && reader.getNumThumbnails(0) > 0) {
+                thumbnail = reader.readThumbnail(0, 0);
+            }
+        } catch (IOException | RuntimeException ex) {
+            // A broken thumbnail is no reason not to open the image
+        }
+        BufferedImage preview = thumbnail;
+        onEventThread(() -> {
+            PictureScene scene = new PictureScene(new Dimension(width, height),
+                    BackgroundStyle.TRANSPARENT, true);
+            scene.picture().getPicture().associateFile(file.toPath());
+            layer = scene.picture().getActiveLayer();
+            if (preview != null && layer != null) {
+                Graphics2D g = layer.getSurface().getGraphics();
+                try {
+                    g.setRenderingHint(RenderingHints.KEY_INTERPOLATION,
+                            RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+                    g.drawImage(preview, 0, 0, width, height, null);
+                } finally {
+                    g.dispose();
+                }
+            }
+            editor = new PaintTopComponent(scene);
+            onOpen.accept(null, editor, file);
+        });
+        if (layer == null) {
+            return false;
+        }
+        if (factor > 1) {
+            StatusDisplayer.getDefault().setStatusText(
+                    Bundle.IMAGE_SUBSAMPLED(file.getName(), factor));
+        }
+        progress = ProgressHandle.createHandle(Bundle.LOADING_IMAGE(file.getName()));
+        progress.start(height);
+        return true;
+    }
+
+    private void decode() throws IOException {
+        if (tiled() && factor == 1) {
+            decodeTiles();
+            return;
+        }
+        ImageReadParam param = reader.getDefaultReadParam();
+        if (factor > 1) {
+            param.setSourceSubsampling(factor, factor, 0, 0);
+        }
+        reader.addIIOReadUpdateListener(this);
+        BufferedImage img = reader.read(0, param);
+        reader.removeIIOReadUpdateListener(this);
+        if (img != null && !updated) {
+            // Readers which never report progress
+            markDirty(0, img.getHeight());
+            flush(img, true);
+        }
+    }
+
+    private void decodeTiles() throws IOException {
+        int tileWidth = reader.getTileWidth(0);
+        int tileHeight = reader.getTileHeight(0);
+        ImageReadParam param = reader.getDefaultReadParam();
+        for (int y = 0; y < height; y += tileHeight) {
+            for (int x = 0; x < width; x += tileWidth) {
+                Rectangle region = new Rectangle(x, y, Math.min(tileWidth, width - x),
+                        Math.min(tileHeight, height - y));
+                param.setSourceRegion(region);
+                BufferedImage tile = reader.read(0, param);
+                if (!draw(tile, region.x, region.y)) {
+                    return;
+                }
+            }
+            progress.progress(Math.min(height, y + tileHeight));
+        }
+    }
+
+    /**
+     * Copy decoded pixels into the layer on the event thread, replacing any
+     * preview beneath them.
+     *
+     * @return false if the editor has been closed and loading should stop
+     */
+    private boolean draw(BufferedImage img, int x, int y) throws IOException {
+        boolean[] result = new boolean[1];
+        onEventThread(() -> {
+            if (!editor.isOpened()) {
+                return;
+            }
+            Graphics2D g = layer.getSurface().getGraphics();
+            try {
+                g.setComposite(AlphaComposite.Src);
+                g.drawImage(img, x, y, null);
+            } finally {
+                g.dispose();
+            }
+            result[0] = true;
+        });
+        return result[0];
+    }
+
+    private void onEventThread(Runnable r) throws IOException {
+        try {
+            EventQueue.invokeAndWait(r);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted loading " + file);
+        } catch (InvocationTargetException ex) {
+            Throwable cause = ex.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IOException(cause);
+        }
+    }
+
+    private void markDirty(int top, int bottom) {
+        pendingTop = Math.min(pendingTop, top);
+        pendingBottom = Math.max(pendingBottom, bottom);
+    }
+
+    private void flush(BufferedImage img, boolean force) {
+        if (pendingBottom <= pendingTop
+                || (!force && pendingBottom - flushedTo < FLUSH_ROWS)) {
+            return;
+        }
+        int top = Math.max(0, pendingTop);
+        int bottom = Math.min(img.getHeight(), pendingBottom);
+        pendingTop = Integer.MAX_VALUE;
+        pendingBottom = -1;
+        try {
+            if (!draw(img.getSubimage(0, top, img.getWidth(), bottom - top), 0, top)) {
+                reader.abort();
+                return;
+            }
+        } catch (IOException ex) {
+            reader.abort();
+            Exceptions.printStackTrace(ex);
+            return;
+        }
+        flushedTo = Math.max(flushedTo, bottom);
+        progress.progress(Math.min(height, flushedTo));
+    }
+
+    @Override
+    public void passStarted(ImageReader source, BufferedImage theImage, int pass,
+            int minPass, int maxPass, int minX, int minY, int periodX, int periodY,
+            int[] bands) {
+        // Interlaced images repaint the whole image on each pass
+        flushedTo = 0;
+    }
+
+    @Override
+    public void imageUpdate(ImageReader source, BufferedImage theImage, int minX,
+            int minY, int width, int height, int periodX, int periodY, int[] bands) {
+        updated = true;
+        markDirty(minY, minY + ((height - 1) * periodY) + 1);
+        flush(theImage, false);
+    }
+
+    @Override
+    public void passComplete(ImageReader source, BufferedImage theImage) {
+        flush(theImage, true);
+    }
+
+    @Override
+    public void thumbnailPassStarted(ImageReader source, BufferedImage theThumbnail,
+            int pass, int minPass, int maxPass, int minX, int minY, int periodX,
+            int periodY, int[] bands) {
+        // do nothing
+    }
+
+    @Override
+    public void thumbnailUpdate(ImageReader source, BufferedImage theThumbnail,
+            int minX, int minY, int width, int height, int periodX, int periodY,
+            int[] bands) {
+        // do nothing
+    }
+
+    @Override
+    public void thumbnailPassComplete(ImageReader source, BufferedImage theThumbnail) {
+        // do nothing
+    }
+}
@@ -122,6 +122,18 @@ final class OneLayerWidget extends Widget {
     protected void paintWidget() {
         Graphics2D g = getGraphics();
         GraphicsUtils.setHighQualityRenderingHints(g);
+        PictureScene.PI picture = scene().picture();
+        // If this layer is below or above the active layer, the picture's
+        // composite cache either paints the flattened image of its group
+        // or has already done so
+        if (picture.compositeCache().paintInPlaceOf(layer, g, picture.getLayers(),
+                picture.getActiveLayer(), this::paintLayer)) {
+            return;
+        }
+        paintLayer(layer, g);
+    }
+
+    private void paintLayer(LayerImplementation layer, Graphics2D g) {
         Composite old = null;
         float opacity = layer.getOpacity();
         if (opacity != 1.0F) {
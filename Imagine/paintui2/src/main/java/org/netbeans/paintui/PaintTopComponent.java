@@ -51,6 +51,7 @@ import org.netbeans.paint.api.editor.IO;
 import net.java.dev.imagine.api.image.Layer;
 import net.java.dev.imagine.api.image.Picture;
 import net.java.dev.imagine.api.image.Surface;
+import net.java.dev.imagine.api.io.AutosaveJournal;
 import net.java.dev.imagine.spi.image.PictureImplementation;
 import net.java.dev.imagine.spi.image.SurfaceImplementation;
 import net.java.dev.imagine.ui.actions.spi.Resizable;
@@ -550,9 +551,8 @@ public final class PaintTopComponent extends TopComponent implements
     }
 
     private File doSave(File f) throws IOException {
-        BufferedImage img = canvas.toImage();
         return findFormatAndSaveImage(f, (fmt, file) -> {
-            ImageIO.write(img, fmt, file);
+            canvas.writeImage(fmt, file);
             String statusMsg = NbBundle.getMessage(PaintTopComponent.class,
                     "MSG_Saved", new Object[]{f.getPath()}); //NOI18N
             StatusDisplayer.getDefault().setStatusText(statusMsg);
@@ -700,6 +700,7 @@ public final class PaintTopComponent extends TopComponent implements
             lastActiveLayer = null;
             UIContextLookupProvider.setLayerAndSelection(Lookup.EMPTY, Lookup.EMPTY);
         }
+        AutosaveJournal.discard(canvas.getPicture().getPicture());
         canvas.detachForClose();
         // Ensure no soft memory leaks
         undoManager.discardAllEdits();
@@ -0,0 +1,306 @@
+package org.netbeans.paintui;
+
+import java.awt.Dimension;
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.Raster;
+import java.awt.image.RenderedImage;
+import java.awt.image.SampleModel;
+import java.awt.image.WritableRaster;
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.Vector;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.function.Consumer;
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageTypeSpecifier;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageOutputStream;
+import org.imagine.utils.java2d.GraphicsUtils;
+import org.openide.util.RequestProcessor;
+
+/**
+ * Writes a picture to a bitmap file without rendering all of it at once.
+ * The encoder is handed a RenderedImage whose tiles are horizontal strips
+ * of the picture, each rendered when the encoder first asks for it; the
+ * next few strips are rendered in the background while the encoder works on
+ * it, and strips above the one most recently asked for are discarded.
+ * Layers may not be painted concurrently, so all strips are rendered one at
+ * a time on a single thread - the gain is in overlapping painting with
+ * encoding.  Since the PNG and TIFF
+ * writers fetch pixels top to bottom, only a few strips are ever in memory,
+ * however large the picture.  Writers which ask for the whole image at once
+ * still work, but get no benefit.
+ *
+ * @author Tim Boudreau
+ */
+final class PictureExport {
+
+    private static final int MAX_STRIP_BYTES = 4 * 1024 * 1024;
+    private static final int MAX_STRIP_HEIGHT = 256;
+    private static final int READ_AHEAD = 2;
+    private static final RequestProcessor RENDER
+            = new RequestProcessor("Export strips", 1, true);
+
+    private PictureExport() {
+        throw new AssertionError();
+    }
+
+    /**
+     * Render and write a picture to a file.
+     *
+     * @param size The size of the picture
+     * @param painter Paints the picture at full quality; called on a
+     * background thread, one strip at a time, with graphics clipped to the
+     * strip being rendered
+     * @param format The image format name
+     * @param file The file
+     * @throws IOException If no writer can encode the picture in the format,
+     * or writing fails
+     */
+    static void write(Dimension size, Consumer<Graphics2D> painter, String format,
+            File file) throws IOException {
+        StripImage img = new StripImage(size.width, size.height, painter);
+        Iterator<ImageWriter> writers = ImageIO.getImageWriters(
+                ImageTypeSpecifier.createFromRenderedImage(img), format);
+        if (!writers.hasNext()) {
+            throw new IOException("No writer can save " + format + " images");
+        }
+        ImageWriter writer = writers.next();
+        if (file.exists() && !file.delete()) {
+            throw new IOException("Could not replace " + file);
+        }
+        try (ImageOutputStream out = ImageIO.createImageOutputStream(file)) {
+            if (out == null) {
+                throw new IOException("Cannot write " + file);
+            }
+            writer.setOutput(out);
+            writer.write(null, new IIOImage(img, null, null), writer.getDefaultWriteParam());
+        } catch (UncheckedIOException ex) {
+            throw ex.getCause();
+        } finally {
+            writer.dispose();
+            img.discard();
+        }
+    }
+
+    static int stripHeight(int width, int height) {
+        int rows = MAX_STRIP_BYTES / (Math.max(1, width) * 4);
+        return Math.max(1, Math.min(height, Math.min(MAX_STRIP_HEIGHT, rows)));
+    }
+
+    static final class StripImage implements RenderedImage {
+
+        private final int width;
+        private final int height;
+        private final int stripHeight;
+        private final int stripCount;
+        private final Consumer<Graphics2D> painter;
+        private final BufferedImage prototype;
+        private final Map<Integer, Future<BufferedImage>> strips = new TreeMap<>();
+
+        StripImage(int width, int height, Consumer<Graphics2D> painter) {
+            this.width = width;
+            this.height = height;
+            this.painter = painter;
+            this.stripHeight = stripHeight(width, height);
+            this.stripCount = (height + stripHeight - 1) / stripHeight;
+            this.prototype = GraphicsUtils.newBufferedImage(1, 1);
+        }
+
+        private BufferedImage render(int strip) {
+            int y = strip * stripHeight;
+            int h = Math.min(stripHeight, height - y);
+            return GraphicsUtils.newBufferedImage(width, h, g -> {
+                g.translate(0, -y);
+                g.clipRect(0, y, width, h);
+                painter.accept(g);
+            });
+        }
+
+        /**
+         * Get a rendered strip, first queueing rendering of the strips which
+         * follow it and discarding those above it.
+         */
+        private BufferedImage strip(int strip) {
+            Future<BufferedImage> result;
+            synchronized (strips) {
+                Iterator<Map.Entry<Integer, Future<BufferedImage>>> it
+                        = strips.entrySet().iterator();
+                while (it.hasNext()) {
+                    Map.Entry<Integer, Future<BufferedImage>> e = it.next();
+                    if (e.getKey() >= strip) {
+                        break;
+                    }
+                    e.getValue().cancel(false);
+                    it.remove();
+                }
+                int last = Math.min(stripCount - 1, strip + READ_AHEAD);
+                for (int i = strip; i <= last; i++) {
+                    int ix = i;
+                    strips.computeIfAbsent(i, k -> RENDER.submit(() -> render(ix)));
+                }
+                result = strips.get(strip);
+            }
+            try {
+                return result.get();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new UncheckedIOException(new InterruptedIOException(
+                        "Interrupted rendering strip " + strip));
+            } catch (ExecutionException ex) {
+                Throwable cause = ex.getCause();
+                if (cause instanceof RuntimeException) {
+                    throw (RuntimeException) cause;
+                } else if (cause instanceof Error) {
+                    throw (Error) cause;
+                }
+                throw new UncheckedIOException(new IOException(cause));
+            }
+        }
+
+        void discard() {
+            synchronized (strips) {
+                for (Future<BufferedImage> f : strips.values()) {
+                    f.cancel(false);
+                }
+                strips.clear();
+            }
+        }
+
+        @Override
+        public Vector<RenderedImage> getSources() {
+            return null;
+        }
+
+        @Override
+        public Object getProperty(String name) {
+            return java.awt.Image.UndefinedProperty;
+        }
+
+        @Override
+        public String[] getPropertyNames() {
+            return null;
+        }
+
+        @Override
+        public ColorModel getColorModel() {
+            return prototype.getColorModel();
+        }
+
+        @Override
+        public SampleModel getSampleModel() {
+            return prototype.getSampleModel().createCompatibleSampleModel(width, stripHeight);
+        }
+
+        @Override
+        public int getWidth() {
+            return width;
+        }
+
+        @Override
+        public int getHeight() {
+            return height;
+        }
+
+        @Override
+        public int getMinX() {
+            return 0;
+        }
+
+        @Override
+        public int getMinY() {
+            return 0;
+        }
+
+        @Override
+        public int getNumXTiles() {
+            return 1;
+        }
+
+        @Override
+        public int getNumYTiles() {
+            return stripCount;
+        }
+
+        @Override
+        public int getMinTileX() {
+            return 0;
+        }
+
+        @Override
+        public int getMinTileY() {
+            return 0;
+        }
+
+        @Override
+        public int getTileWidth() {
+            return width;
+        }
+
+        @Override
+        public int getTileHeight() {
+            return stripHeight;
+        }
+
+        @Override
+        public int getTileGridXOffset() {
+            return 0;
+        }
+
+        @Override
+        public int getTileGridYOffset() {
+            return 0;
+        }
+
+        @Override
+        public Raster getTile(int tileX, int tileY) {
+            return strip(tileY).getRaster()
+                    .createTranslatedChild(0, tileY * stripHeight);
+        }
+
+        @Override
+        public Raster getData() {
+            return getData(new Rectangle(0, 0, width, height));
+        }
+
+        @Override
+        public Raster getData(Rectangle rect) {
+            WritableRaster result = getColorModel().createCompatibleWritableRaster(
+                    rect.width, rect.height).createWritableTranslatedChild(rect.x, rect.y);
+            return copyData(result);
+        }
+
+        @Override
+        public WritableRaster copyData(WritableRaster raster) {
+            if (raster == null) {
+                raster = getColorModel().createCompatibleWritableRaster(width, height);
+            }
+            Rectangle bounds = raster.getBounds().intersection(new Rectangle(0, 0, width, height));
+            if (bounds.isEmpty()) {
+                return raster;
+            }
+            int first = bounds.y / stripHeight;
+            int last = (bounds.y + bounds.height - 1) / stripHeight;
+            for (int i = first; i <= last; i++) {
+                raster.setRect(getTile(0, i));
+            }
+            return raster;
+        }
+
+        @Override
+        public String toString() {
+            return "StripImage(" + width + "x" + height + " in " + stripCount
+                    + " strips of " + stripHeight + ")";
+        }
+    }
+}
@@ -9,6 +9,8 @@ import java.awt.Graphics2D;
 import java.awt.Point;
 import java.awt.Rectangle;
 import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Set;
@@ -28,6 +30,7 @@ import net.java.dev.imagine.spi.image.LayerImplementation;
 import net.java.dev.imagine.spi.image.SurfaceImplementation;
 import org.imagine.utils.painting.RepaintHandle;
 import net.java.dev.imagine.spi.image.support.AbstractPictureImplementation;
+import net.java.dev.imagine.spi.image.support.LayerCompositeCache;
 import net.java.dev.imagine.ui.common.BackgroundStyleApplier;
 import org.imagine.editor.api.ImageEditorBackground;
 import org.imagine.editor.api.AspectRatio;
@@ -327,6 +330,21 @@ final class PictureScene extends Scene implements WidgetController, ChangeListen
         });
     }
 
+    /**
+     * Write the picture to a bitmap file a strip at a time, rather than
+     * rendering it all into one image first.
+     *
+     * @param format The image format
+     * @param file The file
+     * @throws IOException If writing fails
+     */
+    void writeImage(String format, File file) throws IOException {
+        //XXX handle zoom, etc.
+        PictureExport.write(picture.getSize(), g -> {
+            picture.paint(RenderingGoal.PRODUCTION, g, null, false, Zoom.ONE_TO_ONE);
+        }, format, file);
+    }
+
     static String stateToString(ObjectState st) {
         Set<String> s = new TreeSet<>();
         if (st.isFocused()) {
@@ -709,6 +727,14 @@ final class PictureScene extends Scene implements WidgetController, ChangeListen
             return isHibernated();
         }
 
+        @Override
+        protected LayerCompositeCache createCompositeCache() {
+            // Layers which supply their own widgets paint through them, so
+            // they cannot be flattened into an image
+            return new LayerCompositeCache(layer -> !layer.isResolutionIndependent()
+                    && layer.getLookup().lookup(WidgetLayer.class) == null);
+        }
+
         @Override
         public boolean paint(RenderingGoal goal, Graphics2D g, Rectangle bounds, boolean showSelection, Zoom zoom) {
             if (isHibernated()) {
@@ -1,6 +1,7 @@
 package org.imagine.svg.io;
 
 import java.awt.Dimension;
+import java.awt.EventQueue;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
 import java.io.File;
@@ -22,6 +23,7 @@ import org.openide.awt.ActionRegistration;
 import org.openide.util.Exceptions;
 import org.openide.util.Lookup;
 import org.openide.util.NbBundle.Messages;
+import org.openide.util.RequestProcessor;
 
 @ActionID(
         category = "File",
@@ -37,6 +39,9 @@ import org.openide.util.NbBundle.Messages;
 })
 public final class ImportSVGAction implements ActionListener {
 
+    private static final RequestProcessor IMPORT_THREAD
+            = new RequestProcessor("Import SVG", 1);
+
     @Override
     public void actionPerformed(ActionEvent e) {
         File[] files = new FileChooserBuilder(ExportSVGAction.class)
@@ -54,24 +59,35 @@ public final class ImportSVGAction implements ActionListener {
             if (loader == null) {
                 return;
             }
-            // XXX this currently needs to be in the event thread, because
+            // Parsing and converting happens in the background; creating the
+            // picture needs to be in the event thread, because
             // paintui2's Picture implementation will construct a PictureScene, and
             // visual library prohibits manipulating it from anything but the event
             // thread.  Those two things need to get detangled.
             for (File f : files) {
-                try {
-                    Path p = f.toPath();
-                    SvgLoader ldr = new SvgLoader(p);
-                    String name = fileName(p);
-                    BiFunction<Dimension, BiConsumer<RepaintHandle, Function<List<LayerImplementation>, Picture>>, Void> func
-                            = loader.create(true);
-                    Picture pic = ldr.load(func, vlf, name);
-                    if (pic != null) {
-                        pic.associateFile(p);
+                Path p = f.toPath();
+                SvgLoader ldr = new SvgLoader(p);
+                String name = fileName(p);
+                IMPORT_THREAD.submit(() -> {
+                    try {
+                        ldr.prepare(vlf);
+                    } catch (Exception | Error ex) {
+                        Exceptions.printStackTrace(ex);
+                        return;
                     }
-                } catch (Exception | Error ex) {
-                    Exceptions.printStackTrace(ex);
-                }
+                    EventQueue.invokeLater(() -> {
+                        try {
+                            BiFunction<Dimension, BiConsumer<RepaintHandle, Function<List<LayerImplementation>, Picture>>, Void> func
+                                    = loader.create(true);
+                            Picture pic = ldr.load(func, vlf, name);
+                            if (pic != null) {
+                                pic.associateFile(p);
+                            }
+                        } catch (Exception | Error ex) {
+                            Exceptions.printStackTrace(ex);
+                        }
+                    });
+                });
             }
         }
     }
@@ -0,0 +1,324 @@
+package org.imagine.svg.io;
+
+import java.awt.BasicStroke;
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.Paint;
+import java.awt.Shape;
+import java.awt.Stroke;
+import java.awt.geom.AffineTransform;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import net.java.dev.imagine.api.vector.Shaped;
+import net.java.dev.imagine.api.vector.Transformable;
+import net.java.dev.imagine.api.vector.elements.PathIteratorWrapper;
+import net.java.dev.imagine.api.vector.painting.VectorWrapperGraphics;
+import org.apache.batik.ext.awt.RenderingHintsKeyExt;
+import org.apache.batik.gvt.CompositeGraphicsNode;
+import org.apache.batik.gvt.CompositeShapePainter;
+import org.apache.batik.gvt.FillShapePainter;
+import org.apache.batik.gvt.GraphicsNode;
+import org.apache.batik.gvt.ShapeNode;
+import org.apache.batik.gvt.ShapePainter;
+import org.apache.batik.gvt.StrokeShapePainter;
+import org.imagine.vector.editor.ui.spi.ShapeRecorder;
+import org.imagine.vector.editor.ui.spi.ShapesCollection;
+import org.imagine.vector.editor.ui.spi.VectorLayerFactory;
+import org.netbeans.api.progress.ProgressHandle;
+
+/**
+ * Converts a Batik GVT tree into shapes for a vector layer.  The tree is
+ * walked once, descending through plain groups, to list the nodes to
+ * convert in document order, and the results are added to the layer in the
+ * original order.  Shape nodes with solid fills and strokes are converted
+ * directly to paths, in parallel; that only reads the shapes, painters and
+ * transforms of the nodes, which nothing modifies while importing.
+ * Anything else - text, images, gradients, markers, filtered or masked
+ * groups - is painted into a ShapeRecorder, exactly as the whole document
+ * used to be.  The GVT tree is not thread-safe for painting (painters,
+ * filters and text layout cache state in the nodes), so all painting happens
+ * afterwards on the calling thread.  As when painting, clips and group
+ * opacity are not carried over.
+ *
+ * @author Tim Boudreau
+ */
+final class SvgImport {
+
+    private static final int MIN_NODES_PER_TASK = 32;
+    private final List<GraphicsNode> nodes = new ArrayList<>();
+    private final Object[] converted;
+
+    private SvgImport(GraphicsNode root) {
+        if (root instanceof CompositeGraphicsNode) {
+            // Like primitivePaint(), ignore the root's own attributes
+            for (Object child : ((CompositeGraphicsNode) root).getChildren()) {
+                collect((GraphicsNode) child);
+            }
+        } else {
+            nodes.add(root);
+        }
+        converted = new Object[nodes.size()];
+    }
+
+    /**
+     * Convert a GVT tree into shapes.
+     *
+     * @param root The root node
+     * @param factory Supplies recorders for nodes which must be painted
+     * @param progress A progress handle which has been started, or null
+     * @return An import which can be added to a vector layer
+     */
+    static SvgImport convert(GraphicsNode root, VectorLayerFactory factory,
+            ProgressHandle progress) {
+        SvgImport result = new SvgImport(root);
+        if (progress != null) {
+            progress.switchToDeterminate(result.nodes.size());
+        }
+        Progress done = new Progress(progress);
+        ForkJoinPool.commonPool().invoke(result.new ConvertTask(0,
+                result.nodes.size(), done));
+        result.paintRemaining(factory, done);
+        return result;
+    }
+
+    int size() {
+        return nodes.size();
+    }
+
+    /**
+     * Add the converted shapes to a vector layer's shapes, in document
+     * order.  Call on the event thread.
+     *
+     * @param shapes The shapes
+     */
+    void addTo(ShapesCollection shapes) {
+        for (Object o : converted) {
+            if (o instanceof ConvertedShape) {
+                ((ConvertedShape) o).addTo(shapes);
+            } else if (o instanceof ShapeRecorder) {
+                ((ShapeRecorder) o).replay(shapes);
+            }
+        }
+    }
+
+    private void collect(GraphicsNode node) {
+        if (!node.isVisible()) {
+            return;
+        }
+        if (node instanceof CompositeGraphicsNode && node.getFilter() == null
+                && node.getMask() == null) {
+            for (Object child : ((CompositeGraphicsNode) node).getChildren()) {
+                collect((GraphicsNode) child);
+            }
+        } else {
+            nodes.add(node);
+        }
+    }
+
+    /**
+     * Convert the shape nodes in a run of nodes which can be converted
+     * directly, without painting them.
+     *
+     * @return The number converted
+     */
+    private int convertShapes(int start, int end) {
+        int count = 0;
+        for (int i = start; i < end; i++) {
+            GraphicsNode node = nodes.get(i);
+            if (node instanceof ShapeNode && node.getFilter() == null && node.getMask() == null) {
+                ConvertedShape shape = ConvertedShape.create((ShapeNode) node);
+                if (shape != null) {
+                    converted[i] = shape;
+                    count++;
+                }
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Paint the nodes which could not be converted directly; consecutive
+     * ones share one recorder, stored at the index of the first of them.
+     */
+    private void paintRemaining(VectorLayerFactory factory, Progress done) {
+        ShapeRecorder recorder = null;
+        Graphics2D g = null;
+        for (int i = 0; i < converted.length; i++) {
+            if (converted[i] instanceof ConvertedShape) {
+                recorder = null;
+                continue;
+            }
+            GraphicsNode node = nodes.get(i);
+            if (recorder == null) {
+                recorder = factory.createShapeRecorder();
+                g = recorder.graphics();
+                g.setRenderingHint(RenderingHintsKeyExt.KEY_AVOID_TILE_PAINTING,
+                        RenderingHintsKeyExt.VALUE_AVOID_TILE_PAINTING_ON);
+                g.setRenderingHint(RenderingHintsKeyExt.KEY_TRANSCODING,
+                        RenderingHintsKeyExt.VALUE_TRANSCODING_VECTOR);
+                converted[i] = recorder;
+            }
+            GraphicsNode parent = node.getParent();
+            AffineTransform xform = parent == null ? null : parent.getGlobalTransform();
+            g.setTransform(xform == null ? new AffineTransform() : xform);
+            node.paint(g);
+            done.add(1);
+        }
+    }
+
+    private final class ConvertTask extends RecursiveAction {
+
+        private final int start;
+        private final int end;
+        private final Progress done;
+
+        ConvertTask(int start, int end, Progress done) {
+            this.start = start;
+            this.end = end;
+            this.done = done;
+        }
+
+        @Override
+        protected void compute() {
+            if (end - start <= MIN_NODES_PER_TASK) {
+                done.add(convertShapes(start, end));
+                return;
+            }
+            int mid = start + ((end - start) / 2);
+            invokeAll(new ConvertTask(start, mid, done),
+                    new ConvertTask(mid, end, done));
+        }
+    }
+
+    /**
+     * Counts converted nodes and reports the count under a lock, so tasks
+     * finishing at the same moment cannot report counts out of order, which
+     * ProgressHandle rejects.
+     */
+    private static final class Progress {
+
+        private final ProgressHandle handle;
+        private int done;
+
+        Progress(ProgressHandle handle) {
+            this.handle = handle;
+        }
+
+        synchronized void add(int count) {
+            done += count;
+            if (handle != null && count > 0) {
+                handle.progress(done);
+            }
+        }
+    }
+
+    /**
+     * A shape node with a solid fill, stroke or both, already transformed
+     * into document coordinates.
+     */
+    private static final class ConvertedShape {
+
+        private final Shaped shape;
+        private final Color fill;
+        private final Color draw;
+        private final BasicStroke stroke;
+
+        private ConvertedShape(Shaped shape, Color fill, Color draw,
+                BasicStroke stroke) {
+            this.shape = shape;
+            this.fill = fill;
+            this.draw = draw;
+            this.stroke = stroke;
+        }
+
+        static ConvertedShape create(ShapeNode node) {
+            Shape shape = node.getShape();
+            ShapePainter painter = node.getShapePainter();
+            if (shape == null || painter == null) {
+                return null;
+            }
+            Paint[] paints = new Paint[2];
+            Stroke[] strokes = new Stroke[1];
+            if (!solidPaints(painter, paints, strokes)) {
+                return null;
+            }
+            if ((paints[0] != null && !(paints[0] instanceof Color))
+                    || (paints[1] != null && !(paints[1] instanceof Color))
+                    || (strokes[0] != null && !(strokes[0] instanceof BasicStroke))) {
+                return null;
+            }
+            AffineTransform xform = node.getGlobalTransform();
+            BasicStroke stroke = (BasicStroke) strokes[0];
+            if (stroke != null && xform != null) {
+                stroke = scale(stroke, Math.sqrt(Math.abs(xform.getDeterminant())));
+            }
+            Color fill = (Color) paints[0];
+            Color draw = (Color) paints[1];
+            if (fill == null && draw == null) {
+                return null;
+            }
+            // Use the same primitives painting would produce
+            Shaped shaped = VectorWrapperGraphics.primitiveFor(shape, fill != null);
+            if (shaped == null) {
+                shaped = new PathIteratorWrapper(shape.getPathIterator(xform), fill != null);
+            } else if (xform != null && !xform.isIdentity()) {
+                if (shaped.is(Transformable.class)) {
+                    shaped = (Shaped) ((Transformable) shaped).copy(xform);
+                } else {
+                    shaped = new PathIteratorWrapper(shape.getPathIterator(xform), fill != null);
+                }
+            }
+            return new ConvertedShape(shaped, fill, draw, stroke);
+        }
+
+        private static boolean solidPaints(ShapePainter painter, Paint[] paints, Stroke[] strokes) {
+            if (painter instanceof FillShapePainter) {
+                if (paints[0] != null) {
+                    return false;
+                }
+                paints[0] = ((FillShapePainter) painter).getPaint();
+                return true;
+            } else if (painter instanceof StrokeShapePainter) {
+                if (paints[1] != null) {
+                    return false;
+                }
+                StrokeShapePainter stroker = (StrokeShapePainter) painter;
+                paints[1] = stroker.getPaint();
+                strokes[0] = stroker.getStroke();
+                return true;
+            } else if (painter instanceof CompositeShapePainter) {
+                CompositeShapePainter comp = (CompositeShapePainter) painter;
+                for (int i = 0; i < comp.getShapePainterCount(); i++) {
+                    if (!solidPaints(comp.getShapePainter(i), paints, strokes)) {
+                        return false;
+                    }
+                }
+                return true;
+            }
+            // Markers and anything else need painting
+            return false;
+        }
+
+        private static BasicStroke scale(BasicStroke stroke, double by) {
+            if (by == 1 || by == 0) {
+                return stroke;
+            }
+            float[] dashes = stroke.getDashArray();
+            if (dashes != null) {
+                dashes = dashes.clone();
+                for (int i = 0; i < dashes.length; i++) {
+                    dashes[i] *= by;
+                }
+            }
+            return new BasicStroke((float) (stroke.getLineWidth() * by),
+                    stroke.getEndCap(), stroke.getLineJoin(), stroke.getMiterLimit(),
+                    dashes, (float) (stroke.getDashPhase() * by));
+        }
+
+        void addTo(ShapesCollection shapes) {
+            shapes.add(shape, fill, draw, stroke, draw != null, fill != null);
+        }
+    }
+}
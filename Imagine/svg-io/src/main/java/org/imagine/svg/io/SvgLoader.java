@@ -31,8 +31,12 @@ import org.apache.batik.ext.awt.RenderingHintsKeyExt;
 import org.apache.batik.gvt.GraphicsNode;
 import org.apache.batik.util.XMLResourceDescriptor;
 import org.imagine.utils.painting.RepaintHandle;
+import org.imagine.vector.editor.ui.spi.ShapesCollection;
 import org.imagine.vector.editor.ui.spi.VectorLayerFactory;
+import org.netbeans.api.progress.ProgressHandle;
 import org.openide.util.Exceptions;
+import org.openide.util.Lookup;
+import org.openide.util.NbBundle.Messages;
 import org.openide.util.Parameters;
 import org.w3c.dom.Document;
 
@@ -58,6 +62,9 @@ public class SvgLoader {
     };
 
     private final Path path;
+    private GraphicsNode node;
+    private Dimension documentSize;
+    private SvgImport converted;
 
     public SvgLoader(Path path) {
         this.path = path;
@@ -67,9 +74,35 @@ public class SvgLoader {
         return new Dimension(Math.max(a.width, b.width), Math.max(a.height, b.height));
     }
 
+    /**
+     * Parse the document and convert it to shapes, so that only adding
+     * them to a layer remains to be done on the event thread.
+     *
+     * @param vlf The factory layers will be created with
+     * @throws IOException If the document cannot be parsed
+     */
+    @Messages({"# {0} - the file name", "IMPORTING=Importing {0}"})
+    void prepare(VectorLayerFactory vlf) throws IOException {
+        ProgressHandle progress = ProgressHandle.createHandle(
+                Bundle.IMPORTING(path.getFileName()));
+        progress.start();
+        try {
+            Dimension docSize = new Dimension();
+            GraphicsNode gn = loadGraphicsNode(path.toUri().toURL(), null, docSize);
+            converted = SvgImport.convert(gn, vlf, progress);
+            node = gn;
+            documentSize = docSize;
+        } finally {
+            progress.finish();
+        }
+    }
+
     Picture load(BiFunction<Dimension, BiConsumer<RepaintHandle, Function<List<LayerImplementation>, Picture>>, Void> func, VectorLayerFactory vlf, String name) throws MalformedURLException, IOException {
-        Dimension docSize = new Dimension();
-        GraphicsNode gn = loadGraphicsNode(path.toUri().toURL(), null, docSize);
+        if (node == null) {
+            prepare(vlf);
+        }
+        Dimension docSize = documentSize;
+        GraphicsNode gn = node;
         Rectangle2D r = gn.getBounds();
         Dimension d = r.getBounds().getBounds().getSize();
         Obj<Picture> result = Obj.create();
@@ -78,7 +111,7 @@ public class SvgLoader {
             System.out.println("Got callback with " + handle + " and " + pictureGenerator);
             List<LayerImplementation> layers = new ArrayList<>(3);
             try {
-                load(gn, () -> {
+                load(gn, converted, () -> {
                     LayerImplementation<?> layer = vlf.createLayer(name + " "
                             + (layers.size() + 1), handle, d);
                     layers.add(layer);
@@ -101,10 +134,21 @@ public class SvgLoader {
     }
 
     public void load(GraphicsNode gn, Supplier<LayerImplementation<?>> supp) throws IOException {
+        load(gn, null, supp);
+    }
+
+    private void load(GraphicsNode gn, SvgImport imported, Supplier<LayerImplementation<?>> supp) throws IOException {
+        LayerImplementation<?> layer = supp.get();
+        ShapesCollection shapes = layer.getLookup().lookup(ShapesCollection.class);
+        VectorLayerFactory vlf = Lookup.getDefault().lookup(VectorLayerFactory.class);
+        if (shapes != null && (imported != null || vlf != null)) {
+            SvgImport imp = imported != null ? imported : SvgImport.convert(gn, vlf, null);
+            shapes.contentsEdit("Load " + path.getFileName(), () -> imp.addTo(shapes));
+            return;
+        }
         gn.setVisible(true);
         gn.setRenderingHint(RenderingHintsKeyExt.KEY_AVOID_TILE_PAINTING, RenderingHintsKeyExt.VALUE_AVOID_TILE_PAINTING_ON);
         gn.setRenderingHint(RenderingHintsKeyExt.KEY_TRANSCODING, RenderingHintsKeyExt.VALUE_TRANSCODING_VECTOR);
-        LayerImplementation<?> layer = supp.get();
         SurfaceImplementation surf = layer.getSurface();
         surf.beginUndoableOperation("Load " + path.getFileName());
         System.out.println("      create layer " + layer + " with surface " + surf);
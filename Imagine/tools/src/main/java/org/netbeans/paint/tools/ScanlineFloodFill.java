@@ -0,0 +1,226 @@
+package org.netbeans.paint.tools;
+
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.awt.image.WritableRaster;
+import java.util.Arrays;
+import java.util.stream.IntStream;
+import net.dev.java.imagine.api.selection.SelectionMask;
+
+/**
+ * Scanline flood fill over a packed 32-bit pixel array.  The fill runs in two
+ * passes:  the region is first discovered using an explicit stack of spans
+ * and a visited bitmap, comparing pixels against the original contents of
+ * the image; then the fill color is written into every pixel in the region,
+ * a row at a time, in parallel if the region is large.  Since discovery never
+ * sees its own writes, a fill color within the threshold of the target color
+ * cannot cause pixels to be revisited.
+ * <p>
+ * Images whose raster is a single int per pixel are filled in place;
+ * anything else is filled in a copy which is written back afterwards.
+ *
+ * @author Tim Boudreau
+ */
+final class ScanlineFloodFill {
+
+    /**
+     * Regions with more pixels than this are written in parallel.
+     */
+    static final int PARALLEL_THRESHOLD = 1024 * 1024;
+    private final int width;
+    private final int height;
+    private final int threshold;
+    private final SelectionMask mask;
+    private final long[] region;
+    private int[] stack = new int[384];
+    private int stackSize;
+    private int minX;
+    private int minY;
+    private int maxX;
+    private int maxY;
+
+    private ScanlineFloodFill(int width, int height, int threshold, SelectionMask mask) {
+        this.width = width;
+        this.height = height;
+        this.threshold = threshold;
+        this.region = new long[(int) ((((long) width * height) + 63) >> 6)];
+        this.mask = mask;
+        minX = minY = Integer.MAX_VALUE;
+        maxX = maxY = Integer.MIN_VALUE;
+    }
+
+    /**
+     * Flood fill an image starting from the passed point.
+     *
+     * @param img The image
+     * @param x The starting x coordinate
+     * @param y The starting y coordinate
+     * @param argb The fill color, as non-premultiplied ARGB
+     * @param threshold The maximum difference, per channel, from the color of
+     * the starting pixel for a pixel to be filled
+     * @param selection The mask of the selection to confine the fill to, or
+     * null
+     * @return The bounds of the pixels that were changed, or null if nothing
+     * was
+     */
+    static Rectangle fill(BufferedImage img, int x, int y, int argb, int threshold, SelectionMask selection) {
+        int w = img.getWidth();
+        int h = img.getHeight();
+        if (x < 0 || y < 0 || x >= w || y >= h) {
+            return null;
+        }
+        WritableRaster raster = img.getRaster();
+        int[] data;
+        int offset;
+        int stride;
+        int fill;
+        boolean direct = isDirect(raster);
+        if (direct) {
+            SinglePixelPackedSampleModel sm = (SinglePixelPackedSampleModel) raster.getSampleModel();
+            data = ((DataBufferInt) raster.getDataBuffer()).getData();
+            stride = sm.getScanlineStride();
+            offset = raster.getDataBuffer().getOffset()
+                    - (raster.getSampleModelTranslateY() * stride)
+                    - raster.getSampleModelTranslateX();
+            fill = ((int[]) img.getColorModel().getDataElements(argb, null))[0];
+        } else {
+            data = img.getRGB(0, 0, w, h, null, 0, w);
+            stride = w;
+            offset = 0;
+            fill = argb;
+        }
+        ScanlineFloodFill ff = new ScanlineFloodFill(w, h, threshold, selection);
+        int target = data[offset + (y * stride) + x];
+        // Validation so we don't repaint an area in the same color
+        if (ff.matches(fill, target) || !ff.inMask(x, y)) {
+            return null;
+        }
+        ff.discover(data, offset, stride, target, x, y);
+        if (ff.maxX < ff.minX) {
+            return null;
+        }
+        ff.write(data, offset, stride, fill);
+        Rectangle result = new Rectangle(ff.minX, ff.minY,
+                (ff.maxX - ff.minX) + 1, (ff.maxY - ff.minY) + 1);
+        if (!direct) {
+            img.setRGB(result.x, result.y, result.width, result.height, data,
+                    (result.y * w) + result.x, w);
+        }
+        return result;
+    }
+
+    private static boolean isDirect(WritableRaster raster) {
+        return raster.getDataBuffer() instanceof DataBufferInt
+                && raster.getDataBuffer().getNumBanks() == 1
+                && raster.getSampleModel() instanceof SinglePixelPackedSampleModel;
+    }
+
+    private boolean inMask(int x, int y) {
+        return mask == null || mask.contains(x, y);
+    }
+
+    private boolean matches(int a, int b) {
+        if (threshold == 0) {
+            return a == b;
+        }
+        for (int shift = 0; shift < 32; shift += 8) {
+            int diff = ((a >>> shift) & 0xFF) - ((b >>> shift) & 0xFF);
+            if (diff > threshold || diff < -threshold) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean isSet(long index) {
+        return (region[(int) (index >>> 6)] & (1L << index)) != 0;
+    }
+
+    private void set(long index) {
+        region[(int) (index >>> 6)] |= 1L << index;
+    }
+
+    private boolean accepts(int[] data, int offset, int stride, int target, int x, int y) {
+        return !isSet(((long) y * width) + x)
+                && matches(data[offset + (y * stride) + x], target)
+                && inMask(x, y);
+    }
+
+    private void push(int x, int y) {
+        if (stackSize + 2 > stack.length) {
+            stack = Arrays.copyOf(stack, stack.length * 2);
+        }
+        stack[stackSize++] = x;
+        stack[stackSize++] = y;
+    }
+
+    private void discover(int[] data, int offset, int stride, int target, int startX, int startY) {
+        push(startX, startY);
+        while (stackSize > 0) {
+            int y = stack[--stackSize];
+            int x = stack[--stackSize];
+            if (!accepts(data, offset, stride, target, x, y)) {
+                continue;
+            }
+            int left = x;
+            while (left > 0 && accepts(data, offset, stride, target, left - 1, y)) {
+                left--;
+            }
+            int right = x;
+            while (right < width - 1 && accepts(data, offset, stride, target, right + 1, y)) {
+                right++;
+            }
+            long rowStart = (long) y * width;
+            for (int i = left; i <= right; i++) {
+                set(rowStart + i);
+            }
+            minX = Math.min(minX, left);
+            maxX = Math.max(maxX, right);
+            minY = Math.min(minY, y);
+            maxY = Math.max(maxY, y);
+            if (y > 0) {
+                scanAdjacent(data, offset, stride, target, left, right, y - 1);
+            }
+            if (y < height - 1) {
+                scanAdjacent(data, offset, stride, target, left, right, y + 1);
+            }
+        }
+    }
+
+    /**
+     * Push one seed for each run of fillable pixels in a row adjacent to a
+     * span that was just added.
+     */
+    private void scanAdjacent(int[] data, int offset, int stride, int target, int left, int right, int y) {
+        boolean inRun = false;
+        for (int x = left; x <= right; x++) {
+            if (accepts(data, offset, stride, target, x, y)) {
+                if (!inRun) {
+                    push(x, y);
+                    inRun = true;
+                }
+            } else {
+                inRun = false;
+            }
+        }
+    }
+
+    private void write(int[] data, int offset, int stride, int fill) {
+        IntStream rows = IntStream.rangeClosed(minY, maxY);
+        long area = ((long) (maxX - minX) + 1) * ((maxY - minY) + 1);
+        if (area > PARALLEL_THRESHOLD) {
+            rows = rows.parallel();
+        }
+        rows.forEach(y -> {
+            long rowStart = (long) y * width;
+            int rowOffset = offset + (y * stride);
+            for (int x = minX; x <= maxX; x++) {
+                if (isSet(rowStart + x)) {
+                    data[rowOffset + x] = fill;
+                }
+            }
+        });
+    }
+}
@@ -9,10 +9,13 @@ import java.awt.Dimension;
 import java.io.File;
 import java.io.IOException;
 import java.nio.file.Path;
+import net.java.dev.imagine.api.io.AutosaveJournal;
 import net.java.dev.imagine.api.io.LoadSupport;
 import net.java.dev.imagine.ui.common.BackgroundStyle;
 import net.java.dev.imagine.ui.common.ImageEditorFactory;
 import org.netbeans.paint.api.editing.LayerFactory;
+import org.openide.DialogDisplayer;
+import org.openide.NotifyDescriptor;
 import org.openide.util.Exceptions;
 import org.openide.util.Lookup;
 import org.openide.util.NbBundle.Messages;
@@ -77,8 +80,29 @@ public class NativeImageEditorFactory extends ImageEditorFactory {
         return false;
     }
 
+    @Messages({
+        "# {0} - the file name",
+        "MSG_RecoverAutosave=There are unsaved changes to {0} from a previous "
+            + "session.  Recover them?",
+        "TTL_RecoverAutosave=Recover Unsaved Changes"})
     private boolean open(Path toPath, LoadSupport<?, ?, ?> supp) {
         try {
+            if (AutosaveJournal.hasJournal(toPath)) {
+                NotifyDescriptor.Confirmation recover = new NotifyDescriptor.Confirmation(
+                        Bundle.MSG_RecoverAutosave(toPath.getFileName()),
+                        Bundle.TTL_RecoverAutosave(), NotifyDescriptor.YES_NO_OPTION);
+                if (NotifyDescriptor.YES_OPTION.equals(DialogDisplayer.getDefault().notify(recover))) {
+                    try {
+                        AutosaveJournal.recover(toPath, true);
+                        return true;
+                    } catch (IOException ex) {
+                        // Fall through and open the file as it was saved
+                        Exceptions.printStackTrace(ex);
+                    }
+                } else {
+                    AutosaveJournal.discard(toPath);
+                }
+            }
             supp.open(toPath);
             return true;
         } catch (IOException ex) {
@@ -48,9 +48,14 @@ public final class GraphicsUtils {
     public static final int DEFAULT_BUFFERED_IMAGE_TYPE;
 
     static {
-        BufferedImage img = GraphicsEnvironment.getLocalGraphicsEnvironment().getDefaultScreenDevice().getDefaultConfiguration().createCompatibleImage(1, 1, TRANSLUCENT);
-        DEFAULT_BUFFERED_IMAGE_TYPE = img.getType();
-        img.flush();
+        if (GraphicsEnvironment.isHeadless()) {
+            // No screen device to ask, e.g. in tests
+            DEFAULT_BUFFERED_IMAGE_TYPE = BufferedImage.TYPE_INT_ARGB;
+        } else {
+            BufferedImage img = GraphicsEnvironment.getLocalGraphicsEnvironment().getDefaultScreenDevice().getDefaultConfiguration().createCompatibleImage(1, 1, TRANSLUCENT);
+            DEFAULT_BUFFERED_IMAGE_TYPE = img.getType();
+            img.flush();
+        }
     }
 
     /**
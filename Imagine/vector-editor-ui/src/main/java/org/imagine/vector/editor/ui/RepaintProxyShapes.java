@@ -494,6 +494,11 @@ public final class RepaintProxyShapes implements ShapesCollection, Wrapper<Shape
             return entry.geometrySnapshot();
         }
 
+        @Override
+        public int geometryRevision() {
+            return entry.geometryRevision();
+        }
+
         @Override
         public String toString() {
             return "Wrap(" + entry.toString() + ")";
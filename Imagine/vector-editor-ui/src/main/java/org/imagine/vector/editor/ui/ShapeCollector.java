@@ -28,6 +28,7 @@ import net.java.dev.imagine.api.vector.graphics.PaintWrapper;
 import net.java.dev.imagine.api.vector.painting.VectorRepaintHandle;
 import org.imagine.utils.java2d.GraphicsUtils;
 import org.imagine.utils.Holder;
+import org.imagine.vector.editor.ui.spi.ShapesCollection;
 import net.java.dev.imagine.api.vector.Vectors;
 
 /**
@@ -117,7 +118,7 @@ public class ShapeCollector implements Consumer<Primitive>, VectorRepaintHandle
         });
     }
 
-    void replay(Shapes shapes) {
+    void replay(ShapesCollection shapes) {
         entries.forEach((e) -> e.addTo(shapes));
     }
 
@@ -202,7 +203,7 @@ public class ShapeCollector implements Consumer<Primitive>, VectorRepaintHandle
             return sb.toString();
         }
 
-        void addTo(Shapes s) {
+        void addTo(ShapesCollection s) {
             if (target instanceof Clear) {
                 s.add(target, clear.isSet() ? clear.get().toPaint() : null,
                         null, null, false, true);
@@ -71,6 +71,10 @@ public final class ShapeEntry implements Hibernator, ShapeElement, ControlPointC
     private BasicStroke stroke;
     private String name;
     private final long id;
+    private ShapeIndex index;
+    private int geometryRev;
+    // Incremented when the name, paints or painting style change
+    private int styleRev;
     private final ShapeElementControlPointFactory CPF
             = new ShapeElementControlPointFactory();
     private final RevCache shapeInfoCache = new RevCache(this::item, () -> {
@@ -219,6 +223,7 @@ public final class ShapeEntry implements Hibernator, ShapeElement, ControlPointC
             fg = ofg;
             name = on;
             stroke = os;
+            styleRev++;
             vectSnap.run();
             changed();
         };
@@ -252,6 +257,7 @@ public final class ShapeEntry implements Hibernator, ShapeElement, ControlPointC
         } else {
             this.name = name.trim();
         }
+        styleRev++;
     }
 
     @Override
@@ -262,6 +268,9 @@ public final class ShapeEntry implements Hibernator, ShapeElement, ControlPointC
     @Override
     public void setPaintingStyle(PaintingStyle style) {
         this.paintingStyle = style;
+        styleRev++;
+        // Stroked entries are indexed with larger bounds
+        notifyIndex();
     }
 
     @Override
@@ -272,16 +281,19 @@ public final class ShapeEntry implements Hibernator, ShapeElement, ControlPointC
     @Override
     public void setFill(Paint fill) {
         bg = fill == null ? null : PaintKey.forPaint(fill);
+        styleRev++;
     }
 
     @Override
     public void setFill(PaintKey<?> key) {
         bg = key;
+        styleRev++;
     }
 
     @Override
     public void setDraw(PaintKey<?> draw) {
         fg = draw;
+        styleRev++;
     }
 
     @Override
@@ -297,6 +309,7 @@ public final class ShapeEntry implements Hibernator, ShapeElement, ControlPointC
     @Override
     public void setDraw(Paint draw) {
         fg = draw == null ? null : PaintKey.forPaint(draw);
+        styleRev++;
     }
 
     @Override
@@ -320,6 +333,40 @@ public final class ShapeEntry implements Hibernator, ShapeElement, ControlPointC
             bds.height += w2;
             bds.width += w2;
         }
+        geometryRev++;
+        notifyIndex();
+    }
+
+    @Override
+    public int geometryRevision() {
+        return geometryRev;
+    }
+
+    /**
+     * The revision of the name, paints and painting style, which unlike the
+     * geometry revision does not change when the shape does.
+     *
+     * @return A revision
+     */
+    int styleRevision() {
+        return styleRev;
+    }
+
+    void indexedBy(ShapeIndex index) {
+        this.index = index;
+    }
+
+    void unindexedBy(ShapeIndex index) {
+        if (this.index == index) {
+            this.index = null;
+        }
+    }
+
+    private void notifyIndex() {
+        ShapeIndex ix = index;
+        if (ix != null) {
+            ix.boundsChanged(this);
+        }
     }
 
     @Override
@@ -482,6 +529,7 @@ public final class ShapeEntry implements Hibernator, ShapeElement, ControlPointC
         if (paint != null) {
             fg = PaintKey.forPaint(paint);
             paintingStyle = paintingStyle.andDrawn();
+            styleRev++;
         }
     }
 
@@ -0,0 +1,343 @@
+package org.imagine.vector.editor.ui;
+
+import java.awt.BasicStroke;
+import java.awt.Rectangle;
+import java.awt.geom.Rectangle2D;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+
+/**
+ * A uniform grid spatial index over the entries in a Shapes, so hit testing,
+ * overlap queries and painting only need to look at entries near the area of
+ * interest.  Each entry is recorded in every cell its bounds (padded by its
+ * stroke) touch; entries which would span a great many cells are kept in a
+ * separate list which every query examines.
+ * <p>
+ * Entries notify the index when their bounds change, and the list of shapes
+ * notifies it when entries are inserted, removed or replaced, and it updates
+ * just the entries affected; only wholesale changes, such as restoring a
+ * snapshot of the list, cause a full rebuild on the next query.  Results are
+ * returned in z-order, using an order number for each entry which is larger
+ * nearer the front;  an inserted entry gets a number between those of its
+ * neighbours, and the numbers are reassigned only if there is none left.
+ *
+ * @author Tim Boudreau
+ */
+final class ShapeIndex {
+
+    private static final int MAX_CELLS_PER_ENTRY = 64;
+    private static final double MIN_CELL_SIZE = 16;
+    private final Map<ShapeEntry, Slot> slots = new IdentityHashMap<>();
+    private final Map<Long, List<Slot>> cells = new HashMap<>();
+    private final List<Slot> oversized = new ArrayList<>();
+    private double cellSize = 128;
+    private int queryStamp;
+    private int structure = -1;
+    private Rectangle2D.Double union;
+
+    int structure() {
+        return structure;
+    }
+
+    /**
+     * Index the contents of a list of shapes from scratch.
+     *
+     * @param entries The entries, frontmost first
+     * @param structure The structural revision of the list
+     */
+    void rebuild(List<ShapeEntry> entries, int structure) {
+        for (Slot slot : slots.values()) {
+            slot.entry.unindexedBy(this);
+        }
+        slots.clear();
+        cells.clear();
+        oversized.clear();
+        union = null;
+        this.structure = structure;
+        int size = entries.size();
+        List<Slot> nue = new ArrayList<>(size);
+        double totalExtent = 0;
+        for (int i = 0; i < size; i++) {
+            Slot slot = new Slot(entries.get(i), size - (i + 1));
+            nue.add(slot);
+            totalExtent += Math.max(slot.bounds.width, slot.bounds.height);
+        }
+        // Size cells so a typical entry touches only a few of them
+        cellSize = size == 0 ? 128 : Math.max(MIN_CELL_SIZE, totalExtent / size);
+        for (Slot slot : nue) {
+            slots.put(slot.entry, slot);
+            insert(slot);
+            slot.entry.indexedBy(this);
+        }
+    }
+
+    /**
+     * Called by the list when an entry has been inserted into it.  If the
+     * index was not up to date with the list before the insertion, it is
+     * left to be rebuilt by the next query.
+     *
+     * @param entries The list, which now contains the entry
+     * @param at The position of the entry in the list
+     * @param oldStructure The structural revision of the list before
+     * @param newStructure The structural revision of the list after
+     */
+    void added(List<ShapeEntry> entries, int at, int oldStructure, int newStructure) {
+        if (structure != oldStructure) {
+            return;
+        }
+        ShapeEntry entry = entries.get(at);
+        if (slots.containsKey(entry)) {
+            // In the list twice - let a rebuild sort it out
+            structure = -1;
+            return;
+        }
+        Slot slot = new Slot(entry, orderAt(entries, at));
+        slots.put(entry, slot);
+        insert(slot);
+        entry.indexedBy(this);
+        structure = newStructure;
+        union = null;
+    }
+
+    /**
+     * Called by the list when an entry has been removed from it.
+     *
+     * @param entry The entry
+     * @param oldStructure The structural revision of the list before
+     * @param newStructure The structural revision of the list after
+     */
+    void removed(ShapeEntry entry, int oldStructure, int newStructure) {
+        if (structure != oldStructure) {
+            return;
+        }
+        Slot slot = slots.remove(entry);
+        if (slot != null) {
+            remove(slot);
+            entry.unindexedBy(this);
+        }
+        structure = newStructure;
+        union = null;
+    }
+
+    /**
+     * Called by the list when the entry at some position has been replaced.
+     *
+     * @param entries The list, which now contains the new entry
+     * @param at The position of the entry in the list
+     * @param old The entry which was replaced
+     * @param oldStructure The structural revision of the list before
+     * @param newStructure The structural revision of the list after
+     */
+    void replaced(List<ShapeEntry> entries, int at, ShapeEntry old, int oldStructure, int newStructure) {
+        removed(old, oldStructure, newStructure);
+        added(entries, at, newStructure, newStructure);
+    }
+
+    private double orderAt(List<ShapeEntry> entries, int at) {
+        Slot front = at > 0 ? slots.get(entries.get(at - 1)) : null;
+        Slot back = at < entries.size() - 1 ? slots.get(entries.get(at + 1)) : null;
+        if (front == null) {
+            return back == null ? 0 : back.order + 1;
+        } else if (back == null) {
+            return front.order - 1;
+        }
+        double result = (front.order + back.order) / 2;
+        if (result > back.order && result < front.order) {
+            return result;
+        }
+        // No room left between the neighbours
+        int size = entries.size();
+        for (int i = 0; i < size; i++) {
+            Slot slot = slots.get(entries.get(i));
+            if (slot != null) {
+                slot.order = size - (i + 1);
+            }
+        }
+        return size - (at + 1);
+    }
+
+    /**
+     * Called by entries when their bounds change.
+     *
+     * @param entry The entry
+     */
+    void boundsChanged(ShapeEntry entry) {
+        Slot slot = slots.get(entry);
+        if (slot == null) {
+            return;
+        }
+        remove(slot);
+        slot.updateBounds();
+        insert(slot);
+        union = null;
+    }
+
+    /**
+     * Discard the cached union of all entries' shape bounds.
+     */
+    void invalidateBounds() {
+        union = null;
+    }
+
+    /**
+     * Get the union of the shape bounds of all entries, as computed by
+     * Shaped.addToBounds().
+     *
+     * @return The bounds, which must not be modified, or an empty
+     * rectangle
+     */
+    Rectangle2D.Double union() {
+        Rectangle2D.Double result = union;
+        if (result == null) {
+            result = new Rectangle2D.Double();
+            for (Slot slot : slots.values()) {
+                slot.entry.vect.addToBounds(result);
+            }
+            union = result;
+        }
+        return result;
+    }
+
+    /**
+     * Collect the entries whose padded bounds intersect a rectangle.
+     *
+     * @param x The x coordinate
+     * @param y The y coordinate
+     * @param w The width
+     * @param h The height
+     * @param frontToBack If true, return the frontmost entry first,
+     * otherwise the rearmost
+     * @return A list of entries
+     */
+    List<ShapeEntry> query(double x, double y, double w, double h, boolean frontToBack) {
+        List<Slot> found = new ArrayList<>();
+        int stamp = ++queryStamp;
+        Consumer<Slot> collect = slot -> {
+            if (slot.stamp != stamp) {
+                slot.stamp = stamp;
+                if (slot.intersects(x, y, w, h)) {
+                    found.add(slot);
+                }
+            }
+        };
+        int minCX = cell(x);
+        int minCY = cell(y);
+        int maxCX = cell(x + w);
+        int maxCY = cell(y + h);
+        long cellCount = ((long) maxCX - minCX + 1) * ((long) maxCY - minCY + 1);
+        if (cellCount > Math.max(cells.size(), 1)) {
+            // Cheaper to look at every occupied cell than every cell in
+            // the query's range
+            for (List<Slot> cell : cells.values()) {
+                cell.forEach(collect);
+            }
+        } else {
+            for (int cy = minCY; cy <= maxCY; cy++) {
+                for (int cx = minCX; cx <= maxCX; cx++) {
+                    List<Slot> cell = cells.get(key(cx, cy));
+                    if (cell != null) {
+                        cell.forEach(collect);
+                    }
+                }
+            }
+        }
+        oversized.forEach(collect);
+        if (frontToBack) {
+            Collections.sort(found, (a, b) -> Double.compare(b.order, a.order));
+        } else {
+            Collections.sort(found, (a, b) -> Double.compare(a.order, b.order));
+        }
+        List<ShapeEntry> result = new ArrayList<>(found.size());
+        for (Slot slot : found) {
+            result.add(slot.entry);
+        }
+        return result;
+    }
+
+    private int cell(double coord) {
+        return (int) Math.floor(coord / cellSize);
+    }
+
+    private static long key(int cx, int cy) {
+        return (((long) cx) << 32) | (cy & 0xFFFFFFFFL);
+    }
+
+    private void insert(Slot slot) {
+        Rectangle2D.Double b = slot.bounds;
+        slot.minCX = cell(b.x);
+        slot.minCY = cell(b.y);
+        slot.maxCX = cell(b.x + b.width);
+        slot.maxCY = cell(b.y + b.height);
+        long count = ((long) slot.maxCX - slot.minCX + 1) * ((long) slot.maxCY - slot.minCY + 1);
+        if (count > MAX_CELLS_PER_ENTRY) {
+            slot.oversized = true;
+            oversized.add(slot);
+            return;
+        }
+        slot.oversized = false;
+        for (int cy = slot.minCY; cy <= slot.maxCY; cy++) {
+            for (int cx = slot.minCX; cx <= slot.maxCX; cx++) {
+                cells.computeIfAbsent(key(cx, cy), k -> new ArrayList<>(4)).add(slot);
+            }
+        }
+    }
+
+    private void remove(Slot slot) {
+        if (slot.oversized) {
+            oversized.remove(slot);
+            return;
+        }
+        for (int cy = slot.minCY; cy <= slot.maxCY; cy++) {
+            for (int cx = slot.minCX; cx <= slot.maxCX; cx++) {
+                long key = key(cx, cy);
+                List<Slot> cell = cells.get(key);
+                if (cell != null) {
+                    cell.remove(slot);
+                    if (cell.isEmpty()) {
+                        cells.remove(key);
+                    }
+                }
+            }
+        }
+    }
+
+    static final class Slot {
+
+        final ShapeEntry entry;
+        double order;
+        final Rectangle2D.Double bounds = new Rectangle2D.Double();
+        int minCX;
+        int minCY;
+        int maxCX;
+        int maxCY;
+        boolean oversized;
+        int stamp;
+
+        Slot(ShapeEntry entry, double order) {
+            this.entry = entry;
+            this.order = order;
+            updateBounds();
+        }
+
+        final void updateBounds() {
+            Rectangle r = entry.getBounds();
+            double pad = 1;
+            if (entry.isDraw()) {
+                BasicStroke stroke = entry.stroke();
+                pad += stroke.getLineWidth() + stroke.getMiterLimit();
+            }
+            bounds.setFrame(r.x - pad, r.y - pad, r.width + (pad * 2),
+                    r.height + (pad * 2));
+        }
+
+        boolean intersects(double x, double y, double w, double h) {
+            return bounds.x <= x + w && bounds.x + bounds.width >= x
+                    && bounds.y <= y + h && bounds.y + bounds.height >= y;
+        }
+    }
+}
@@ -13,12 +13,16 @@ import java.awt.geom.Area;
 import java.awt.geom.Point2D;
 import java.awt.geom.Rectangle2D;
 import java.io.IOException;
+import java.util.AbstractList;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Objects;
+import java.util.RandomAccess;
 import java.util.Set;
 import java.util.function.BiConsumer;
 import java.util.function.Consumer;
@@ -53,12 +57,13 @@ import org.imagine.vector.editor.ui.undo.UndoRedoHookable;
  */
 public class Shapes implements HitTester, ShapesCollection {
 
-    private final List<ShapeEntry> shapes;
+    private final IndexedList shapes;
+    private final ShapeIndex index = new ShapeIndex();
     private int rev;
 
     public Shapes(boolean log) {
 //        shapes = log ? new LoggingList(20) : new ArrayList<>(20);
-        shapes = new ArrayList<>(20);
+        shapes = new IndexedList(20, index);
     }
 
     public void writeTo(KeyWriter writer) throws IOException {
@@ -157,16 +162,40 @@ public class Shapes implements HitTester, ShapesCollection {
 
     @Override
     public void getBounds(Rectangle2D into) {
-        for (ShapeEntry se : shapes) {
-            se.vect.addToBounds(into);
+        Rectangle2D.Double all = index().union();
+        if (all.isEmpty()) {
+            // Preserve the semantics of adding each shape in turn
+            for (ShapeEntry se : shapes) {
+                se.vect.addToBounds(into);
+            }
+        } else if (into.isEmpty()) {
+            into.setFrame(all);
+        } else {
+            into.add(all);
         }
     }
 
+    /**
+     * Get the spatial index, rebuilding it if the list of shapes has been
+     * modified since it was last updated.
+     *
+     * @return The index
+     */
+    private ShapeIndex index() {
+        int structure = shapes.structure();
+        if (index.structure() != structure) {
+            index.rebuild(shapes, structure);
+        }
+        return index;
+    }
+
+    @Override
     public Runnable contentsSnapshot() {
-        List<ShapeEntry> l = new ArrayList<>(shapes);
+        // Constant time - the list copies its backing array when it is next
+        // modified, not now
+        Contents contents = shapes.freeze();
         return () -> {
-            shapes.clear();
-            shapes.addAll(l);
+            shapes.restore(contents);
             onChange();
         };
     }
@@ -292,7 +321,8 @@ public class Shapes implements HitTester, ShapesCollection {
         Rectangle2D bds = new Rectangle2D.Double();
         el.addToBounds(bds);
         List<ShapeElement> result = new ArrayList<>(7);
-        for (ShapeEntry e : shapes) {
+        for (ShapeEntry e : index().query(bds.getX(), bds.getY(),
+                bds.getWidth(), bds.getHeight(), true)) {
             if (e == el) {
                 continue;
             }
@@ -305,8 +335,9 @@ public class Shapes implements HitTester, ShapesCollection {
 
     @Override
     public List<? extends ShapeElement> shapesAtPoint(double x, double y) {
-        List<ShapeEntry> result = new ArrayList<>(shapes.size() / 2);
-        for (ShapeEntry e : shapes) {
+        List<ShapeEntry> candidates = index().query(x, y, 0, 0, true);
+        List<ShapeEntry> result = new ArrayList<>(candidates.size());
+        for (ShapeEntry e : candidates) {
             if (e.shape().contains(x, y)) {
                 result.add(e);
             }
@@ -352,11 +383,10 @@ public class Shapes implements HitTester, ShapesCollection {
 
     @Override
     public Shapes applyTransform(AffineTransform xform) {
-        Shapes result = snapshot();
         for (ShapeEntry en : shapes) {
             en.applyTransform(xform);
         }
-        return result;
+        return this;
     }
 
     @Override
@@ -584,17 +614,40 @@ public class Shapes implements HitTester, ShapesCollection {
 
     public Rectangle restore(Shapes snapshot) {
         Rectangle bds = getBounds();
+        shapes.restore(snapshot.shapes.freeze());
+        onChange();
+        bds.add(getBounds());
+        return bds;
+    }
 
-        shapes.clear();
-        shapes.addAll(snapshot.shapes);
-
+    /**
+     * Replace the contents with the passed entries, in order.
+     *
+     * @param entries The entries
+     * @return The area affected
+     */
+    Rectangle restore(List<ShapeEntry> entries) {
+        Rectangle bds = getBounds();
+        shapes.restore(new Contents(entries.toArray(new ShapeEntry[entries.size()]), entries.size()));
+        onChange();
         bds.add(getBounds());
         return bds;
     }
 
+    /**
+     * The modification count of the list of shapes, which changes whenever
+     * shapes are added, removed, replaced or reordered, but not when a shape
+     * is edited.
+     *
+     * @return The modification count
+     */
+    int structure() {
+        return shapes.structure();
+    }
+
     public int hits(Point2D pt, Consumer<? super ShapeElement> c) {
         int count = 0;
-        for (ShapeEntry se : shapes) {
+        for (ShapeEntry se : index().query(pt.getX(), pt.getY(), 0, 0, true)) {
             if (se.contains(pt)) {
                 c.accept(se);
                 count++;
@@ -618,11 +671,19 @@ public class Shapes implements HitTester, ShapesCollection {
     @Override
     public boolean paint(RenderingGoal goal, Graphics2D g, Rectangle thumbnailBounds, Zoom zoom, AspectRatio ratio) {
         GraphicsUtils.setHighQualityRenderingHints(g);
-        int max = shapes.size() - 1;
         boolean result = false;
-        for (int i = max; i >= 0; i--) {
-            ShapeEntry se = shapes.get(i);
-            result |= se.paint(goal, g, thumbnailBounds, ratio);
+        Rectangle clip = g.getClipBounds();
+        if (clip == null) {
+            int max = shapes.size() - 1;
+            for (int i = max; i >= 0; i--) {
+                ShapeEntry se = shapes.get(i);
+                result |= se.paint(goal, g, thumbnailBounds, ratio);
+            }
+        } else {
+            for (ShapeEntry se : index().query(clip.x, clip.y, clip.width,
+                    clip.height, false)) {
+                result |= se.paint(goal, g, thumbnailBounds, ratio);
+            }
         }
         return result;
     }
@@ -630,14 +691,13 @@ public class Shapes implements HitTester, ShapesCollection {
     @Override
     public Rectangle getBounds() {
         Rectangle2D.Double result = new Rectangle.Double();
-        for (ShapeEntry se : shapes) {
-            se.addToBounds(result);
-        }
+        getBounds(result);
         return result.getBounds();
     }
 
     void onChange() {
         pts2 = null;
+        index.invalidateBounds();
         rev++;
     }
 
@@ -660,6 +720,147 @@ public class Shapes implements HitTester, ShapesCollection {
         };
     }
 
+    /**
+     * A copy-on-write list of entries, which tells the spatial index about
+     * each insertion, removal and replacement, and exposes its modification
+     * count so the index can tell when it has missed a change.
+     * The backing array can be captured by a snapshot in constant time and
+     * restored from it later; once captured, the array is never written, and
+     * the next modification copies it.
+     */
+    static final class IndexedList extends AbstractList<ShapeEntry> implements RandomAccess {
+
+        private ShapeEntry[] elements;
+        private int size;
+        private boolean shared;
+        private final ShapeIndex index;
+
+        IndexedList(int size, ShapeIndex index) {
+            elements = new ShapeEntry[Math.max(4, size)];
+            this.index = index;
+        }
+
+        int structure() {
+            return modCount;
+        }
+
+        /**
+         * Capture the current contents, marking the backing array as shared.
+         *
+         * @return A snapshot
+         */
+        Contents freeze() {
+            shared = true;
+            return new Contents(elements, size);
+        }
+
+        /**
+         * Replace the contents with a snapshot.
+         *
+         * @param contents A snapshot
+         */
+        void restore(Contents contents) {
+            elements = contents.elements;
+            size = contents.size;
+            shared = true;
+            modCount++;
+        }
+
+        private void ensureWritable(int capacity) {
+            if (capacity > elements.length) {
+                elements = Arrays.copyOf(elements, Math.max(capacity,
+                        elements.length + (elements.length >> 1)));
+                shared = false;
+            } else if (shared) {
+                elements = elements.clone();
+                shared = false;
+            }
+        }
+
+        @Override
+        public ShapeEntry get(int index) {
+            Objects.checkIndex(index, size);
+            return elements[index];
+        }
+
+        @Override
+        public int size() {
+            return size;
+        }
+
+        @Override
+        public ShapeEntry set(int index, ShapeEntry element) {
+            Objects.checkIndex(index, size);
+            ensureWritable(size);
+            ShapeEntry old = elements[index];
+            elements[index] = element;
+            this.index.replaced(this, index, old, modCount, ++modCount);
+            return old;
+        }
+
+        @Override
+        public void add(int index, ShapeEntry element) {
+            Objects.checkIndex(index, size + 1);
+            ensureWritable(size + 1);
+            System.arraycopy(elements, index, elements, index + 1, size - index);
+            elements[index] = element;
+            size++;
+            this.index.added(this, index, modCount, ++modCount);
+        }
+
+        @Override
+        public ShapeEntry remove(int index) {
+            Objects.checkIndex(index, size);
+            ensureWritable(size);
+            ShapeEntry old = elements[index];
+            System.arraycopy(elements, index + 1, elements, index, size - (index + 1));
+            elements[--size] = null;
+            this.index.removed(old, modCount, ++modCount);
+            return old;
+        }
+
+        @Override
+        public void clear() {
+            if (shared) {
+                elements = new ShapeEntry[Math.max(4, size)];
+                shared = false;
+            } else {
+                Arrays.fill(elements, 0, size, null);
+            }
+            size = 0;
+            modCount++;
+        }
+
+        @Override
+        public int indexOf(Object o) {
+            for (int i = 0; i < size; i++) {
+                if (elements[i].equals(o)) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        @Override
+        public boolean contains(Object o) {
+            return indexOf(o) >= 0;
+        }
+    }
+
+    /**
+     * An immutable capture of the contents of an IndexedList.
+     */
+    static final class Contents {
+
+        private final ShapeEntry[] elements;
+        private final int size;
+
+        Contents(ShapeEntry[] elements, int size) {
+            this.elements = elements;
+            this.size = size;
+        }
+    }
+
     static class NMI<T> implements Iterator<T> {
 
         private final Iterator<? extends T> iter;
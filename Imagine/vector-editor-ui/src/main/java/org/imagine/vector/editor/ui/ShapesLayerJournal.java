@@ -0,0 +1,295 @@
+package org.imagine.vector.editor.ui;
+
+import java.awt.Rectangle;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+import net.java.dev.imagine.api.vector.Shaped;
+import net.java.dev.imagine.api.vector.Versioned;
+import net.java.dev.imagine.spi.io.LayerJournalHandler;
+import org.imagine.io.KeyBinaryReader;
+import org.imagine.io.KeyBinaryWriter;
+import org.imagine.vector.editor.ui.io.HashInconsistencyBehavior;
+import org.imagine.vector.editor.ui.io.VectorIO;
+import static org.imagine.vector.editor.ui.ShapesLoadHandler.SHAPE_COLLECTION_MAGIC_1A;
+import static org.imagine.vector.editor.ui.ShapesLoadHandler.SHAPE_COLLECTION_MAGIC_2;
+
+/**
+ * Journals changes to vector layers as the shapes which changed since the
+ * last capture, and, if shapes were added, removed or reordered, the ids of
+ * all of them in their new order.  Whether a shape changed is decided from
+ * its geometry and style revisions and its item's revision, and whether the
+ * list changed from its modification count, so nothing is serialized
+ * unless it changed.  The changed shapes are serialized when the change is
+ * captured, since they may be edited on the event thread as soon as it
+ * returns.  Until the journal reports the layer's base, and for collections
+ * whose ids are not unique, the entire collection is journaled instead.
+ *
+ * @author Tim Boudreau
+ */
+final class ShapesLayerJournal implements LayerJournalHandler<VectorLayer> {
+
+    static final ShapesLayerJournal INSTANCE = new ShapesLayerJournal();
+    private static final byte CHANGE_ALL = 0;
+    private static final byte CHANGE_ENTRIES = 1;
+    private final Map<VectorLayer, Baseline> baselines = new WeakHashMap<>();
+
+    private ShapesLayerJournal() {
+    }
+
+    @Override
+    public void rebased(VectorLayer layer) {
+        Baseline baseline;
+        try {
+            baseline = new Baseline(ShapesLayerSave.shapesOf(layer));
+        } catch (IOException ex) {
+            baseline = null;
+        }
+        synchronized (baselines) {
+            if (baseline == null) {
+                baselines.remove(layer);
+            } else {
+                baselines.put(layer, baseline);
+            }
+        }
+    }
+
+    @Override
+    public Change capture(VectorLayer layer, List<Rectangle> regions) {
+        try {
+            Shapes shapes = ShapesLayerSave.shapesOf(layer);
+            Baseline baseline;
+            synchronized (baselines) {
+                baseline = baselines.get(layer);
+            }
+            if (baseline == null || !baseline.uniqueIds) {
+                return captureAll(layer, shapes);
+            }
+            int structure = shapes.structure();
+            boolean reordered = structure != baseline.structure;
+            Map<ShapeEntry, Stamp> stamps = reordered
+                    ? new IdentityHashMap<>(shapes.size()) : baseline.stamps;
+            List<ShapeEntry> changed = new ArrayList<>();
+            for (int i = 0; i < shapes.size(); i++) {
+                ShapeEntry entry = (ShapeEntry) shapes.get(i);
+                Stamp stamp = baseline.stamps.get(entry);
+                if (stamp == null || !stamp.matches(entry)) {
+                    changed.add(entry);
+                    stamp = new Stamp(entry);
+                    stamps.put(entry, stamp);
+                } else if (reordered) {
+                    stamps.put(entry, stamp);
+                }
+            }
+            if (reordered) {
+                if (!uniqueIds(shapes)) {
+                    return captureAll(layer, shapes);
+                }
+                baseline.structure = structure;
+                baseline.stamps = stamps;
+            } else if (changed.isEmpty()) {
+                // Repainted, but not changed
+                return null;
+            }
+            KeyBinaryWriter w = new KeyBinaryWriter(SHAPE_COLLECTION_MAGIC_1A, SHAPE_COLLECTION_MAGIC_2);
+            w.writeByte(CHANGE_ENTRIES);
+            if (reordered) {
+                long[] ids = new long[shapes.size()];
+                for (int i = 0; i < ids.length; i++) {
+                    ids[i] = ((ShapeEntry) shapes.get(i)).id();
+                }
+                w.writeByte((byte) 1);
+                w.writeLongArray(ids);
+            } else {
+                w.writeByte((byte) 0);
+            }
+            w.writeInt(changed.size());
+            VectorIO vio = new VectorIO();
+            for (ShapeEntry entry : changed) {
+                entry.writeTo(vio, w);
+            }
+            w.finishRecord();
+            return new ShapesChange(w);
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+    }
+
+    private Change captureAll(VectorLayer layer, Shapes shapes) throws IOException {
+        KeyBinaryWriter w = new KeyBinaryWriter(SHAPE_COLLECTION_MAGIC_1A, SHAPE_COLLECTION_MAGIC_2);
+        w.writeByte(CHANGE_ALL);
+        shapes.writeTo(w);
+        w.finishRecord();
+        Baseline baseline = new Baseline(shapes);
+        synchronized (baselines) {
+            baselines.put(layer, baseline);
+        }
+        return new ShapesChange(w);
+    }
+
+    @Override
+    public <C extends ReadableByteChannel & SeekableByteChannel> void apply(VectorLayer layer, C channel, int length) throws IOException {
+        KeyBinaryReader<C> rdr = new KeyBinaryReader<>(channel, SHAPE_COLLECTION_MAGIC_1A,
+                SHAPE_COLLECTION_MAGIC_2);
+        rdr.readMagicAndSize();
+        Shapes shapes = ShapesLayerSave.shapesOf(layer);
+        byte kind = rdr.readByte();
+        switch (kind) {
+            case CHANGE_ALL:
+                shapes.restore(Shapes.load(rdr, HashInconsistencyBehavior.WARN));
+                break;
+            case CHANGE_ENTRIES:
+                applyEntries(shapes, rdr);
+                break;
+            default:
+                throw new IOException("Unknown vector layer change " + kind);
+        }
+        synchronized (baselines) {
+            baselines.remove(layer);
+        }
+    }
+
+    private static void applyEntries(Shapes shapes, KeyBinaryReader<?> rdr) throws IOException {
+        long[] order = rdr.readByte() != 0 ? rdr.readLongArray() : null;
+        int count = rdr.readInt();
+        if (count < 0) {
+            throw new IOException("Invalid changed shape count " + count);
+        }
+        VectorIO vio = new VectorIO();
+        vio.setHashInconsistencyBehavior(HashInconsistencyBehavior.WARN);
+        Map<Long, ShapeEntry> changed = new HashMap<>(count * 2);
+        for (int i = 0; i < count; i++) {
+            ShapeEntry entry = ShapeEntry.read(vio, rdr);
+            changed.put(entry.id(), entry);
+        }
+        List<ShapeEntry> result = new ArrayList<>();
+        if (order != null) {
+            Map<Long, ShapeEntry> existing = new HashMap<>(shapes.size() * 2);
+            for (int i = 0; i < shapes.size(); i++) {
+                ShapeEntry entry = (ShapeEntry) shapes.get(i);
+                existing.put(entry.id(), entry);
+            }
+            for (long id : order) {
+                ShapeEntry entry = changed.get(id);
+                if (entry == null) {
+                    entry = existing.get(id);
+                }
+                if (entry == null) {
+                    throw new IOException("No shape with id " + id);
+                }
+                result.add(entry);
+            }
+        } else {
+            int replaced = 0;
+            for (int i = 0; i < shapes.size(); i++) {
+                ShapeEntry entry = (ShapeEntry) shapes.get(i);
+                ShapeEntry nue = changed.get(entry.id());
+                if (nue != null) {
+                    replaced++;
+                }
+                result.add(nue == null ? entry : nue);
+            }
+            if (replaced != changed.size()) {
+                throw new IOException("Only " + replaced + " of " + changed.size()
+                        + " changed shapes are present");
+            }
+        }
+        shapes.restore(result);
+    }
+
+    private static boolean uniqueIds(Shapes shapes) {
+        Set<Long> ids = new HashSet<>(shapes.size() * 2);
+        for (int i = 0; i < shapes.size(); i++) {
+            if (!ids.add(((ShapeEntry) shapes.get(i)).id())) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    @SuppressWarnings("NonPublicExported")
+    public Class<VectorLayer> layerType() {
+        return VectorLayer.class;
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName();
+    }
+
+    /**
+     * The shapes of a layer as of the journal's base or the last capture.
+     */
+    private static final class Baseline {
+
+        private int structure;
+        private Map<ShapeEntry, Stamp> stamps;
+        private final boolean uniqueIds;
+
+        Baseline(Shapes shapes) {
+            structure = shapes.structure();
+            stamps = new IdentityHashMap<>(shapes.size());
+            for (int i = 0; i < shapes.size(); i++) {
+                ShapeEntry entry = (ShapeEntry) shapes.get(i);
+                stamps.put(entry, new Stamp(entry));
+            }
+            uniqueIds = uniqueIds(shapes);
+        }
+    }
+
+    /**
+     * The revisions of a shape when it was captured.  Shapes whose item is
+     * not versioned never match, so are always journaled.
+     */
+    private static final class Stamp {
+
+        private final Shaped item;
+        private final int itemRev;
+        private final int geometryRev;
+        private final int styleRev;
+
+        Stamp(ShapeEntry entry) {
+            item = entry.item();
+            itemRev = itemRevision(item);
+            geometryRev = entry.geometryRevision();
+            styleRev = entry.styleRevision();
+        }
+
+        boolean matches(ShapeEntry entry) {
+            Shaped current = entry.item();
+            return itemRev >= 0 && current == item
+                    && itemRevision(current) == itemRev
+                    && entry.geometryRevision() == geometryRev
+                    && entry.styleRevision() == styleRev;
+        }
+
+        private static int itemRevision(Shaped item) {
+            return item instanceof Versioned ? ((Versioned) item).rev() : -1;
+        }
+    }
+
+    private static final class ShapesChange implements Change {
+
+        private final KeyBinaryWriter writer;
+
+        ShapesChange(KeyBinaryWriter writer) {
+            this.writer = writer;
+        }
+
+        @Override
+        public <C extends WritableByteChannel & SeekableByteChannel> void writeTo(C channel) throws IOException {
+            writer.writeTo(channel);
+        }
+    }
+}
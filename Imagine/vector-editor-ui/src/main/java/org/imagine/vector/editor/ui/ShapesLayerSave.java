@@ -53,41 +53,56 @@ public class ShapesLayerSave implements LayerSaveHandler<VectorLayer> {
 
     @Override
     public <C extends WritableByteChannel & SeekableByteChannel> int saveTo(VectorLayer layer, C channel, Map<String, String> saveHints) throws IOException {
-        ShapesCollection coll = layer.getLookup().lookup(ShapesCollection.class);
+        write(shapesOf(layer), layer.getBounds(), channel);
+        return layerTypeId();
+    }
+
+    /**
+     * Snapshots hold a copy of the shapes, which is much cheaper to make
+     * than serializing them.
+     */
+    @Override
+    public Snapshot snapshot(VectorLayer layer) {
         Shapes shapes;
-        if (coll instanceof Shapes) {
-            shapes = (Shapes) coll;
-        } else if (coll instanceof RepaintProxyShapes) {
-            shapes = ((RepaintProxyShapes) coll).root();
-        } else {
-            throw new IOException("Could not find an instance of "
-                    + "ShapesCollection in layer lookup of " + layer
-                    + " that is either a " + Shapes.class.getName()
-                    + " or a " + RepaintProxyShapes.class.getName());
+        try {
+            shapes = shapesOf(layer);
+        } catch (IOException ex) {
+            // Let saveTo() report it
+            return null;
         }
+        return new ShapesSnapshot(new Shapes(shapes), layer.getBounds());
+    }
 
+    private static <C extends WritableByteChannel & SeekableByteChannel> void write(Shapes shapes, Rectangle r, C channel) throws IOException {
         long start = channel.position();
         fine(() -> "Vector layer write shapes starting at " + start);
         KeyBinaryWriter w = new KeyBinaryWriter(SHAPE_COLLECTION_MAGIC_1A, SHAPE_COLLECTION_MAGIC_2);
         shapes.writeTo(w);
         w.finishRecord();
         finer(() -> "Shapes writer reports bytes to write " + w.size());
-        for (ByteBuffer buf : w.get()) {
-            buf.flip();
-            channel.write(buf);
-        }
+        w.writeTo(channel);
         long end = channel.position();
         finer(() -> "Vector layer wrote shapes starting at " + start
                 + " ending at " + end + " of " + (end - start) + " bytes");
         ByteBuffer sizeInfo = ByteBuffer.allocate(Integer.BYTES * 2);
-        Rectangle r = layer.getBounds();
         sizeInfo.putInt(r.width);
         sizeInfo.putInt(r.height);
         sizeInfo.flip();
         channel.write(sizeInfo);
         finer(() -> "Vector layer wrote size " + r.width + "," + r.height);
+    }
 
-        return layerTypeId();
+    static Shapes shapesOf(VectorLayer layer) throws IOException {
+        ShapesCollection coll = layer.getLookup().lookup(ShapesCollection.class);
+        if (coll instanceof Shapes) {
+            return (Shapes) coll;
+        } else if (coll instanceof RepaintProxyShapes) {
+            return ((RepaintProxyShapes) coll).root();
+        }
+        throw new IOException("Could not find an instance of "
+                + "ShapesCollection in layer lookup of " + layer
+                + " that is either a " + Shapes.class.getName()
+                + " or a " + RepaintProxyShapes.class.getName());
     }
 
     @Override
@@ -101,6 +116,11 @@ public class ShapesLayerSave implements LayerSaveHandler<VectorLayer> {
         return VectorLayer.class;
     }
 
+    @Override
+    public boolean isThreadSafe() {
+        return true;
+    }
+
     @Override
     public String toString() {
         return getClass().getSimpleName() + "("
@@ -109,4 +129,19 @@ public class ShapesLayerSave implements LayerSaveHandler<VectorLayer> {
                 + ")";
     }
 
+    private static final class ShapesSnapshot implements Snapshot {
+
+        private final Shapes shapes;
+        private final Rectangle bounds;
+
+        ShapesSnapshot(Shapes shapes, Rectangle bounds) {
+            this.shapes = shapes;
+            this.bounds = bounds;
+        }
+
+        @Override
+        public <C extends WritableByteChannel & SeekableByteChannel> void saveTo(C channel, Map<String, String> saveHints) throws IOException {
+            write(shapes, bounds, channel);
+        }
+    }
 }
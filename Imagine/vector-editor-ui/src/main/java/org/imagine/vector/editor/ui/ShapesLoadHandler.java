@@ -98,4 +98,9 @@ public class ShapesLoadHandler implements LayerLoadHandler<VectorLayer> {
         VectorLayer vl = new VectorLayer("-pending", handle, canvasSize, vlf, shapes);
         return vl;
     }
+
+    @Override
+    public boolean isThreadSafe() {
+        return true;
+    }
 }
@@ -78,6 +78,7 @@ final class VectorLayer extends AbstractLayerImplementation {
     protected MPL createLookup() {
         return lkp != null ? lkp : (lkp = new MPL(
                 Lookups.fixed(this, getLayer(), ShapesLayerSave.INSTANCE,
+                        ShapesLayerJournal.INSTANCE,
                         new RepaintProxyShapes(shapes, getMasterRepaintHandle()),
                         surface, surface.getSurface(), widgetHooks,
                         surface.transformReceiver())));
@@ -1,9 +1,15 @@
 package org.imagine.vector.editor.ui;
 
 import java.awt.Dimension;
+import java.awt.Graphics2D;
+import java.awt.Point;
 import net.java.dev.imagine.api.image.Layer;
 import net.java.dev.imagine.spi.image.LayerImplementation;
+import net.java.dev.imagine.api.vector.painting.VectorWrapperGraphics;
+import org.imagine.utils.java2d.GraphicsUtils;
 import org.imagine.utils.painting.RepaintHandle;
+import org.imagine.vector.editor.ui.spi.ShapeRecorder;
+import org.imagine.vector.editor.ui.spi.ShapesCollection;
 import org.imagine.vector.editor.ui.spi.VectorLayerFactory;
 import org.netbeans.paint.api.editing.LayerFactory;
 import org.openide.util.NbBundle.Messages;
@@ -30,6 +36,24 @@ public class VectorLayerFactoryImpl extends VectorLayerFactory {
         return new VectorLayer(name, handle, size, this);
     }
 
+    @Override
+    public ShapeRecorder createShapeRecorder() {
+        ShapeCollector collector = new ShapeCollector();
+        VectorWrapperGraphics graphics = new VectorWrapperGraphics(collector,
+                GraphicsUtils.noOpGraphics(), new Point(), 1, 1);
+        return new ShapeRecorder() {
+            @Override
+            public Graphics2D graphics() {
+                return graphics;
+            }
+
+            @Override
+            public void replay(ShapesCollection shapes) {
+                collector.replay(shapes);
+            }
+        };
+    }
+
     @Override
     public boolean canConvert(Layer other) {
         return false;
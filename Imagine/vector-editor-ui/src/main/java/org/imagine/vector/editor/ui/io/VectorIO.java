@@ -8,8 +8,16 @@ package org.imagine.vector.editor.ui.io;
 import com.mastfrog.util.strings.Strings;
 import java.awt.Font;
 import java.awt.geom.AffineTransform;
+import java.awt.geom.PathIterator;
 import java.awt.image.BufferedImage;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
 import net.java.dev.imagine.api.vector.Primitive;
 import net.java.dev.imagine.api.vector.Shaped;
 import net.java.dev.imagine.api.vector.elements.Arc;
@@ -34,6 +42,8 @@ import net.java.dev.imagine.api.vector.graphics.BasicStrokeWrapper;
 import net.java.dev.imagine.api.vector.graphics.FontWrapper;
 import org.imagine.io.KeyReader;
 import org.imagine.io.KeyWriter;
+import org.netbeans.paint.misc.image.ImageCodec;
+import org.netbeans.paint.misc.image.ImageCodecs;
 import static org.openide.util.Parameters.notNull;
 
 /**
@@ -44,7 +54,26 @@ public class VectorIO {
 
     private static final byte ENTRY_MAGIC_1 = 121;
     private static final byte ENTRY_MAGIC_2 = -107;
-    private static final byte REV = 1;
+    private static final byte REV = 3;
+    /**
+     * Revision 1 wrote path segments and polygon points as plain double
+     * arrays, one per path segment.
+     */
+    private static final byte REV_1 = 1;
+    /**
+     * Revisions 1 and 2 wrote every image's pixels inline, uncompressed.
+     */
+    private static final byte REV_2 = 2;
+
+    /**
+     * Images are written as a blob the first time a given image content is
+     * seen in the stream, and as a reference to that blob's id afterwards.
+     */
+    private static final byte IMAGE_BLOB = 1;
+    private static final byte IMAGE_REF = 2;
+    private static final byte PIXELS_NATIVE = 0;
+    private static final byte PIXELS_ARGB = 1;
+    private static final ImageCodec IMAGE_CODEC = ImageCodecs.ADAPTIVE;
 
     private static final byte CIRCLE = 1;
     private static final byte RECTANGLE = 2;
@@ -68,6 +97,11 @@ public class VectorIO {
 
     private HashInconsistencyBehavior hashInconsistencyBehavior
             = HashInconsistencyBehavior.defaultBehavior();
+    // Images are content-addressed per stream, so an instance should be
+    // used to write or read a single stream, or reset() between them
+    private final Map<BufferedImage, Integer> writtenImages = new IdentityHashMap<>();
+    private final Map<Long, List<BufferedImage>> writtenImagesByContent = new HashMap<>();
+    private final Map<Integer, BufferedImage> readImages = new HashMap<>();
 
     private static byte typeIdFor(Primitive shaped) throws IOException {
         if (shaped instanceof StringWrapper) {
@@ -143,6 +177,19 @@ public class VectorIO {
         return this;
     }
 
+    /**
+     * Forget the images written or read so far, so that this instance can
+     * be used with a new stream.
+     *
+     * @return this
+     */
+    public VectorIO reset() {
+        writtenImages.clear();
+        writtenImagesByContent.clear();
+        readImages.clear();
+        return this;
+    }
+
     public Primitive readShape(KeyReader reader) throws IOException {
         return readShape(reader, hashInconsistencyBehavior);
     }
@@ -150,7 +197,7 @@ public class VectorIO {
     public Primitive readShape(KeyReader reader, HashInconsistencyBehavior behavior) throws IOException {
         byte type = readEntryStart(reader);
         byte rev = reader.readByte();
-        if (rev != REV) {
+        if (rev != REV && rev != REV_2 && rev != REV_1) {
             throw new IOException("Unrecognized file revision " + rev + " expected " + REV);
         }
         int hash = reader.readInt();
@@ -166,7 +213,7 @@ public class VectorIO {
                 result = readClear(reader);
                 break;
             case IMAGE:
-                result = readImage(reader);
+                result = readImage(reader, rev);
                 break;
             case LINE:
                 result = readLine(reader);
@@ -175,7 +222,7 @@ public class VectorIO {
                 result = readOval(reader);
                 break;
             case PATH:
-                result = readPath(reader);
+                result = readPath(reader, rev);
                 break;
             case POLYGON:
                 result = readPolygon(reader);
@@ -395,13 +442,13 @@ public class VectorIO {
     }
 
     private void writePolygon(Polygon polygon, KeyWriter writer) {
-        writer.writeDoubleArray(polygon.xpoints());
-        writer.writeDoubleArray(polygon.ypoints());
+        writer.writeCoordinates(polygon.xpoints());
+        writer.writeCoordinates(polygon.ypoints());
     }
 
     private Polygon readPolygon(KeyReader r) throws IOException {
-        double[] xpoints = r.readDoubleArray();
-        double[] ypoints = r.readDoubleArray();
+        double[] xpoints = r.readCoordinates();
+        double[] ypoints = r.readCoordinates();
         if (xpoints.length != ypoints.length) {
             throw new IOException("Different xpoints and ypoints array lengths: "
                     + xpoints.length + " vs " + ypoints.length);
@@ -497,30 +544,70 @@ public class VectorIO {
 
     private void writePath(PathIteratorWrapper pathIteratorWrapper, KeyWriter writer) {
         int sz = pathIteratorWrapper.size();
-        double[][] points = new double[sz][];
         byte[] types = new byte[sz];
+        int[] count = new int[1];
         pathIteratorWrapper.visitPoints((PointVisitor) (ix, type, data) -> {
             types[ix] = (byte) type;
-            points[ix] = data;
+            count[0] += data == null ? 0 : data.length;
         });
-        writer.writeByteArray(types);
-        for (int i = 0; i < sz; i++) {
-            if (points[i] == null) {
-                points[i] = new double[0];
+        // All segments' points in one array, so consecutive points can be
+        // delta-encoded
+        double[] coords = new double[count[0]];
+        int[] cursor = new int[1];
+        pathIteratorWrapper.visitPoints((PointVisitor) (ix, type, data) -> {
+            if (data != null) {
+                System.arraycopy(data, 0, coords, cursor[0], data.length);
+                cursor[0] += data.length;
             }
-            writer.writeDoubleArray(points[i]);
-        }
+        });
+        writer.writeByteArray(types);
+        writer.writeCoordinates(coords);
     }
 
-    private PathIteratorWrapper readPath(KeyReader r) throws IOException {
+    private PathIteratorWrapper readPath(KeyReader r, byte rev) throws IOException {
         byte[] types = r.readByteArray();
         double[][] dbls = new double[types.length][];
+        if (rev == REV_1) {
+            for (int i = 0; i < types.length; i++) {
+                dbls[i] = r.readDoubleArray();
+            }
+            return new PathIteratorWrapper(types, dbls);
+        }
+        double[] coords = r.readCoordinates();
+        int cursor = 0;
         for (int i = 0; i < types.length; i++) {
-            dbls[i] = r.readDoubleArray();
+            int len = pointsLength(types[i]);
+            if (cursor + len > coords.length) {
+                throw new IOException("Path segment " + i + " of type "
+                        + types[i] + " needs " + len + " coordinates, but "
+                        + "only " + (coords.length - cursor) + " remain");
+            }
+            dbls[i] = Arrays.copyOfRange(coords, cursor, cursor + len);
+            cursor += len;
+        }
+        if (cursor != coords.length) {
+            throw new IOException("Read " + coords.length + " path coordinates "
+                    + "but segments use " + cursor);
         }
         return new PathIteratorWrapper(types, dbls);
     }
 
+    private static int pointsLength(byte type) throws IOException {
+        switch (type) {
+            case PathIterator.SEG_MOVETO:
+            case PathIterator.SEG_LINETO:
+                return 2;
+            case PathIterator.SEG_QUADTO:
+                return 4;
+            case PathIterator.SEG_CUBICTO:
+                return 6;
+            case PathIterator.SEG_CLOSE:
+                return 0;
+            default:
+                throw new IOException("Unknown path segment type " + type);
+        }
+    }
+
     private void writeImage(ImageWrapper imageWrapper, KeyWriter writer) {
         AffineTransform xf = imageWrapper.xform;
         double[] mx = xf == null ? new double[0] : new double[6];
@@ -530,23 +617,142 @@ public class VectorIO {
         writer.writeDoubleArray(mx);
 
         BufferedImage img = imageWrapper.img;
+        Integer id = writtenImages.get(img);
+        if (id != null) {
+            writer.writeByte(IMAGE_REF);
+            writer.writeInt(id);
+            return;
+        }
+        boolean nativePixels = isNativeEncodable(img);
+        int[] pixels = pixels(img, nativePixels);
+        long hash = contentHash(img, pixels);
+        List<BufferedImage> sameHash = writtenImagesByContent.computeIfAbsent(hash,
+                h -> new ArrayList<>(1));
+        for (BufferedImage other : sameHash) {
+            if (other.getType() == img.getType()
+                    && other.getWidth() == img.getWidth()
+                    && other.getHeight() == img.getHeight()
+                    && isNativeEncodable(other) == nativePixels
+                    && Arrays.equals(pixels, pixels(other, nativePixels))) {
+                id = writtenImages.get(other);
+                writtenImages.put(img, id);
+                writer.writeByte(IMAGE_REF);
+                writer.writeInt(id);
+                return;
+            }
+        }
+        id = writtenImages.size();
+        writtenImages.put(img, id);
+        sameHash.add(img);
+        writer.writeByte(IMAGE_BLOB);
+        writer.writeInt(id);
         writer.writeInt(img.getType());
         writer.writeInt(img.getWidth());
         writer.writeInt(img.getHeight());
-        int[] pixels = img.getData().getPixels(0, 0, img.getWidth(), img.getHeight(), (int[]) null);
-        writer.writeIntArray(pixels);
+        writer.writeByte(nativePixels ? PIXELS_NATIVE : PIXELS_ARGB);
+        ByteBuffer encoded = IMAGE_CODEC.encode(pixels);
+        byte[] bytes = new byte[encoded.remaining()];
+        encoded.get(bytes);
+        writer.writeByteArray(bytes);
+    }
+
+    /**
+     * Whether an image's pixels are single ints which can be read and
+     * written unconverted - otherwise they are stored as ARGB.
+     */
+    private static boolean isNativeEncodable(BufferedImage img) {
+        int type = img.getType();
+        return (type == BufferedImage.TYPE_INT_ARGB
+                || type == BufferedImage.TYPE_INT_ARGB_PRE
+                || type == BufferedImage.TYPE_INT_RGB
+                || type == BufferedImage.TYPE_INT_BGR)
+                && img.getRaster().getNumDataElements() == 1;
+    }
+
+    private static int[] pixels(BufferedImage img, boolean nativePixels) {
+        int w = img.getWidth();
+        int h = img.getHeight();
+        if (nativePixels) {
+            // Reads from the raster directly, rather than getData() which
+            // copies it, and without grabbing its data buffer, which would
+            // stop the image from being accelerated
+            return (int[]) img.getRaster().getDataElements(0, 0, w, h, new int[w * h]);
+        }
+        return img.getRGB(0, 0, w, h, new int[w * h], 0, w);
     }
 
-    private ImageWrapper readImage(KeyReader reader) throws IOException {
+    private static long contentHash(BufferedImage img, int[] pixels) {
+        long result = 0xCBF29CE484222325L;
+        result = (result ^ img.getType()) * 0x100000001B3L;
+        result = (result ^ img.getWidth()) * 0x100000001B3L;
+        result = (result ^ img.getHeight()) * 0x100000001B3L;
+        for (int i = 0; i < pixels.length; i++) {
+            result = (result ^ pixels[i]) * 0x100000001B3L;
+        }
+        return result;
+    }
+
+    private ImageWrapper readImage(KeyReader reader, byte rev) throws IOException {
         double[] mx = reader.readDoubleArray();
         AffineTransform xform = mx.length == 0 ? null : new AffineTransform(mx);
+        if (rev <= REV_2) {
+            int type = reader.readInt();
+            int w = reader.readInt();
+            int h = reader.readInt();
+            int[] pixels = reader.readIntArray();
+            BufferedImage img = new BufferedImage(w, h, type);
+            img.getRaster().setPixels(0, 0, w, h, pixels);
+            return new ImageWrapper(img, xform);
+        }
+        byte kind = reader.readByte();
+        int id = reader.readInt();
+        switch (kind) {
+            case IMAGE_REF:
+                BufferedImage img = readImages.get(id);
+                if (img == null) {
+                    throw new IOException("Reference to unknown image " + id);
+                }
+                return new ImageWrapper(img, xform);
+            case IMAGE_BLOB:
+                ImageWrapper result = new ImageWrapper(readImageBlob(reader), xform);
+                // Share the wrapper's image, which may have been converted
+                // to the default image type, so later references use it as-is
+                readImages.put(id, result.img);
+                return result;
+            default:
+                throw new IOException("Unknown image entry kind " + kind);
+        }
+    }
+
+    private BufferedImage readImageBlob(KeyReader reader) throws IOException {
         int type = reader.readInt();
         int w = reader.readInt();
         int h = reader.readInt();
-        int[] pixels = reader.readIntArray();
+        byte encoding = reader.readByte();
+        if (w <= 0 || h <= 0) {
+            throw new IOException("Bad image dimensions " + w + "x" + h);
+        }
+        if (type == BufferedImage.TYPE_CUSTOM) {
+            type = BufferedImage.TYPE_INT_ARGB;
+        }
+        int[] pixels = new int[w * h];
+        IMAGE_CODEC.decode(ByteBuffer.wrap(reader.readByteArray()), pixels);
         BufferedImage img = new BufferedImage(w, h, type);
-        img.getRaster().setPixels(0, 0, w, h, pixels);
-        return new ImageWrapper(img, xform);
+        switch (encoding) {
+            case PIXELS_NATIVE:
+                if (!isNativeEncodable(img)) {
+                    throw new IOException("Native pixels for non-int image type "
+                            + type);
+                }
+                img.getRaster().setDataElements(0, 0, w, h, pixels);
+                break;
+            case PIXELS_ARGB:
+                img.setRGB(0, 0, w, h, pixels, 0, w);
+                break;
+            default:
+                throw new IOException("Unknown pixel encoding " + encoding);
+        }
+        return img;
     }
 
     private void writeStroke(BasicStrokeWrapper s, KeyWriter writer) {
@@ -643,7 +849,7 @@ public class VectorIO {
 
     private void writePolygonWrapper(PolygonWrapper polygonWrapper, KeyWriter writer) {
         writer.writeByte(POLY2_MARKER);
-        writer.writeDoubleArray(polygonWrapper.pointsArray());
+        writer.writeCoordinates(polygonWrapper.pointsArray());
     }
 
     private PolygonWrapper readPolygonWrapper(KeyReader reader) throws IOException {
@@ -654,7 +860,7 @@ public class VectorIO {
                     + " but got "
                     + Strings.toPaddedHex(new byte[]{marker}));
         }
-        double[] dbls = reader.readDoubleArray();
+        double[] dbls = reader.readCoordinates();
         if (dbls.length % 2 != 0) {
             throw new IOException("Read odd number of coordinates");
         }
@@ -105,7 +105,11 @@ public class ShapeEntryTransferHandler extends TransferHandler {
             VectorIO vio = new VectorIO();
             entry.writeTo(vio, kbw);
             kbw.finishRecord();
-            return new ByteArrayInputStream(kbw.toByteArray());
+            try {
+                return new ByteArrayInputStream(kbw.toByteArray());
+            } finally {
+                kbw.release();
+            }
         }
 
         @Override
@@ -3,7 +3,6 @@ package org.imagine.vector.editor.ui.palette;
 import com.mastfrog.abstractions.Wrapper;
 import com.mastfrog.util.strings.Strings;
 import java.io.IOException;
-import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -49,11 +48,7 @@ class ShapePaletteStorage extends PaletteStorage<ShapeElement> {
             VectorIO vio = new VectorIO();
             en.writeTo(vio, kbw);
             kbw.finishRecord();
-            for (ByteBuffer buf : kbw.get()) {
-                buf.flip();
-                channel.write(buf);
-            }
-            kbw.finishRecord();
+            kbw.writeTo(channel);
         } catch (IOException | RuntimeException | Error ex) {
             LOG.log(Level.SEVERE, "Exception saving paint key '" + name + "' for " + obj, ex);
             throw ex;
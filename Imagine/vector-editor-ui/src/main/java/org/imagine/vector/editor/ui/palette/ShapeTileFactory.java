@@ -13,7 +13,6 @@ import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
-import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
 import static java.nio.file.StandardOpenOption.CREATE;
 import static java.nio.file.StandardOpenOption.READ;
@@ -285,10 +284,7 @@ final class ShapeTileFactory<S extends ShapeElement> extends AbstractTileFactory
                     KeyBinaryWriter w = new KeyBinaryWriter();
                     toSave.writeTo(io, w);
                     w.finishRecord();
-                    for (ByteBuffer buf : w.get()) {
-                        buf.flip();
-                        c.write(buf);
-                    }
+                    w.writeTo(c);
                 } catch (IOException ex) {
                     Exceptions.printStackTrace(ex);
                 }
@@ -137,5 +137,16 @@ public interface ShapeElement {
 
     Runnable geometrySnapshot();
 
+    /**
+     * Get a counter which changes whenever the geometry of this shape is
+     * modified, so undoable edits can tell which of the shapes they
+     * snapshotted were actually changed and discard the rest.
+     *
+     * @return A revision, or -1 if changes are not tracked
+     */
+    default int geometryRevision() {
+        return -1;
+    }
+
     ShapeInfo shapeInfo();
 }
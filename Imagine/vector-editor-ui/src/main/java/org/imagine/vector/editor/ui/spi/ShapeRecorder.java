@@ -0,0 +1,29 @@
+package org.imagine.vector.editor.ui.spi;
+
+import java.awt.Graphics2D;
+
+/**
+ * Records what is painted into a Graphics2D as shapes, which can later be
+ * added to a vector layer in the order they were painted.  Recording does
+ * not touch any layer, so recorders may be filled on background threads and
+ * replayed on the event thread; each recorder should only be used by one
+ * thread at a time.
+ *
+ * @author Tim Boudreau
+ */
+public interface ShapeRecorder {
+
+    /**
+     * Get the graphics context to paint into.
+     *
+     * @return A graphics
+     */
+    Graphics2D graphics();
+
+    /**
+     * Add everything painted so far to a shape collection.
+     *
+     * @param shapes The collection, usually found in a vector layer's lookup
+     */
+    void replay(ShapesCollection shapes);
+}
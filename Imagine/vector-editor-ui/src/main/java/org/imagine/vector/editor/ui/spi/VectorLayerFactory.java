@@ -17,4 +17,12 @@ public abstract class VectorLayerFactory extends LayerFactory {
     protected VectorLayerFactory(String name, String displayName) {
         super(name, displayName);
     }
+
+    /**
+     * Create a recorder which converts painting into shapes that can be
+     * added to a layer created by this factory.
+     *
+     * @return A recorder
+     */
+    public abstract ShapeRecorder createShapeRecorder();
 }
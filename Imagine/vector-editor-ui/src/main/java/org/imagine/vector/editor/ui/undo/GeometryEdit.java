@@ -11,6 +11,7 @@ import java.util.List;
 import java.util.function.Consumer;
 import javax.swing.event.UndoableEditEvent;
 import javax.swing.undo.CannotUndoException;
+import net.java.dev.imagine.api.vector.Versioned;
 import net.java.dev.imagine.ui.common.UndoMgr;
 import org.imagine.utils.painting.RepaintHandle;
 import org.imagine.vector.editor.ui.spi.ShapeElement;
@@ -18,27 +19,95 @@ import org.imagine.vector.editor.ui.spi.ShapesCollection;
 import org.openide.util.Utilities;
 
 /**
+ * Undoable edit of the geometry of some or all shapes in a collection.
+ * Every shape is snapshotted before the edit is performed (any of them may
+ * be changed), but once it has been, the snapshots of shapes whose geometry
+ * revision and item revision did not change are discarded, so only the
+ * shapes actually modified are retained, restored and repainted on undo and
+ * redo.  The item revision catches changes made directly to a shape's item,
+ * such as editing its text, which do not update the geometry revision.
  *
  * @author Tim Boudreau
  */
 public final class GeometryEdit extends AbstractShapeEdit {
 
-    private final ShapesCollection shapes;
+    private final List<ShapeElement> elements = new ArrayList<>();
     private final List<Runnable> undoers = new ArrayList<>();
+    private int[] revisions;
+    private int[] itemRevisions;
     private List<Runnable> redoers;
     private final Rectangle2D.Double repaintBounds = new Rectangle2D.Double();
     private final RepaintHandle handle;
 
     public GeometryEdit(String name, ShapesCollection shapes, RepaintHandle handle) {
         super(name);
-        this.shapes = shapes;
         this.handle = handle;
         for (ShapeElement se : shapes) {
+            elements.add(se);
             undoers.add(se.geometrySnapshot());
         }
+        revisions = new int[elements.size()];
+        itemRevisions = new int[elements.size()];
+        for (int i = 0; i < revisions.length; i++) {
+            ShapeElement se = elements.get(i);
+            revisions[i] = se.geometryRevision();
+            itemRevisions[i] = itemRevision(se);
+        }
         shapes.getBounds(repaintBounds);
     }
 
+    /**
+     * Called once the edit has been performed, to discard snapshots of
+     * shapes it did not change.  Shapes which do not track their geometry
+     * revision, or whose item is not versioned, are always retained.
+     */
+    void retainChanged() {
+        if (revisions == null) {
+            return;
+        }
+        int[] revs = revisions;
+        int[] itemRevs = itemRevisions;
+        revisions = null;
+        itemRevisions = null;
+        int count = 0;
+        for (int i = 0; i < revs.length; i++) {
+            ShapeElement se = elements.get(i);
+            int rev = se.geometryRevision();
+            int itemRev = itemRevision(se);
+            if (rev < 0 || rev != revs[i] || itemRev < 0 || itemRev != itemRevs[i]) {
+                elements.set(count, se);
+                undoers.set(count, undoers.get(i));
+                count++;
+            }
+        }
+        elements.subList(count, elements.size()).clear();
+        undoers.subList(count, undoers.size()).clear();
+        if (count > 0) {
+            // Repaint only what the changed shapes covered before and after
+            Rectangle2D.Double bds = new Rectangle2D.Double();
+            for (ShapeElement se : elements) {
+                se.addToBounds(bds);
+            }
+            if (!bds.isEmpty()) {
+                repaintBounds.setFrame(bds);
+            }
+        }
+    }
+
+    private static int itemRevision(ShapeElement se) {
+        Object item = se.item();
+        if (item instanceof Versioned) {
+            // Include the identity, as the item may have been replaced
+            return (((Versioned) item).rev() + System.identityHashCode(item))
+                    & Integer.MAX_VALUE;
+        }
+        return -1;
+    }
+
+    int size() {
+        return elements.size();
+    }
+
     public static AbstractShapeEdit createEditAdder(String name, ShapesCollection coll, RepaintHandle handle, Consumer<Runnable> editAdderConsumer) {
         UndoMgr mgr = Utilities.actionsGlobalContext().lookup(UndoMgr.class);
         if (mgr == null) {
@@ -48,6 +117,7 @@ public final class GeometryEdit extends AbstractShapeEdit {
         }
         GeometryEdit edit = new GeometryEdit(name, coll, handle);
         editAdderConsumer.accept(() -> {
+            edit.retainChanged();
             mgr.undoableEditHappened(new UndoableEditEvent(coll, edit));
         });
         return edit;
@@ -63,6 +133,7 @@ public final class GeometryEdit extends AbstractShapeEdit {
         GeometryEdit edit = new GeometryEdit(name, coll, handle);
         boolean aborted = AbortableImpl.SHARED_INSTANCE.borrow(editAdderConsumer);
         if (!aborted) {
+            edit.retainChanged();
             mgr.undoableEditHappened(new UndoableEditEvent(coll, edit));
         } else {
             return AbstractShapeEdit.DUMMY_EDIT;
@@ -72,14 +143,20 @@ public final class GeometryEdit extends AbstractShapeEdit {
 
     @Override
     protected void undoImpl() throws CannotUndoException {
-        shapes.getBounds(repaintBounds);
+        retainChanged();
+        for (ShapeElement se : elements) {
+            se.addToBounds(repaintBounds);
+        }
         redoers = new ArrayList<>(undoers.size());
-        for (ShapeElement se : shapes) {
+        for (ShapeElement se : elements) {
             redoers.add(se.geometrySnapshot());
         }
         for (Runnable un : undoers) {
             un.run();
         }
+        for (ShapeElement se : elements) {
+            se.addToBounds(repaintBounds);
+        }
         handle.repaintArea(repaintBounds);
     }
 
@@ -105,6 +182,9 @@ public final class GeometryEdit extends AbstractShapeEdit {
     @Override
     public void die() {
         redoers = null;
+        revisions = null;
+        itemRevisions = null;
+        elements.clear();
         undoers.clear();
     }
 }
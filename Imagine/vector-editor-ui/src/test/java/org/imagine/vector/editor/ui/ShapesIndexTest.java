@@ -0,0 +1,169 @@
+package org.imagine.vector.editor.ui;
+
+import java.awt.BasicStroke;
+import java.awt.Color;
+import java.awt.geom.Point2D;
+import java.awt.geom.Rectangle2D;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import net.java.dev.imagine.api.vector.elements.Oval;
+import net.java.dev.imagine.api.vector.elements.Rectangle;
+import org.imagine.vector.editor.ui.spi.ShapeElement;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import org.junit.jupiter.api.Test;
+
+/**
+ *
+ * @author Tim Boudreau
+ */
+public class ShapesIndexTest {
+
+    private static Shapes randomShapes(Random rnd, int count) {
+        Shapes shapes = new Shapes();
+        for (int i = 0; i < count; i++) {
+            double x = rnd.nextDouble() * 4000;
+            double y = rnd.nextDouble() * 4000;
+            double w = 5 + rnd.nextDouble() * 80;
+            double h = 5 + rnd.nextDouble() * 80;
+            if (i % 50 == 0) {
+                // Some shapes large enough to be kept out of the grid
+                w *= 30;
+                h *= 30;
+            }
+            if (rnd.nextBoolean()) {
+                shapes.add(new Rectangle(x, y, w, h, true), Color.BLUE, Color.BLACK,
+                        new BasicStroke(1), true, true);
+            } else {
+                shapes.add(new Oval(x, y, w, h, true), Color.BLUE, Color.BLACK,
+                        new BasicStroke(1), false, true);
+            }
+        }
+        return shapes;
+    }
+
+    private static List<ShapeElement> bruteForceAtPoint(Shapes shapes, double x, double y) {
+        List<ShapeElement> result = new ArrayList<>();
+        for (int i = 0; i < shapes.size(); i++) {
+            if (shapes.get(i).shape().contains(x, y)) {
+                result.add(shapes.get(i));
+            }
+        }
+        return result;
+    }
+
+    private static List<ShapeElement> bruteForceOverlapping(Shapes shapes, ShapeElement el) {
+        Rectangle2D bds = new Rectangle2D.Double();
+        el.addToBounds(bds);
+        List<ShapeElement> result = new ArrayList<>();
+        for (int i = 0; i < shapes.size(); i++) {
+            ShapeElement e = shapes.get(i);
+            if (e != el && e.getBounds().intersects(bds)) {
+                result.add(e);
+            }
+        }
+        return result;
+    }
+
+    private static Rectangle2D bruteForceBounds(Shapes shapes) {
+        Rectangle2D.Double result = new Rectangle2D.Double();
+        for (int i = 0; i < shapes.size(); i++) {
+            shapes.get(i).item().addToBounds(result);
+        }
+        return result;
+    }
+
+    private static void assertConsistent(Shapes shapes, Random rnd) {
+        for (int i = 0; i < 300; i++) {
+            double x = rnd.nextDouble() * 4200 - 100;
+            double y = rnd.nextDouble() * 4200 - 100;
+            List<ShapeElement> expected = bruteForceAtPoint(shapes, x, y);
+            assertEquals(expected, shapes.shapesAtPoint(x, y), "At " + x + "," + y);
+            List<ShapeElement> hits = new ArrayList<>();
+            shapes.hits(new Point2D.Double(x, y), hits::add);
+            assertEquals(expected, hits, "Hits at " + x + "," + y);
+        }
+        for (int i = 0; i < 50; i++) {
+            ShapeElement el = shapes.get(rnd.nextInt(shapes.size()));
+            assertEquals(bruteForceOverlapping(shapes, el), shapes.possiblyOverlapping(el));
+        }
+        Rectangle2D into = new Rectangle2D.Double();
+        shapes.getBounds(into);
+        assertEquals(bruteForceBounds(shapes), into);
+    }
+
+    @Test
+    public void testIndexMatchesBruteForce() {
+        Random rnd = new Random(1290381L);
+        Shapes shapes = randomShapes(rnd, 3000);
+        assertConsistent(shapes, rnd);
+    }
+
+    @Test
+    public void testIndexTracksEdits() {
+        Random rnd = new Random(7734L);
+        Shapes shapes = randomShapes(rnd, 1000);
+        assertConsistent(shapes, rnd);
+        // Geometry changes reported by the entries themselves
+        for (int i = 0; i < 100; i++) {
+            ShapeElement el = shapes.get(rnd.nextInt(shapes.size()));
+            el.translate(rnd.nextDouble() * 500 - 250, rnd.nextDouble() * 500 - 250);
+        }
+        assertConsistent(shapes, rnd);
+        // Structural changes
+        for (int i = 0; i < 100; i++) {
+            shapes.deleteShape(shapes.get(rnd.nextInt(shapes.size())));
+        }
+        for (int i = 0; i < 50; i++) {
+            ShapeElement el = shapes.get(rnd.nextInt(shapes.size()));
+            if (i % 2 == 0) {
+                shapes.toFront(el);
+            } else {
+                shapes.toBack(el);
+            }
+        }
+        assertConsistent(shapes, rnd);
+        shapes.add(new Rectangle(10, 10, 100, 100, true), Color.RED, Color.BLACK,
+                new BasicStroke(2), true, true);
+        shapes.duplicate(shapes.get(5));
+        assertConsistent(shapes, rnd);
+    }
+
+    @Test
+    public void testIndexIsMaintainedAcrossInterleavedEdits() {
+        Random rnd = new Random(5521L);
+        Shapes shapes = randomShapes(rnd, 400);
+        for (int i = 0; i < 200; i++) {
+            ShapeElement el = shapes.get(rnd.nextInt(shapes.size()));
+            switch (i % 5) {
+                case 0:
+                    shapes.deleteShape(el);
+                    break;
+                case 1:
+                    shapes.moveForward(el);
+                    break;
+                case 2:
+                    shapes.moveBack(el);
+                    break;
+                case 3:
+                    // Inserts in the middle of the list
+                    shapes.duplicate(el);
+                    break;
+                default:
+                    shapes.toBack(el);
+            }
+            ShapeElement probe = shapes.get(rnd.nextInt(shapes.size()));
+            Rectangle2D bds = probe.getBounds();
+            assertEquals(bruteForceAtPoint(shapes, bds.getCenterX(), bds.getCenterY()),
+                    shapes.shapesAtPoint(bds.getCenterX(), bds.getCenterY()));
+        }
+        assertConsistent(shapes, rnd);
+        // Enough inserts at the same place to use up the room between the
+        // order numbers of their neighbours
+        for (int i = 0; i < 200; i++) {
+            shapes.duplicate(shapes.get(1));
+            shapes.shapesAtPoint(0, 0);
+        }
+        assertConsistent(shapes, rnd);
+    }
+}
@@ -0,0 +1,110 @@
+package org.imagine.vector.editor.ui;
+
+import java.awt.BasicStroke;
+import java.awt.Color;
+import java.awt.Dimension;
+import java.awt.EventQueue;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Collections;
+import net.java.dev.imagine.api.vector.elements.Oval;
+import net.java.dev.imagine.api.vector.elements.Rectangle;
+import net.java.dev.imagine.spi.io.LayerJournalHandler.Change;
+import org.imagine.io.KeyBinaryWriter;
+import static org.imagine.vector.editor.ui.ShapesLoadHandler.SHAPE_COLLECTION_MAGIC_1A;
+import static org.imagine.vector.editor.ui.ShapesLoadHandler.SHAPE_COLLECTION_MAGIC_2;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.Test;
+
+/**
+ *
+ * @author Tim Boudreau
+ */
+public class ShapesLayerJournalTest {
+
+    @Test
+    public void testJournalsOnlyChangedShapes() throws Exception {
+        // Layers and their journals are used on the event thread
+        Exception[] failure = new Exception[1];
+        EventQueue.invokeAndWait(() -> {
+            try {
+                journalOnlyChangedShapes();
+            } catch (Exception ex) {
+                failure[0] = ex;
+            }
+        });
+        if (failure[0] != null) {
+            throw failure[0];
+        }
+    }
+
+    private void journalOnlyChangedShapes() throws IOException {
+        Shapes shapes = new Shapes();
+        for (int i = 0; i < 50; i++) {
+            shapes.add(new Rectangle(i * 10, i * 10, 8, 8, true), Color.BLUE, Color.BLACK,
+                    new BasicStroke(1), true, true);
+        }
+        VectorLayer layer = layer(shapes);
+        VectorLayer replica = layer(new Shapes(shapes));
+        ShapesLayerJournal journal = ShapesLayerJournal.INSTANCE;
+        journal.rebased(layer);
+        assertNull(journal.capture(layer, Collections.emptyList()));
+
+        ShapeEntry edited = (ShapeEntry) shapes.get(10);
+        edited.setFill(Color.RED);
+        long length = replay(journal.capture(layer, Collections.emptyList()), replica);
+        assertTrue(length < fullLength(shapes) / 10, "Wrote " + length + " bytes for one shape");
+        assertNull(journal.capture(layer, Collections.emptyList()));
+        assertEquals(Color.RED, replica(replica).get(10).getFill());
+        assertEquals(Color.BLUE, replica(replica).get(11).getFill());
+
+        shapes.deleteShape(shapes.get(3));
+        shapes.toFront(shapes.get(20));
+        shapes.add(new Oval(5, 5, 30, 30, true), Color.GREEN, Color.BLACK,
+                new BasicStroke(2), true, true);
+        replay(journal.capture(layer, Collections.emptyList()), replica);
+        Shapes result = replica(replica);
+        assertEquals(shapes.size(), result.size());
+        for (int i = 0; i < shapes.size(); i++) {
+            assertEquals(shapes.get(i).id(), result.get(i).id(), "Shape " + i);
+            assertEquals(shapes.get(i).getFill(), result.get(i).getFill(), "Shape " + i);
+        }
+    }
+
+    private static VectorLayer layer(Shapes shapes) {
+        return new VectorLayer("test", (x, y, w, h) -> {
+        }, new Dimension(600, 600), null, shapes);
+    }
+
+    private static Shapes replica(VectorLayer layer) throws IOException {
+        return ShapesLayerSave.shapesOf(layer);
+    }
+
+    private static long fullLength(Shapes shapes) throws IOException {
+        KeyBinaryWriter w = new KeyBinaryWriter(SHAPE_COLLECTION_MAGIC_1A, SHAPE_COLLECTION_MAGIC_2);
+        shapes.writeTo(w);
+        w.finishRecord();
+        return w.size();
+    }
+
+    private static long replay(Change change, VectorLayer into) throws IOException {
+        assertNotNull(change);
+        Path file = Files.createTempFile("ShapesLayerJournalTest", ".journal");
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ,
+                StandardOpenOption.WRITE)) {
+            change.writeTo(channel);
+            long length = channel.position();
+            channel.position(0);
+            ShapesLayerJournal.INSTANCE.apply(into, channel, (int) length);
+            return length;
+        } finally {
+            Files.delete(file);
+        }
+    }
+}
@@ -31,6 +31,7 @@ import net.java.dev.imagine.api.vector.elements.Oval;
 import net.java.dev.imagine.api.vector.elements.PathIteratorWrapper;
 import net.java.dev.imagine.api.vector.elements.PathText;
 import net.java.dev.imagine.api.vector.elements.Polygon;
+import net.java.dev.imagine.api.vector.elements.PolygonWrapper;
 import net.java.dev.imagine.api.vector.elements.Polyline;
 import net.java.dev.imagine.api.vector.elements.Rectangle;
 import net.java.dev.imagine.api.vector.elements.RhombusWrapper;
@@ -42,6 +43,7 @@ import net.java.dev.imagine.api.vector.graphics.BasicStrokeWrapper;
 import net.java.dev.imagine.api.vector.graphics.FontWrapper;
 import org.imagine.awt.key.PaintKey;
 import org.imagine.editor.api.PaintingStyle;
+import org.imagine.io.ByteArrayReadChannel;
 import org.imagine.io.KeyBinaryReader;
 import org.imagine.io.KeyBinaryWriter;
 import org.imagine.io.KeyStringReader;
@@ -303,6 +305,79 @@ public class VectorIOTest {
         System.out.println("SHAPES: " + sb);
     }
 
+    @Test
+    public void testCoordinateEncoding() throws IOException {
+        Path2D.Double integral = new Path2D.Double();
+        integral.moveTo(100, 107);
+        integral.lineTo(-200, 23);
+        integral.curveTo(28, 54, 32, 482, 17, 19);
+        integral.quadTo(1010, 36.5, 85.25, 101);
+        integral.closePath();
+        Path2D.Double fractional = new Path2D.Double();
+        fractional.moveTo(100, 107.3);
+        fractional.lineTo(200, 23.5);
+        fractional.curveTo(28, 54.20101, 32.5, 482.01013, 17.20202, 19);
+        fractional.closePath();
+        Primitive[] prims = new Primitive[]{
+            new PathIteratorWrapper(integral),
+            new PathIteratorWrapper(fractional),
+            new Polygon(new double[]{1, 5, 10.5}, new double[]{2, -7, 3}, false),
+            new PolygonWrapper(new double[]{0, 0, 1e12, 3, Double.MAX_VALUE, -0D})
+        };
+        VectorIO io = new VectorIO().setHashInconsistencyBehavior(HashInconsistencyBehavior.THROW);
+        KeyBinaryWriter kbw = new KeyBinaryWriter();
+        for (Primitive p : prims) {
+            io.writeShape(p, kbw);
+        }
+        kbw.finishRecord();
+        byte[] bytes = kbw.toByteArray();
+        kbw.release();
+        KeyBinaryReader<ByteArrayReadChannel> r = new KeyBinaryReader<>(new ByteArrayReadChannel(bytes));
+        assertEquals(bytes.length, r.readMagicAndSize());
+        for (Primitive p : prims) {
+            assertEquals(p, io.readShape(r));
+        }
+
+        StringBuilder sb = new StringBuilder();
+        KeyStringWriter w = new KeyStringWriter(sb);
+        for (Primitive p : prims) {
+            io.writeShape(p, w);
+        }
+        KeyStringReader sr = new KeyStringReader(sb);
+        sr.readByte();
+        sr.readByte();
+        for (Primitive p : prims) {
+            assertEquals(p, io.readShape(sr));
+        }
+    }
+
+    @Test
+    public void testRevisionOnePathsAreReadable() throws IOException {
+        PathIteratorWrapper path = new PathIteratorWrapper(new Path2D.Double(
+                new java.awt.Rectangle(10, 20, 30, 40)));
+        // Write a path the way revision 1 of VectorIO did, with a double
+        // array per segment
+        KeyBinaryWriter kbw = new KeyBinaryWriter();
+        kbw.writeByte((byte) 121).writeByte((byte) -107).writeByte((byte) 6)
+                .writeByte((byte) 1).writeInt(path.hashCode());
+        byte[] types = new byte[path.size()];
+        List<double[]> points = new ArrayList<>();
+        path.visitPoints((PathIteratorWrapper.PointVisitor) (ix, type, data) -> {
+            types[ix] = (byte) type;
+            points.add(data == null ? new double[0] : data);
+        });
+        kbw.writeByteArray(types);
+        for (double[] pts : points) {
+            kbw.writeDoubleArray(pts);
+        }
+        kbw.finishRecord();
+        KeyBinaryReader<ByteArrayReadChannel> r
+                = new KeyBinaryReader<>(new ByteArrayReadChannel(kbw.toByteArray()));
+        r.readMagicAndSize();
+        VectorIO io = new VectorIO().setHashInconsistencyBehavior(HashInconsistencyBehavior.THROW);
+        assertEquals(path, io.readShape(r));
+    }
+
     private void withWriteChannel(IOConsumer<FileChannel> c) throws IOException {
         try (FileChannel str = FileChannel.open(file, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.CREATE)) {
             c.accept(str);
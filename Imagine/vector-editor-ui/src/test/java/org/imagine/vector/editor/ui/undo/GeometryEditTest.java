@@ -0,0 +1,113 @@
+package org.imagine.vector.editor.ui.undo;
+
+import java.awt.BasicStroke;
+import java.awt.Color;
+import java.awt.Font;
+import java.awt.Rectangle;
+import java.util.ArrayList;
+import java.util.List;
+import net.java.dev.imagine.api.vector.elements.Oval;
+import net.java.dev.imagine.api.vector.elements.Text;
+import org.imagine.vector.editor.ui.Shapes;
+import org.imagine.vector.editor.ui.spi.ShapeElement;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import org.junit.jupiter.api.Test;
+
+/**
+ *
+ * @author Tim Boudreau
+ */
+public class GeometryEditTest {
+
+    private static Shapes shapes(int count) {
+        Shapes shapes = new Shapes();
+        for (int i = 0; i < count; i++) {
+            shapes.add(new Oval(i * 10, i * 5, 20, 30, true), Color.BLUE,
+                    Color.BLACK, new BasicStroke(1), true, true);
+        }
+        return shapes;
+    }
+
+    private static List<Rectangle> bounds(Shapes shapes) {
+        List<Rectangle> result = new ArrayList<>();
+        for (ShapeElement el : shapes) {
+            result.add(el.shape().getBounds());
+        }
+        return result;
+    }
+
+    @Test
+    public void testOnlyChangedShapesAreRetained() {
+        Shapes shapes = shapes(500);
+        List<Rectangle> before = bounds(shapes);
+        GeometryEdit edit = new GeometryEdit("Move", shapes, (x, y, w, h) -> {
+        });
+        shapes.get(3).translate(100, 100);
+        shapes.get(250).translate(-40, 20);
+        shapes.get(499).translate(7, 0);
+        edit.retainChanged();
+        assertEquals(3, edit.size());
+        List<Rectangle> after = bounds(shapes);
+        assertNotEquals(before, after);
+
+        edit.undo();
+        assertEquals(before, bounds(shapes));
+        edit.redo();
+        assertEquals(after, bounds(shapes));
+        edit.undo();
+        assertEquals(before, bounds(shapes));
+    }
+
+    @Test
+    public void testChangesMadeThroughTheItemAreRetained() {
+        Shapes shapes = shapes(10);
+        ShapeElement textShape = shapes.add(new Text("Hello", new Font("Serif", Font.PLAIN, 24), 10, 50),
+                Color.BLUE, Color.BLACK, new BasicStroke(1), false, true);
+        GeometryEdit edit = new GeometryEdit("Edit Text", shapes, (x, y, w, h) -> {
+        });
+        // Does not go through the entry, so its geometry revision is unchanged
+        ((Text) textShape.item()).setText("Goodbye");
+        edit.retainChanged();
+        assertEquals(1, edit.size());
+
+        edit.undo();
+        assertEquals("Hello", ((Text) textShape.item()).getText());
+        edit.redo();
+        assertEquals("Goodbye", ((Text) textShape.item()).getText());
+    }
+
+    @Test
+    public void testContentsSnapshotIsUnaffectedByLaterChanges() {
+        Shapes shapes = shapes(100);
+        List<ShapeElement> original = new ArrayList<>();
+        shapes.forEach(original::add);
+        Runnable snapshot = shapes.contentsSnapshot();
+        shapes.deleteShape(shapes.get(10));
+        shapes.toFront(shapes.get(50));
+        shapes.add(new Oval(0, 0, 5, 5, true), Color.RED, Color.BLACK,
+                new BasicStroke(1), true, true);
+        assertEquals(100, shapes.size());
+        Runnable redo = shapes.contentsSnapshot();
+        List<ShapeElement> modified = new ArrayList<>();
+        shapes.forEach(modified::add);
+        assertNotEquals(original, modified);
+
+        snapshot.run();
+        List<ShapeElement> restored = new ArrayList<>();
+        shapes.forEach(restored::add);
+        assertEquals(original, restored);
+        // Modifying the restored contents must not alter the snapshot
+        shapes.deleteShape(shapes.get(0));
+        snapshot.run();
+        restored.clear();
+        shapes.forEach(restored::add);
+        assertEquals(original, restored);
+        assertEquals(original.get(99), shapes.shapesAtPoint(10, 15).get(0));
+
+        redo.run();
+        List<ShapeElement> redone = new ArrayList<>();
+        shapes.forEach(redone::add);
+        assertEquals(modified, redone);
+    }
+}
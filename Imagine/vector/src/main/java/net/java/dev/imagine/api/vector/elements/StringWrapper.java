@@ -89,11 +89,15 @@ public class StringWrapper extends AbstractVersioned implements Vectors, Textual
     }
 
     public void setText(String txt) {
+        String old = string;
         if (txt == null) {
             this.string = "";
         } else {
             this.string = txt.trim();
         }
+        if (!this.string.equals(old)) {
+            change();
+        }
     }
 
     public boolean isEmpty() {